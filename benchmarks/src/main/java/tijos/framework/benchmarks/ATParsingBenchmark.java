@@ -0,0 +1,70 @@
+package tijos.framework.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import tijos.framework.devicecenter.TiUART;
+import tijos.framework.sensor.ec20.io.ATLineReader;
+import tijos.framework.sensor.ec20.io.ATTokenizer;
+
+/**
+ * AT input of TiEC20: a line framed by ATLineReader from the UART, then
+ * matched against the URC prefixes and parsed as a +QMTRECV message the way
+ * the reader thread of TiEC20 does
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ATParsingBenchmark {
+
+    static final byte[] LINE = "\r\n+QMTRECV: 0,17,\"device/42/cmd\",24,\"{\\\"on\\\":1,\\\"level\\\":75}\"\r\n"
+            .getBytes();
+
+    TiUART uart;
+    ATLineReader reader;
+    final ATTokenizer urc = new ATTokenizer();
+    final byte[] payload = new byte[64];
+
+    @Setup
+    public void setup() throws IOException {
+        uart = TiUART.open(0);
+        reader = new ATLineReader(uart);
+    }
+
+    @Benchmark
+    public int readLine() throws IOException {
+        uart.inject(LINE, 0, LINE.length);
+        return reader.readLine(0);
+    }
+
+    @Benchmark
+    public void readAndParse(Blackhole bh) throws IOException {
+        uart.inject(LINE, 0, LINE.length);
+        int len = reader.readLine(0);
+        byte[] resp = reader.getLine();
+
+        if (urc.reset(resp, 0, len).seek("+QMTSTAT:") || !urc.reset(resp, 0, len).seek("+QMTRECV:"))
+            throw new IllegalStateException();
+
+        bh.consume(urc.nextInt()); // client
+        bh.consume(urc.nextInt()); // message id
+        bh.consume(urc.nextQuoted()); // topic
+        int length = urc.nextInt();
+        bh.consume(urc.nextQuoted(payload, 0, length));
+    }
+}
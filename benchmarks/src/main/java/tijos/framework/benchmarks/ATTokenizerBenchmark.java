@@ -0,0 +1,67 @@
+package tijos.framework.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tijos.framework.sensor.ec20.io.ATTokenizer;
+
+/**
+ * Parsing of +QMTPUBEX and +CSQ responses, String.split based (legacy) against
+ * ATTokenizer. The String of the line is created by the legacy reader, it is
+ * not part of the measurement.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ATTokenizerBenchmark {
+
+    static final String PUBEX = "+QMTPUBEX: 0,12,0";
+    static final String CSQ = "+CSQ: 23,99";
+
+    static final byte[] PUBEX_LINE = PUBEX.getBytes();
+    static final byte[] CSQ_LINE = CSQ.getBytes();
+
+    final ATTokenizer tokenizer = new ATTokenizer();
+
+    @Benchmark
+    public int pubexLegacy() {
+        // parsing of the previous TiEC20.mqttPublish
+        String resp = PUBEX.substring(PUBEX.indexOf(':') + 2);
+        String[] result = resp.split(",");
+        return Integer.parseInt(result[2]);
+    }
+
+    @Benchmark
+    public int pubexTokenizer() throws IOException {
+        tokenizer.reset(PUBEX_LINE, 0, PUBEX_LINE.length).seek("+QMTPUBEX:");
+        tokenizer.skip(2);
+        return tokenizer.nextInt();
+    }
+
+    @Benchmark
+    public int csqLegacy() {
+        // parsing of the previous TiEC20.getRSSI
+        int begin = CSQ.indexOf(':');
+        int end = CSQ.lastIndexOf(',');
+        return Integer.parseInt(CSQ.substring(begin + 2, end));
+    }
+
+    @Benchmark
+    public int csqTokenizer() throws IOException {
+        tokenizer.reset(CSQ_LINE, 0, CSQ_LINE.length).seek("+CSQ:");
+        return tokenizer.nextInt();
+    }
+}
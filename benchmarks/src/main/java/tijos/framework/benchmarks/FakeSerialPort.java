@@ -0,0 +1,81 @@
+package tijos.framework.benchmarks;
+
+import java.io.IOException;
+
+import tijos.framework.component.serialport.ISerialFrameListener;
+import tijos.framework.component.serialport.ISerialPort;
+
+/**
+ * Serial port answering every read with the same frame at once, such as a
+ * response frame of a server. It has no frame silence, so a transport does
+ * not wait between frames.
+ */
+class FakeSerialPort implements ISerialPort {
+
+    private final byte[] frame;
+
+    FakeSerialPort(byte[] frame) {
+        this.frame = frame;
+    }
+
+    public void open(int baudRate, int dataBitNum, int stopBitNum, int parity) {
+    }
+
+    public void close() {
+    }
+
+    public int getBaudRate() {
+        return 115200;
+    }
+
+    public int getCharTime() {
+        return 86;
+    }
+
+    public int getT15() {
+        return 750;
+    }
+
+    public int getT35() {
+        return 1750;
+    }
+
+    public int getFrameSilence() {
+        return 0;
+    }
+
+    public void setFrameSilence(int ms) {
+    }
+
+    public void clearInput() {
+    }
+
+    public void write(byte[] buffer, int start, int length) {
+    }
+
+    public byte[] read() {
+        return frame.clone();
+    }
+
+    public byte[] read(int msec) {
+        return frame.clone();
+    }
+
+    public int readFrame(byte[] buffer, int start, int length, int firstByteTimeout) throws IOException {
+        return readFrame(buffer, start, length, firstByteTimeout, null);
+    }
+
+    public int readFrame(byte[] buffer, int start, int length, int firstByteTimeout, ISerialFrameListener listener)
+            throws IOException {
+        int n = Math.min(length, frame.length);
+        System.arraycopy(frame, 0, buffer, start, n);
+        if (listener != null)
+            listener.onFrameData(buffer, start, n);
+        return n;
+    }
+
+    public boolean readToBuffer(byte[] buffer, int start, int length, int timeOut) {
+        System.arraycopy(frame, 0, buffer, start, Math.min(length, frame.length));
+        return length <= frame.length;
+    }
+}
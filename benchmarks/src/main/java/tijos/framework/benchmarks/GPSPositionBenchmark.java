@@ -0,0 +1,48 @@
+package tijos.framework.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tijos.framework.sensor.ec20.GPSPosition;
+import tijos.framework.sensor.ec20.io.ATTokenizer;
+
+/**
+ * Parsing of a +QGPSLOC response from a string and in place from the line
+ * buffer
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GPSPositionBenchmark {
+
+    static final String RESPONSE = "+QGPSLOC: 093929.0,3959.807968,N,11619.997406,E,0.8,27.0,2,175.21,0.0,0.0,050719,07";
+    static final byte[] LINE = RESPONSE.getBytes();
+
+    final GPSPosition position = new GPSPosition();
+    final ATTokenizer tokenizer = new ATTokenizer();
+
+    @Benchmark
+    public double parseString() throws IOException {
+        position.parse(RESPONSE);
+        return position.latitude;
+    }
+
+    @Benchmark
+    public double parseInPlace() throws IOException {
+        position.parse(tokenizer.reset(LINE, 0, LINE.length));
+        return position.latitude;
+    }
+}
@@ -0,0 +1,72 @@
+package tijos.framework.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tijos.framework.component.modbus.protocol.ModbusCrc16;
+
+/**
+ * CRC engines on typical frame lengths, the table engine is the former
+ * calcCRC16 loop
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ModbusCrc16Benchmark {
+
+    @Param({"8", "16", "64", "128", "256"})
+    int length;
+
+    byte[] data;
+    ModbusCrc16 crc = new ModbusCrc16();
+
+    @Setup
+    public void setup() {
+        data = new byte[256];
+        new Random(1).nextBytes(data);
+
+        int expected = ModbusCrc16.compute(ModbusCrc16.ENGINE_TABLE, data, 0, length);
+        if ((ModbusCrc16.compute(ModbusCrc16.ENGINE_SLICE_BY_4, data, 0, length) != expected)
+                || (ModbusCrc16.compute(ModbusCrc16.ENGINE_SLICE_BY_8, data, 0, length) != expected))
+            throw new IllegalStateException("Engines differ");
+    }
+
+    @Benchmark
+    public int table() {
+        return ModbusCrc16.compute(ModbusCrc16.ENGINE_TABLE, data, 0, length);
+    }
+
+    @Benchmark
+    public int sliceBy4() {
+        return ModbusCrc16.compute(ModbusCrc16.ENGINE_SLICE_BY_4, data, 0, length);
+    }
+
+    @Benchmark
+    public int sliceBy8() {
+        return ModbusCrc16.compute(ModbusCrc16.ENGINE_SLICE_BY_8, data, 0, length);
+    }
+
+    // a frame arriving in chunks of 7 bytes
+    @Benchmark
+    public int incremental() {
+        crc.reset();
+        for (int off = 0; off < length; off += 7)
+            crc.update(data, off, Math.min(7, length - off));
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,52 @@
+package tijos.framework.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tijos.framework.component.modbus.protocol.ModbusPdu;
+
+/**
+ * CRC and hex log of a frame, the length is a short request, a medium and the
+ * largest RTU frame
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ModbusPduBenchmark {
+
+    @Param({"8", "64", "256"})
+    int length;
+
+    byte[] data;
+
+    @Setup
+    public void setup() {
+        data = new byte[256];
+        new Random(1).nextBytes(data);
+    }
+
+    @Benchmark
+    public int calcCRC16() {
+        return ModbusPdu.calcCRC16(data, 0, length);
+    }
+
+    @Benchmark
+    public String toHex() {
+        return ModbusPdu.toHex(data, 0, length);
+    }
+}
@@ -0,0 +1,50 @@
+package tijos.framework.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tijos.framework.component.modbus.rtu.ModbusTransaction;
+
+/**
+ * Request encoding into the PDU of a transaction by the Init...Request
+ * methods, which are built on initRequest
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ModbusRequestBenchmark {
+
+    final ModbusTransaction tx = new ModbusTransaction();
+    final int[] registers = new int[60];
+    final boolean[] coils = new boolean[200];
+
+    @Benchmark
+    public int readHoldings() {
+        tx.InitReadHoldingsRequest(1, 100, 60);
+        return tx.getPduSize();
+    }
+
+    @Benchmark
+    public int writeRegisters() {
+        tx.InitWriteRegistersRequest(1, 100, registers);
+        return tx.getPduSize();
+    }
+
+    @Benchmark
+    public int writeCoils() {
+        tx.InitWriteCoilsRequest(1, 100, coils);
+        return tx.getPduSize();
+    }
+}
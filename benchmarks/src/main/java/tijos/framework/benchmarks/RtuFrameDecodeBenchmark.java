@@ -0,0 +1,77 @@
+package tijos.framework.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tijos.framework.component.modbus.protocol.ModbusPdu;
+import tijos.framework.component.modbus.rtu.ModbusTransaction;
+import tijos.framework.component.modbus.rtu.RtuTransportUART;
+
+/**
+ * Response of READ HOLDING REGISTERS received and checked by RtuTransportUART
+ * from a fake port, and the whole transaction with the request encoding
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RtuFrameDecodeBenchmark {
+
+    @Param({"1", "60", "125"})
+    int count;
+
+    ModbusTransaction tx;
+    RtuTransportUART transport;
+
+    @Setup
+    public void setup() throws Exception {
+        tx = new ModbusTransaction();
+        transport = new RtuTransportUART(new FakeSerialPort(response(1, count)), 100, 0);
+
+        tx.InitReadHoldingsRequest(1, 0, count);
+        if (transport.waitResponse(tx) != ModbusTransaction.RESULT_OK)
+            throw new IllegalStateException("Invalid response");
+    }
+
+    @Benchmark
+    public int decode() throws Exception {
+        tx.InitReadHoldingsRequest(1, 0, count);
+        return transport.waitResponse(tx);
+    }
+
+    @Benchmark
+    public int transaction() throws Exception {
+        tx.InitReadHoldingsRequest(1, 0, count);
+        transport.sendRequest(tx);
+        return transport.waitResponse(tx);
+    }
+
+    // valid response frame with CRC
+    static byte[] response(int id, int count) {
+        byte[] frame = new byte[5 + count * 2];
+        frame[0] = (byte) id;
+        frame[1] = 3;
+        frame[2] = (byte) (count * 2);
+        for (int i = 0; i < count; i++) {
+            frame[3 + i * 2] = (byte) (i >> 8);
+            frame[4 + i * 2] = (byte) i;
+        }
+        int crc = ModbusPdu.calcCRC16(frame, 0, frame.length - 2);
+        frame[frame.length - 2] = ModbusPdu.lowByte(crc);
+        frame[frame.length - 1] = ModbusPdu.highByte(crc);
+        return frame;
+    }
+}
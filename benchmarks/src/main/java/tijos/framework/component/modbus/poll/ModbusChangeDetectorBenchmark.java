@@ -0,0 +1,84 @@
+package tijos.framework.component.modbus.poll;
+
+import static tijos.framework.component.modbus.protocol.ModbusConstants.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Change detection and delta encoding of a cycle of 1000 points, about 10% of
+ * them move beyond the deadband. It is in the package of ModbusPoint to update
+ * the values like ModbusPollPlan does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ModbusChangeDetectorBenchmark {
+
+    static final int POINTS = 1000;
+    static final int PATTERNS = 16;
+
+    ModbusPoint[] points;
+    ModbusChangeDetector detector;
+    int[][] values;
+    byte[] buf;
+    long now;
+
+    @Setup
+    public void setup() {
+        points = new ModbusPoint[POINTS];
+        detector = new ModbusChangeDetector(300000);
+        for (int i = 0; i < POINTS; i++) {
+            int type = (i % 4 == 0) ? ModbusPoint.TYPE_FLOAT : ModbusPoint.TYPE_INT16;
+            points[i] = new ModbusPoint("p" + i, 1 + i / 100, FN_READ_HOLDING_REGISTERS, i % 100 * 2, type);
+            detector.add(points[i], 0.5, 1);
+        }
+
+        Random random = new Random(1);
+        values = new int[PATTERNS][POINTS];
+        for (int p = 0; p < PATTERNS; p++) {
+            for (int i = 0; i < POINTS; i++) {
+                int step = random.nextInt(10) == 0 ? 50 : random.nextInt(2);
+                if (points[i].getType() == ModbusPoint.TYPE_FLOAT)
+                    values[p][i] = Float.floatToIntBits(200 + step * 0.37f);
+                else
+                    values[p][i] = 200 + step;
+            }
+        }
+
+        // the first report has all points, it is the largest message
+        for (int i = 0; i < POINTS; i++)
+            points[i].update(values[0][i]);
+        detector.detect(now);
+        buf = new byte[detector.getMaxMessageLength()];
+        detector.encode(buf, 0);
+        detector.commit();
+    }
+
+    @Benchmark
+    public int cycle() {
+        int[] pattern = values[(int) (now / 1000) % PATTERNS];
+        for (int i = 0; i < POINTS; i++)
+            points[i].update(pattern[i]);
+
+        now += 1000;
+        detector.detect(now);
+        int len = detector.encode(buf, 0);
+        detector.commit();
+        return len;
+    }
+}
@@ -0,0 +1,102 @@
+package tijos.framework.component.modbus.rtu;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tijos.framework.component.modbus.protocol.ModbusPdu;
+
+/**
+ * Framing of a READ HOLDING REGISTERS transaction of 60 registers: the former
+ * path copying the PDU to and from the transport buffer and building the hex
+ * log of both frames, against the ADU encoded and decoded in place without log.
+ * The serial port is left out. It is in the package of ModbusTransaction to set
+ * the result like the transport does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RtuFramingBenchmark {
+
+    static final int COUNT = 60;
+
+    final ModbusTransaction tx = new ModbusTransaction();
+    final byte[] buffer = new byte[256]; // former transport buffer
+    final short[] values = new short[COUNT];
+    byte[] response;
+
+    @Setup
+    public void setup() {
+        response = response(1, COUNT);
+    }
+
+    @Benchmark
+    public int copyAndLog() {
+        int sink = 0;
+        tx.InitReadHoldingsRequest(1, 0, COUNT);
+        buffer[0] = tx.getServerId();
+        tx.readFromPdu(0, tx.getPduSize(), buffer, 1);
+        int size = tx.getPduSize() + 1;
+        int crc = ModbusPdu.calcCRC16(buffer, 0, size);
+        buffer[size] = ModbusPdu.lowByte(crc);
+        buffer[size + 1] = ModbusPdu.highByte(crc);
+        sink += ModbusPdu.toHex(buffer, 0, size + 2).length();
+
+        System.arraycopy(response, 0, buffer, 0, response.length); // received
+        sink += ModbusPdu.calcCRC16(buffer, 0, response.length - 2);
+        sink += ModbusPdu.toHex(buffer, 0, response.length).length();
+        tx.setPduSize(tx.getExpectedPduSize());
+        tx.writeToPdu(buffer, 1, tx.getPduSize(), 0);
+        tx.setResult(ModbusTransaction.RESULT_OK);
+        tx.getResponseRegisters(values, 0);
+        return sink + values[COUNT - 1];
+    }
+
+    @Benchmark
+    public int inPlace() {
+        int sink = 0;
+        tx.InitReadHoldingsRequest(1, 0, COUNT);
+        byte[] adu = tx.getAdu();
+        adu[0] = tx.getServerId();
+        int size = tx.getPduSize() + 1;
+        int crc = ModbusPdu.calcCRC16(adu, 0, size);
+        adu[size] = ModbusPdu.lowByte(crc);
+        adu[size + 1] = ModbusPdu.highByte(crc);
+        sink += adu[size + 1];
+
+        System.arraycopy(response, 0, adu, 0, response.length); // received
+        sink += ModbusPdu.calcCRC16(adu, 0, response.length - 2);
+        tx.setPduSize(tx.getExpectedPduSize());
+        tx.setResult(ModbusTransaction.RESULT_OK);
+        tx.getResponseRegisters(values, 0);
+        return sink + values[COUNT - 1];
+    }
+
+    // valid response frame with CRC
+    static byte[] response(int id, int count) {
+        byte[] frame = new byte[5 + count * 2];
+        frame[0] = (byte) id;
+        frame[1] = 3;
+        frame[2] = (byte) (count * 2);
+        for (int i = 0; i < count; i++) {
+            frame[3 + i * 2] = (byte) (i >> 8);
+            frame[4 + i * 2] = (byte) i;
+        }
+        int crc = ModbusPdu.calcCRC16(frame, 0, frame.length - 2);
+        frame[frame.length - 2] = ModbusPdu.lowByte(crc);
+        frame[frame.length - 1] = ModbusPdu.highByte(crc);
+        return frame;
+    }
+}
@@ -0,0 +1,157 @@
+package tijos.framework.devicecenter;
+
+import java.io.IOException;
+
+import tijos.framework.emulator.IGpioListener;
+
+/**
+ * TiJOS GPIO on a desktop JDK. The pin levels are kept in memory, the changes
+ * of the output pins are reported to the listeners of the port, and the input
+ * pins are driven by {@link #setInput(int, int, int)}.
+ */
+public class TiGPIO {
+
+	public static final int INPUT_FLOATING = 0;
+	public static final int OUTPUT_PP = 1;
+	public static final int OUTPUT_OD = 2;
+	public static final int INPUT_PULL_UP = 3;
+	public static final int INPUT_PULL_DOWN = 4;
+
+	public static final int PORTS = 8;
+	public static final int PINS = 32;
+
+	// levels of the pins, a bit per pin
+	private static final int[] levels = new int[PORTS];
+	private static final int[] outputs = new int[PORTS];
+
+	private static IGpioListener[][] listeners = new IGpioListener[PORTS][0];
+
+	private final int port;
+	private final int pins;
+
+	private TiGPIO(int port, int pins) {
+		this.port = port;
+		this.pins = pins;
+	}
+
+	/**
+	 * Open pins of a port
+	 *
+	 * @param port 0 - 7
+	 * @param pins 0 - 31
+	 * @return
+	 * @throws IOException
+	 */
+	public static TiGPIO open(int port, int... pins) throws IOException {
+		if (port < 0 || port >= PORTS)
+			throw new IOException("Invalid GPIO port " + port);
+
+		int mask = 0;
+		for (int i = 0; i < pins.length; i++) {
+			if (pins[i] < 0 || pins[i] >= PINS)
+				throw new IOException("Invalid GPIO pin " + pins[i]);
+			mask |= 1 << pins[i];
+		}
+		return new TiGPIO(port, mask);
+	}
+
+	public void setWorkMode(int pin, int mode) throws IOException {
+		check(pin);
+		synchronized (TiGPIO.class) {
+			if (mode == OUTPUT_PP || mode == OUTPUT_OD)
+				outputs[port] |= 1 << pin;
+			else
+				outputs[port] &= ~(1 << pin);
+
+			if (mode == INPUT_PULL_UP)
+				levels[port] |= 1 << pin;
+			else if (mode == INPUT_PULL_DOWN)
+				levels[port] &= ~(1 << pin);
+		}
+	}
+
+	public void writePin(int pin, int value) throws IOException {
+		check(pin);
+		synchronized (TiGPIO.class) {
+			if ((outputs[port] & (1 << pin)) == 0)
+				throw new IOException("Pin " + pin + " is not an output");
+		}
+		change(port, pin, value);
+	}
+
+	public int readPin(int pin) throws IOException {
+		check(pin);
+		return getLevel(port, pin);
+	}
+
+	/**
+	 * Level of a pin
+	 *
+	 * @param port
+	 * @param pin
+	 * @return 0 or 1
+	 */
+	public static synchronized int getLevel(int port, int pin) {
+		return (levels[port] >>> pin) & 1;
+	}
+
+	/**
+	 * Drive a pin from outside, such as a pin of an emulated device
+	 *
+	 * @param port
+	 * @param pin
+	 * @param value 0 or 1
+	 */
+	public static void setInput(int port, int pin, int value) {
+		change(port, pin, value);
+	}
+
+	/**
+	 * Listen to the level changes of the pins of a port
+	 *
+	 * @param port
+	 * @param listener
+	 */
+	public static synchronized void addListener(int port, IGpioListener listener) {
+		IGpioListener[] a = new IGpioListener[listeners[port].length + 1];
+		System.arraycopy(listeners[port], 0, a, 0, a.length - 1);
+		a[a.length - 1] = listener;
+		listeners[port] = a;
+	}
+
+	public static synchronized void removeListener(int port, IGpioListener listener) {
+		IGpioListener[] l = listeners[port];
+		for (int i = 0; i < l.length; i++) {
+			if (l[i] == listener) {
+				IGpioListener[] a = new IGpioListener[l.length - 1];
+				System.arraycopy(l, 0, a, 0, i);
+				System.arraycopy(l, i + 1, a, i, a.length - i);
+				listeners[port] = a;
+				return;
+			}
+		}
+	}
+
+	private static void change(int port, int pin, int value) {
+		IGpioListener[] l;
+		synchronized (TiGPIO.class) {
+			int old = levels[port];
+			if (value != 0)
+				levels[port] |= 1 << pin;
+			else
+				levels[port] &= ~(1 << pin);
+			if (levels[port] == old)
+				return;
+			l = listeners[port];
+		}
+
+		// listeners are called without lock, the array is copied on write
+		for (int i = 0; i < l.length; i++)
+			l[i].onPinChanged(port, pin, value != 0 ? 1 : 0);
+	}
+
+	private void check(int pin) throws IOException {
+		if (pin < 0 || pin >= PINS || (pins & (1 << pin)) == 0)
+			throw new IOException("Pin " + pin + " is not opened");
+	}
+}
@@ -0,0 +1,202 @@
+package tijos.framework.devicecenter;
+
+import java.io.IOException;
+
+import tijos.framework.emulator.IUartDevice;
+import tijos.framework.emulator.StreamUartDevice;
+
+/**
+ * TiJOS UART on a desktop JDK. The bytes written are given to the device
+ * attached to the port, and the output of the device is received in the input
+ * buffer. A port without a device model can be connected to a PTY or named
+ * pipes by the system property tijos.uart.&lt;port&gt;, as "/dev/pts/3" or
+ * "input-pipe,output-pipe".
+ */
+public class TiUART {
+
+	public static final int PARITY_NONE = 0;
+	public static final int PARITY_ODD = 1;
+	public static final int PARITY_EVEN = 2;
+
+	public static final int BUFF_READ = 1;
+	public static final int BUFF_WRITE = 2;
+
+	public static final int PORTS = 8;
+
+	// input buffer size of the UART driver
+	public static final int INPUT_SIZE = 4096;
+
+	private static final TiUART[] ports = new TiUART[PORTS];
+
+	private final int port;
+
+	private final byte[] input = new byte[INPUT_SIZE];
+	private int head;
+	private int count;
+	private int overruns;
+
+	private int dataBitNum = 8;
+	private int stopBitNum = 1;
+	private int parity = PARITY_NONE;
+	private int baudRate = 115200;
+
+	private IUartDevice device;
+
+	private TiUART(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * Open the port, it is connected to the PTY or pipes of the system property
+	 * if no device is attached
+	 *
+	 * @param port 0 - 7
+	 * @return
+	 * @throws IOException
+	 */
+	public static TiUART open(int port) throws IOException {
+		TiUART uart = getPort(port);
+		synchronized (uart) {
+			if (uart.device != null)
+				return uart;
+		}
+
+		String path = System.getProperty("tijos.uart." + port);
+		if (path != null) {
+			int comma = path.indexOf(',');
+			uart.attach(comma < 0 ? StreamUartDevice.open(path)
+					: StreamUartDevice.open(path.substring(0, comma), path.substring(comma + 1)));
+		}
+		return uart;
+	}
+
+	/**
+	 * The port, to attach a device before the driver opens it
+	 *
+	 * @param port 0 - 7
+	 * @return
+	 */
+	public static synchronized TiUART getPort(int port) {
+		if (port < 0 || port >= PORTS)
+			throw new IllegalArgumentException("Invalid UART port " + port);
+
+		if (ports[port] == null)
+			ports[port] = new TiUART(port);
+		return ports[port];
+	}
+
+	public int getPortId() {
+		return port;
+	}
+
+	/**
+	 * Connect a device to the port, the previous device is disconnected
+	 *
+	 * @param device
+	 */
+	public void attach(IUartDevice device) {
+		IUartDevice old;
+		synchronized (this) {
+			old = this.device;
+			this.device = device;
+		}
+
+		if (old != null)
+			old.disconnect();
+		if (device != null)
+			device.connect(this);
+	}
+
+	public synchronized void setWorkParameters(int dataBitNum, int stopBitNum, int parity, int baudRate)
+			throws IOException {
+		if (baudRate <= 0)
+			throw new IOException("Invalid baud rate " + baudRate);
+
+		this.dataBitNum = dataBitNum;
+		this.stopBitNum = stopBitNum;
+		this.parity = parity;
+		this.baudRate = baudRate;
+	}
+
+	public synchronized int getBaudRate() {
+		return baudRate;
+	}
+
+	/**
+	 * Time of a character on the line by the work parameters
+	 *
+	 * @return microseconds
+	 */
+	public synchronized int getCharTime() {
+		int bits = 1 + dataBitNum + (parity != PARITY_NONE ? 1 : 0) + stopBitNum;
+		return (int) (bits * 1000000L / baudRate);
+	}
+
+	/**
+	 * Bytes received from the line, called by the device. The bytes beyond the
+	 * input buffer are lost.
+	 *
+	 * @param data
+	 * @param off
+	 * @param len
+	 */
+	public synchronized void inject(byte[] data, int off, int len) {
+		int room = input.length - count;
+		if (len > room) {
+			overruns += len - room;
+			len = room;
+		}
+
+		int tail = (head + count) % input.length;
+		int first = Math.min(len, input.length - tail);
+		System.arraycopy(data, off, input, tail, first);
+		System.arraycopy(data, off + first, input, 0, len - first);
+		count += len;
+	}
+
+	/**
+	 * Bytes lost by a full input buffer
+	 *
+	 * @return
+	 */
+	public synchronized int getOverruns() {
+		return overruns;
+	}
+
+	public synchronized int available() throws IOException {
+		return count;
+	}
+
+	public synchronized int read(byte[] buffer, int off, int len) throws IOException {
+		int n = Math.min(len, count);
+		int first = Math.min(n, input.length - head);
+		System.arraycopy(input, head, buffer, off, first);
+		System.arraycopy(input, 0, buffer, off + first, n - first);
+		head = (head + n) % input.length;
+		count -= n;
+		return n;
+	}
+
+	/**
+	 * Write to the device, the bytes are lost if no device is attached
+	 */
+	public void write(byte[] buffer, int off, int len) throws IOException {
+		IUartDevice d;
+		synchronized (this) {
+			d = this.device;
+		}
+
+		if (d != null)
+			d.write(buffer, off, len);
+	}
+
+	public synchronized void clear(int buffer) throws IOException {
+		if ((buffer & BUFF_READ) != 0) {
+			head = 0;
+			count = 0;
+		}
+	}
+
+	public void close() throws IOException {
+	}
+}
@@ -0,0 +1,932 @@
+package tijos.framework.emulator;
+
+import java.io.IOException;
+import java.util.Calendar;
+
+import tijos.framework.devicecenter.TiUART;
+import tijos.framework.sensor.ec20.io.ATTokenizer;
+
+/**
+ * Quectel EC20 module on an emulated UART. It answers the AT commands used by
+ * {@link tijos.framework.sensor.ec20.TiEC20}: startup, identity, signal, GPS
+ * and the MQTT commands with the data prompt, the push and buffer receive
+ * modes and the result codes. The MQTT server is a broker in memory, a message
+ * published by a client is delivered to the subscribed clients of the module
+ * and {@link #publish(String, byte[], int)} sends a message from the server.
+ * In buffer mode the messages at QoS 1 or 2 are held by the server while the
+ * receive buffers of the client are full.
+ * <p>
+ * The answer of a command can be scripted, such as a SIM card error or a
+ * network attached after some polls. The commands are answered in order by a
+ * worker thread after the latency on the virtual clock.
+ * </p>
+ */
+public class EC20Model implements IUartDevice, Runnable {
+
+    public static final int CLIENTS = 6;
+    public static final int RECV_BUFFERS = 5;
+
+    // MQTT client states of AT+QMTCONN?
+    public static final int STATE_CLOSED = 0;
+    public static final int STATE_OPENED = 1;
+    public static final int STATE_CONNECTED = 3;
+
+    // kinds of work of the worker
+    private static final int COMMAND = 0;
+    private static final int DATA = 1;
+    private static final int DELIVER = 2;
+    private static final int LINK_LOST = 3;
+
+    private static final int QUEUE_SIZE = 64;
+
+    // messages at QoS 1 or 2 held by the server while the receive buffers are full
+    private static final int HELD_SIZE = 32;
+
+    private static class Work {
+        int kind;
+        String text; // command or topic
+        byte[] data; // payload
+        int value; // qos or error
+    }
+
+    private volatile TiUART uart;
+    private Thread worker;
+
+    private final Work[] queue = new Work[QUEUE_SIZE];
+    private int head;
+    private int count;
+
+    // input from the host
+    private final byte[] line = new byte[1024];
+    private int lineLength;
+    private byte[] data; // payload after the prompt
+    private int dataLength;
+
+    // module state
+    private boolean powered = true;
+    private boolean echo = true;
+    private int fun = 1;
+    private boolean attached;
+    private boolean gps;
+    private int latency;
+    private int retransmissions;
+
+    private String imei = "866123456789012";
+    private String imsi = "460011234567890";
+    private String iccid = "89860012345678901234";
+    private String ipAddress = "10.64.12.34";
+    private int rssi = 25;
+    private String gpsLocation = "093929.0,3959.807968,N,11619.997406,E,0.8,27.0,2,175.21,0.0,0.0,050719,07";
+
+    // MQTT clients
+    private final int[] states = new int[CLIENTS];
+    private final boolean[] buffered = new boolean[CLIENTS];
+    private final String[][] filters = new String[CLIENTS][8];
+    private final int[][] filterQos = new int[CLIENTS][8];
+    private final int[] filterCount = new int[CLIENTS];
+    private final String[][] bufferTopics = new String[CLIENTS][RECV_BUFFERS];
+    private final byte[][][] bufferPayloads = new byte[CLIENTS][RECV_BUFFERS][];
+    private final int[][] bufferMsgIds = new int[CLIENTS][RECV_BUFFERS];
+    private final String[][] heldTopics = new String[CLIENTS][HELD_SIZE];
+    private final byte[][][] heldPayloads = new byte[CLIENTS][HELD_SIZE][];
+    private final int[][] heldMsgIds = new int[CLIENTS][HELD_SIZE];
+    private final int[] heldHead = new int[CLIENTS];
+    private final int[] heldCount = new int[CLIENTS];
+    private int deliveryId;
+
+    // publish waiting for its payload
+    private int pubClient;
+    private int pubMsgId;
+    private int pubQos;
+    private String pubTopic;
+
+    // scripted answers
+    private String[] scriptCommands = new String[8];
+    private String[][] scriptAnswers = new String[8][];
+    private int[] scriptNext = new int[8];
+    private int scriptCount;
+
+    private final ATTokenizer args = new ATTokenizer();
+
+    // statistics
+    private int commands;
+    private int published;
+    private int delivered;
+    private int dropped;
+    private int errors;
+
+    /**
+     * Response time of the commands
+     *
+     * @param ms virtual milliseconds
+     */
+    public synchronized void setLatency(int ms) {
+        if (ms < 0)
+            throw new IllegalArgumentException();
+        this.latency = ms;
+    }
+
+    public synchronized void setIdentity(String imei, String imsi, String iccid) {
+        this.imei = imei;
+        this.imsi = imsi;
+        this.iccid = iccid;
+    }
+
+    /**
+     * Packet retransmissions reported by "+QMTPUBEX: <id>,<msgId>,1,<count>"
+     * before the result of each publish
+     *
+     * @param count 0 for none
+     */
+    public synchronized void setRetransmissions(int count) {
+        if (count < 0)
+            throw new IllegalArgumentException();
+        this.retransmissions = count;
+    }
+
+    /**
+     * Signal of AT+CSQ
+     *
+     * @param rssi 0 - 31, 99 for unknown
+     */
+    public synchronized void setSignal(int rssi) {
+        this.rssi = rssi;
+    }
+
+    /**
+     * Position of AT+QGPSLOC=1
+     *
+     * @param location the fields after "+QGPSLOC: "
+     */
+    public synchronized void setGPSLocation(String location) {
+        this.gpsLocation = location;
+    }
+
+    /**
+     * Script the answers of a command, a call of the command takes the next
+     * answer and the last one is repeated. An answer is the lines separated by
+     * "\n", such as "+CGATT: 0\nOK".
+     *
+     * @param command the command, or a prefix ending with '*'
+     * @param answers
+     */
+    public synchronized void script(String command, String... answers) {
+        if (answers.length == 0)
+            throw new IllegalArgumentException("No answer");
+
+        int i = 0;
+        while (i < scriptCount && !scriptCommands[i].equals(command))
+            i++;
+
+        if (i == scriptCount) {
+            if (scriptCount == scriptCommands.length) {
+                int size = scriptCount * 2;
+                String[] c = new String[size];
+                String[][] a = new String[size][];
+                int[] n = new int[size];
+                System.arraycopy(scriptCommands, 0, c, 0, scriptCount);
+                System.arraycopy(scriptAnswers, 0, a, 0, scriptCount);
+                System.arraycopy(scriptNext, 0, n, 0, scriptCount);
+                scriptCommands = c;
+                scriptAnswers = a;
+                scriptNext = n;
+            }
+            scriptCount++;
+        }
+
+        scriptCommands[i] = command;
+        scriptAnswers[i] = answers;
+        scriptNext[i] = 0;
+    }
+
+    /**
+     * Switch on the module, it reports RDY with the echo on
+     */
+    public synchronized void powerOn() {
+        if (powered)
+            return;
+        powered = true;
+        send("RDY");
+        this.notifyAll();
+    }
+
+    /**
+     * Switch off the module, the commands are not answered and the MQTT
+     * connections are closed
+     */
+    public synchronized void powerOff() {
+        powered = false;
+        clearState();
+        this.notifyAll();
+    }
+
+    /**
+     * Reset the module as by its reset pin
+     */
+    public synchronized void reset() {
+        powerOff();
+        powerOn();
+    }
+
+    public synchronized boolean isPowered() {
+        return powered;
+    }
+
+    /**
+     * Message from the server to the subscribed clients
+     *
+     * @param topic
+     * @param payload
+     * @param qos
+     * @throws InterruptedException
+     */
+    public void publish(String topic, byte[] payload, int qos) throws InterruptedException {
+        Work w = new Work();
+        w.kind = DELIVER;
+        w.text = topic;
+        w.data = payload;
+        w.value = qos;
+        addWaiting(w);
+    }
+
+    /**
+     * Close the connection of a client by the server, it is reported by
+     * +QMTSTAT
+     *
+     * @param id    client id
+     * @param error error code of +QMTSTAT
+     * @throws InterruptedException
+     */
+    public void dropLink(int id, int error) throws InterruptedException {
+        Work w = new Work();
+        w.kind = LINK_LOST;
+        w.value = id;
+        w.text = Integer.toString(error);
+        addWaiting(w);
+    }
+
+    public synchronized int getState(int id) {
+        return states[id];
+    }
+
+    /**
+     * Commands received
+     *
+     * @return
+     */
+    public synchronized int getCommands() {
+        return commands;
+    }
+
+    /**
+     * Messages published by the clients
+     *
+     * @return
+     */
+    public synchronized int getPublished() {
+        return published;
+    }
+
+    /**
+     * Messages delivered to the clients
+     *
+     * @return
+     */
+    public synchronized int getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * Messages lost by full receive buffers, at QoS 0 or beyond the messages
+     * held by the server, and commands lost by a full input
+     *
+     * @return
+     */
+    public synchronized int getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Commands answered by ERROR
+     *
+     * @return
+     */
+    public synchronized int getErrors() {
+        return errors;
+    }
+
+    @Override
+    public void connect(TiUART uart) {
+        Thread t = new Thread(this, "ec20-model");
+        t.setDaemon(true);
+        synchronized (this) {
+            this.uart = uart;
+            this.worker = t;
+        }
+        t.start();
+    }
+
+    @Override
+    public void disconnect() {
+        Thread t;
+        synchronized (this) {
+            t = worker;
+            worker = null;
+            uart = null;
+            this.notifyAll();
+        }
+        if (t != null)
+            t.interrupt();
+    }
+
+    /**
+     * Bytes from the host, the lines are queued as commands and the bytes after
+     * the data prompt as the payload
+     */
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (!powered)
+            return;
+
+        for (int i = off; i < off + len; i++) {
+            if (data != null) {
+                data[dataLength++] = b[i];
+                if (dataLength == data.length) {
+                    Work w = new Work();
+                    w.kind = DATA;
+                    w.data = data;
+                    data = null;
+                    add(w);
+                }
+                continue;
+            }
+
+            if (b[i] == '\r' || b[i] == '\n') {
+                if (lineLength > 0) {
+                    Work w = new Work();
+                    w.kind = COMMAND;
+                    w.text = new String(line, 0, lineLength);
+                    lineLength = 0;
+                    add(w);
+                }
+            } else if (lineLength < line.length) {
+                line[lineLength++] = b[i];
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Work w;
+            try {
+                w = take();
+            } catch (InterruptedException ie) {
+                return;
+            }
+            if (w == null)
+                return;
+
+            try {
+                switch (w.kind) {
+                case COMMAND:
+                    command(w.text);
+                    break;
+                case DATA:
+                    publishData(w.data);
+                    break;
+                case DELIVER:
+                    deliver(w.text, w.data, w.value);
+                    break;
+                case LINK_LOST:
+                    linkLost(w.value, w.text);
+                    break;
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private void clearState() {
+        head = 0;
+        count = 0;
+        lineLength = 0;
+        data = null;
+        echo = true;
+        fun = 1;
+        attached = false;
+        gps = false;
+        for (int id = 0; id < CLIENTS; id++) {
+            states[id] = STATE_CLOSED;
+            buffered[id] = false;
+            filterCount[id] = 0;
+            for (int r = 0; r < RECV_BUFFERS; r++)
+                bufferPayloads[id][r] = null;
+            for (int i = 0; i < HELD_SIZE; i++)
+                heldPayloads[id][i] = null;
+            heldCount[id] = 0;
+        }
+    }
+
+    // work from the host, the input is lost if the queue is full
+    private void add(Work w) {
+        if (count == queue.length) {
+            dropped++;
+            return;
+        }
+        queue[(head + count) % queue.length] = w;
+        count++;
+        this.notifyAll();
+    }
+
+    // work from the server, it waits for room
+    private synchronized void addWaiting(Work w) throws InterruptedException {
+        while (count == queue.length && powered)
+            this.wait();
+        if (powered)
+            add(w);
+    }
+
+    private synchronized Work take() throws InterruptedException {
+        while (count == 0 || !powered) {
+            if (worker != Thread.currentThread())
+                return null;
+            this.wait();
+        }
+
+        Work w = queue[head];
+        queue[head] = null;
+        head = (head + 1) % queue.length;
+        count--;
+        this.notifyAll();
+        return w;
+    }
+
+    private void command(String cmd) throws IOException {
+        int delay;
+        synchronized (this) {
+            commands++;
+            delay = latency;
+        }
+        EmulatorClock.sleep(delay);
+
+        synchronized (this) {
+            if (echo)
+                send(cmd);
+
+            String[] answer = scripted(cmd);
+            if (answer != null) {
+                for (int i = 0; i < answer.length; i++)
+                    send(answer[i]);
+                return;
+            }
+
+            byte[] b = cmd.getBytes();
+            args.reset(b, 0, b.length);
+            if (!execute(cmd)) {
+                errors++;
+                send("ERROR");
+            }
+        }
+    }
+
+    // lines of the next scripted answer
+    private String[] scripted(String cmd) {
+        for (int i = 0; i < scriptCount; i++) {
+            String c = scriptCommands[i];
+            boolean match = c.endsWith("*") ? cmd.startsWith(c.substring(0, c.length() - 1)) : cmd.equals(c);
+            if (!match)
+                continue;
+
+            String[] answers = scriptAnswers[i];
+            String answer = answers[scriptNext[i]];
+            if (scriptNext[i] < answers.length - 1)
+                scriptNext[i]++;
+            return split(answer);
+        }
+        return null;
+    }
+
+    private static String[] split(String text) {
+        int n = 1;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n')
+                n++;
+        }
+
+        String[] lines = new String[n];
+        int start = 0;
+        for (int i = 0; i < n; i++) {
+            int end = text.indexOf('\n', start);
+            if (end < 0)
+                end = text.length();
+            lines[i] = text.substring(start, end);
+            start = end + 1;
+        }
+        return lines;
+    }
+
+    // built-in answers, false for ERROR
+    private boolean execute(String cmd) throws IOException {
+        if (cmd.equals("AT") || cmd.equals("AT+CEREG=2") || cmd.equals("AT+CGACT=1,1")) {
+            ok();
+        } else if (cmd.equals("ATE0") || cmd.equals("ATE1")) {
+            echo = cmd.equals("ATE1");
+            ok();
+        } else if (cmd.equals("AT+CPIN?")) {
+            send("+CPIN: READY");
+            ok();
+        } else if (cmd.startsWith("AT+CFUN=")) {
+            args.seek("AT+CFUN=");
+            fun = args.nextInt();
+            ok();
+            send("+CFUN: " + fun);
+        } else if (cmd.equals("AT+CFUN?")) {
+            send("+CFUN: " + fun);
+            ok();
+        } else if (cmd.equals("AT+CGATT=1")) {
+            if (fun != 1)
+                return false;
+            attached = true;
+            ok();
+        } else if (cmd.equals("AT+CGATT?")) {
+            send("+CGATT: " + (attached ? 1 : 0));
+            ok();
+        } else if (cmd.equals("AT+CEREG?")) {
+            send("+CEREG: 2," + (attached ? 1 : 2));
+            ok();
+        } else if (cmd.equals("AT+CSQ")) {
+            send("+CSQ: " + rssi + ",99");
+            ok();
+        } else if (cmd.equals("AT+GSN")) {
+            send(imei);
+            ok();
+        } else if (cmd.equals("AT+CIMI")) {
+            send(imsi);
+            ok();
+        } else if (cmd.equals("AT+QCCID")) {
+            send("+QCCID: " + iccid);
+            ok();
+        } else if (cmd.equals("AT+GMM")) {
+            send("EC20F");
+            ok();
+        } else if (cmd.equals("AT+CGPADDR=1")) {
+            send("+CGPADDR: 1," + (attached ? ipAddress : "0.0.0.0"));
+            ok();
+        } else if (cmd.equals("AT+CCLK?")) {
+            send("+CCLK: \"" + clock() + "+32\"");
+            ok();
+        } else if (cmd.equals("AT+QIGETERROR")) {
+            send("+QIGETERROR: 0,\"operation succeeded\"");
+            ok();
+        } else if (cmd.startsWith("AT+QGPS=")) {
+            args.seek("AT+QGPS=");
+            boolean on = args.nextInt() == 1;
+            if (on && gps) {
+                send("+CME ERROR: 504");
+                return true;
+            }
+            gps = on;
+            ok();
+        } else if (cmd.equals("AT+QGPSLOC=1")) {
+            if (!gps) {
+                send("+CME ERROR: 505");
+                return true;
+            }
+            send("+QGPSLOC: " + gpsLocation);
+            ok();
+        } else if (cmd.startsWith("AT+QMT")) {
+            return mqtt(cmd);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private boolean mqtt(String cmd) throws IOException {
+        if (cmd.startsWith("AT+QMTCFG=")) {
+            args.seek("AT+QMTCFG=");
+            String name = args.nextQuoted();
+            int id = args.nextInt();
+            if (!valid(id))
+                return false;
+            if (name.equals("recv/mode"))
+                buffered[id] = args.nextInt() == 1;
+            ok();
+        } else if (cmd.startsWith("AT+QMTOPEN=")) {
+            args.seek("AT+QMTOPEN=");
+            int id = args.nextInt();
+            if (!valid(id))
+                return false;
+            ok();
+            if (!attached) {
+                send("+QMTOPEN: " + id + ",3"); // PDP not activated
+            } else if (states[id] != STATE_CLOSED) {
+                send("+QMTOPEN: " + id + ",2"); // identifier occupied
+            } else {
+                states[id] = STATE_OPENED;
+                send("+QMTOPEN: " + id + ",0");
+            }
+        } else if (cmd.equals("AT+QMTCONN?")) {
+            for (int id = 0; id < CLIENTS; id++) {
+                if (states[id] != STATE_CLOSED)
+                    send("+QMTCONN: " + id + "," + states[id]);
+            }
+            ok();
+        } else if (cmd.startsWith("AT+QMTCONN=")) {
+            args.seek("AT+QMTCONN=");
+            int id = args.nextInt();
+            if (!valid(id) || states[id] == STATE_CLOSED)
+                return false;
+            states[id] = STATE_CONNECTED;
+            filterCount[id] = 0;
+            ok();
+            send("+QMTCONN: " + id + ",0,0");
+        } else if (cmd.startsWith("AT+QMTSUB=")) {
+            args.seek("AT+QMTSUB=");
+            int id = args.nextInt();
+            int msgId = args.nextInt();
+            if (!valid(id) || states[id] != STATE_CONNECTED)
+                return false;
+
+            int qos = 0;
+            while (args.hasNext()) {
+                String filter = args.nextQuoted();
+                qos = args.nextInt();
+                subscribe(id, filter, qos);
+            }
+            ok();
+            send("+QMTSUB: " + id + "," + msgId + ",0," + qos);
+        } else if (cmd.startsWith("AT+QMTUNS=")) {
+            args.seek("AT+QMTUNS=");
+            int id = args.nextInt();
+            int msgId = args.nextInt();
+            if (!valid(id) || states[id] != STATE_CONNECTED)
+                return false;
+
+            while (args.hasNext())
+                unsubscribe(id, args.nextQuoted());
+            ok();
+            send("+QMTUNS: " + id + "," + msgId + ",0");
+        } else if (cmd.startsWith("AT+QMTPUBEX=")) {
+            args.seek("AT+QMTPUBEX=");
+            int id = args.nextInt();
+            if (!valid(id) || states[id] != STATE_CONNECTED)
+                return false;
+
+            pubClient = id;
+            pubMsgId = args.nextInt();
+            pubQos = args.nextInt();
+            args.skip(); // retain
+            pubTopic = args.nextQuoted();
+            int length = args.nextInt();
+            if (length < 0 || length > 1024)
+                return false;
+
+            // the payload follows the prompt
+            data = new byte[length];
+            dataLength = 0;
+            send(">");
+            if (length == 0) {
+                Work w = new Work();
+                w.kind = DATA;
+                w.data = data;
+                data = null;
+                add(w);
+            }
+        } else if (cmd.equals("AT+QMTRECV?")) {
+            for (int id = 0; id < CLIENTS; id++) {
+                if (states[id] == STATE_CLOSED || !buffered[id])
+                    continue;
+                StringBuffer status = new StringBuffer("+QMTRECV: ").append(id);
+                for (int r = 0; r < RECV_BUFFERS; r++)
+                    status.append(',').append(bufferPayloads[id][r] != null ? 1 : 0);
+                send(status.toString());
+            }
+            ok();
+        } else if (cmd.startsWith("AT+QMTRECV=")) {
+            args.seek("AT+QMTRECV=");
+            int id = args.nextInt();
+            int r = args.nextInt();
+            if (!valid(id) || r < 0 || r >= RECV_BUFFERS)
+                return false;
+
+            if (bufferPayloads[id][r] != null) {
+                sendMessage(id, bufferMsgIds[id][r], bufferTopics[id][r], bufferPayloads[id][r]);
+                bufferPayloads[id][r] = null;
+                bufferTopics[id][r] = null;
+            }
+            ok();
+
+            // the server sends a held message to the free buffer
+            if (heldCount[id] > 0) {
+                int h = heldHead[id];
+                store(id, r, heldMsgIds[id][h], heldTopics[id][h], heldPayloads[id][h]);
+                heldPayloads[id][h] = null;
+                heldTopics[id][h] = null;
+                heldHead[id] = (h + 1) % HELD_SIZE;
+                heldCount[id]--;
+            }
+        } else if (cmd.startsWith("AT+QMTDISC=")) {
+            args.seek("AT+QMTDISC=");
+            int id = args.nextInt();
+            if (!valid(id))
+                return false;
+            ok();
+            if (states[id] == STATE_CONNECTED)
+                states[id] = STATE_OPENED;
+            send("+QMTDISC: " + id + ",0");
+        } else if (cmd.startsWith("AT+QMTCLOSE=")) {
+            args.seek("AT+QMTCLOSE=");
+            int id = args.nextInt();
+            if (!valid(id))
+                return false;
+            ok();
+            states[id] = STATE_CLOSED;
+            send("+QMTCLOSE: " + id + ",0");
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private void publishData(byte[] payload) throws IOException {
+        String topic;
+        int qos;
+        synchronized (this) {
+            published++;
+            ok();
+            for (int i = 1; i <= retransmissions; i++)
+                send("+QMTPUBEX: " + pubClient + "," + pubMsgId + ",1," + i);
+            send("+QMTPUBEX: " + pubClient + "," + pubMsgId + ",0");
+            topic = pubTopic;
+            qos = pubQos;
+        }
+        deliver(topic, payload, qos);
+    }
+
+    // message of the server to the subscribed clients
+    private synchronized void deliver(String topic, byte[] payload, int qos) throws IOException {
+        for (int id = 0; id < CLIENTS; id++) {
+            if (states[id] != STATE_CONNECTED)
+                continue;
+
+            int granted = -1;
+            for (int i = 0; i < filterCount[id]; i++) {
+                if (matches(filters[id][i], topic))
+                    granted = Math.max(granted, filterQos[id][i]);
+            }
+            if (granted < 0)
+                continue;
+
+            int msgId = Math.min(qos, granted) > 0 ? nextDeliveryId() : 0;
+            if (!buffered[id]) {
+                delivered++;
+                sendMessage(id, msgId, topic, payload);
+                continue;
+            }
+
+            int r = 0;
+            while (r < RECV_BUFFERS && bufferPayloads[id][r] != null)
+                r++;
+            if (r < RECV_BUFFERS) {
+                store(id, r, msgId, topic, payload);
+            } else if (msgId != 0 && heldCount[id] < HELD_SIZE) {
+                int h = (heldHead[id] + heldCount[id]) % HELD_SIZE;
+                heldTopics[id][h] = topic;
+                heldPayloads[id][h] = payload;
+                heldMsgIds[id][h] = msgId;
+                heldCount[id]++;
+            } else {
+                dropped++;
+            }
+        }
+    }
+
+    // message to a receive buffer, notified by +QMTRECV
+    private void store(int id, int r, int msgId, String topic, byte[] payload) {
+        delivered++;
+        bufferTopics[id][r] = topic;
+        bufferPayloads[id][r] = payload;
+        bufferMsgIds[id][r] = msgId;
+        send("+QMTRECV: " + id + "," + r);
+    }
+
+    private synchronized void linkLost(int id, String error) {
+        if (!valid(id) || states[id] == STATE_CLOSED)
+            return;
+        states[id] = STATE_CLOSED;
+        send("+QMTSTAT: " + id + "," + error);
+    }
+
+    private void subscribe(int id, String filter, int qos) {
+        for (int i = 0; i < filterCount[id]; i++) {
+            if (filters[id][i].equals(filter)) {
+                filterQos[id][i] = qos;
+                return;
+            }
+        }
+
+        if (filterCount[id] == filters[id].length) {
+            String[] f = new String[filterCount[id] * 2];
+            int[] q = new int[f.length];
+            System.arraycopy(filters[id], 0, f, 0, filterCount[id]);
+            System.arraycopy(filterQos[id], 0, q, 0, filterCount[id]);
+            filters[id] = f;
+            filterQos[id] = q;
+        }
+        filters[id][filterCount[id]] = filter;
+        filterQos[id][filterCount[id]] = qos;
+        filterCount[id]++;
+    }
+
+    private void unsubscribe(int id, String filter) {
+        for (int i = 0; i < filterCount[id]; i++) {
+            if (filters[id][i].equals(filter)) {
+                filterCount[id]--;
+                filters[id][i] = filters[id][filterCount[id]];
+                filterQos[id][i] = filterQos[id][filterCount[id]];
+                return;
+            }
+        }
+    }
+
+    /**
+     * Match a topic with a filter with the wildcards '+' and '#'
+     *
+     * @param filter
+     * @param topic
+     * @return
+     */
+    static boolean matches(String filter, String topic) {
+        int f = 0;
+        int t = 0;
+        while (f < filter.length()) {
+            char c = filter.charAt(f);
+            if (c == '#')
+                return true;
+
+            if (c == '+') {
+                while (t < topic.length() && topic.charAt(t) != '/')
+                    t++;
+                f++;
+                continue;
+            }
+
+            if (t == topic.length() || topic.charAt(t) != c)
+                return false;
+            f++;
+            t++;
+        }
+        return t == topic.length();
+    }
+
+    private int nextDeliveryId() {
+        deliveryId = deliveryId % 65535 + 1;
+        return deliveryId;
+    }
+
+    private boolean valid(int id) {
+        return id >= 0 && id < CLIENTS;
+    }
+
+    private static String clock() {
+        Calendar c = Calendar.getInstance();
+        return two(c.get(Calendar.YEAR) % 100) + "/" + two(c.get(Calendar.MONTH) + 1) + "/"
+                + two(c.get(Calendar.DAY_OF_MONTH)) + "," + two(c.get(Calendar.HOUR_OF_DAY)) + ":"
+                + two(c.get(Calendar.MINUTE)) + ":" + two(c.get(Calendar.SECOND));
+    }
+
+    private static String two(int n) {
+        return n < 10 ? "0" + n : Integer.toString(n);
+    }
+
+    private void ok() {
+        send("OK");
+    }
+
+    // +QMTRECV: <client_idx>,<msgID>,"<topic>",<payload_len>,"<payload>"
+    private void sendMessage(int id, int msgId, String topic, byte[] payload) {
+        byte[] head = ("\r\n+QMTRECV: " + id + "," + msgId + ",\"" + topic + "\"," + payload.length + ",\"")
+                .getBytes();
+        byte[] b = new byte[head.length + payload.length + 3];
+        System.arraycopy(head, 0, b, 0, head.length);
+        System.arraycopy(payload, 0, b, head.length, payload.length);
+        b[b.length - 3] = '"';
+        b[b.length - 2] = '\r';
+        b[b.length - 1] = '\n';
+        inject(b);
+    }
+
+    // the prompt is not ended by CR LF
+    private void send(String text) {
+        inject((text.equals(">") ? "\r\n> " : "\r\n" + text + "\r\n").getBytes());
+    }
+
+    private void inject(byte[] b) {
+        TiUART u = uart;
+        if (u != null && powered)
+            u.inject(b, 0, b.length);
+    }
+}
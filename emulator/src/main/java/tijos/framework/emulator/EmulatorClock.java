@@ -0,0 +1,68 @@
+package tijos.framework.emulator;
+
+/**
+ * Virtual clock of the emulator, it runs a number of times faster than the
+ * real time. The delays of the drivers and the response times of the device
+ * models are counted on it, so the startup waits and the bus latencies of a
+ * long run pass in a fraction of the time. A delay takes 1 real millisecond at
+ * least, so the polling loops of the drivers do not spin.
+ * <p>
+ * The timeouts of the drivers are measured by the system clock, they are not
+ * scaled.
+ * </p>
+ */
+public class EmulatorClock {
+
+    private static int speed = 1;
+
+    // virtual and real time when the speed was set
+    private static long virtualBase;
+    private static long realBase = System.currentTimeMillis();
+
+    private EmulatorClock() {
+    }
+
+    /**
+     * Speed of the virtual clock
+     *
+     * @param speed virtual milliseconds in a real millisecond, 1 by default
+     */
+    public static synchronized void setSpeed(int speed) {
+        if (speed < 1)
+            throw new IllegalArgumentException("Invalid speed " + speed);
+
+        virtualBase = currentTimeMillis();
+        realBase = System.currentTimeMillis();
+        EmulatorClock.speed = speed;
+    }
+
+    public static synchronized int getSpeed() {
+        return speed;
+    }
+
+    /**
+     * Virtual time since the start of the emulator
+     *
+     * @return virtual milliseconds
+     */
+    public static synchronized long currentTimeMillis() {
+        return virtualBase + (System.currentTimeMillis() - realBase) * speed;
+    }
+
+    /**
+     * Sleep on the virtual clock
+     *
+     * @param ms virtual milliseconds
+     */
+    public static void sleep(int ms) {
+        if (ms <= 0)
+            return;
+
+        long real = ms / getSpeed();
+        try {
+            Thread.sleep(real > 0 ? real : 1);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
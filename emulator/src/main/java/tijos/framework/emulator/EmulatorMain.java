@@ -0,0 +1,114 @@
+package tijos.framework.emulator;
+
+import tijos.framework.component.modbus.rtu.ModbusClient;
+import tijos.framework.component.modbus.sim.ModbusSlaveSimulator;
+import tijos.framework.component.serialport.TiSerialPort;
+import tijos.framework.devicecenter.TiUART;
+import tijos.framework.sensor.ec20.TiEC20;
+import tijos.framework.sensor.ec20.mqtt.IMQTTEventListener;
+import tijos.framework.sensor.ec20.mqtt.MQTTClient;
+import tijos.framework.sensor.ec20.mqtt.MQTTConnectOptions;
+import tijos.framework.tibox.lte200.TiLTE200;
+
+/**
+ * End to end run of the drivers on the emulated board, to load test them and
+ * to profile them with a JDK profiler: startup of the network, MQTT messages
+ * published and received at QoS 1, and scans of the RS485 servers.
+ * <p>
+ * Arguments: [messages] [scans] [clock speed], 200 messages, 100 scans and a
+ * virtual clock 20 times faster by default.
+ * </p>
+ */
+public class EmulatorMain {
+
+    static final int SERVERS = 4;
+    static final int REGISTERS = 20;
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int scans = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int speed = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        EmulatorClock.setSpeed(speed);
+
+        LTE200Emulator board = new LTE200Emulator(1);
+        board.getEC20().setLatency(20);
+        for (int id = 1; id <= SERVERS; id++) {
+            ModbusSlaveSimulator slave = new ModbusSlaveSimulator(id, 0, 0, 100, 0);
+            slave.setLatency(10, 10);
+            for (int a = 0; a < 100; a++)
+                slave.setHoldingRegister(a, id * 1000 + a);
+            board.getRS485().add(slave);
+        }
+        board.install();
+
+        // startup
+        long start = System.currentTimeMillis();
+        TiLTE200 lte200 = TiLTE200.getInstance();
+        TiEC20 ec20 = lte200.getNetworkService();
+        ec20.setDebug(false);
+        lte200.networkStartup();
+        System.out.println("Startup " + (System.currentTimeMillis() - start) + " ms, IMEI " + lte200.networkGetIMEI()
+                + ", IMSI " + lte200.networkGetIMSI() + ", RSSI " + lte200.networkGetRSSI());
+
+        // MQTT, messages to the server and from the server to the device
+        final int[] arrived = new int[1];
+        MQTTClient mqtt = ec20.getMqttClient("mqtt.emulator", 1883, "lte200");
+        mqtt.setEventListener(new IMQTTEventListener() {
+            @Override
+            public void onPublishDataArrived(int msgId, String topic, String message) {
+                synchronized (arrived) {
+                    arrived[0]++;
+                    arrived.notifyAll();
+                }
+            }
+
+            @Override
+            public void onLinkLost(int error) {
+                System.out.println("MQTT link lost " + error);
+            }
+        });
+
+        start = System.currentTimeMillis();
+        mqtt.connect(new MQTTConnectOptions());
+        mqtt.subscribe(1, "lte200/cmd/#");
+
+        byte[] command = "{\"led\":1}".getBytes();
+        for (int i = 0; i < messages; i++) {
+            mqtt.publish("lte200/data", "{\"seq\":" + i + ",\"temperature\":23.5}", 1, false);
+            board.getEC20().publish("lte200/cmd/led", command, 1);
+        }
+
+        synchronized (arrived) {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (arrived[0] < messages && System.currentTimeMillis() < deadline)
+                arrived.wait(100);
+        }
+        long time = System.currentTimeMillis() - start;
+        System.out.println("MQTT " + board.getEC20().getPublished() + " published, " + arrived[0] + " of " + messages
+                + " received in " + time + " ms, " + (messages * 1000L / Math.max(time, 1)) + " messages/s");
+        System.out.println("AT line latency: " + ec20.getLineLatency());
+        mqtt.close();
+
+        // MODBUS scans
+        TiSerialPort rs485 = lte200.getRS485(9600, 8, 1, TiUART.PARITY_NONE);
+        ModbusClient modbus = new ModbusClient(rs485, 500, 0);
+
+        short[] values = new short[REGISTERS];
+        int failures = 0;
+        start = System.currentTimeMillis();
+        long virtualStart = EmulatorClock.currentTimeMillis();
+        for (int scan = 0; scan < scans; scan++) {
+            for (int id = 1; id <= SERVERS; id++) {
+                if (modbus.readHoldingRegisters(id, 0, REGISTERS, values, 0) != ModbusClient.RESULT_OK
+                        || values[REGISTERS - 1] != id * 1000 + REGISTERS - 1)
+                    failures++;
+            }
+        }
+        time = System.currentTimeMillis() - start;
+        long virtual = EmulatorClock.currentTimeMillis() - virtualStart;
+        System.out.println("MODBUS " + scans + " scans of " + SERVERS + " servers in " + time + " ms ("
+                + (scans * 1000L / Math.max(virtual, 1)) + "." + (scans * 10000L / Math.max(virtual, 1) % 10)
+                + " scans/s on the virtual clock), " + failures + " failures");
+    }
+}
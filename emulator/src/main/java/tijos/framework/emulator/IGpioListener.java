@@ -0,0 +1,16 @@
+package tijos.framework.emulator;
+
+/**
+ * Level changes of the pins of an emulated GPIO port
+ */
+public interface IGpioListener {
+
+    /**
+     * Level of a pin changed
+     *
+     * @param port
+     * @param pin
+     * @param value 0 or 1
+     */
+    void onPinChanged(int port, int pin, int value);
+}
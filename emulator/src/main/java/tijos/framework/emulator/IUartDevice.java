@@ -0,0 +1,34 @@
+package tijos.framework.emulator;
+
+import java.io.IOException;
+
+import tijos.framework.devicecenter.TiUART;
+
+/**
+ * Device on the line of an emulated UART
+ */
+public interface IUartDevice {
+
+    /**
+     * Connect to the UART, the output of the device is given to
+     * {@link TiUART#inject(byte[], int, int)}
+     *
+     * @param uart
+     */
+    void connect(TiUART uart);
+
+    /**
+     * Bytes written to the UART by the host
+     *
+     * @param data
+     * @param off
+     * @param len
+     * @throws IOException
+     */
+    void write(byte[] data, int off, int len) throws IOException;
+
+    /**
+     * Disconnect from the UART
+     */
+    void disconnect();
+}
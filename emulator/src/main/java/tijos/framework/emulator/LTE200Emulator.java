@@ -0,0 +1,72 @@
+package tijos.framework.emulator;
+
+import tijos.framework.devicecenter.TiGPIO;
+import tijos.framework.devicecenter.TiUART;
+
+/**
+ * Emulated TiBox-LTE200 board: the EC20 module on UART 2 with its power key
+ * and reset pins on GPIO port 2, and the RS485 bus on UART 1. It is installed
+ * before {@link tijos.framework.tibox.lte200.TiLTE200#getInstance()}, the
+ * driver then runs on the models.
+ */
+public class LTE200Emulator {
+
+    public static final int EC20_UART = 2;
+    public static final int RS485_UART = 1;
+
+    public static final int EC20_GPIO_PORT = 2;
+    public static final int EC20_POWER_KEY = 7;
+    public static final int EC20_RESET = 8;
+
+    // min time of the power key pulse
+    public static final int POWER_KEY_PULSE = 500;
+
+    private final EC20Model ec20 = new EC20Model();
+    private final ModbusRtuModel rs485;
+
+    private long powerKeyPressed;
+
+    /**
+     * Initialize
+     *
+     * @param seed seed of the faults of the RS485 servers
+     */
+    public LTE200Emulator(long seed) {
+        this.rs485 = new ModbusRtuModel(seed);
+    }
+
+    public EC20Model getEC20() {
+        return ec20;
+    }
+
+    public ModbusRtuModel getRS485() {
+        return rs485;
+    }
+
+    /**
+     * Connect the models to the ports
+     */
+    public void install() {
+        TiUART.getPort(EC20_UART).attach(ec20);
+        TiUART.getPort(RS485_UART).attach(rs485);
+
+        TiGPIO.addListener(EC20_GPIO_PORT, new IGpioListener() {
+            @Override
+            public void onPinChanged(int port, int pin, int value) {
+                if (pin == EC20_POWER_KEY) {
+                    // a pulse switches the module on, or off if it's on
+                    if (value == 1) {
+                        powerKeyPressed = EmulatorClock.currentTimeMillis();
+                    } else if (EmulatorClock.currentTimeMillis() - powerKeyPressed >= POWER_KEY_PULSE) {
+                        if (ec20.isPowered())
+                            ec20.powerOff();
+                        else
+                            ec20.powerOn();
+                    }
+                } else if (pin == EC20_RESET && value == 0) {
+                    ec20.reset();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,219 @@
+package tijos.framework.emulator;
+
+import java.io.IOException;
+import java.util.Random;
+
+import tijos.framework.component.modbus.protocol.ModbusCrc16;
+import tijos.framework.component.modbus.sim.ModbusSlaveSimulator;
+import tijos.framework.devicecenter.TiUART;
+
+/**
+ * RS485 bus of MODBUS RTU servers on an emulated UART, the servers are
+ * {@link ModbusSlaveSimulator} with their register maps, latencies and faults.
+ * A write of the host is a request frame. The response is received after the
+ * time of the request on the line at the baud rate of the UART, the latency of
+ * the server and the time of the response on the line, on the virtual clock.
+ */
+public class ModbusRtuModel implements IUartDevice, Runnable {
+
+    private static final int QUEUE_SIZE = 8;
+
+    private final Random random;
+
+    private ModbusSlaveSimulator[] slaves = new ModbusSlaveSimulator[4];
+    private int slaveCount;
+
+    private volatile TiUART uart;
+    private Thread worker;
+
+    // request frames from the host
+    private final byte[][] frames = new byte[QUEUE_SIZE][256];
+    private final int[] lengths = new int[QUEUE_SIZE];
+    private int head;
+    private int count;
+
+    private final byte[] response = new byte[256];
+
+    // statistics
+    private int requests;
+    private int responses;
+    private int badRequests;
+    private int overruns;
+
+    /**
+     * Initialize
+     *
+     * @param seed seed of the faults
+     */
+    public ModbusRtuModel(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Add a server to the bus
+     *
+     * @param slave
+     */
+    public synchronized void add(ModbusSlaveSimulator slave) {
+        if (find(slave.getServerId()) != null)
+            throw new IllegalArgumentException("Duplicated server id " + slave.getServerId());
+
+        if (slaveCount == slaves.length) {
+            ModbusSlaveSimulator[] a = new ModbusSlaveSimulator[slaves.length * 2];
+            System.arraycopy(slaves, 0, a, 0, slaveCount);
+            slaves = a;
+        }
+        slaves[slaveCount++] = slave;
+    }
+
+    /**
+     * Server on the bus
+     *
+     * @param serverId
+     * @return null if it's not on the bus
+     */
+    public synchronized ModbusSlaveSimulator find(int serverId) {
+        for (int i = 0; i < slaveCount; i++) {
+            if (slaves[i].getServerId() == serverId)
+                return slaves[i];
+        }
+        return null;
+    }
+
+    /**
+     * Request frames received
+     *
+     * @return
+     */
+    public synchronized int getRequests() {
+        return requests;
+    }
+
+    /**
+     * Response frames sent
+     *
+     * @return
+     */
+    public synchronized int getResponses() {
+        return responses;
+    }
+
+    /**
+     * Request frames with a wrong CRC, ignored by the servers
+     *
+     * @return
+     */
+    public synchronized int getBadRequests() {
+        return badRequests;
+    }
+
+    /**
+     * Request frames lost by the host writing faster than the bus
+     *
+     * @return
+     */
+    public synchronized int getOverruns() {
+        return overruns;
+    }
+
+    @Override
+    public void connect(TiUART uart) {
+        Thread t = new Thread(this, "rs485-model");
+        t.setDaemon(true);
+        synchronized (this) {
+            this.uart = uart;
+            this.worker = t;
+        }
+        t.start();
+    }
+
+    @Override
+    public void disconnect() {
+        Thread t;
+        synchronized (this) {
+            t = worker;
+            worker = null;
+            uart = null;
+            this.notifyAll();
+        }
+        if (t != null)
+            t.interrupt();
+    }
+
+    @Override
+    public synchronized void write(byte[] data, int off, int len) throws IOException {
+        if (count == QUEUE_SIZE || len > frames[0].length) {
+            overruns++;
+            return;
+        }
+
+        int tail = (head + count) % QUEUE_SIZE;
+        System.arraycopy(data, off, frames[tail], 0, len);
+        lengths[tail] = len;
+        count++;
+        this.notifyAll();
+    }
+
+    @Override
+    public void run() {
+        byte[] frame = new byte[256];
+        while (true) {
+            int len;
+            synchronized (this) {
+                while (count == 0) {
+                    if (worker != Thread.currentThread())
+                        return;
+                    try {
+                        this.wait();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+
+                len = lengths[head];
+                System.arraycopy(frames[head], 0, frame, 0, len);
+                head = (head + 1) % QUEUE_SIZE;
+                count--;
+            }
+
+            process(frame, len);
+        }
+    }
+
+    private void process(byte[] frame, int len) {
+        TiUART u = uart;
+        if (u == null)
+            return;
+
+        int charTime = u.getCharTime();
+        long lineTime = (long) len * charTime; // microseconds
+
+        ModbusSlaveSimulator slave = null;
+        int latency = 0;
+        int size = 0;
+        synchronized (this) {
+            requests++;
+            if ((len < 4) || (ModbusCrc16.compute(frame, 0, len) != 0)) {
+                badRequests++;
+            } else if (frame[0] == 0) {
+                for (int i = 0; i < slaveCount; i++)
+                    slaves[i].process(frame, 0, len, response, random);
+            } else {
+                slave = find(frame[0] & 0xFF);
+                if (slave != null) {
+                    latency = slave.nextLatency(random);
+                    size = slave.process(frame, 0, len, response, random);
+                }
+            }
+
+            if (size == 0)
+                return;
+            responses++;
+        }
+
+        // request and response on the line, the silence of 3.5 characters
+        lineTime += (long) (size + 4) * charTime;
+        EmulatorClock.sleep(latency + (int) (lineTime / 1000));
+        u.inject(response, 0, size);
+    }
+}
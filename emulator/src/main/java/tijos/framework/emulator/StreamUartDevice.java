@@ -0,0 +1,102 @@
+package tijos.framework.emulator;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import tijos.framework.devicecenter.TiUART;
+
+/**
+ * Line of an emulated UART on streams, such as a PTY or a pair of named pipes,
+ * to connect a real device or a tool outside the JVM. A reader thread gives the
+ * received bytes to the UART.
+ */
+public class StreamUartDevice implements IUartDevice, Runnable {
+
+    private final InputStream in;
+    private final OutputStream out;
+
+    private volatile TiUART uart;
+
+    /**
+     * Initialize with the streams of the line
+     *
+     * @param in  bytes received by the UART
+     * @param out bytes written by the UART
+     */
+    public StreamUartDevice(InputStream in, OutputStream out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    /**
+     * Line on a PTY or a serial device, such as a side of
+     * "socat -d -d pty,raw,echo=0 pty,raw,echo=0"
+     *
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public static StreamUartDevice open(String path) throws IOException {
+        return new StreamUartDevice(new FileInputStream(path), new FileOutputStream(path));
+    }
+
+    /**
+     * Line on named pipes, opening a pipe blocks until the other side is opened
+     *
+     * @param inputPath  pipe read by the UART
+     * @param outputPath pipe written by the UART
+     * @return
+     * @throws IOException
+     */
+    public static StreamUartDevice open(String inputPath, String outputPath) throws IOException {
+        return new StreamUartDevice(new FileInputStream(inputPath), new FileOutputStream(outputPath));
+    }
+
+    @Override
+    public void connect(TiUART uart) {
+        this.uart = uart;
+
+        Thread t = new Thread(this, "uart" + uart.getPortId());
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void write(byte[] data, int off, int len) throws IOException {
+        out.write(data, off, len);
+        out.flush();
+    }
+
+    @Override
+    public void disconnect() {
+        uart = null;
+        try {
+            in.close();
+            out.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public void run() {
+        byte[] buf = new byte[256];
+        try {
+            while (true) {
+                int n = in.read(buf);
+                if (n < 0)
+                    break;
+
+                TiUART u = uart;
+                if (u == null)
+                    break;
+                u.inject(buf, 0, n);
+            }
+        } catch (IOException ex) {
+            if (uart != null)
+                ex.printStackTrace();
+        }
+    }
+}
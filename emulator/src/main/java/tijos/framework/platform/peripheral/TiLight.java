@@ -0,0 +1,44 @@
+package tijos.framework.platform.peripheral;
+
+import java.io.IOException;
+
+/**
+ * TiJOS LEDs of the board on a desktop JDK, the states are kept in memory
+ */
+public class TiLight {
+
+	public static final int LIGHTS = 4;
+
+	private static final TiLight INSTANCE = new TiLight();
+
+	private final boolean[] on = new boolean[LIGHTS];
+
+	public static TiLight getInstance() {
+		return INSTANCE;
+	}
+
+	public synchronized void turnOn(int id) throws IOException {
+		check(id);
+		on[id] = true;
+	}
+
+	public synchronized void turnOff(int id) throws IOException {
+		check(id);
+		on[id] = false;
+	}
+
+	/**
+	 * State of the LED
+	 *
+	 * @param id
+	 * @return true if it's on
+	 */
+	public synchronized boolean isOn(int id) {
+		return on[id];
+	}
+
+	private static void check(int id) throws IOException {
+		if (id < 0 || id >= LIGHTS)
+			throw new IOException("Invalid id");
+	}
+}
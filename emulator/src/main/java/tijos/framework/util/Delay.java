@@ -0,0 +1,18 @@
+package tijos.framework.util;
+
+import tijos.framework.emulator.EmulatorClock;
+
+/**
+ * TiJOS delay on the virtual clock of the emulator
+ */
+public class Delay {
+
+	/**
+	 * Wait on the virtual clock
+	 *
+	 * @param ms virtual milliseconds
+	 */
+	public static void msDelay(int ms) {
+		EmulatorClock.sleep(ms);
+	}
+}
@@ -0,0 +1,18 @@
+package tijos.framework.util;
+
+/**
+ * TiJOS formatter on a desktop JDK
+ */
+public class Formatter {
+
+	public static String toHexString(byte[] data, int off, int len, String separator) {
+		StringBuffer buf = new StringBuffer(len * 3);
+		for (int i = 0; i < len; i++) {
+			if (i > 0)
+				buf.append(separator);
+			int b = data[off + i] & 0xFF;
+			buf.append(Character.forDigit(b >>> 4, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return buf.toString();
+	}
+}
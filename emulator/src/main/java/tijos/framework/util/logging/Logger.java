@@ -0,0 +1,41 @@
+package tijos.framework.util.logging;
+
+/**
+ * TiJOS logger on a desktop JDK, the messages from the level up are printed
+ * to the standard output
+ */
+public class Logger {
+
+	public static final int INFO = 0;
+	public static final int WARNING = 1;
+	public static final int SEVERE = 2;
+	public static final int OFF = 3;
+
+	private static volatile int level = WARNING;
+
+	/**
+	 * Lowest level printed
+	 *
+	 * @param level INFO, WARNING, SEVERE or OFF, WARNING by default
+	 */
+	public static void setLevel(int level) {
+		Logger.level = level;
+	}
+
+	public static void info(String tag, String msg) {
+		log(INFO, "INFO", tag, msg);
+	}
+
+	public static void warning(String tag, String msg) {
+		log(WARNING, "WARNING", tag, msg);
+	}
+
+	public static void severe(String tag, String msg) {
+		log(SEVERE, "SEVERE", tag, msg);
+	}
+
+	private static void log(int l, String name, String tag, String msg) {
+		if (l >= level)
+			System.out.println(name + " [" + tag + "] " + msg);
+	}
+}
@@ -0,0 +1,243 @@
+package tijos.framework.emulator;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import tijos.framework.devicecenter.TiUART;
+import tijos.framework.sensor.ec20.TiEC20;
+import tijos.framework.sensor.ec20.mqtt.IMQTTPublishEventListener;
+import tijos.framework.sensor.ec20.mqtt.IMQTTPublishListener;
+import tijos.framework.sensor.ec20.mqtt.MQTTClient;
+import tijos.framework.sensor.ec20.mqtt.MQTTConnectOptions;
+import tijos.framework.sensor.ec20.mqtt.MQTTOutbox;
+
+/**
+ * TiEC20 against the EC20 model, one driver for all tests since its thread
+ * keeps reading the port, each test with a fresh model
+ */
+public class EC20ModelTest {
+
+    private static final int PORT = 2;
+
+    private static TiEC20 ec20;
+
+    private EC20Model model;
+
+    // events of the MQTT client
+    private final int[] arrived = new int[1];
+    private final int[] retransmitted = new int[1];
+    private final int[] lost = new int[1];
+
+    @BeforeClass
+    public static void startDriver() throws IOException {
+        EmulatorClock.setSpeed(50);
+        ec20 = new TiEC20(TiUART.open(PORT));
+    }
+
+    @Before
+    public void setUp() {
+        model = new EC20Model();
+        TiUART.getPort(PORT).attach(model);
+    }
+
+    @After
+    public void tearDown() {
+        // free the client slots for the next test
+        for (int id = 0; id < TiEC20.MQTT_CLIENTS; id++) {
+            MQTTClient client = ec20.getMqttClient(id);
+            if (client != null) {
+                ec20.mqttConfigRecvMode(id, false);
+                ec20.releaseMqttClient(client);
+            }
+        }
+    }
+
+    @Test
+    public void answersIdentityAndSignal() throws IOException {
+        model.setIdentity("866000000000001", "460000000000001", "89860000000000000001");
+        model.setSignal(17);
+
+        assertEquals("866000000000001", ec20.getIMEI());
+        assertEquals("460000000000001", ec20.getIMSI());
+        assertEquals(17, ec20.getRSSI());
+    }
+
+    @Test
+    public void scriptedAnswersInOrder() throws IOException {
+        model.script("AT+CGATT?", "+CGATT: 0\nOK", "+CGATT: 1\nOK");
+
+        assertFalse(ec20.isNetworkAttached());
+        assertTrue(ec20.isNetworkAttached());
+        // the last answer repeats
+        assertTrue(ec20.isNetworkAttached());
+    }
+
+    @Test
+    public void publishWaitsForRetransmissions() throws Exception {
+        MQTTClient mqtt = connect(false);
+        model.setRetransmissions(2);
+
+        mqtt.publish("t", "x", 1, false);
+
+        assertEquals(1, model.getPublished());
+        assertEquals(2, waitFor(retransmitted, 2));
+    }
+
+    @Test
+    public void buffersMessagesBeyondTheReceiveBuffers() throws Exception {
+        MQTTClient mqtt = connect(true);
+        mqtt.subscribe(1, "a/+/c");
+
+        int count = EC20Model.RECV_BUFFERS * 2 + 2;
+        for (int i = 0; i < count; i++)
+            model.publish("a/" + i + "/c", ("m" + i).getBytes(), 1);
+        model.publish("a/b/d", "x".getBytes(), 1);
+
+        assertEquals(count, waitFor(arrived, count));
+        assertEquals(count, model.getDelivered());
+        assertEquals(0, model.getDropped());
+    }
+
+    @Test
+    public void reportsLinkLost() throws Exception {
+        connect(false);
+
+        model.dropLink(0, 1);
+
+        assertEquals(1, waitFor(lost, 1));
+        assertEquals(EC20Model.STATE_CLOSED, model.getState(0));
+    }
+
+    @Test
+    public void completesAsyncPublishWithoutEventListener() throws Exception {
+        MQTTClient mqtt = ec20.getMqttClient("broker", 1883, "client");
+        ec20.attachNetwork();
+        mqtt.connect(new MQTTConnectOptions());
+
+        final int[] completed = new int[1];
+        byte[] payload = "x".getBytes();
+        mqtt.publishAsync("t", payload, 0, payload.length, 1, false, new IMQTTPublishListener() {
+            @Override
+            public void onPublishCompleted(int msgId, boolean success) {
+                if (success)
+                    count(completed);
+            }
+
+            @Override
+            public void onPublishRetransmitted(int msgId, int count) {
+            }
+        });
+
+        assertEquals(1, waitFor(completed, 1));
+        assertEquals(0, mqtt.getInflight().size());
+    }
+
+    @Test
+    public void drainsOutboxOnConnectWithoutEventListener() throws Exception {
+        MQTTClient mqtt = ec20.getMqttClient("broker", 1883, "client");
+        mqtt.setOutbox(new MQTTOutbox(8));
+        for (int i = 0; i < 3; i++)
+            mqtt.publish("t", "m" + i, 1, false);
+        assertEquals(3, mqtt.getOutbox().size());
+
+        ec20.attachNetwork();
+        long start = System.currentTimeMillis();
+        mqtt.connect(new MQTTConnectOptions());
+
+        assertTrue(mqtt.getOutbox().isEmpty());
+        assertEquals(3, model.getPublished());
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+    @Test
+    public void clearsConnectedOnLinkLostWithoutEventListener() throws Exception {
+        MQTTClient mqtt = ec20.getMqttClient("broker", 1883, "client");
+        ec20.attachNetwork();
+        mqtt.connect(new MQTTConnectOptions());
+        assertTrue(mqtt.isConnected());
+
+        model.dropLink(0, 1);
+
+        long end = System.currentTimeMillis() + 2000;
+        while (mqtt.isConnected() && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+        assertFalse(mqtt.isConnected());
+    }
+
+    @Test
+    public void releasesSlotOnClose() throws IOException {
+        MQTTClient[] clients = new MQTTClient[TiEC20.MQTT_CLIENTS];
+        for (int i = 0; i < clients.length; i++)
+            clients[i] = ec20.getMqttClient("broker", 1883, "client" + i);
+        try {
+            ec20.getMqttClient("broker", 1883, "extra");
+            fail("all slots are used");
+        } catch (IllegalStateException e) {
+        }
+
+        ec20.attachNetwork();
+        clients[3].connect(new MQTTConnectOptions());
+        clients[3].close();
+        assertFalse(clients[3].isConnected());
+        assertNull(ec20.getMqttClient(3));
+
+        MQTTClient reused = ec20.getMqttClient("broker", 1883, "reused");
+        assertEquals(3, reused.getClientIndex());
+        for (int i = 0; i < clients.length; i++)
+            if (i != 3)
+                clients[i].close();
+        assertNull(ec20.getMqttClient(0));
+    }
+
+    private MQTTClient connect(boolean buffered) throws IOException {
+        ec20.attachNetwork();
+        MQTTClient mqtt = ec20.getMqttClient("broker", 1883, "client");
+        mqtt.setReceiveBuffered(buffered);
+        mqtt.setEventListener(new IMQTTPublishEventListener() {
+            @Override
+            public void onPublishDataArrived(int msgId, String topic, String message) {
+                count(arrived);
+            }
+
+            @Override
+            public void onLinkLost(int error) {
+                count(lost);
+            }
+
+            @Override
+            public void onPublishRetransmitted(int msgId, int count) {
+                count(retransmitted);
+            }
+        });
+        mqtt.connect(new MQTTConnectOptions());
+        assertEquals(EC20Model.STATE_CONNECTED, model.getState(0));
+        return mqtt;
+    }
+
+    private static void count(int[] counter) {
+        synchronized (counter) {
+            counter[0]++;
+            counter.notifyAll();
+        }
+    }
+
+    // count of the events once it reaches the expected value or after 2 seconds
+    private static int waitFor(int[] counter, int expected) throws InterruptedException {
+        long end = System.currentTimeMillis() + 2000;
+        synchronized (counter) {
+            while (counter[0] < expected) {
+                long left = end - System.currentTimeMillis();
+                if (left <= 0)
+                    break;
+                counter.wait(left);
+            }
+            return counter[0];
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package tijos.framework.component.modbus.gateway;
+
+/**
+ * Receiver of the MODBUS TCP responses of a gateway
+ */
+public interface IModbusGatewayListener {
+
+    /**
+     * Response frame with the MBAP header of its request, the buffer is reused
+     * after the call
+     *
+     * @param frame
+     * @param off
+     * @param len
+     */
+    void onGatewayResponse(byte[] frame, int off, int len);
+}
@@ -0,0 +1,341 @@
+package tijos.framework.component.modbus.gateway;
+
+import java.io.IOException;
+
+import tijos.framework.component.modbus.protocol.ModbusConstants;
+import tijos.framework.component.modbus.protocol.ModbusMbap;
+import tijos.framework.sensor.ec20.mqtt.IMQTTBatchEventListener;
+import tijos.framework.sensor.ec20.mqtt.IMQTTEventListener;
+import tijos.framework.sensor.ec20.mqtt.IMQTTPublishEventListener;
+import tijos.framework.sensor.ec20.mqtt.MQTTClient;
+import tijos.framework.sensor.ec20.mqtt.MQTTMessage;
+import tijos.framework.util.logging.Logger;
+
+/**
+ * MODBUS TCP frames tunneled through MQTT topics to a gateway. A message of
+ * the request topic is an MBAP frame as a hex string, such as
+ * <code>000100000006010300000002</code>, the response is published to the
+ * response topic in the same format. Masters match the responses by the
+ * transaction id.
+ * <p>
+ * Requests and responses are queued for the tunnel thread, which submits the
+ * requests to the gateway and publishes the responses, so neither the reader
+ * thread of the module nor the bus thread waits for the other. Messages of
+ * other topics, link events, retransmissions and batches of other topics are
+ * passed to the next listener.
+ * </p>
+ */
+public class ModbusMqttTunnel
+        implements IMQTTPublishEventListener, IMQTTBatchEventListener, IModbusGatewayListener, Runnable {
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    // frames waiting for the tunnel thread in each direction, a request is
+    // answered with EX_SERVER_DEVICE_BUSY when the queue is full
+    public static final int QUEUE_SIZE = 16;
+
+    private final MQTTClient mqtt;
+    private final ModbusTcpGateway gateway;
+    private final String requestTopic;
+    private final String responseTopic;
+    private final int qos;
+    private IMQTTEventListener next;
+
+    private final FrameQueue requests = new FrameQueue();
+    private final FrameQueue responses = new FrameQueue();
+    private Thread thread;
+    private boolean running;
+
+    // request of the reader thread while the queue is full
+    private final byte[] overflow = new byte[ModbusMbap.MAX_FRAME_SIZE];
+
+    // messages of other topics in a batch of the reader thread
+    private MQTTMessage[] others;
+
+    // buffers of the tunnel thread
+    private final byte[] frame = new byte[ModbusMbap.MAX_FRAME_SIZE];
+    private final byte[] response = new byte[ModbusMbap.MAX_FRAME_SIZE * 2];
+
+    /**
+     * Initialize
+     *
+     * @param mqtt          connected client
+     * @param gateway
+     * @param requestTopic  topic of the requests
+     * @param responseTopic topic of the responses
+     * @param qos           qos of the subscription and the responses
+     */
+    public ModbusMqttTunnel(MQTTClient mqtt, ModbusTcpGateway gateway, String requestTopic, String responseTopic,
+                            int qos) {
+        this.mqtt = mqtt;
+        this.gateway = gateway;
+        this.requestTopic = requestTopic;
+        this.responseTopic = responseTopic;
+        this.qos = qos;
+    }
+
+    /**
+     * Listener of the messages of other topics and the link events, an
+     * {@link IMQTTPublishEventListener} gets the retransmissions and an
+     * {@link IMQTTBatchEventListener} the batches of other topics
+     *
+     * @param listener
+     */
+    public void setNext(IMQTTEventListener listener) {
+        this.next = listener;
+    }
+
+    /**
+     * Start the tunnel thread, listen to the client and subscribe the request
+     * topic
+     *
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        synchronized (this) {
+            if (thread == null) {
+                running = true;
+                thread = new Thread(this);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        mqtt.setEventListener(this);
+        mqtt.subscribe(qos, requestTopic);
+    }
+
+    /**
+     * Stop the tunnel thread, queued frames are dropped
+     */
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+            running = false;
+            requests.clear();
+            responses.clear();
+            this.notifyAll();
+        }
+
+        if ((t != null) && (t != Thread.currentThread())) {
+            try {
+                t.join();
+            } catch (InterruptedException ie) {
+            }
+        }
+    }
+
+    @Override
+    public void onPublishDataArrived(int msgId, String topic, String message) {
+        if (!requestTopic.equals(topic)) {
+            IMQTTEventListener l = next;
+            if (l != null)
+                l.onPublishDataArrived(msgId, topic, message);
+            return;
+        }
+
+        // called by the reader thread of the module, the request is queued
+        int len;
+        boolean queued;
+        synchronized (this) {
+            byte[] slot = requests.tail();
+            if (slot != null) {
+                len = decode(message, slot);
+                queued = (len >= 0) && requests.add(len);
+            } else {
+                len = decode(message, overflow);
+                queued = (len >= 0) && busy(overflow, len);
+            }
+            if (queued)
+                this.notifyAll();
+        }
+
+        if (len < 0)
+            Logger.warning("ModbusMqttTunnel", "Invalid request " + message);
+        else if (!queued)
+            Logger.warning("ModbusMqttTunnel", "Request queue is full");
+    }
+
+    // queue the EX_SERVER_DEVICE_BUSY response of a request, false if the
+    // frame is invalid or the response queue is full
+    private boolean busy(byte[] req, int len) {
+        byte[] slot = responses.tail();
+        if ((slot == null) || !ModbusMbap.isValid(req, 0, len))
+            return false;
+
+        int function = req[ModbusMbap.HEADER_SIZE];
+        ModbusMbap.writeHeader(slot, 0, ModbusMbap.getTransactionId(req, 0), ModbusMbap.getUnitId(req, 0), 2);
+        slot[ModbusMbap.HEADER_SIZE] = (byte) (function | 0x80);
+        slot[ModbusMbap.HEADER_SIZE + 1] = (byte) ModbusConstants.EX_SERVER_DEVICE_BUSY;
+        return responses.add(ModbusMbap.HEADER_SIZE + 2);
+    }
+
+    @Override
+    public void onPublishBatchArrived(MQTTMessage[] messages, int count) {
+        IMQTTEventListener l = next;
+        if (!(l instanceof IMQTTBatchEventListener)) {
+            for (int i = 0; i < count; i++)
+                onPublishDataArrived(messages[i].getMsgId(), messages[i].getTopic(), messages[i].toString());
+            return;
+        }
+
+        // requests are queued, the other messages are passed as one batch
+        if ((others == null) || (others.length < count))
+            others = new MQTTMessage[count];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            MQTTMessage m = messages[i];
+            if (requestTopic.equals(m.getTopic()))
+                onPublishDataArrived(m.getMsgId(), m.getTopic(), m.toString());
+            else
+                others[n++] = m;
+        }
+        if (n > 0)
+            ((IMQTTBatchEventListener) l).onPublishBatchArrived(others, n);
+    }
+
+    @Override
+    public void onPublishRetransmitted(int msgId, int count) {
+        IMQTTEventListener l = next;
+        if (l instanceof IMQTTPublishEventListener)
+            ((IMQTTPublishEventListener) l).onPublishRetransmitted(msgId, count);
+    }
+
+    @Override
+    public void onLinkLost(int error) {
+        IMQTTEventListener l = next;
+        if (l != null)
+            l.onLinkLost(error);
+    }
+
+    @Override
+    public void onGatewayResponse(byte[] frame, int off, int len) {
+        // called by the bus thread, the response is published by the tunnel
+        // thread
+        boolean queued;
+        synchronized (this) {
+            byte[] slot = responses.tail();
+            queued = (slot != null) && (len <= slot.length);
+            if (queued) {
+                System.arraycopy(frame, off, slot, 0, len);
+                responses.add(len);
+                this.notifyAll();
+            }
+        }
+        if (!queued)
+            Logger.warning("ModbusMqttTunnel", "Response queue is full");
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            int len;
+            boolean isResponse;
+            synchronized (this) {
+                while (running && responses.isEmpty() && requests.isEmpty()) {
+                    try {
+                        this.wait();
+                    } catch (InterruptedException ie) {
+                    }
+                }
+                if (!running)
+                    return;
+
+                // responses first, they free the slots of the gateway
+                isResponse = !responses.isEmpty();
+                len = isResponse ? responses.remove(frame) : requests.remove(frame);
+            }
+
+            try {
+                if (isResponse)
+                    publish(frame, len);
+                else if (!gateway.submit(frame, 0, len, this))
+                    Logger.warning("ModbusMqttTunnel", "Invalid request frame");
+            } catch (InterruptedException ie) {
+                // stopped
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private void publish(byte[] frame, int len) {
+        for (int i = 0; i < len; i++) {
+            int b = frame[i] & 0xFF;
+            response[i * 2] = (byte) HEX[b >>> 4];
+            response[i * 2 + 1] = (byte) HEX[b & 0xF];
+        }
+
+        try {
+            mqtt.publish(responseTopic, response, 0, len * 2, qos, false);
+        } catch (IOException ex) {
+            Logger.warning("ModbusMqttTunnel", "Publish failed: " + ex.getMessage());
+        }
+    }
+
+    // hex string to bytes, spaces are ignored, -1 if invalid
+    static int decode(String hex, byte[] dst) {
+        int n = 0;
+        int high = -1;
+        for (int i = 0; i < hex.length(); i++) {
+            char c = hex.charAt(i);
+            if (c == ' ')
+                continue;
+
+            int d = Character.digit(c, 16);
+            if (d < 0)
+                return -1;
+            if (high < 0) {
+                high = d;
+            } else {
+                if (n == dst.length)
+                    return -1;
+                dst[n++] = (byte) ((high << 4) | d);
+                high = -1;
+            }
+        }
+        return high < 0 ? n : -1;
+    }
+
+    // bounded queue of frames, guarded by the tunnel
+    private static final class FrameQueue {
+        private final byte[][] frames = new byte[QUEUE_SIZE][ModbusMbap.MAX_FRAME_SIZE];
+        private final int[] lengths = new int[QUEUE_SIZE];
+        private int head;
+        private int count;
+
+        boolean isEmpty() {
+            return count == 0;
+        }
+
+        // buffer of the next frame, null if the queue is full
+        byte[] tail() {
+            return count < QUEUE_SIZE ? frames[(head + count) % QUEUE_SIZE] : null;
+        }
+
+        // commit the frame written to the tail buffer
+        boolean add(int len) {
+            if (count == QUEUE_SIZE)
+                return false;
+            lengths[(head + count) % QUEUE_SIZE] = len;
+            count++;
+            return true;
+        }
+
+        // copy the head frame and remove it
+        int remove(byte[] dst) {
+            int len = lengths[head];
+            System.arraycopy(frames[head], 0, dst, 0, len);
+            head = (head + 1) % QUEUE_SIZE;
+            count--;
+            return len;
+        }
+
+        void clear() {
+            head = 0;
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,441 @@
+package tijos.framework.component.modbus.gateway;
+
+import static tijos.framework.component.modbus.protocol.ModbusConstants.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import tijos.framework.component.modbus.protocol.ModbusMbap;
+import tijos.framework.component.modbus.protocol.ModbusPdu;
+import tijos.framework.component.modbus.rtu.IModbusTransactionListener;
+import tijos.framework.component.modbus.rtu.ModbusClient;
+import tijos.framework.component.modbus.rtu.ModbusResponseCache;
+import tijos.framework.component.modbus.rtu.ModbusTransaction;
+
+/**
+ * MODBUS TCP to RTU gateway. Requests with an MBAP header are translated to
+ * RTU requests of the server given by the unit id and submitted to the bus
+ * thread of the client, the response is sent back with the transaction id of
+ * its request, so several requests of one or more masters can be outstanding.
+ * <p>
+ * The frames come from any link, see {@link #serve(InputStream, OutputStream)}
+ * for a stream such as a TCP connection and {@link ModbusMqttTunnel} for MQTT
+ * topics. With a shadow cache, reads covered by a cached response are answered
+ * without using the bus.
+ * </p>
+ */
+public class ModbusTcpGateway {
+
+    private final ModbusClient client;
+    private ModbusResponseCache shadow;
+    private int queueTimeout = 1000;
+
+    // request queue, the slots in use wait for the bus
+    private final Request[] requests;
+    private int freeCount;
+
+    // values of a shadow read
+    private short[] registers;
+    private boolean[] bits;
+
+    // statistics
+    private int requestCount;
+    private int shadowHits;
+    private int rejects;
+    private int failures;
+
+    /**
+     * Initialize
+     *
+     * @param client    client of the RTU bus
+     * @param queueSize max outstanding requests, the pool size of the client by
+     *                  default
+     */
+    public ModbusTcpGateway(ModbusClient client, int queueSize) {
+        if (queueSize < 1)
+            throw new IllegalArgumentException();
+        this.client = client;
+        this.requests = new Request[queueSize];
+        for (int i = 0; i < queueSize; i++)
+            requests[i] = new Request();
+        this.freeCount = queueSize;
+    }
+
+    public ModbusTcpGateway(ModbusClient client) {
+        this(client, ModbusClient.DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * Answer reads from the cache of the client when possible, the responses
+     * read from the bus are stored by the cache
+     *
+     * @param cache null to read always from the bus
+     */
+    public synchronized void setShadowCache(ModbusResponseCache cache) {
+        this.shadow = cache;
+        if ((cache != null) && (registers == null)) {
+            registers = new short[MAX_READ_REGS];
+            bits = new boolean[MAX_READ_COILS];
+        }
+    }
+
+    public synchronized ModbusResponseCache getShadowCache() {
+        return shadow;
+    }
+
+    /**
+     * Time to wait for a free slot of the queue, the request is rejected with
+     * EX_SERVER_DEVICE_BUSY after it
+     *
+     * @param ms milliseconds, 1000 by default
+     */
+    public synchronized void setQueueTimeout(int ms) {
+        if (ms <= 0)
+            throw new IllegalArgumentException();
+        this.queueTimeout = ms;
+    }
+
+    /**
+     * Submit a request frame, the frame is copied before returning
+     *
+     * @param frame    MBAP header and PDU
+     * @param off
+     * @param len
+     * @param listener receiver of the response, called in the bus thread of
+     *                 the client, or in this thread for a shadow read and a
+     *                 rejected request
+     * @return false if the frame is not a valid MODBUS TCP frame, it is dropped
+     *         without response
+     * @throws InterruptedException
+     */
+    public boolean submit(byte[] frame, int off, int len, IModbusGatewayListener listener)
+            throws InterruptedException {
+        if (!ModbusMbap.isValid(frame, off, len))
+            return false;
+
+        int tid = ModbusMbap.getTransactionId(frame, off);
+        int unit = ModbusMbap.getUnitId(frame, off);
+        int pduOff = off + ModbusMbap.HEADER_SIZE;
+        int pduSize = len - ModbusMbap.HEADER_SIZE;
+        int function = frame[pduOff];
+
+        synchronized (this) {
+            requestCount++;
+        }
+
+        if (unit > 247) {
+            reject(tid, unit, function, EX_GATEWAY_PATH_UNAVAILABLE, listener);
+            return true;
+        }
+        if (unit == BROADCAST_ID && !ModbusTransaction.isWriteFunction(function))
+            return false;
+
+        if (!isSupported(function)) {
+            reject(tid, unit, function, EX_ILLEGAL_FUNCTION, listener);
+            return true;
+        }
+
+        if ((unit != BROADCAST_ID) && answerFromShadow(tid, unit, frame, pduOff, pduSize, listener))
+            return true;
+
+        Request req = take();
+        if (req == null) {
+            reject(tid, unit, function, EX_SERVER_DEVICE_BUSY, listener);
+            return true;
+        }
+
+        try {
+            req.tx.InitPduRequest(unit, frame, pduOff, pduSize);
+        } catch (IllegalArgumentException ex) {
+            give(req);
+            reject(tid, unit, function, EX_ILLEGAL_DATA_VALUE, listener);
+            return true;
+        }
+
+        req.transactionId = tid;
+        req.unitId = unit;
+        req.listener = listener;
+        if (!client.submit(req.tx, req)) {
+            give(req);
+            reject(tid, unit, function, EX_SERVER_DEVICE_BUSY, listener);
+        }
+        return true;
+    }
+
+    /**
+     * Serve the requests of a stream until it ends, such as the streams of a
+     * TCP connection. Requests are read while earlier ones wait for the bus,
+     * their responses are written when they complete.
+     *
+     * @param in
+     * @param out
+     * @throws IOException          invalid frame or error of the stream
+     * @throws InterruptedException
+     */
+    public void serve(InputStream in, final OutputStream out) throws IOException, InterruptedException {
+        byte[] buf = new byte[ModbusMbap.MAX_FRAME_SIZE];
+        IModbusGatewayListener writer = new IModbusGatewayListener() {
+            public void onGatewayResponse(byte[] frame, int off, int len) {
+                synchronized (out) {
+                    try {
+                        out.write(frame, off, len);
+                        out.flush();
+                    } catch (IOException ex) {
+                        // the reader sees the closed connection
+                    }
+                }
+            }
+        };
+
+        while (true) {
+            if (!readFully(in, buf, 0, ModbusMbap.HEADER_SIZE))
+                return;
+
+            int size = ModbusMbap.getFrameSize(buf, 0);
+            if ((size <= ModbusMbap.HEADER_SIZE) || (size > buf.length))
+                throw new IOException("Invalid MBAP length " + ModbusMbap.getLength(buf, 0));
+            if (!readFully(in, buf, ModbusMbap.HEADER_SIZE, size - ModbusMbap.HEADER_SIZE))
+                return;
+
+            submit(buf, 0, size, writer);
+        }
+    }
+
+    private static boolean readFully(InputStream in, byte[] buf, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = in.read(buf, off, len);
+            if (n < 0)
+                return false;
+            off += n;
+            len -= n;
+        }
+        return true;
+    }
+
+    private static boolean isSupported(int function) {
+        return (function == FN_READ_COILS) || (function == FN_READ_DISCRETE_INPUTS)
+                || (function == FN_READ_HOLDING_REGISTERS) || (function == FN_READ_INPUT_REGISTERS)
+                || ModbusTransaction.isWriteFunction(function);
+    }
+
+    // read response built from the shadow cache, the listener is called
+    // without the lock
+    private boolean answerFromShadow(int tid, int unit, byte[] req, int pduOff, int pduSize,
+                                     IModbusGatewayListener listener) {
+        int function = req[pduOff];
+        if ((pduSize != 5) || ModbusTransaction.isWriteFunction(function))
+            return false;
+
+        int address = ((req[pduOff + 1] & 0xFF) << 8) | (req[pduOff + 2] & 0xFF);
+        int count = ((req[pduOff + 3] & 0xFF) << 8) | (req[pduOff + 4] & 0xFF);
+        int p = ModbusMbap.HEADER_SIZE;
+        byte[] frame;
+
+        synchronized (this) {
+            if (shadow == null)
+                return false;
+
+            if ((function == FN_READ_HOLDING_REGISTERS) || (function == FN_READ_INPUT_REGISTERS)) {
+                if ((count < 1) || (count > MAX_READ_REGS)
+                        || !shadow.getRegisters(unit, function, address, count, registers, 0))
+                    return false;
+
+                frame = new byte[p + 2 + count * 2];
+                frame[p++] = (byte) function;
+                frame[p++] = (byte) (count * 2);
+                for (int i = 0; i < count; i++) {
+                    frame[p++] = (byte) (registers[i] >> 8);
+                    frame[p++] = (byte) registers[i];
+                }
+            } else {
+                if ((count < 1) || (count > MAX_READ_COILS)
+                        || !shadow.getBits(unit, function, address, count, bits, 0))
+                    return false;
+
+                int bytes = ModbusPdu.bytesCount(count);
+                frame = new byte[p + 2 + bytes];
+                frame[p++] = (byte) function;
+                frame[p++] = (byte) bytes;
+                for (int i = 0; i < count; i++) {
+                    if (bits[i])
+                        frame[p + (i >> 3)] |= (byte) (1 << (i & 7));
+                }
+                p += bytes;
+            }
+
+            shadowHits++;
+        }
+
+        ModbusMbap.writeHeader(frame, 0, tid, unit, p - ModbusMbap.HEADER_SIZE);
+        listener.onGatewayResponse(frame, 0, p);
+        return true;
+    }
+
+    // exception response of the gateway
+    private void reject(int tid, int unit, int function, int code, IModbusGatewayListener listener) {
+        synchronized (this) {
+            if (code == EX_SERVER_DEVICE_BUSY)
+                rejects++;
+            else
+                failures++;
+        }
+
+        byte[] frame = new byte[ModbusMbap.HEADER_SIZE + 2];
+        ModbusMbap.writeHeader(frame, 0, tid, unit, 2);
+        frame[ModbusMbap.HEADER_SIZE] = (byte) (function | 0x80);
+        frame[ModbusMbap.HEADER_SIZE + 1] = (byte) code;
+        listener.onGatewayResponse(frame, 0, frame.length);
+    }
+
+    // free slot and transaction, null if none is free in time
+    private Request take() throws InterruptedException {
+        Request req = null;
+        int timeout;
+        synchronized (this) {
+            timeout = queueTimeout;
+            long deadline = System.currentTimeMillis() + timeout;
+            while (freeCount == 0) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0)
+                    return null;
+                this.wait(wait);
+            }
+
+            for (int i = 0; i < requests.length; i++) {
+                if (requests[i].free) {
+                    req = requests[i];
+                    break;
+                }
+            }
+            req.free = false;
+            freeCount--;
+        }
+
+        req.tx = client.acquire(timeout);
+        if (req.tx == null) {
+            give(req);
+            return null;
+        }
+        return req;
+    }
+
+    private void give(Request req) {
+        if (req.tx != null) {
+            client.release(req.tx);
+            req.tx = null;
+        }
+        req.listener = null;
+
+        synchronized (this) {
+            req.free = true;
+            freeCount++;
+            this.notifyAll();
+        }
+    }
+
+    // response of a request executed on the bus
+    private void completed(Request req, Exception error) {
+        ModbusTransaction tx = req.tx;
+        IModbusGatewayListener listener = req.listener;
+        byte[] out = req.frame;
+        int unit = req.unitId;
+        int p = ModbusMbap.HEADER_SIZE;
+        boolean failed = false;
+
+        if (unit == BROADCAST_ID) {
+            // no response to broadcast
+            give(req);
+            return;
+        }
+
+        if (error != null) {
+            failed = true;
+            out[p++] = (byte) (tx.getFunction() | 0x80);
+            out[p++] = error instanceof IOException ? EX_GATEWAY_PATH_UNAVAILABLE : EX_GATEWAY_TARGET_FAILED;
+        } else if ((tx.getResult() == ModbusTransaction.RESULT_OK)
+                || (tx.getResult() == ModbusTransaction.RESULT_EXCEPTION)) {
+            // response PDU as received
+            tx.readFromPdu(0, tx.getPduSize(), out, p);
+            p += tx.getPduSize();
+        } else {
+            failed = true;
+            out[p++] = (byte) (tx.getFunction() | 0x80);
+            out[p++] = EX_GATEWAY_TARGET_FAILED;
+        }
+        ModbusMbap.writeHeader(out, 0, req.transactionId, unit, p - ModbusMbap.HEADER_SIZE);
+
+        if (failed) {
+            synchronized (this) {
+                failures++;
+            }
+        }
+
+        // the slot is free after the listener, its frame is not reused before
+        try {
+            listener.onGatewayResponse(out, 0, p);
+        } finally {
+            give(req);
+        }
+    }
+
+    /**
+     * Requests received
+     *
+     * @return
+     */
+    public synchronized int getRequests() {
+        return requestCount;
+    }
+
+    /**
+     * Reads answered by the shadow cache
+     *
+     * @return
+     */
+    public synchronized int getShadowHits() {
+        return shadowHits;
+    }
+
+    /**
+     * Requests rejected with EX_SERVER_DEVICE_BUSY because the queue is full
+     *
+     * @return
+     */
+    public synchronized int getRejects() {
+        return rejects;
+    }
+
+    /**
+     * Requests answered with an exception of the gateway, such as
+     * EX_GATEWAY_TARGET_FAILED for a server without response
+     *
+     * @return
+     */
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * Requests waiting for the bus
+     *
+     * @return
+     */
+    public synchronized int getPending() {
+        return requests.length - freeCount;
+    }
+
+    // slot of the queue, a request waiting for the bus
+    private final class Request implements IModbusTransactionListener {
+        final byte[] frame = new byte[ModbusMbap.MAX_FRAME_SIZE];
+        ModbusTransaction tx;
+        IModbusGatewayListener listener;
+        int transactionId;
+        int unitId;
+        boolean free = true;
+
+        public void onTransactionCompleted(ModbusTransaction tx, Exception error) {
+            completed(this, error);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package tijos.framework.component.modbus.poll;
+
+public interface IModbusScanListener {
+
+    /**
+     * All requests of a group are executed, it's called from the scheduler thread
+     *
+     * @param group  group index
+     * @param plan   points of the group
+     * @param failed number of failed requests
+     */
+    void onScanCompleted(int group, ModbusPollPlan plan, int failed);
+}
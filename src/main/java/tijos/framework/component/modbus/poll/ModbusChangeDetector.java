@@ -0,0 +1,383 @@
+package tijos.framework.component.modbus.poll;
+
+import tijos.framework.component.modbus.rtu.ModbusClient;
+
+/**
+ * Report by exception: only points changed beyond their deadband since the
+ * last report are written to the delta message. A point is reported anyway
+ * after the max silence time as heartbeat.
+ * <p>
+ * The message is JSON with the point names, such as
+ * <code>{"ts":1571234567890,"d":{"temp":23.5,"alarm":1}}</code>, it is written to
+ * a byte array without temporary objects. The names are escaped as JSON
+ * strings when the points are added. Call {@link #commit()} after the
+ * message is sent, otherwise the same changes are reported again.
+ * </p>
+ */
+public class ModbusChangeDetector {
+
+    /**
+     * Default digits after the decimal point of float values
+     */
+    public static final int DEFAULT_DECIMALS = 3;
+
+    private int count;
+    private ModbusPoint[] points;
+    private byte[][] names;
+    private double[] absDeadbands;
+    private double[] percentDeadbands;
+
+    // last reported snapshot
+    private double[] sentValues;
+    private long[] sentTimes;
+    private boolean[] sent;
+
+    // points of the last delta message and their values
+    private int[] changed;
+    private double[] changedValues;
+    private int changedCount;
+    private long changedTime;
+
+    private int maxSilence;
+    private long scale;
+    private int decimals;
+
+    private static final byte[] DIGITS = "0123456789".getBytes();
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final byte[] TS = "{\"ts\":".getBytes();
+    private static final byte[] DATA = ",\"d\":{".getBytes();
+
+    /**
+     * Initialize with heartbeat
+     *
+     * @param maxSilence max time in milliseconds without report of a point, 0 for no heartbeat
+     */
+    public ModbusChangeDetector(int maxSilence) {
+        this.maxSilence = maxSilence;
+        this.points = new ModbusPoint[16];
+        this.names = new byte[16][];
+        this.absDeadbands = new double[16];
+        this.percentDeadbands = new double[16];
+        this.sentValues = new double[16];
+        this.sentTimes = new long[16];
+        this.sent = new boolean[16];
+        this.changed = new int[16];
+        this.changedValues = new double[16];
+        setDecimals(DEFAULT_DECIMALS);
+    }
+
+    /**
+     * Digits after the decimal point of float values
+     *
+     * @param decimals 0 - 9
+     */
+    public void setDecimals(int decimals) {
+        if ((decimals < 0) || (decimals > 9))
+            throw new IllegalArgumentException();
+
+        this.decimals = decimals;
+        this.scale = 1;
+        for (int i = 0; i < decimals; i++)
+            this.scale *= 10;
+    }
+
+    /**
+     * Add a point reported on any change
+     *
+     * @param point
+     */
+    public void add(ModbusPoint point) {
+        add(point, 0, 0);
+    }
+
+    /**
+     * Add a point with deadbands, a change is reported when it exceeds both
+     * deadbands, set a deadband to 0 to disable it
+     *
+     * @param point
+     * @param absDeadband     absolute deadband
+     * @param percentDeadband deadband in percent of the last reported value
+     */
+    public void add(ModbusPoint point, double absDeadband, double percentDeadband) {
+        if ((absDeadband < 0) || (percentDeadband < 0))
+            throw new IllegalArgumentException();
+
+        if (count == points.length)
+            grow(count * 2);
+
+        points[count] = point;
+        names[count] = escape(point.getName());
+        absDeadbands[count] = absDeadband;
+        percentDeadbands[count] = percentDeadband;
+        count++;
+    }
+
+    /**
+     * Add all points of the plan with the same deadbands
+     *
+     * @param plan
+     * @param absDeadband
+     * @param percentDeadband
+     */
+    public void addAll(ModbusPollPlan plan, double absDeadband, double percentDeadband) {
+        int n = plan.getPointCount();
+        for (int i = 0; i < n; i++)
+            add(plan.getPoint(i), absDeadband, percentDeadband);
+    }
+
+    public int getPointCount() {
+        return count;
+    }
+
+    /**
+     * Compare the points with the last report
+     *
+     * @param now current time in milliseconds
+     * @return number of points to report
+     */
+    public int detect(long now) {
+        changedCount = 0;
+        changedTime = now;
+
+        for (int i = 0; i < count; i++) {
+            ModbusPoint p = points[i];
+            if (!p.isValid() || (p.getResult() != ModbusClient.RESULT_OK))
+                continue;
+
+            double value = (p.getType() == ModbusPoint.TYPE_FLOAT) ? p.getFloatValue() : p.getIntValue();
+
+            boolean report;
+            if (!sent[i]) {
+                report = true;
+            } else if ((maxSilence > 0) && (now - sentTimes[i] >= maxSilence)) {
+                report = true;
+            } else {
+                double diff = Math.abs(value - sentValues[i]);
+                double last = Math.abs(sentValues[i]);
+                report = (diff > absDeadbands[i]) && (diff > last * percentDeadbands[i] / 100)
+                        && (diff > 0);
+            }
+
+            if (report) {
+                changed[changedCount] = i;
+                changedValues[changedCount] = value;
+                changedCount++;
+            }
+        }
+
+        return changedCount;
+    }
+
+    /**
+     * Number of points of the last detection
+     *
+     * @return
+     */
+    public int getChangedCount() {
+        return changedCount;
+    }
+
+    /**
+     * Point of the last detection
+     *
+     * @param index 0 to getChangedCount() - 1
+     * @return
+     */
+    public ModbusPoint getChanged(int index) {
+        if ((index < 0) || (index >= changedCount))
+            throw new IndexOutOfBoundsException();
+        return points[changed[index]];
+    }
+
+    /**
+     * Max length of the delta message of the last detection
+     *
+     * @return
+     */
+    public int getMaxMessageLength() {
+        int len = TS.length + 20 + DATA.length + 2;
+        for (int i = 0; i < changedCount; i++)
+            len += names[changed[i]].length + 4 + 32;
+        return len;
+    }
+
+    /**
+     * Write the delta message of the last detection
+     *
+     * @param buf
+     * @param off
+     * @return end offset of the message
+     * @throws IndexOutOfBoundsException the buffer is too small, see {@link #getMaxMessageLength()}
+     */
+    public int encode(byte[] buf, int off) {
+        off = put(buf, off, TS);
+        off = putLong(buf, off, changedTime);
+        off = put(buf, off, DATA);
+
+        for (int i = 0; i < changedCount; i++) {
+            int p = changed[i];
+            if (i > 0)
+                buf[off++] = ',';
+            buf[off++] = '"';
+            off = put(buf, off, names[p]);
+            buf[off++] = '"';
+            buf[off++] = ':';
+
+            if (points[p].getType() == ModbusPoint.TYPE_FLOAT)
+                off = putDecimal(buf, off, changedValues[i]);
+            else
+                off = putLong(buf, off, (long) changedValues[i]);
+        }
+
+        buf[off++] = '}';
+        buf[off++] = '}';
+        return off;
+    }
+
+    /**
+     * The delta message of the last detection is sent, it becomes the reference
+     * of the next detection
+     */
+    public void commit() {
+        for (int i = 0; i < changedCount; i++) {
+            int p = changed[i];
+            sentValues[p] = changedValues[i];
+            sentTimes[p] = changedTime;
+            sent[p] = true;
+        }
+        changedCount = 0;
+    }
+
+    /**
+     * Report all points in the next detection, such as after reconnected
+     */
+    public void reset() {
+        for (int i = 0; i < count; i++)
+            sent[i] = false;
+    }
+
+    // name as JSON string content, escaped once when the point is added
+    private static byte[] escape(String name) {
+        byte[] raw = name.getBytes();
+        int len = raw.length;
+        for (int i = 0; i < raw.length; i++) {
+            if ((raw[i] == '"') || (raw[i] == '\\'))
+                len++;
+            else if ((raw[i] >= 0) && (raw[i] < 0x20))
+                len += 5;
+        }
+        if (len == raw.length)
+            return raw;
+
+        byte[] out = new byte[len];
+        int off = 0;
+        for (int i = 0; i < raw.length; i++) {
+            byte b = raw[i];
+            if ((b == '"') || (b == '\\')) {
+                out[off++] = '\\';
+                out[off++] = b;
+            } else if ((b >= 0) && (b < 0x20)) {
+                // control character as backslash u00XX
+                out[off++] = '\\';
+                out[off++] = 'u';
+                out[off++] = '0';
+                out[off++] = '0';
+                out[off++] = HEX[b >> 4];
+                out[off++] = HEX[b & 0x0F];
+            } else {
+                out[off++] = b;
+            }
+        }
+        return out;
+    }
+
+    private static int put(byte[] buf, int off, byte[] src) {
+        System.arraycopy(src, 0, buf, off, src.length);
+        return off + src.length;
+    }
+
+    private static int putLong(byte[] buf, int off, long value) {
+        if (value < 0) {
+            buf[off++] = '-';
+            value = -value;
+        }
+
+        // digits in reverse order
+        int start = off;
+        do {
+            buf[off++] = DIGITS[(int) (value % 10)];
+            value /= 10;
+        } while (value > 0);
+
+        for (int i = start, j = off - 1; i < j; i++, j--) {
+            byte b = buf[i];
+            buf[i] = buf[j];
+            buf[j] = b;
+        }
+        return off;
+    }
+
+    private int putDecimal(byte[] buf, int off, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            // not valid in JSON
+            buf[off++] = 'n';
+            buf[off++] = 'u';
+            buf[off++] = 'l';
+            buf[off++] = 'l';
+            return off;
+        }
+
+        long fixed = Math.round(Math.abs(value) * scale);
+        if ((value < 0) && (fixed != 0))
+            buf[off++] = '-';
+
+        off = putLong(buf, off, fixed / scale);
+        if (decimals == 0)
+            return off;
+
+        // trailing zeros are dropped
+        long fraction = fixed % scale;
+        if (fraction == 0)
+            return off;
+
+        buf[off++] = '.';
+        for (long div = scale / 10; (div > 0) && (fraction > 0); div /= 10) {
+            buf[off++] = DIGITS[(int) (fraction / div)];
+            fraction %= div;
+        }
+        return off;
+    }
+
+    private void grow(int size) {
+        ModbusPoint[] p = new ModbusPoint[size];
+        System.arraycopy(points, 0, p, 0, count);
+        points = p;
+
+        byte[][] n = new byte[size][];
+        System.arraycopy(names, 0, n, 0, count);
+        names = n;
+
+        absDeadbands = grow(absDeadbands, size);
+        percentDeadbands = grow(percentDeadbands, size);
+        sentValues = grow(sentValues, size);
+        changedValues = grow(changedValues, size);
+
+        long[] t = new long[size];
+        System.arraycopy(sentTimes, 0, t, 0, count);
+        sentTimes = t;
+
+        boolean[] s = new boolean[size];
+        System.arraycopy(sent, 0, s, 0, count);
+        sent = s;
+
+        int[] c = new int[size];
+        System.arraycopy(changed, 0, c, 0, changedCount);
+        changed = c;
+    }
+
+    private double[] grow(double[] a, int size) {
+        double[] b = new double[size];
+        System.arraycopy(a, 0, b, 0, count);
+        return b;
+    }
+}
@@ -0,0 +1,167 @@
+package tijos.framework.component.modbus.poll;
+
+import static tijos.framework.component.modbus.protocol.ModbusConstants.*;
+
+import tijos.framework.component.modbus.rtu.ModbusClient;
+
+/**
+ * Variable read from a MODBUS server, the value is updated by {@link ModbusPollPlan}
+ */
+public class ModbusPoint {
+
+    /**
+     * Data types
+     */
+    public static final int TYPE_BIT = 0;
+    public static final int TYPE_INT16 = 1;
+    public static final int TYPE_UINT16 = 2;
+    public static final int TYPE_INT32 = 3;
+    public static final int TYPE_FLOAT = 4;
+
+    private final String name;
+    private final int serverId;
+    private final int function;
+    private final int address;
+    private final int type;
+    private final boolean bigEndian;
+
+    // raw value, float bits for TYPE_FLOAT
+    private int value;
+    private int result = ModbusClient.RESULT_TIMEOUT;
+    private boolean valid;
+
+    /**
+     * Point of 1 bit or 1 register
+     *
+     * @param name     name of the point
+     * @param serverId server id
+     * @param function FN_READ_COILS, FN_READ_DISCRETE_INPUTS, FN_READ_HOLDING_REGISTERS or FN_READ_INPUT_REGISTERS
+     * @param address  address of the bit or register
+     * @param type     TYPE_*
+     */
+    public ModbusPoint(String name, int serverId, int function, int address, int type) {
+        this(name, serverId, function, address, type, true);
+    }
+
+    /**
+     * Point of 1 bit, 1 register or 2 registers
+     *
+     * @param name      name of the point
+     * @param serverId  server id
+     * @param function  FN_READ_COILS, FN_READ_DISCRETE_INPUTS, FN_READ_HOLDING_REGISTERS or FN_READ_INPUT_REGISTERS
+     * @param address   address of the first bit or register
+     * @param type      TYPE_*
+     * @param bigEndian word order of TYPE_INT32 and TYPE_FLOAT
+     */
+    public ModbusPoint(String name, int serverId, int function, int address, int type, boolean bigEndian) {
+        boolean bits = (function == FN_READ_COILS) || (function == FN_READ_DISCRETE_INPUTS);
+        boolean registers = (function == FN_READ_HOLDING_REGISTERS) || (function == FN_READ_INPUT_REGISTERS);
+        if (!bits && !registers)
+            throw new IllegalArgumentException("Invalid function: " + function);
+        if ((type < TYPE_BIT) || (type > TYPE_FLOAT) || (bits != (type == TYPE_BIT)))
+            throw new IllegalArgumentException("Invalid type: " + type);
+        if ((address < 0) || (address + size(type) > 0x10000))
+            throw new IllegalArgumentException("Invalid address: " + address);
+
+        this.name = name;
+        this.serverId = serverId;
+        this.function = function;
+        this.address = address;
+        this.type = type;
+        this.bigEndian = bigEndian;
+    }
+
+    /**
+     * Number of bits or registers of the type
+     *
+     * @param type
+     * @return
+     */
+    public static int size(int type) {
+        return ((type == TYPE_INT32) || (type == TYPE_FLOAT)) ? 2 : 1;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getServerId() {
+        return serverId;
+    }
+
+    public int getFunction() {
+        return function;
+    }
+
+    public int getAddress() {
+        return address;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public boolean isBigEndian() {
+        return bigEndian;
+    }
+
+    public int getSize() {
+        return size(type);
+    }
+
+    /**
+     * Result of the last poll, the value is kept if it is not RESULT_OK
+     *
+     * @return ModbusClient.RESULT_*
+     */
+    public int getResult() {
+        return result;
+    }
+
+    /**
+     * The value has been read at least once
+     *
+     * @return
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    public boolean getBoolValue() {
+        return value != 0;
+    }
+
+    /**
+     * Value of integer types
+     *
+     * @return
+     */
+    public int getIntValue() {
+        if (type == TYPE_FLOAT)
+            return (int) Float.intBitsToFloat(value);
+        return value;
+    }
+
+    public float getFloatValue() {
+        if (type == TYPE_FLOAT)
+            return Float.intBitsToFloat(value);
+        return value;
+    }
+
+    void update(int value) {
+        this.value = value;
+        this.result = ModbusClient.RESULT_OK;
+        this.valid = true;
+    }
+
+    void fail(int result) {
+        this.result = result;
+    }
+
+    @Override
+    public String toString() {
+        if (type == TYPE_FLOAT)
+            return name + "=" + getFloatValue();
+        return name + "=" + value;
+    }
+}
@@ -0,0 +1,303 @@
+package tijos.framework.component.modbus.poll;
+
+import static tijos.framework.component.modbus.protocol.ModbusConstants.*;
+
+import tijos.framework.component.modbus.rtu.ModbusClient;
+
+/**
+ * Reads a set of points with the fewest requests. Points of the same server and
+ * function are sorted by address and merged into one request when the gap
+ * between them is small enough and the request does not exceed the max length,
+ * the values are scattered back to the points after each request.
+ * <p>
+ * Unused registers in the gaps are read too, a gap of a few registers costs
+ * much less time on the bus than another request.
+ * </p>
+ */
+public class ModbusPollPlan {
+
+    /**
+     * Default max unused registers or bits between 2 points of a request
+     */
+    public static final int DEFAULT_MAX_GAP = 8;
+
+    private final int maxGap;
+    private final int maxRegisters;
+    private final int maxBits;
+
+    private ModbusPoint[] points = new ModbusPoint[16];
+    private int pointCount;
+
+    // requests, the points of request i are points[reqFirst[i] .. reqFirst[i] + reqPoints[i])
+    private int requestCount;
+    private int[] reqServer;
+    private int[] reqFunction;
+    private int[] reqAddress;
+    private int[] reqLength;
+    private int[] reqFirst;
+    private int[] reqPoints;
+    private boolean built;
+
+    // values of a request
+    private short[] registers;
+    private boolean[] bits;
+
+    /**
+     * Initialize with default max gap and max request length
+     */
+    public ModbusPollPlan() {
+        this(DEFAULT_MAX_GAP);
+    }
+
+    /**
+     * Initialize with max gap
+     *
+     * @param maxGap max unused registers or bits between 2 points of a request, 0 to merge adjacent points only
+     */
+    public ModbusPollPlan(int maxGap) {
+        this(maxGap, MAX_READ_REGS, MAX_READ_COILS);
+    }
+
+    /**
+     * Initialize with max gap and max request length, some devices accept less than
+     * the protocol limit
+     *
+     * @param maxGap       max unused registers or bits between 2 points of a request
+     * @param maxRegisters max registers of a request
+     * @param maxBits      max coils or discrete inputs of a request
+     */
+    public ModbusPollPlan(int maxGap, int maxRegisters, int maxBits) {
+        if ((maxGap < 0) || (maxRegisters < 2) || (maxRegisters > MAX_READ_REGS) || (maxBits < 1)
+                || (maxBits > MAX_READ_COILS))
+            throw new IllegalArgumentException();
+
+        this.maxGap = maxGap;
+        this.maxRegisters = maxRegisters;
+        this.maxBits = maxBits;
+    }
+
+    /**
+     * Add a point, the plan is built again before the next execution
+     *
+     * @param point
+     * @return the point
+     */
+    public synchronized ModbusPoint add(ModbusPoint point) {
+        if (pointCount == points.length) {
+            ModbusPoint[] temp = new ModbusPoint[points.length * 2];
+            System.arraycopy(points, 0, temp, 0, pointCount);
+            points = temp;
+        }
+        points[pointCount++] = point;
+        built = false;
+        return point;
+    }
+
+    public synchronized int getPointCount() {
+        return pointCount;
+    }
+
+    /**
+     * Point by index, points are sorted by server, function and address after
+     * the plan is built
+     *
+     * @param index
+     * @return
+     */
+    public synchronized ModbusPoint getPoint(int index) {
+        if ((index < 0) || (index >= pointCount))
+            throw new IndexOutOfBoundsException();
+        return points[index];
+    }
+
+    /**
+     * Merge the points into requests
+     */
+    public synchronized void build() {
+        sort();
+
+        reqServer = new int[pointCount];
+        reqFunction = new int[pointCount];
+        reqAddress = new int[pointCount];
+        reqLength = new int[pointCount];
+        reqFirst = new int[pointCount];
+        reqPoints = new int[pointCount];
+        requestCount = 0;
+
+        int maxLength = 0;
+        for (int i = 0; i < pointCount; i++) {
+            ModbusPoint p = points[i];
+            int end = p.getAddress() + p.getSize();
+
+            if (requestCount > 0) {
+                int r = requestCount - 1;
+                int reqEnd = reqAddress[r] + reqLength[r];
+                int limit = isBits(p.getFunction()) ? maxBits : maxRegisters;
+                if ((reqServer[r] == p.getServerId()) && (reqFunction[r] == p.getFunction())
+                        && (p.getAddress() - reqEnd <= maxGap) && (Math.max(end, reqEnd) - reqAddress[r] <= limit)) {
+                    reqLength[r] = Math.max(end, reqEnd) - reqAddress[r];
+                    reqPoints[r]++;
+                    maxLength = Math.max(maxLength, reqLength[r]);
+                    continue;
+                }
+            }
+
+            int r = requestCount++;
+            reqServer[r] = p.getServerId();
+            reqFunction[r] = p.getFunction();
+            reqAddress[r] = p.getAddress();
+            reqLength[r] = p.getSize();
+            reqFirst[r] = i;
+            reqPoints[r] = 1;
+            maxLength = Math.max(maxLength, reqLength[r]);
+        }
+
+        registers = new short[Math.min(maxLength, maxRegisters)];
+        bits = new boolean[Math.min(maxLength, maxBits)];
+        built = true;
+    }
+
+    /**
+     * Number of requests to read all points
+     *
+     * @return
+     */
+    public synchronized int getRequestCount() {
+        if (!built)
+            build();
+        return requestCount;
+    }
+
+    public synchronized int getRequestServerId(int request) {
+        checkRequest(request);
+        return reqServer[request];
+    }
+
+    public synchronized int getRequestFunction(int request) {
+        checkRequest(request);
+        return reqFunction[request];
+    }
+
+    public synchronized int getRequestAddress(int request) {
+        checkRequest(request);
+        return reqAddress[request];
+    }
+
+    public synchronized int getRequestLength(int request) {
+        checkRequest(request);
+        return reqLength[request];
+    }
+
+    /**
+     * Execute all requests
+     *
+     * @param client
+     * @return number of failed requests
+     * @throws Exception
+     */
+    public synchronized int execute(ModbusClient client) throws Exception {
+        if (!built)
+            build();
+
+        int failed = 0;
+        for (int r = 0; r < requestCount; r++) {
+            if (execute(client, r) != ModbusClient.RESULT_OK)
+                failed++;
+        }
+        return failed;
+    }
+
+    /**
+     * Execute a request and update its points
+     *
+     * @param client
+     * @param request index of the request
+     * @return result of the request
+     * @throws Exception
+     */
+    public synchronized int execute(ModbusClient client, int request) throws Exception {
+        checkRequest(request);
+
+        int server = reqServer[request];
+        int address = reqAddress[request];
+        int length = reqLength[request];
+
+        int result;
+        switch (reqFunction[request]) {
+            case FN_READ_COILS:
+                result = client.readCoils(server, address, length, bits, 0);
+                break;
+            case FN_READ_DISCRETE_INPUTS:
+                result = client.readDiscreteInputs(server, address, length, bits, 0);
+                break;
+            case FN_READ_HOLDING_REGISTERS:
+                result = client.readHoldingRegisters(server, address, length, registers, 0);
+                break;
+            default:
+                result = client.readInputRegisters(server, address, length, registers, 0);
+                break;
+        }
+
+        int first = reqFirst[request];
+        int last = first + reqPoints[request];
+        for (int i = first; i < last; i++) {
+            ModbusPoint p = points[i];
+            if (result != ModbusClient.RESULT_OK) {
+                p.fail(result);
+                continue;
+            }
+
+            int off = p.getAddress() - address;
+            switch (p.getType()) {
+                case ModbusPoint.TYPE_BIT:
+                    p.update(bits[off] ? 1 : 0);
+                    break;
+                case ModbusPoint.TYPE_INT16:
+                    p.update(registers[off]);
+                    break;
+                case ModbusPoint.TYPE_UINT16:
+                    p.update(registers[off] & 0xFFFF);
+                    break;
+                default:
+                    int high = registers[off] & 0xFFFF;
+                    int low = registers[off + 1] & 0xFFFF;
+                    p.update(p.isBigEndian() ? (high << 16) | low : (low << 16) | high);
+                    break;
+            }
+        }
+
+        return result;
+    }
+
+    private void checkRequest(int request) {
+        if (!built)
+            build();
+        if ((request < 0) || (request >= requestCount))
+            throw new IndexOutOfBoundsException();
+    }
+
+    private static boolean isBits(int function) {
+        return (function == FN_READ_COILS) || (function == FN_READ_DISCRETE_INPUTS);
+    }
+
+    // insertion sort by server, function and address, the order of equal points is kept
+    private void sort() {
+        for (int i = 1; i < pointCount; i++) {
+            ModbusPoint p = points[i];
+            int j = i - 1;
+            while ((j >= 0) && (compare(points[j], p) > 0)) {
+                points[j + 1] = points[j];
+                j--;
+            }
+            points[j + 1] = p;
+        }
+    }
+
+    private static int compare(ModbusPoint a, ModbusPoint b) {
+        if (a.getServerId() != b.getServerId())
+            return a.getServerId() - b.getServerId();
+        if (a.getFunction() != b.getFunction())
+            return a.getFunction() - b.getFunction();
+        return a.getAddress() - b.getAddress();
+    }
+}
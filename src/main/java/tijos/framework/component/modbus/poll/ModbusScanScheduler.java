@@ -0,0 +1,410 @@
+package tijos.framework.component.modbus.poll;
+
+import tijos.framework.component.modbus.rtu.ModbusClient;
+import tijos.framework.util.logging.Logger;
+
+/**
+ * Multi-rate scan of point groups on one MODBUS client. Each group has its own
+ * period and priority, a scan of a group is released every period and must be
+ * done before the next release.
+ * <p>
+ * The bus runs one request at a time, the next request is taken from the
+ * released group with the earliest deadline (priority decides on equal
+ * deadlines), so a fast alarm group does not wait for the whole scan of a slow
+ * group, only for the request on the bus.
+ * </p>
+ */
+public class ModbusScanScheduler implements Runnable {
+
+    private final ModbusClient client;
+
+    private IModbusScanListener listener;
+
+    // groups
+    private int groupCount;
+    private ModbusPollPlan[] plans = new ModbusPollPlan[4];
+    private int[] periods = new int[4];
+    private int[] priorities = new int[4];
+    private long[] releases = new long[4]; // release time of the next or current scan
+    private int[] cursors = new int[4]; // next request of the current scan, -1 if not released
+    private int[] failures = new int[4]; // failed requests of the current scan
+
+    // statistics of the groups
+    private int[] scans = new int[4];
+    private int[] overruns = new int[4];
+    private int[] maxJitter = new int[4];
+    private long[] totalJitter = new long[4];
+
+    // bus occupancy
+    private long statStart = System.currentTimeMillis();
+    private long busyTime;
+    private int requests;
+
+    private Thread thread;
+    private boolean running;
+
+    /**
+     * Initialize with the client of the bus
+     *
+     * @param client
+     */
+    public ModbusScanScheduler(ModbusClient client) {
+        this.client = client;
+    }
+
+    public void setListener(IModbusScanListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Add a group of points
+     *
+     * @param plan     points of the group
+     * @param period   scan period in milliseconds
+     * @param priority higher value runs first on equal deadlines
+     * @return group index
+     */
+    public synchronized int addGroup(ModbusPollPlan plan, int period, int priority) {
+        if (period <= 0)
+            throw new IllegalArgumentException("Invalid period: " + period);
+
+        if (groupCount == plans.length)
+            grow();
+
+        int g = groupCount++;
+        plans[g] = plan;
+        periods[g] = period;
+        priorities[g] = priority;
+        releases[g] = System.currentTimeMillis();
+        cursors[g] = -1;
+        this.notifyAll();
+        return g;
+    }
+
+    /**
+     * Add a point, points with the same period and priority share a group
+     *
+     * @param point
+     * @param period   scan period in milliseconds
+     * @param priority higher value runs first on equal deadlines
+     * @return group index
+     */
+    public synchronized int add(ModbusPoint point, int period, int priority) {
+        for (int g = 0; g < groupCount; g++) {
+            if ((periods[g] == period) && (priorities[g] == priority)) {
+                plans[g].add(point);
+                return g;
+            }
+        }
+
+        ModbusPollPlan plan = new ModbusPollPlan();
+        plan.add(point);
+        return addGroup(plan, period, priority);
+    }
+
+    public synchronized int getGroupCount() {
+        return groupCount;
+    }
+
+    public synchronized ModbusPollPlan getGroup(int group) {
+        checkGroup(group);
+        return plans[group];
+    }
+
+    /**
+     * Start the scheduler thread
+     */
+    public synchronized void start() {
+        if (thread != null)
+            return;
+
+        running = true;
+        thread = new Thread(this);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop the scheduler thread after the request on the bus
+     */
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+            running = false;
+            this.notifyAll();
+        }
+
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException ie) {
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            int idle;
+            try {
+                idle = runOnce();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                idle = 0;
+            }
+
+            synchronized (this) {
+                if (!running)
+                    return;
+
+                if (idle > 0) {
+                    try {
+                        this.wait(idle);
+                    } catch (InterruptedException ie) {
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Execute the next request if any group is released, it can be called from
+     * the application loop instead of {@link #start()}. A request throwing an
+     * exception counts as failed.
+     *
+     * @return milliseconds until the next release, 0 if a request is executed
+     * @throws Exception
+     */
+    public int runOnce() throws Exception {
+        int group;
+        int request;
+        ModbusPollPlan plan;
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            group = release(now);
+            if (group < 0)
+                return nextRelease(now);
+
+            plan = plans[group];
+            request = cursors[group];
+            if (request == 0) {
+                int jitter = (int) (now - releases[group]);
+                totalJitter[group] += jitter;
+                if (jitter > maxJitter[group])
+                    maxJitter[group] = jitter;
+            }
+        }
+
+        // nothing to read
+        boolean ok = true;
+        boolean done = request >= plan.getRequestCount();
+        if (!done) {
+            try {
+                ok = plan.execute(client, request) == ModbusClient.RESULT_OK;
+            } catch (Exception ex) {
+                // such as a closed transport, the scan goes on and waits for its next release
+                Logger.warning("Modbus", "Scan request " + request + " of group " + group + ": " + ex);
+                ok = false;
+            }
+        }
+        long end = System.currentTimeMillis();
+
+        int failed = 0;
+        synchronized (this) {
+            if (!done) {
+                busyTime += end - now;
+                requests++;
+                if (!ok)
+                    failures[group]++;
+                cursors[group] = ++request;
+                done = request >= plan.getRequestCount();
+            }
+
+            if (done) {
+                failed = failures[group];
+                scans[group]++;
+                cursors[group] = -1;
+
+                // done after the deadline
+                if (end > releases[group] + periods[group])
+                    overruns[group]++;
+                releases[group] = nextPeriod(releases[group], periods[group], end);
+            }
+        }
+
+        if (done && (listener != null))
+            listener.onScanCompleted(group, plan, failed);
+
+        return 0;
+    }
+
+    // release the groups and pick the one with the earliest deadline
+    private int release(long now) {
+        int best = -1;
+        for (int g = 0; g < groupCount; g++) {
+            if (releases[g] > now)
+                continue;
+
+            if (cursors[g] < 0) {
+                cursors[g] = 0;
+                failures[g] = 0;
+            }
+
+            if ((best < 0) || (releases[g] + periods[g] < releases[best] + periods[best])
+                    || ((releases[g] + periods[g] == releases[best] + periods[best])
+                    && (priorities[g] > priorities[best])))
+                best = g;
+        }
+        return best;
+    }
+
+    private int nextRelease(long now) {
+        long next = Long.MAX_VALUE;
+        for (int g = 0; g < groupCount; g++)
+            next = Math.min(next, releases[g]);
+
+        if (next == Long.MAX_VALUE)
+            return 1000;
+        return (int) Math.max(1, next - now);
+    }
+
+    // next release on the period grid, missed releases are skipped
+    private static long nextPeriod(long release, int period, long now) {
+        release += period;
+        if (release <= now)
+            release += ((now - release) / period + 1) * period;
+        return release;
+    }
+
+    private void grow() {
+        int size = plans.length * 2;
+
+        ModbusPollPlan[] p = new ModbusPollPlan[size];
+        System.arraycopy(plans, 0, p, 0, groupCount);
+        plans = p;
+
+        periods = grow(periods, size);
+        priorities = grow(priorities, size);
+        cursors = grow(cursors, size);
+        failures = grow(failures, size);
+        scans = grow(scans, size);
+        overruns = grow(overruns, size);
+        maxJitter = grow(maxJitter, size);
+        releases = grow(releases, size);
+        totalJitter = grow(totalJitter, size);
+    }
+
+    private int[] grow(int[] a, int size) {
+        int[] b = new int[size];
+        System.arraycopy(a, 0, b, 0, groupCount);
+        return b;
+    }
+
+    private long[] grow(long[] a, int size) {
+        long[] b = new long[size];
+        System.arraycopy(a, 0, b, 0, groupCount);
+        return b;
+    }
+
+    private void checkGroup(int group) {
+        if ((group < 0) || (group >= groupCount))
+            throw new IndexOutOfBoundsException();
+    }
+
+    /**
+     * Completed scans of the group
+     *
+     * @param group
+     * @return
+     */
+    public synchronized int getScans(int group) {
+        checkGroup(group);
+        return scans[group];
+    }
+
+    /**
+     * Scans of the group done after the deadline (the next release)
+     *
+     * @param group
+     * @return
+     */
+    public synchronized int getOverruns(int group) {
+        checkGroup(group);
+        return overruns[group];
+    }
+
+    /**
+     * Max delay from release to the first request of a scan
+     *
+     * @param group
+     * @return milliseconds
+     */
+    public synchronized int getMaxJitter(int group) {
+        checkGroup(group);
+        return maxJitter[group];
+    }
+
+    /**
+     * Mean delay from release to the first request of a scan
+     *
+     * @param group
+     * @return milliseconds
+     */
+    public synchronized int getMeanJitter(int group) {
+        checkGroup(group);
+        if (scans[group] == 0)
+            return 0;
+        return (int) (totalJitter[group] / scans[group]);
+    }
+
+    /**
+     * Requests executed since the statistics are reset
+     *
+     * @return
+     */
+    public synchronized int getRequests() {
+        return requests;
+    }
+
+    /**
+     * Percentage of time the bus is used by the requests since the statistics are reset
+     *
+     * @return 0 - 100
+     */
+    public synchronized int getBusOccupancy() {
+        long elapsed = System.currentTimeMillis() - statStart;
+        if (elapsed <= 0)
+            return 0;
+        return (int) Math.min(100, busyTime * 100 / elapsed);
+    }
+
+    /**
+     * Reset the statistics
+     */
+    public synchronized void resetStatistics() {
+        statStart = System.currentTimeMillis();
+        busyTime = 0;
+        requests = 0;
+        for (int g = 0; g < groupCount; g++) {
+            scans[g] = 0;
+            overruns[g] = 0;
+            maxJitter[g] = 0;
+            totalJitter[g] = 0;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuffer buf = new StringBuffer();
+        buf.append("bus ").append(getBusOccupancy()).append("%, requests ").append(requests);
+        for (int g = 0; g < groupCount; g++) {
+            buf.append("\n group ").append(g).append(" period ").append(periods[g]).append(" scans ")
+                    .append(scans[g]).append(" overruns ").append(overruns[g]).append(" jitter max ")
+                    .append(maxJitter[g]).append(" mean ").append(getMeanJitter(g));
+        }
+        return buf.toString();
+    }
+}
@@ -16,6 +16,11 @@ public final class ModbusConstants {
     public static final int MAX_WRITE_COILS = 1968;
     public static final int MAX_WRITE_REGS = 123;
 
+    /**
+     * Server id of broadcast requests, all servers execute them without response
+     */
+    public static final int BROADCAST_ID = 0;
+
     /**
      * MODBUS FUNCTION CODES
      */
@@ -28,4 +33,15 @@ public final class ModbusConstants {
     public static final byte FN_WRITE_MULTIPLE_COILS = 15;
     public static final byte FN_WRITE_MULTIPLE_REGISTERS = 16;
 
+    /**
+     * MODBUS EXCEPTION CODES
+     */
+    public static final byte EX_ILLEGAL_FUNCTION = 0x01;
+    public static final byte EX_ILLEGAL_DATA_ADDRESS = 0x02;
+    public static final byte EX_ILLEGAL_DATA_VALUE = 0x03;
+    public static final byte EX_SERVER_DEVICE_FAILURE = 0x04;
+    public static final byte EX_SERVER_DEVICE_BUSY = 0x06;
+    public static final byte EX_GATEWAY_PATH_UNAVAILABLE = 0x0A;
+    public static final byte EX_GATEWAY_TARGET_FAILED = 0x0B;
+
 }
@@ -0,0 +1,93 @@
+package tijos.framework.component.modbus.protocol;
+
+import static tijos.framework.component.modbus.protocol.ModbusConstants.*;
+
+/**
+ * MODBUS TCP application header (MBAP): transaction id (2), protocol id (2),
+ * length (2) of the unit id and the PDU, unit id (1), all big endian.
+ */
+public final class ModbusMbap {
+
+    private ModbusMbap() {
+    }
+
+    public static final int HEADER_SIZE = 7;
+
+    /**
+     * Largest frame, header and PDU
+     */
+    public static final int MAX_FRAME_SIZE = HEADER_SIZE + MAX_PDU_SIZE;
+
+    /**
+     * Protocol id of MODBUS
+     */
+    public static final int PROTOCOL_ID = 0;
+
+    public static int getTransactionId(byte[] frame, int off) {
+        return ((frame[off] & 0xFF) << 8) | (frame[off + 1] & 0xFF);
+    }
+
+    public static int getProtocolId(byte[] frame, int off) {
+        return ((frame[off + 2] & 0xFF) << 8) | (frame[off + 3] & 0xFF);
+    }
+
+    /**
+     * Length field, unit id and PDU
+     *
+     * @param frame
+     * @param off
+     * @return
+     */
+    public static int getLength(byte[] frame, int off) {
+        return ((frame[off + 4] & 0xFF) << 8) | (frame[off + 5] & 0xFF);
+    }
+
+    public static int getUnitId(byte[] frame, int off) {
+        return frame[off + 6] & 0xFF;
+    }
+
+    /**
+     * Size of the whole frame from the length field
+     *
+     * @param frame
+     * @param off
+     * @return header and PDU
+     */
+    public static int getFrameSize(byte[] frame, int off) {
+        return getLength(frame, off) + HEADER_SIZE - 1;
+    }
+
+    /**
+     * Whether the frame is a MODBUS frame with a PDU matching the length field
+     *
+     * @param frame
+     * @param off
+     * @param len   bytes of the frame
+     * @return
+     */
+    public static boolean isValid(byte[] frame, int off, int len) {
+        if ((len <= HEADER_SIZE) || (len > MAX_FRAME_SIZE))
+            return false;
+        return (getProtocolId(frame, off) == PROTOCOL_ID) && (getFrameSize(frame, off) == len);
+    }
+
+    /**
+     * Write the header of a frame
+     *
+     * @param frame
+     * @param off
+     * @param transactionId
+     * @param unitId
+     * @param pduSize
+     */
+    public static void writeHeader(byte[] frame, int off, int transactionId, int unitId, int pduSize) {
+        int length = pduSize + 1;
+        frame[off] = (byte) (transactionId >> 8);
+        frame[off + 1] = (byte) transactionId;
+        frame[off + 2] = (byte) (PROTOCOL_ID >> 8);
+        frame[off + 3] = (byte) PROTOCOL_ID;
+        frame[off + 4] = (byte) (length >> 8);
+        frame[off + 5] = (byte) length;
+        frame[off + 6] = (byte) unitId;
+    }
+}
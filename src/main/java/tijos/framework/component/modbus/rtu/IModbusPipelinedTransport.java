@@ -0,0 +1,19 @@
+package tijos.framework.component.modbus.rtu;
+
+/**
+ * Transport with several outstanding requests on one link, such as MODBUS TCP
+ * where the responses are matched by transaction id. The client holds the bus
+ * while sending only, {@link #sendRequest(ModbusTransaction)} is called for the
+ * next request before the response of the previous one and
+ * {@link #waitResponse(ModbusTransaction)} waits for the response of the given
+ * transaction from any thread.
+ */
+public interface IModbusPipelinedTransport extends ModbusClientTransport {
+
+    /**
+     * Max outstanding requests, sendRequest waits while it is reached
+     *
+     * @return
+     */
+    int getWindow();
+}
@@ -0,0 +1,13 @@
+package tijos.framework.component.modbus.rtu;
+
+public interface IModbusTransactionListener {
+
+    /**
+     * A submitted transaction is executed, it's called from the bus thread of
+     * the client
+     *
+     * @param transaction check the result by getResult()
+     * @param error       error of the transport, null if none
+     */
+    void onTransactionCompleted(ModbusTransaction transaction, Exception error);
+}
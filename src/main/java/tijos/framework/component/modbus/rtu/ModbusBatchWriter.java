@@ -0,0 +1,339 @@
+package tijos.framework.component.modbus.rtu;
+
+import static tijos.framework.component.modbus.protocol.ModbusConstants.*;
+
+/**
+ * Queues writes to many servers and executes them back to back. Writes to
+ * contiguous addresses of a server are merged into one WRITE MULTIPLE request,
+ * a later write to the same address replaces the earlier one.
+ * <p>
+ * Writes to server id 0 are broadcast, all servers execute them without
+ * response, so a setpoint for every device on the bus costs one request.
+ * Requests are executed in order of server and address, so broadcast writes
+ * run first and writes to a server override them.
+ * </p>
+ */
+public class ModbusBatchWriter {
+
+    private static final int KIND_REGISTER = 0;
+    private static final int KIND_COIL = 1;
+
+    private final ModbusClient client;
+    private final int maxRegisters;
+    private final int maxCoils;
+
+    // queued writes
+    private int count;
+    private int[] servers = new int[16];
+    private int[] kinds = new int[16];
+    private int[] addresses = new int[16];
+    private int[] values = new int[16];
+
+    // requests of the last execution
+    private int requestCount;
+    private int[] reqServer = new int[0];
+    private int[] reqFunction = new int[0];
+    private int[] reqAddress = new int[0];
+    private int[] reqLength = new int[0];
+    private int[] reqResult = new int[0];
+
+    private boolean[] coils;
+
+    /**
+     * Initialize with the client of the bus and protocol max request length
+     *
+     * @param client
+     */
+    public ModbusBatchWriter(ModbusClient client) {
+        this(client, MAX_WRITE_REGS, MAX_WRITE_COILS);
+    }
+
+    /**
+     * Initialize with max request length, some devices accept less than the
+     * protocol limit
+     *
+     * @param client
+     * @param maxRegisters max registers of a request
+     * @param maxCoils     max coils of a request
+     */
+    public ModbusBatchWriter(ModbusClient client, int maxRegisters, int maxCoils) {
+        if ((maxRegisters < 1) || (maxRegisters > MAX_WRITE_REGS) || (maxCoils < 1) || (maxCoils > MAX_WRITE_COILS))
+            throw new IllegalArgumentException();
+
+        this.client = client;
+        this.maxRegisters = maxRegisters;
+        this.maxCoils = maxCoils;
+        this.coils = new boolean[maxCoils];
+    }
+
+    /**
+     * Queue a register write
+     *
+     * @param serverId server id, 0 for broadcast
+     * @param address
+     * @param value
+     */
+    public synchronized void writeRegister(int serverId, int address, int value) {
+        add(serverId, KIND_REGISTER, address, value & 0xFFFF);
+    }
+
+    /**
+     * Queue register writes from the start address
+     *
+     * @param serverId     server id, 0 for broadcast
+     * @param startAddress
+     * @param values
+     */
+    public synchronized void writeRegisters(int serverId, int startAddress, int[] values) {
+        for (int i = 0; i < values.length; i++)
+            add(serverId, KIND_REGISTER, startAddress + i, values[i] & 0xFFFF);
+    }
+
+    /**
+     * Queue a coil write
+     *
+     * @param serverId server id, 0 for broadcast
+     * @param address
+     * @param value
+     */
+    public synchronized void writeCoil(int serverId, int address, boolean value) {
+        add(serverId, KIND_COIL, address, value ? 1 : 0);
+    }
+
+    /**
+     * Queue coil writes from the start address
+     *
+     * @param serverId     server id, 0 for broadcast
+     * @param startAddress
+     * @param values
+     */
+    public synchronized void writeCoils(int serverId, int startAddress, boolean[] values) {
+        for (int i = 0; i < values.length; i++)
+            add(serverId, KIND_COIL, startAddress + i, values[i] ? 1 : 0);
+    }
+
+    /**
+     * Number of queued values
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Drop the queued writes
+     */
+    public synchronized void clear() {
+        count = 0;
+    }
+
+    /**
+     * Merge the queued writes and execute them, the queue is empty afterwards
+     *
+     * @return number of failed requests
+     * @throws Exception
+     */
+    public synchronized int execute() throws Exception {
+        merge();
+        count = 0;
+
+        // the values of a request follow the values of the previous one
+        int failed = 0;
+        int first = 0;
+        ModbusTransaction tx = client.acquire();
+        try {
+            for (int r = 0; r < requestCount; r++) {
+                reqResult[r] = execute(tx, r, first);
+                if (reqResult[r] != ModbusClient.RESULT_OK)
+                    failed++;
+                first += reqLength[r];
+            }
+        } finally {
+            client.release(tx);
+        }
+        return failed;
+    }
+
+    /**
+     * Number of requests of the last execution
+     *
+     * @return
+     */
+    public synchronized int getRequestCount() {
+        return requestCount;
+    }
+
+    public synchronized int getRequestServerId(int request) {
+        checkRequest(request);
+        return reqServer[request];
+    }
+
+    public synchronized int getRequestFunction(int request) {
+        checkRequest(request);
+        return reqFunction[request];
+    }
+
+    public synchronized int getRequestAddress(int request) {
+        checkRequest(request);
+        return reqAddress[request];
+    }
+
+    public synchronized int getRequestLength(int request) {
+        checkRequest(request);
+        return reqLength[request];
+    }
+
+    /**
+     * Result of a request of the last execution
+     *
+     * @param request
+     * @return RESULT_*
+     */
+    public synchronized int getRequestResult(int request) {
+        checkRequest(request);
+        return reqResult[request];
+    }
+
+    private int execute(ModbusTransaction tx, int request, int first) throws Exception {
+        int server = reqServer[request];
+        int address = reqAddress[request];
+        int length = reqLength[request];
+
+        switch (reqFunction[request]) {
+            case FN_WRITE_SINGLE_REGISTER:
+                tx.InitWriteRegisterRequest(server, address, values[first]);
+                break;
+            case FN_WRITE_SINGLE_COIL:
+                tx.InitWriteCoilRequest(server, address, values[first] != 0);
+                break;
+            case FN_WRITE_MULTIPLE_REGISTERS:
+                tx.InitWriteRegistersRequest(server, address, values, first, length);
+                break;
+            default:
+                for (int i = 0; i < length; i++)
+                    coils[i] = values[first + i] != 0;
+                tx.InitWriteCoilsRequest(server, address, coils, 0, length);
+                break;
+        }
+        return client.execute(tx);
+    }
+
+    private void add(int serverId, int kind, int address, int value) {
+        if ((serverId < 0) || (serverId > 247) || (address < 0) || (address > 0xFFFF))
+            throw new IllegalArgumentException();
+
+        if (count == servers.length) {
+            int size = count * 2;
+            servers = grow(servers, size);
+            kinds = grow(kinds, size);
+            addresses = grow(addresses, size);
+            values = grow(values, size);
+        }
+
+        servers[count] = serverId;
+        kinds[count] = kind;
+        addresses[count] = address;
+        values[count] = value;
+        count++;
+    }
+
+    // sort by server, kind and address, drop replaced writes and build the requests
+    private void merge() {
+        sort();
+
+        // the sort is stable, the last write of an address wins
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if ((n > 0) && (compare(n - 1, i) == 0)) {
+                values[n - 1] = values[i];
+                continue;
+            }
+            servers[n] = servers[i];
+            kinds[n] = kinds[i];
+            addresses[n] = addresses[i];
+            values[n] = values[i];
+            n++;
+        }
+        count = n;
+
+        if (reqServer.length < count) {
+            reqServer = new int[count];
+            reqFunction = new int[count];
+            reqAddress = new int[count];
+            reqLength = new int[count];
+            reqResult = new int[count];
+        }
+
+        requestCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (requestCount > 0) {
+                int r = requestCount - 1;
+                int limit = (kinds[i] == KIND_COIL) ? maxCoils : maxRegisters;
+                if ((reqServer[r] == servers[i]) && (kind(reqFunction[r]) == kinds[i])
+                        && (reqAddress[r] + reqLength[r] == addresses[i]) && (reqLength[r] < limit)) {
+                    reqLength[r]++;
+                    reqFunction[r] = (kinds[i] == KIND_COIL) ? FN_WRITE_MULTIPLE_COILS : FN_WRITE_MULTIPLE_REGISTERS;
+                    continue;
+                }
+            }
+
+            int r = requestCount++;
+            reqServer[r] = servers[i];
+            reqFunction[r] = (kinds[i] == KIND_COIL) ? FN_WRITE_SINGLE_COIL : FN_WRITE_SINGLE_REGISTER;
+            reqAddress[r] = addresses[i];
+            reqLength[r] = 1;
+            reqResult[r] = ModbusClient.RESULT_OK;
+        }
+    }
+
+    private static int kind(int function) {
+        return ((function == FN_WRITE_SINGLE_COIL) || (function == FN_WRITE_MULTIPLE_COILS)) ? KIND_COIL
+                : KIND_REGISTER;
+    }
+
+    // insertion sort, the order of equal writes is kept
+    private void sort() {
+        for (int i = 1; i < count; i++) {
+            int s = servers[i];
+            int k = kinds[i];
+            int a = addresses[i];
+            int v = values[i];
+            int j = i - 1;
+            while ((j >= 0) && (compare(servers[j], kinds[j], addresses[j], s, k, a) > 0)) {
+                servers[j + 1] = servers[j];
+                kinds[j + 1] = kinds[j];
+                addresses[j + 1] = addresses[j];
+                values[j + 1] = values[j];
+                j--;
+            }
+            servers[j + 1] = s;
+            kinds[j + 1] = k;
+            addresses[j + 1] = a;
+            values[j + 1] = v;
+        }
+    }
+
+    private int compare(int i, int j) {
+        return compare(servers[i], kinds[i], addresses[i], servers[j], kinds[j], addresses[j]);
+    }
+
+    private static int compare(int s1, int k1, int a1, int s2, int k2, int a2) {
+        if (s1 != s2)
+            return s1 - s2;
+        if (k1 != k2)
+            return k1 - k2;
+        return a1 - a2;
+    }
+
+    private static int[] grow(int[] a, int size) {
+        int[] b = new int[size];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    private void checkRequest(int request) {
+        if ((request < 0) || (request >= requestCount))
+            throw new IndexOutOfBoundsException();
+    }
+}
@@ -0,0 +1,266 @@
+package tijos.framework.component.modbus.rtu;
+
+/**
+ * Health of the servers on a bus, updated by the client after each request.
+ * <p>
+ * A server is down after a number of consecutive timeouts, its requests are
+ * skipped with RESULT_SKIPPED without using the bus, and one probe request is
+ * sent after a backoff time which doubles on each failed probe. A server
+ * responding fast gets a shorter timeout from its latency average and
+ * deviation, so a missing response costs less time on the bus.
+ * </p>
+ */
+public class ModbusBusHealth {
+
+    private static final int SERVERS = 248;
+
+    // samples before the adaptive timeout is used
+    private static final int MIN_SAMPLES = 8;
+
+    private final int timeout;
+    private int minTimeout = 50;
+    private int failThreshold = 3;
+    private int initialBackoff = 5000;
+    private int maxBackoff = 300000;
+
+    // statistics per server id
+    private final int[] requests = new int[SERVERS];
+    private final int[] successes = new int[SERVERS];
+    private final int[] timeouts = new int[SERVERS];
+    private final int[] skips = new int[SERVERS];
+    private final int[] consecutive = new int[SERVERS]; // consecutive timeouts
+    private final int[] latency = new int[SERVERS]; // EWMA of the latency, x8
+    private final int[] deviation = new int[SERVERS]; // EWMA of the latency deviation, x4
+    private final int[] maxLatency = new int[SERVERS];
+    private final int[] samples = new int[SERVERS];
+
+    // backoff of down servers
+    private final int[] backoff = new int[SERVERS];
+    private final long[] probeTime = new long[SERVERS];
+
+    /**
+     * Initialize with the timeout of the transport
+     *
+     * @param timeout max timeout in milliseconds for unknown and down servers
+     */
+    public ModbusBusHealth(int timeout) {
+        if (timeout <= 0)
+            throw new IllegalArgumentException();
+        this.timeout = timeout;
+    }
+
+    /**
+     * Shortest adaptive timeout
+     *
+     * @param ms milliseconds, 50 by default
+     */
+    public synchronized void setMinTimeout(int ms) {
+        if ((ms <= 0) || (ms > timeout))
+            throw new IllegalArgumentException();
+        this.minTimeout = ms;
+    }
+
+    /**
+     * Consecutive timeouts after which a server is down
+     *
+     * @param n 3 by default
+     */
+    public synchronized void setFailThreshold(int n) {
+        if (n < 1)
+            throw new IllegalArgumentException();
+        this.failThreshold = n;
+    }
+
+    /**
+     * Time between probes of a down server, doubled on each failed probe
+     *
+     * @param initial milliseconds, 5000 by default
+     * @param max     milliseconds, 300000 by default
+     */
+    public synchronized void setBackoff(int initial, int max) {
+        if ((initial <= 0) || (max < initial))
+            throw new IllegalArgumentException();
+        this.initialBackoff = initial;
+        this.maxBackoff = max;
+    }
+
+    /**
+     * Whether a request to the server is sent, a down server is probed once per
+     * backoff time
+     *
+     * @param serverId
+     * @return false to skip the request
+     */
+    synchronized boolean allow(int serverId) {
+        if (!isDown(serverId))
+            return true;
+
+        long now = System.currentTimeMillis();
+        if (now >= probeTime[serverId]) {
+            // one probe, the next one after the backoff if it fails
+            probeTime[serverId] = now + backoff[serverId];
+            return true;
+        }
+
+        skips[serverId]++;
+        return false;
+    }
+
+    /**
+     * Timeout of the next request to the server
+     *
+     * @param serverId
+     * @return milliseconds
+     */
+    public synchronized int getTimeout(int serverId) {
+        if (isDown(serverId) || (samples[serverId] < MIN_SAMPLES))
+            return timeout;
+
+        // average + 4 x deviation
+        int t = (latency[serverId] >> 3) + deviation[serverId];
+        return Math.max(minTimeout, Math.min(timeout, t));
+    }
+
+    /**
+     * Result of a request
+     *
+     * @param serverId
+     * @param result   RESULT_*
+     * @param elapsed  time of the request in milliseconds
+     */
+    synchronized void update(int serverId, int result, int elapsed) {
+        requests[serverId]++;
+
+        if (result == ModbusClient.RESULT_TIMEOUT) {
+            timeouts[serverId]++;
+            consecutive[serverId]++;
+            if (consecutive[serverId] == failThreshold) {
+                backoff[serverId] = initialBackoff;
+                probeTime[serverId] = System.currentTimeMillis() + initialBackoff;
+            } else if (consecutive[serverId] > failThreshold) {
+                backoff[serverId] = Math.min(maxBackoff, backoff[serverId] * 2);
+                probeTime[serverId] = System.currentTimeMillis() + backoff[serverId];
+            }
+            return;
+        }
+
+        // any response means the server is alive
+        consecutive[serverId] = 0;
+        if ((result == ModbusClient.RESULT_OK) || (result == ModbusClient.RESULT_EXCEPTION))
+            successes[serverId]++;
+
+        if (elapsed > maxLatency[serverId])
+            maxLatency[serverId] = elapsed;
+
+        if (samples[serverId] == 0) {
+            latency[serverId] = elapsed << 3;
+            deviation[serverId] = elapsed << 1;
+        } else {
+            // gains 1/8 and 1/4 as for TCP round trip time
+            int err = elapsed - (latency[serverId] >> 3);
+            latency[serverId] += err;
+            deviation[serverId] += Math.abs(err) - (deviation[serverId] >> 2);
+        }
+        samples[serverId]++;
+    }
+
+    /**
+     * Whether the server is down after consecutive timeouts
+     *
+     * @param serverId
+     * @return
+     */
+    public synchronized boolean isDown(int serverId) {
+        return consecutive[serverId] >= failThreshold;
+    }
+
+    public synchronized int getRequests(int serverId) {
+        return requests[serverId];
+    }
+
+    public synchronized int getTimeouts(int serverId) {
+        return timeouts[serverId];
+    }
+
+    /**
+     * Requests skipped while the server is down
+     *
+     * @param serverId
+     * @return
+     */
+    public synchronized int getSkips(int serverId) {
+        return skips[serverId];
+    }
+
+    public synchronized int getConsecutiveTimeouts(int serverId) {
+        return consecutive[serverId];
+    }
+
+    /**
+     * Percentage of requests with a valid response
+     *
+     * @param serverId
+     * @return 0 - 100
+     */
+    public synchronized int getSuccessRate(int serverId) {
+        if (requests[serverId] == 0)
+            return 0;
+        return successes[serverId] * 100 / requests[serverId];
+    }
+
+    /**
+     * Moving average of the request time
+     *
+     * @param serverId
+     * @return milliseconds
+     */
+    public synchronized int getLatency(int serverId) {
+        return latency[serverId] >> 3;
+    }
+
+    public synchronized int getMaxLatency(int serverId) {
+        return maxLatency[serverId];
+    }
+
+    /**
+     * Forget the statistics of all servers
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < SERVERS; i++) {
+            requests[i] = 0;
+            successes[i] = 0;
+            timeouts[i] = 0;
+            skips[i] = 0;
+            consecutive[i] = 0;
+            latency[i] = 0;
+            deviation[i] = 0;
+            maxLatency[i] = 0;
+            samples[i] = 0;
+        }
+    }
+
+    /**
+     * Metrics of the servers with requests as JSON, such as
+     * <code>{"1":{"req":100,"ok":99,"to":1,"ct":0,"lat":35,"max":60,"tmo":50,"skip":0,"down":0}}</code>
+     *
+     * @return
+     */
+    public synchronized String toJson() {
+        StringBuffer buf = new StringBuffer();
+        buf.append('{');
+        for (int i = 1; i < SERVERS; i++) {
+            if (requests[i] + skips[i] == 0)
+                continue;
+
+            if (buf.length() > 1)
+                buf.append(',');
+            buf.append('"').append(i).append("\":{\"req\":").append(requests[i]).append(",\"ok\":")
+                    .append(getSuccessRate(i)).append(",\"to\":").append(timeouts[i]).append(",\"ct\":")
+                    .append(consecutive[i]).append(",\"lat\":").append(getLatency(i)).append(",\"max\":")
+                    .append(maxLatency[i]).append(",\"tmo\":").append(getTimeout(i)).append(",\"skip\":")
+                    .append(skips[i]).append(",\"down\":").append(isDown(i) ? 1 : 0).append('}');
+        }
+        buf.append('}');
+        return buf.toString();
+    }
+}
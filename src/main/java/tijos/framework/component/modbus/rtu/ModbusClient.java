@@ -4,47 +4,78 @@ import static tijos.framework.component.modbus.protocol.ModbusConstants.*;
 
 import java.io.Closeable;
 
-import tijos.framework.component.modbus.protocol.ModbusPdu;
-import tijos.framework.component.serialport.TiSerialPort;
+import tijos.framework.component.serialport.ISerialPort;
 import tijos.framework.util.logging.Logger;
 
 /**
  * MODBUS RTU Client driver for TiJOS based on https://github.com/sp20/modbus-mini
+ * <p>
+ * The client is a transaction itself for the single thread API
+ * (Init...Request, {@link #execRequest()} and getResponse...). Other threads
+ * use their own transactions from {@link #acquire()}, the bus is used by one
+ * transaction at a time.
+ * </p>
  *
  * @author TiJOS
  */
-public class ModbusClient extends ModbusPdu implements Closeable {
+public class ModbusClient extends ModbusTransaction implements Closeable {
 
     /**
-     * Modbus Result Code
+     * Default number of pooled transactions
      */
-    public static final byte RESULT_OK = 0;
-    public static final byte RESULT_TIMEOUT = 1;
-    public static final byte RESULT_EXCEPTION = 2; // Modbus exception. Get code by getExceptionCode()
-    public static final byte RESULT_BAD_RESPONSE = 3; // CRC mismatch, or invalid format
+    public static final int DEFAULT_POOL_SIZE = 4;
 
-    private boolean responseReady = false;
+    /**
+     * Delay after a broadcast request for the servers to execute it
+     */
+    private int turnaroundDelay = 100;
+
+    /**
+     * Cache of the responses
+     */
+    private ModbusResponseCache cache;
 
     /**
-     * Server ID
+     * Health of the servers
      */
-    private byte srvId;
-    private int expectedPduSize;
-    private int expectedAddress = -1;
-    private int expectedCount = -1;
-    private int result; // RESULT_*
+    private ModbusBusHealth health;
 
     /**
      * Transport
      */
     private ModbusClientTransport transport;
 
+    // bus arbiter, held during a transaction
+    private final Object bus = new Object();
+
+    // free pooled transactions
+    private ModbusTransaction[] pool;
+    private int freeCount;
+
+    // submitted transactions, executed by the bus thread
+    private ModbusTransaction[] queue;
+    private int queueHead;
+    private int queueSize;
+    private int workers; // bus threads
+    private int idleWorkers;
+    private boolean closed;
+
+    /**
+     * Initialize with a transport, such as a MODBUS TCP transport
+     *
+     * @param transport
+     */
+    public ModbusClient(ModbusClientTransport transport) {
+        setTransport(transport);
+        setPoolSize(DEFAULT_POOL_SIZE);
+    }
+
     /**
      * Initialize with serial port and default time out (2000ms) and pause 5ms after write
      *
      * @param serialPort serial port
      */
-    public ModbusClient(TiSerialPort serialPort) {
+    public ModbusClient(ISerialPort serialPort) {
         this(serialPort, 2000, 0);
     }
 
@@ -52,12 +83,13 @@ public class ModbusClient extends ModbusPdu implements Closeable {
      * Initialize modbus client with serial port
      *
      * @param serialPort serila port
-     * @param timeout    read timeout
+     * @param timeout    timeout for the first byte of the response
      * @param pause      pause after send data
      */
-    public ModbusClient(TiSerialPort serialPort, int timeout, int pause) {
+    public ModbusClient(ISerialPort serialPort, int timeout, int pause) {
         RtuTransportUART rtu = new RtuTransportUART(serialPort, timeout, pause);
         setTransport(rtu);
+        setPoolSize(DEFAULT_POOL_SIZE);
     }
 
 
@@ -71,359 +103,509 @@ public class ModbusClient extends ModbusPdu implements Closeable {
     }
 
     /**
-     * Get server id
+     * Delay after a broadcast request, the servers do not respond and need time
+     * to execute it before the next request
      *
-     * @return
+     * @param ms milliseconds, 100 by default
      */
-    public byte getServerId() {
-        return srvId;
+    public void setTurnaroundDelay(int ms) {
+        if (ms < 0)
+            throw new IllegalArgumentException();
+        this.turnaroundDelay = ms;
     }
 
-    /**
-     * Expected PDU size
-     *
-     * @return
-     */
-    protected int getExpectedPduSize() {
-        return expectedPduSize;
+    public int getTurnaroundDelay() {
+        return turnaroundDelay;
     }
 
     /**
-     * Initialize a custom request
+     * Set the cache storing the read responses, writes invalidate it
      *
-     * @param newServerId        server id
-     * @param newPduSize         pdu size
-     * @param function           function code
-     * @param newExpectedPduSize expected size
+     * @param cache null to disable
      */
-    protected void initCustomRequest(int newServerId, int newPduSize, byte function, int newExpectedPduSize) {
-        setPduSize(newPduSize);
-        writeByteToPDU(0, function);
-        this.srvId = (byte) newServerId;
-        this.expectedAddress = -1;
-        this.expectedCount = -1;
-        this.expectedPduSize = newExpectedPduSize;
-        this.responseReady = false;
+    public void setCache(ModbusResponseCache cache) {
+        this.cache = cache;
     }
 
-    /**
-     * Initialize request
-     *
-     * @param newServerId
-     * @param newPduSize
-     * @param function
-     * @param param1
-     * @param param2
-     * @param newExpectedAddress
-     * @param newExpectedCount
-     * @param newExpectedPduSize
-     */
-    protected void initRequest(int newServerId, int newPduSize, byte function, int param1, int param2,
-                               int newExpectedAddress, int newExpectedCount, int newExpectedPduSize) {
-        setPduSize(newPduSize);
-        writeByteToPDU(0, function);
-        writeInt16ToPDU(1, param1);
-        writeInt16ToPDU(3, param2);
-        this.srvId = (byte) newServerId;
-        this.expectedAddress = newExpectedAddress;
-        this.expectedCount = newExpectedCount;
-        this.expectedPduSize = newExpectedPduSize;
-        this.responseReady = false;
+    public ModbusResponseCache getCache() {
+        return cache;
     }
 
     /**
-     * Initialize a Read Coils request
+     * Set the health tracking of the servers, requests to down servers are
+     * skipped and timeouts adapt to the server latency
      *
-     * @param serverId     server id
-     * @param startAddress start address
-     * @param count        read number
+     * @param health null to disable
      */
-    public void InitReadCoilsRequest(int serverId, int startAddress, int count) {
-        if ((count < 1) || (count > MAX_READ_COILS))
-            throw new IllegalArgumentException();
+    public void setHealth(ModbusBusHealth health) {
+        this.health = health;
+    }
 
-        initRequest(serverId, 5, FN_READ_COILS, startAddress, count,
-                startAddress, count, 2 + bytesCount(count));
+    public ModbusBusHealth getHealth() {
+        return health;
     }
 
     /**
-     * Initialize a READ DISCRETE INPUT REGISTERs request
+     * Send the request of the client to the device and wait for the response, a
+     * broadcast request (server id 0) waits for the turnaround delay instead
      *
-     * @param serverId     server id
-     * @param startAddress start address of the registers
-     * @param count        number to read
+     * @return result
+     * @throws Exception
      */
-    public void InitReadDInputsRequest(int serverId, int startAddress, int count) {
-        if ((count < 1) || (count > MAX_READ_COILS))
-            throw new IllegalArgumentException();
-        initRequest(serverId, 5, FN_READ_DISCRETE_INPUTS, startAddress, count,
-                startAddress, count, 2 + bytesCount(count));
+    public int execRequest() throws Exception {
+        return execute(this);
     }
 
     /**
-     * Initialize a READ HOLDING REGISTERs request
+     * Execute a transaction, it waits while the bus is used by other
+     * transactions
      *
-     * @param serverId     server id
-     * @param startAddress start address of the registers
-     * @param count        number to read
+     * @param tx
+     * @return result
+     * @throws Exception
      */
-    public void InitReadHoldingsRequest(int serverId, int startAddress, int count) {
-        if ((count < 1) || (count > MAX_READ_REGS))
-            throw new IllegalArgumentException();
-        initRequest(serverId, 5, FN_READ_HOLDING_REGISTERS, startAddress, count,
-                startAddress, count, 2 + count * 2);
+    public int execute(ModbusTransaction tx) throws Exception {
+        ModbusClientTransport tr = transport;
+        if (!(tr instanceof IModbusPipelinedTransport)) {
+            synchronized (bus) {
+                int result = prepare(tx);
+                if (result >= 0)
+                    return result;
+
+                long start = System.currentTimeMillis();
+                tr.sendRequest(tx);
+                return complete(tx, tr.waitResponse(tx), start);
+            }
+        }
+
+        // the bus is held while sending only, the transport matches the responses
+        long start;
+        synchronized (bus) {
+            int result = prepare(tx);
+            if (result >= 0)
+                return result;
+
+            start = System.currentTimeMillis();
+            tr.sendRequest(tx);
+        }
+        return complete(tx, tr.waitResponse(tx), start);
     }
 
-    /**
-     * Initialize a READ INPUT REGISTERs request
-     *
-     * @param serverId
-     * @param startAddress
-     * @param count
-     */
-    public void InitReadAInputsRequest(int serverId, int startAddress, int count) {
-        if ((count < 1) || (count > MAX_READ_REGS))
-            throw new IllegalArgumentException();
-        initRequest(serverId, 5, FN_READ_INPUT_REGISTERS, startAddress, count,
-                startAddress, count, 2 + count * 2);
+    // checks before the request is sent, the result if it's done or -1
+    private int prepare(ModbusTransaction tx) throws Exception {
+        int srvId = tx.getServerId() & 0xFF;
+
+        if (srvId == BROADCAST_ID) {
+            if (!isWriteFunction(tx.getFunction()))
+                throw new IllegalArgumentException("Broadcast of function " + tx.getFunction());
+
+            if (cache != null)
+                cache.invalidate(tx);
+
+            transport.sendRequest(tx);
+            if (turnaroundDelay > 0)
+                Thread.sleep(turnaroundDelay);
+
+            // no response
+            tx.setResult(RESULT_OK, false);
+            return RESULT_OK;
+        }
+
+        tx.setRequestTimeout(0);
+        if (health != null) {
+            if (!health.allow(srvId)) {
+                tx.setResult(RESULT_SKIPPED);
+                return RESULT_SKIPPED;
+            }
+            tx.setRequestTimeout(health.getTimeout(srvId));
+        }
+
+        // the response replaces the request in the ADU
+        if (cache != null) {
+            cache.invalidate(tx);
+            tx.cacheGeneration = cache.getGeneration();
+        }
+
+        return -1;
     }
 
-    /**
-     * Initialize a WRITE COIL register request - one register operation
-     *
-     * @param serverId    server id
-     * @param coilAddress coil address
-     * @param value       value
-     */
-    public void InitWriteCoilRequest(int serverId, int coilAddress, boolean value) {
-        initRequest(serverId, 5, FN_WRITE_SINGLE_COIL, coilAddress, value ? 0xFF00 : 0, -1, -1, 5);
+    // result of the response
+    private int complete(ModbusTransaction tx, int result, long start) {
+        int srvId = tx.getServerId() & 0xFF;
+        if (health != null)
+            health.update(srvId, result, (int) (System.currentTimeMillis() - start));
+
+        tx.setResult(result);
+        if (result != RESULT_OK) {
+            if (result == RESULT_EXCEPTION)
+                Logger.warning("Modbus", "Exception 0x " + byteToHex((byte) tx.getExceptionCode()) + " from " + srvId);
+            else
+                Logger.warning("Modbus", tx.getResultAsString() + " from " + srvId);
+        }
+
+        if (cache != null)
+            cache.update(tx, result);
+
+        return result;
     }
 
     /**
-     * Initialize a WRITE SINGLE REGISTER request
+     * Number of pooled transactions, it's allowed only when all of them are free
      *
-     * @param serverId
-     * @param regAddress
-     * @param value
+     * @param size
      */
-    public void InitWriteRegisterRequest(int serverId, int regAddress, int value) {
-        initRequest(serverId, 5, FN_WRITE_SINGLE_REGISTER, regAddress, value, -1, -1, 5);
+    public synchronized void setPoolSize(int size) {
+        if (size < 1)
+            throw new IllegalArgumentException();
+        if ((pool != null) && (freeCount != pool.length))
+            throw new IllegalStateException("Transactions in use");
+
+        pool = new ModbusTransaction[size];
+        for (int i = 0; i < size; i++) {
+            pool[i] = new ModbusTransaction();
+            pool[i].owner = this;
+            pool[i].free = true;
+        }
+        freeCount = size;
+        queue = new ModbusTransaction[size];
     }
 
     /**
-     * Initialize WRITE MULTIPLE COILS registers
+     * Take a transaction from the pool, wait until one is free
      *
-     * @param serverId
-     * @param startAddress
-     * @param values
+     * @return
+     * @throws InterruptedException
      */
-    public void InitWriteCoilsRequest(int serverId, int startAddress, boolean[] values) {
-        if (values.length > MAX_WRITE_COILS)
-            throw new IllegalArgumentException();
-        int bytes = bytesCount(values.length);
-        initRequest(serverId, 6 + bytes, FN_WRITE_MULTIPLE_COILS, startAddress, values.length, -1, -1, 5);
-        writeByteToPDU(5, (byte) bytes);
-        for (int i = 0; i < bytes; i++) {
-            byte b = 0;
-            for (int j = 0; j < 8; j++) {
-                int k = i * 8 + j;
-                if ((k < values.length) && values[k])
-                    b = (byte) (b | (1 << j));
-            }
-            writeByteToPDU(6 + i, b);
-        }
+    public ModbusTransaction acquire() throws InterruptedException {
+        return acquire(0);
     }
 
     /**
-     * Initialize WRITE MULTIPLE registers
+     * Take a transaction from the pool
      *
-     * @param serverId
-     * @param startAddress
-     * @param values
+     * @param timeout milliseconds, 0 to wait forever
+     * @return null if none is free in time
+     * @throws InterruptedException
      */
-    public void InitWriteRegistersRequest(int serverId, int startAddress, int[] values) {
-        if (values.length > MAX_WRITE_REGS)
-            throw new IllegalArgumentException();
-        int bytes = values.length * 2;
-        initRequest(serverId, 6 + bytes, FN_WRITE_MULTIPLE_REGISTERS, startAddress, values.length, -1, -1, 5);
-        writeByteToPDU(5, (byte) bytes);
-        for (int i = 0; i < values.length; i++) {
-            writeInt16ToPDU(6 + i * 2, values[i]);
+    public synchronized ModbusTransaction acquire(int timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (freeCount == 0) {
+            long wait = 0;
+            if (timeout > 0) {
+                wait = deadline - System.currentTimeMillis();
+                if (wait <= 0)
+                    return null;
+            }
+            this.wait(wait);
         }
+
+        ModbusTransaction tx = pool[--freeCount];
+        pool[freeCount] = null;
+        tx.free = false;
+        return tx;
     }
 
     /**
-     * Send request to the device and wait for the response
+     * Return a transaction to the pool
      *
-     * @return result
-     * @throws Exception
+     * @param tx
      */
-    public int execRequest() throws Exception {
-
-        transport.sendRequest(this);
-
-        result = transport.waitResponse(this);
-        responseReady = (result == RESULT_OK);
-        if (!responseReady) {
-            if (result == RESULT_EXCEPTION)
-                Logger.warning("Modbus", "Exception 0x " + byteToHex((byte) getExceptionCode()) + " from " + getServerId());
-            else
-                Logger.warning("Modbus", getResultAsString() + " from " + getServerId());
-        }
-
-        return result;
+    public synchronized void release(ModbusTransaction tx) {
+        if ((tx.owner != this) || tx.free)
+            throw new IllegalArgumentException("Not acquired from this client");
 
+        tx.free = true;
+        pool[freeCount++] = tx;
+        this.notifyAll();
     }
 
     /**
-     * Response result
+     * Execute a transaction in the bus thread of the client, the submitted
+     * transactions are executed in order. With a pipelined transport up to
+     * its window of transactions are outstanding, each one in a bus thread.
      *
-     * @return
+     * @param tx
+     * @param listener called after the execution, it can be null, see also
+     *                 {@link ModbusTransaction#waitCompleted(int)}
+     * @return false if the queue is full
      */
-    public int getResult() {
-        return result;
+    public synchronized boolean submit(ModbusTransaction tx, IModbusTransactionListener listener) {
+        if (closed)
+            throw new IllegalStateException("Closed");
+        if (queueSize == queue.length)
+            return false;
+
+        tx.submitted(listener);
+        queue[(queueHead + queueSize) % queue.length] = tx;
+        queueSize++;
+
+        int maxWorkers = 1;
+        if (transport instanceof IModbusPipelinedTransport)
+            maxWorkers = Math.min(queue.length, ((IModbusPipelinedTransport) transport).getWindow());
+
+        if ((idleWorkers < queueSize) && (workers < maxWorkers)) {
+            workers++;
+            Thread worker = new Thread(new Runnable() {
+                public void run() {
+                    runQueue();
+                }
+            });
+            worker.setDaemon(true);
+            worker.start();
+        }
+        this.notifyAll();
+        return true;
     }
 
-    public String getResultAsString() {
-        switch (result) {
-            case RESULT_OK:
-                return "OK";
-            case RESULT_BAD_RESPONSE:
-                return "Bad response";
-            case RESULT_EXCEPTION:
-                return "Exception " + getExceptionCode();
-            case RESULT_TIMEOUT:
-                return "Timeout";
-            default:
-                return null;
+    private void runQueue() {
+        while (true) {
+            ModbusTransaction tx;
+            synchronized (this) {
+                while ((queueSize == 0) && !closed) {
+                    idleWorkers++;
+                    try {
+                        this.wait();
+                    } catch (InterruptedException ie) {
+                    } finally {
+                        idleWorkers--;
+                    }
+                }
+                if (queueSize == 0) {
+                    workers--;
+                    return;
+                }
+
+                tx = queue[queueHead];
+                queue[queueHead] = null;
+                queueHead = (queueHead + 1) % queue.length;
+                queueSize--;
+            }
+
+            Exception error = null;
+            try {
+                execute(tx);
+            } catch (Exception ex) {
+                error = ex;
+            }
+            tx.completed(error);
         }
     }
 
     /**
-     * Get modbus exception code
+     * Read holding registers into the array
      *
-     * @return
+     * @param serverId     server id
+     * @param startAddress start address of the registers
+     * @param count        number to read
+     * @param dst          destination of the register values
+     * @param dstOff       offset in the destination
+     * @return result, the destination is filled only if it is RESULT_OK
+     * @throws Exception
      */
-    public int getExceptionCode() {
-        if (((getFunction() & 0x80) == 0) || (getPduSize() < 2))
-            return 0;
-        else
-            return readByteFromPDU(1, true);
+    public int readHoldingRegisters(int serverId, int startAddress, int count, short[] dst, int dstOff) throws Exception {
+        ModbusTransaction.checkBounds(dst.length, dstOff, count);
+        ModbusTransaction tx = acquire();
+        try {
+            tx.InitReadHoldingsRequest(serverId, startAddress, count);
+            int res = execute(tx);
+            if (res == RESULT_OK)
+                tx.decodeRegisters(count, dst, dstOff);
+            return res;
+        } finally {
+            release(tx);
+        }
     }
 
     /**
-     * get response start address
+     * Read input registers into the array
      *
-     * @return
+     * @param serverId     server id
+     * @param startAddress start address of the registers
+     * @param count        number to read
+     * @param dst          destination of the register values
+     * @param dstOff       offset in the destination
+     * @return result, the destination is filled only if it is RESULT_OK
+     * @throws Exception
      */
-    public int getResponseAddress() {
-        if (responseReady && (expectedAddress >= 0))
-            return (expectedAddress);
-        else
-            throw new IllegalStateException();
+    public int readInputRegisters(int serverId, int startAddress, int count, short[] dst, int dstOff) throws Exception {
+        ModbusTransaction.checkBounds(dst.length, dstOff, count);
+        ModbusTransaction tx = acquire();
+        try {
+            tx.InitReadAInputsRequest(serverId, startAddress, count);
+            int res = execute(tx);
+            if (res == RESULT_OK)
+                tx.decodeRegisters(count, dst, dstOff);
+            return res;
+        } finally {
+            release(tx);
+        }
     }
 
     /**
-     * get reponse register count
+     * Read coils into the array
      *
-     * @return
+     * @param serverId     server id
+     * @param startAddress start address of the coils
+     * @param count        number to read
+     * @param dst          destination of the coil values
+     * @param dstOff       offset in the destination
+     * @return result, the destination is filled only if it is RESULT_OK
+     * @throws Exception
      */
-    public int getResponseCount() {
-        if (responseReady && (expectedCount >= 0))
-            return (expectedCount);
-        else
-            throw new IllegalStateException();
+    public int readCoils(int serverId, int startAddress, int count, boolean[] dst, int dstOff) throws Exception {
+        ModbusTransaction.checkBounds(dst.length, dstOff, count);
+        ModbusTransaction tx = acquire();
+        try {
+            tx.InitReadCoilsRequest(serverId, startAddress, count);
+            int res = execute(tx);
+            if (res == RESULT_OK)
+                tx.decodeBits(count, dst, dstOff);
+            return res;
+        } finally {
+            release(tx);
+        }
     }
 
     /**
-     * Get discrete value from response to request initiated by {@link #InitReadCoilsRequest()} or
-     * {@link #InitReadDInputsRequest()}. Call this method ONLY after successful execution
-     * of {@link #execRequest()}.<br>
+     * Read discrete inputs into the array
      *
-     * @param address - Address of bit. It must be in the range specified in request.
-     *                You can use {@link #getResponseAddress()} and {@link #getResponseCount()}.
-     * @return Value of bit at given address.
+     * @param serverId     server id
+     * @param startAddress start address of the inputs
+     * @param count        number to read
+     * @param dst          destination of the input values
+     * @param dstOff       offset in the destination
+     * @return result, the destination is filled only if it is RESULT_OK
+     * @throws Exception
      */
-    public boolean getResponseBit(int address) {
-        if ((getFunction() == FN_READ_COILS) || (getFunction() == FN_READ_DISCRETE_INPUTS)) {
-            int offset = address - getResponseAddress();
-            if ((offset < 0) || (offset >= getResponseCount()))
-                throw new IndexOutOfBoundsException();
-            byte b = readByteFromPDU(2 + offset / 8);
-            return (b & (1 << (offset % 8))) != 0;
-        } else
-            throw new IllegalStateException();
+    public int readDiscreteInputs(int serverId, int startAddress, int count, boolean[] dst, int dstOff) throws Exception {
+        ModbusTransaction.checkBounds(dst.length, dstOff, count);
+        ModbusTransaction tx = acquire();
+        try {
+            tx.InitReadDInputsRequest(serverId, startAddress, count);
+            int res = execute(tx);
+            if (res == RESULT_OK)
+                tx.decodeBits(count, dst, dstOff);
+            return res;
+        } finally {
+            release(tx);
+        }
     }
 
     /**
-     * Get register value from response to request initiated by {@link #InitReadHoldingsRequest()} or
-     * {@link #InitReadAInputsRequest()}. Call this method ONLY after successful execution
-     * of {@link #execRequest()}.<br>
-     * There are various utility methods in {@link ModbusPdu} to manipulate int16 values.
+     * Read float values (2 registers each) from holding registers
      *
-     * @param address  - Address of register. It must be in the range specified in request.
-     *                 You can use {@link #getResponseAddress()} and {@link #getResponseCount()}.
-     * @param unsigned - Should value stored in PDU be interpreted as signed or unsigned.
-     * @return Value of register at given address. This value is 16 bit signed (-32768..+32767) or
-     * 16 bit unsigned (0..65535) depending on <b>unsigned</b> parameter.
+     * @param serverId     server id
+     * @param startAddress start address of the registers
+     * @param count        number of float values
+     * @param dst          destination of the values
+     * @param dstOff       offset in the destination
+     * @param bigEndian    big or middle endian, see {@link #getResponseRegisterFloat(int, boolean)}
+     * @return result, the destination is filled only if it is RESULT_OK
+     * @throws Exception
      */
-    public int getResponseRegister(int address, boolean unsigned) {
-        if ((getFunction() == FN_READ_HOLDING_REGISTERS) || (getFunction() == FN_READ_INPUT_REGISTERS)) {
-            int offset = address - getResponseAddress();
-            if ((offset < 0) || (offset >= getResponseCount()))
-                throw new IndexOutOfBoundsException();
-            return readInt16FromPDU(2 + offset * 2, unsigned);
-        } else
-            throw new IllegalStateException();
+    public int readHoldingFloats(int serverId, int startAddress, int count, float[] dst, int dstOff, boolean bigEndian)
+            throws Exception {
+        ModbusTransaction.checkBounds(dst.length, dstOff, count);
+        ModbusTransaction tx = acquire();
+        try {
+            tx.InitReadHoldingsRequest(serverId, startAddress, count * 2);
+            int res = execute(tx);
+            if (res == RESULT_OK)
+                tx.decodeFloats(count, dst, dstOff, bigEndian);
+            return res;
+        } finally {
+            release(tx);
+        }
     }
 
     /**
-     * Get register value from response and convert to a float value (4bytes)
+     * Read float values (2 registers each) from input registers
      *
-     * @param address
-     * @param bigEndian big or little endian
-     * @return float value from the response
+     * @param serverId     server id
+     * @param startAddress start address of the registers
+     * @param count        number of float values
+     * @param dst          destination of the values
+     * @param dstOff       offset in the destination
+     * @param bigEndian    big or middle endian, see {@link #getResponseRegisterFloat(int, boolean)}
+     * @return result, the destination is filled only if it is RESULT_OK
+     * @throws Exception
      */
-    public float getResponseRegisterFloat(int address, boolean bigEndian) {
-        if ((getFunction() == FN_READ_HOLDING_REGISTERS) || (getFunction() == FN_READ_INPUT_REGISTERS)) {
-            int offset = address - getResponseAddress();
-            if ((offset < 0) || (offset >= getResponseCount()))
-                throw new IndexOutOfBoundsException();
-            return readFloatFromPDU(2 + offset * 2, bigEndian);
-        } else
-            throw new IllegalStateException();
+    public int readInputFloats(int serverId, int startAddress, int count, float[] dst, int dstOff, boolean bigEndian)
+            throws Exception {
+        ModbusTransaction.checkBounds(dst.length, dstOff, count);
+        ModbusTransaction tx = acquire();
+        try {
+            tx.InitReadAInputsRequest(serverId, startAddress, count * 2);
+            int res = execute(tx);
+            if (res == RESULT_OK)
+                tx.decodeFloats(count, dst, dstOff, bigEndian);
+            return res;
+        } finally {
+            release(tx);
+        }
     }
 
     /**
-     * Get register value from response and convert to a int32 value (4 bytes)
+     * Read int32 values (2 registers each) from holding registers
      *
-     * @param address
-     * @param bigEndian
-     * @return
+     * @param serverId     server id
+     * @param startAddress start address of the registers
+     * @param count        number of int32 values
+     * @param dst          destination of the values
+     * @param dstOff       offset in the destination
+     * @param bigEndian    big or middle endian, see {@link #getResponseRegisterInt32(int, boolean)}
+     * @return result, the destination is filled only if it is RESULT_OK
+     * @throws Exception
      */
-    public int getResponseRegisterInt32(int address, boolean bigEndian) {
-        if ((getFunction() == FN_READ_HOLDING_REGISTERS) || (getFunction() == FN_READ_INPUT_REGISTERS)) {
-            int offset = address - getResponseAddress();
-            if ((offset < 0) || (offset >= getResponseCount()))
-                throw new IndexOutOfBoundsException();
-            return readInt32FromPDU(2 + offset * 2, bigEndian);
-        } else
-            throw new IllegalStateException();
+    public int readHoldingInt32s(int serverId, int startAddress, int count, int[] dst, int dstOff, boolean bigEndian)
+            throws Exception {
+        ModbusTransaction.checkBounds(dst.length, dstOff, count);
+        ModbusTransaction tx = acquire();
+        try {
+            tx.InitReadHoldingsRequest(serverId, startAddress, count * 2);
+            int res = execute(tx);
+            if (res == RESULT_OK)
+                tx.decodeInt32s(count, dst, dstOff, bigEndian);
+            return res;
+        } finally {
+            release(tx);
+        }
     }
 
     /**
-     * Get register value with unsigned value
+     * Read int32 values (2 registers each) from input registers
      *
-     * @param address
-     * @return value of register (0 - 65536)
+     * @param serverId     server id
+     * @param startAddress start address of the registers
+     * @param count        number of int32 values
+     * @param dst          destination of the values
+     * @param dstOff       offset in the destination
+     * @param bigEndian    big or middle endian, see {@link #getResponseRegisterInt32(int, boolean)}
+     * @return result, the destination is filled only if it is RESULT_OK
+     * @throws Exception
      */
-    public int getResponseRegister(int address) {
-        return getResponseRegister(address, true);
+    public int readInputInt32s(int serverId, int startAddress, int count, int[] dst, int dstOff, boolean bigEndian)
+            throws Exception {
+        ModbusTransaction.checkBounds(dst.length, dstOff, count);
+        ModbusTransaction tx = acquire();
+        try {
+            tx.InitReadAInputsRequest(serverId, startAddress, count * 2);
+            int res = execute(tx);
+            if (res == RESULT_OK)
+                tx.decodeInt32s(count, dst, dstOff, bigEndian);
+            return res;
+        } finally {
+            release(tx);
+        }
     }
 
-
     @Override
     public void close() {
+        synchronized (this) {
+            closed = true;
+            this.notifyAll();
+        }
+
         if (transport != null)
             transport.close();
     }
@@ -2,9 +2,9 @@ package tijos.framework.component.modbus.rtu;
 
 public interface ModbusClientTransport {
 
-    public void sendRequest(ModbusClient modbusClient) throws Exception, InterruptedException;
+    public void sendRequest(ModbusTransaction transaction) throws Exception, InterruptedException;
 
-    public int waitResponse(ModbusClient modbusClient) throws Exception, InterruptedException;
+    public int waitResponse(ModbusTransaction transaction) throws Exception, InterruptedException;
 
     public void close();
 }
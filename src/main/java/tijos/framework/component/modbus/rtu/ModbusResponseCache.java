@@ -0,0 +1,496 @@
+package tijos.framework.component.modbus.rtu;
+
+import static tijos.framework.component.modbus.protocol.ModbusConstants.*;
+
+/**
+ * Cache of read responses of a client. Every successful read of the client is
+ * stored by server id, function and address range, every write through the
+ * client invalidates the overlapped ranges. The read methods of the cache
+ * return the values of a cached range covering the request if it is not
+ * expired, and read from the bus otherwise.
+ * <p>
+ * The response data is kept in one byte array of the memory budget, the least
+ * recently used ranges are evicted when it is full.
+ * </p>
+ * Reads from the bus on cache misses use pooled transactions of the client.
+ * <p>
+ * With a pipelined transport a read may complete after a later write to its
+ * range, every invalidation gets a generation and such a read response is not
+ * stored.
+ * </p>
+ */
+public class ModbusResponseCache {
+
+    /**
+     * Memory of an entry besides its data
+     */
+    public static final int ENTRY_OVERHEAD = 48;
+
+    private final ModbusClient client;
+
+    private int defaultTtl;
+    private int[] serverTtls = new int[248]; // 0 for default
+
+    // entries, unused if length is 0
+    private final int[] servers;
+    private final int[] functions;
+    private final int[] addresses;
+    private final int[] counts;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final long[] expires;
+    private final long[] uses;
+    private long tick;
+
+    // response data of the entries
+    private final byte[] data;
+    private int top; // end of the allocated data
+    private int used; // data of live entries
+
+    // ranges of the last invalidations and their generations
+    private static final int WRITES = 16;
+    private final int[] writeServers = new int[WRITES];
+    private final int[] writeFunctions = new int[WRITES];
+    private final int[] writeAddresses = new int[WRITES];
+    private final int[] writeCounts = new int[WRITES];
+    private final long[] writeGenerations = new long[WRITES];
+    private long generation;
+
+    // statistics
+    private int hits;
+    private int misses;
+    private int evictions;
+    private int invalidations;
+
+    /**
+     * Initialize and attach to the client
+     *
+     * @param client
+     * @param budget memory of the entries and their data in bytes
+     * @param ttl    default time to live of a response in milliseconds
+     */
+    public ModbusResponseCache(ModbusClient client, int budget, int ttl) {
+        if ((budget < ENTRY_OVERHEAD * 4 + 256) || (ttl < 0))
+            throw new IllegalArgumentException();
+
+        // one entry per 64 bytes of data on average
+        int entries = budget / (ENTRY_OVERHEAD + 64);
+
+        this.client = client;
+        this.defaultTtl = ttl;
+        this.servers = new int[entries];
+        this.functions = new int[entries];
+        this.addresses = new int[entries];
+        this.counts = new int[entries];
+        this.offsets = new int[entries];
+        this.lengths = new int[entries];
+        this.expires = new long[entries];
+        this.uses = new long[entries];
+        this.data = new byte[budget - entries * ENTRY_OVERHEAD];
+
+        client.setCache(this);
+    }
+
+    /**
+     * Time to live of the responses of a server
+     *
+     * @param serverId
+     * @param ttl      milliseconds, 0 for the default
+     */
+    public synchronized void setServerTtl(int serverId, int ttl) {
+        if ((serverId < 1) || (serverId >= serverTtls.length) || (ttl < 0))
+            throw new IllegalArgumentException();
+        serverTtls[serverId] = ttl;
+    }
+
+    /**
+     * Read holding registers from the cache or the bus
+     *
+     * @param serverId     server id
+     * @param startAddress start address of the registers
+     * @param count        number to read
+     * @param dst          destination of the register values
+     * @param dstOff       offset in the destination
+     * @return result, the destination is filled only if it is RESULT_OK
+     * @throws Exception
+     */
+    public int readHoldingRegisters(int serverId, int startAddress, int count, short[] dst, int dstOff)
+            throws Exception {
+        if (getRegisters(serverId, FN_READ_HOLDING_REGISTERS, startAddress, count, dst, dstOff))
+            return ModbusClient.RESULT_OK;
+        return client.readHoldingRegisters(serverId, startAddress, count, dst, dstOff);
+    }
+
+    /**
+     * Read input registers from the cache or the bus
+     *
+     * @param serverId     server id
+     * @param startAddress start address of the registers
+     * @param count        number to read
+     * @param dst          destination of the register values
+     * @param dstOff       offset in the destination
+     * @return result, the destination is filled only if it is RESULT_OK
+     * @throws Exception
+     */
+    public int readInputRegisters(int serverId, int startAddress, int count, short[] dst, int dstOff)
+            throws Exception {
+        if (getRegisters(serverId, FN_READ_INPUT_REGISTERS, startAddress, count, dst, dstOff))
+            return ModbusClient.RESULT_OK;
+        return client.readInputRegisters(serverId, startAddress, count, dst, dstOff);
+    }
+
+    /**
+     * Read coils from the cache or the bus
+     *
+     * @param serverId     server id
+     * @param startAddress start address of the coils
+     * @param count        number to read
+     * @param dst          destination of the coil values
+     * @param dstOff       offset in the destination
+     * @return result, the destination is filled only if it is RESULT_OK
+     * @throws Exception
+     */
+    public int readCoils(int serverId, int startAddress, int count, boolean[] dst, int dstOff) throws Exception {
+        if (getBits(serverId, FN_READ_COILS, startAddress, count, dst, dstOff))
+            return ModbusClient.RESULT_OK;
+        return client.readCoils(serverId, startAddress, count, dst, dstOff);
+    }
+
+    /**
+     * Read discrete inputs from the cache or the bus
+     *
+     * @param serverId     server id
+     * @param startAddress start address of the inputs
+     * @param count        number to read
+     * @param dst          destination of the input values
+     * @param dstOff       offset in the destination
+     * @return result, the destination is filled only if it is RESULT_OK
+     * @throws Exception
+     */
+    public int readDiscreteInputs(int serverId, int startAddress, int count, boolean[] dst, int dstOff)
+            throws Exception {
+        if (getBits(serverId, FN_READ_DISCRETE_INPUTS, startAddress, count, dst, dstOff))
+            return ModbusClient.RESULT_OK;
+        return client.readDiscreteInputs(serverId, startAddress, count, dst, dstOff);
+    }
+
+    /**
+     * Cached registers covering the range
+     *
+     * @return true if found, false on miss
+     */
+    public synchronized boolean getRegisters(int serverId, int function, int startAddress, int count, short[] dst,
+                                             int dstOff) {
+        int e = find(serverId, function, startAddress, count);
+        if (e < 0)
+            return false;
+
+        int off = offsets[e] + (startAddress - addresses[e]) * 2;
+        for (int i = 0; i < count; i++, off += 2)
+            dst[dstOff + i] = (short) (((data[off] & 0xFF) << 8) | (data[off + 1] & 0xFF));
+        return true;
+    }
+
+    /**
+     * Cached coils or discrete inputs covering the range
+     *
+     * @return true if found, false on miss
+     */
+    public synchronized boolean getBits(int serverId, int function, int startAddress, int count, boolean[] dst,
+                                        int dstOff) {
+        int e = find(serverId, function, startAddress, count);
+        if (e < 0)
+            return false;
+
+        int bit = startAddress - addresses[e];
+        for (int i = 0; i < count; i++, bit++)
+            dst[dstOff + i] = (data[offsets[e] + bit / 8] & (1 << (bit % 8))) != 0;
+        return true;
+    }
+
+    /**
+     * Drop the ranges of a write request, called by the client before the
+     * request because the response replaces it
+     *
+     * @param tx
+     */
+    synchronized void invalidate(ModbusTransaction tx) {
+        int server = tx.getServerId() & 0xFF;
+
+        switch (tx.getFunction()) {
+            case FN_WRITE_SINGLE_COIL:
+                invalidate(server, FN_READ_COILS, tx.readInt16FromPDU(1, true), 1);
+                break;
+            case FN_WRITE_MULTIPLE_COILS:
+                invalidate(server, FN_READ_COILS, tx.readInt16FromPDU(1, true), tx.readInt16FromPDU(3, true));
+                break;
+            case FN_WRITE_SINGLE_REGISTER:
+                invalidate(server, FN_READ_HOLDING_REGISTERS, tx.readInt16FromPDU(1, true), 1);
+                break;
+            case FN_WRITE_MULTIPLE_REGISTERS:
+                invalidate(server, FN_READ_HOLDING_REGISTERS, tx.readInt16FromPDU(1, true),
+                        tx.readInt16FromPDU(3, true));
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Store the response of a read request, called by the client after the
+     * request
+     *
+     * @param tx
+     * @param result
+     */
+    synchronized void update(ModbusTransaction tx, int result) {
+        if (result != ModbusClient.RESULT_OK)
+            return;
+
+        int function = tx.getFunction();
+        if ((function == FN_READ_COILS) || (function == FN_READ_DISCRETE_INPUTS)
+                || (function == FN_READ_HOLDING_REGISTERS) || (function == FN_READ_INPUT_REGISTERS)) {
+            int server = tx.getServerId() & 0xFF;
+            if (!isWritten(server, function, tx.getResponseAddress(), tx.getResponseCount(), tx.cacheGeneration))
+                store(tx, server, function);
+        }
+    }
+
+    /**
+     * Generation of the last invalidation, the client keeps it for a request
+     * to be checked by {@link #update(ModbusTransaction, int)}
+     *
+     * @return
+     */
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    // is the range invalidated after the generation, also true if the
+    // invalidation is too old to be known
+    private boolean isWritten(int serverId, int function, int startAddress, int count, long since) {
+        if (generation == since)
+            return false;
+        if (generation - since > WRITES)
+            return true;
+
+        for (int i = 0; i < WRITES; i++) {
+            if ((writeGenerations[i] > since)
+                    && ((writeServers[i] == BROADCAST_ID) || (writeServers[i] == serverId))
+                    && ((writeFunctions[i] == 0) || (writeFunctions[i] == function))
+                    && (writeAddresses[i] < startAddress + count)
+                    && (startAddress < writeAddresses[i] + writeCounts[i]))
+                return true;
+        }
+        return false;
+    }
+
+    // record an invalidated range, server 0 and function 0 for all
+    private void written(int serverId, int function, int startAddress, int count) {
+        generation++;
+        int i = (int) (generation % WRITES);
+        writeServers[i] = serverId;
+        writeFunctions[i] = function;
+        writeAddresses[i] = startAddress;
+        writeCounts[i] = count;
+        writeGenerations[i] = generation;
+    }
+
+    /**
+     * Drop the cached values of the range
+     *
+     * @param serverId     server id, 0 for all servers
+     * @param function     read function of the values
+     * @param startAddress
+     * @param count
+     */
+    public synchronized void invalidate(int serverId, int function, int startAddress, int count) {
+        written(serverId, function, startAddress, count);
+        invalidations += drop(serverId, function, startAddress, count);
+    }
+
+    private int drop(int serverId, int function, int startAddress, int count) {
+        int n = 0;
+        for (int e = 0; e < lengths.length; e++) {
+            if ((lengths[e] > 0) && ((serverId == BROADCAST_ID) || (servers[e] == serverId))
+                    && (functions[e] == function) && (addresses[e] < startAddress + count)
+                    && (startAddress < addresses[e] + counts[e])) {
+                remove(e);
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Drop all cached values
+     */
+    public synchronized void clear() {
+        written(BROADCAST_ID, 0, 0, 0x10000);
+        for (int e = 0; e < lengths.length; e++)
+            lengths[e] = 0;
+        top = 0;
+        used = 0;
+    }
+
+    private void store(ModbusTransaction tx, int server, int function) {
+        int address = tx.getResponseAddress();
+        int count = tx.getResponseCount();
+        int length = tx.readByteFromPDU(1, true);
+        if (length > data.length)
+            return;
+
+        // the new response replaces the overlapped ones
+        drop(server, function, address, count);
+
+        long now = System.currentTimeMillis();
+        int e = allocate(length, now);
+        servers[e] = server;
+        functions[e] = function;
+        addresses[e] = address;
+        counts[e] = count;
+        lengths[e] = length;
+        uses[e] = ++tick;
+
+        int ttl = serverTtls[server];
+        expires[e] = now + (ttl > 0 ? ttl : defaultTtl);
+        tx.readFromPdu(2, length, data, offsets[e]);
+    }
+
+    // entry with the data space of the length
+    private int allocate(int length, long now) {
+        // expired entries first
+        for (int e = 0; e < lengths.length; e++) {
+            if ((lengths[e] > 0) && (expires[e] <= now))
+                remove(e);
+        }
+
+        int free = freeEntry();
+        while ((free < 0) || (data.length - used < length)) {
+            remove(leastRecentlyUsed());
+            evictions++;
+            free = freeEntry();
+        }
+
+        if (top + length > data.length)
+            compact();
+
+        offsets[free] = top;
+        top += length;
+        used += length;
+        return free;
+    }
+
+    private int find(int serverId, int function, int startAddress, int count) {
+        long now = System.currentTimeMillis();
+        for (int e = 0; e < lengths.length; e++) {
+            if ((lengths[e] > 0) && (servers[e] == serverId) && (functions[e] == function)
+                    && (addresses[e] <= startAddress) && (startAddress + count <= addresses[e] + counts[e])) {
+                if (expires[e] <= now) {
+                    // another entry may still cover the range
+                    remove(e);
+                    continue;
+                }
+                uses[e] = ++tick;
+                hits++;
+                return e;
+            }
+        }
+        misses++;
+        return -1;
+    }
+
+    private int freeEntry() {
+        for (int e = 0; e < lengths.length; e++) {
+            if (lengths[e] == 0)
+                return e;
+        }
+        return -1;
+    }
+
+    private int leastRecentlyUsed() {
+        int lru = -1;
+        for (int e = 0; e < lengths.length; e++) {
+            if ((lengths[e] > 0) && ((lru < 0) || (uses[e] < uses[lru])))
+                lru = e;
+        }
+        return lru;
+    }
+
+    private void remove(int e) {
+        used -= lengths[e];
+        lengths[e] = 0;
+        if (used == 0)
+            top = 0;
+    }
+
+    // move the data of the live entries to the start in order of offset
+    private void compact() {
+        int end = 0;
+        while (true) {
+            int next = -1;
+            for (int e = 0; e < lengths.length; e++) {
+                if ((lengths[e] > 0) && (offsets[e] >= end) && ((next < 0) || (offsets[e] < offsets[next])))
+                    next = e;
+            }
+            if (next < 0)
+                break;
+
+            System.arraycopy(data, offsets[next], data, end, lengths[next]);
+            offsets[next] = end;
+            end += lengths[next];
+        }
+        top = end;
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    /**
+     * Entries evicted to store new responses
+     *
+     * @return
+     */
+    public synchronized int getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Entries dropped by writes
+     *
+     * @return
+     */
+    public synchronized int getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * Percentage of cache reads served from the cache
+     *
+     * @return 0 - 100
+     */
+    public synchronized int getHitRate() {
+        int total = hits + misses;
+        if (total == 0)
+            return 0;
+        return hits * 100 / total;
+    }
+
+    public synchronized void resetStatistics() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+        invalidations = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "hits " + hits + " misses " + misses + " evictions " + evictions + " invalidations " + invalidations
+                + " used " + used + "/" + data.length;
+    }
+}
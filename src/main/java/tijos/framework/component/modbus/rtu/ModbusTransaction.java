@@ -0,0 +1,629 @@
+package tijos.framework.component.modbus.rtu;
+
+import static tijos.framework.component.modbus.protocol.ModbusConstants.*;
+
+import tijos.framework.component.modbus.protocol.ModbusPdu;
+
+/**
+ * MODBUS request and its response. A transaction is executed by
+ * {@link ModbusClient#execute(ModbusTransaction)} or submitted with
+ * {@link ModbusClient#submit(ModbusTransaction, IModbusTransactionListener)},
+ * each thread uses its own transaction, such as one from
+ * {@link ModbusClient#acquire()}.
+ */
+public class ModbusTransaction extends ModbusPdu {
+
+    /**
+     * Modbus Result Code
+     */
+    public static final byte RESULT_OK = 0;
+    public static final byte RESULT_TIMEOUT = 1;
+    public static final byte RESULT_EXCEPTION = 2; // Modbus exception. Get code by getExceptionCode()
+    public static final byte RESULT_BAD_RESPONSE = 3; // CRC mismatch, or invalid format
+    public static final byte RESULT_SKIPPED = 4; // server is down, see ModbusBusHealth
+
+    private boolean responseReady = false;
+
+    /**
+     * Server ID
+     */
+    private byte srvId;
+    private int expectedPduSize;
+    private int expectedAddress = -1;
+    private int expectedCount = -1;
+    private int result; // RESULT_*
+    private int requestTimeout;
+
+    // asynchronous execution
+    private IModbusTransactionListener listener;
+    private boolean completed;
+    private Exception error;
+
+    // owner of a pooled transaction
+    ModbusClient owner;
+    boolean free;
+
+    // generation of the response cache when the request is sent
+    long cacheGeneration;
+
+    // request PDU kept while its response is received in place
+    private byte[] request;
+    private int requestSize;
+
+    /**
+     * Get server id
+     *
+     * @return
+     */
+    public byte getServerId() {
+        return srvId;
+    }
+
+    /**
+     * Keep the request PDU before the transport receives the response in its
+     * place, see {@link #restoreRequest()}
+     */
+    public void saveRequest() {
+        if ((request == null) || (request.length < pduSize))
+            request = new byte[pduSize];
+        System.arraycopy(adu, PDU_OFFSET, request, 0, pduSize);
+        requestSize = pduSize;
+    }
+
+    /**
+     * Put back the request kept by {@link #saveRequest()} when no valid
+     * response replaced it, the transaction can be executed again
+     */
+    public void restoreRequest() {
+        System.arraycopy(request, 0, adu, PDU_OFFSET, requestSize);
+        pduSize = requestSize;
+    }
+
+    /**
+     * Expected PDU size
+     *
+     * @return
+     */
+    public int getExpectedPduSize() {
+        return expectedPduSize;
+    }
+
+    /**
+     * Initialize a custom request
+     *
+     * @param newServerId        server id
+     * @param newPduSize         pdu size
+     * @param function           function code
+     * @param newExpectedPduSize expected size
+     */
+    protected void initCustomRequest(int newServerId, int newPduSize, byte function, int newExpectedPduSize) {
+        setPduSize(newPduSize);
+        writeByteToPDU(0, function);
+        this.srvId = (byte) newServerId;
+        this.expectedAddress = -1;
+        this.expectedCount = -1;
+        this.expectedPduSize = newExpectedPduSize;
+        this.responseReady = false;
+    }
+
+    /**
+     * Initialize request
+     *
+     * @param newServerId
+     * @param newPduSize
+     * @param function
+     * @param param1
+     * @param param2
+     * @param newExpectedAddress
+     * @param newExpectedCount
+     * @param newExpectedPduSize
+     */
+    protected void initRequest(int newServerId, int newPduSize, byte function, int param1, int param2,
+                               int newExpectedAddress, int newExpectedCount, int newExpectedPduSize) {
+        setPduSize(newPduSize);
+        writeByteToPDU(0, function);
+        writeInt16ToPDU(1, param1);
+        writeInt16ToPDU(3, param2);
+        this.srvId = (byte) newServerId;
+        this.expectedAddress = newExpectedAddress;
+        this.expectedCount = newExpectedCount;
+        this.expectedPduSize = newExpectedPduSize;
+        this.responseReady = false;
+    }
+
+    /**
+     * Initialize a Read Coils request
+     *
+     * @param serverId     server id
+     * @param startAddress start address
+     * @param count        read number
+     */
+    public void InitReadCoilsRequest(int serverId, int startAddress, int count) {
+        if ((count < 1) || (count > MAX_READ_COILS))
+            throw new IllegalArgumentException();
+
+        initRequest(serverId, 5, FN_READ_COILS, startAddress, count,
+                startAddress, count, 2 + bytesCount(count));
+    }
+
+    /**
+     * Initialize a READ DISCRETE INPUT REGISTERs request
+     *
+     * @param serverId     server id
+     * @param startAddress start address of the registers
+     * @param count        number to read
+     */
+    public void InitReadDInputsRequest(int serverId, int startAddress, int count) {
+        if ((count < 1) || (count > MAX_READ_COILS))
+            throw new IllegalArgumentException();
+        initRequest(serverId, 5, FN_READ_DISCRETE_INPUTS, startAddress, count,
+                startAddress, count, 2 + bytesCount(count));
+    }
+
+    /**
+     * Initialize a READ HOLDING REGISTERs request
+     *
+     * @param serverId     server id
+     * @param startAddress start address of the registers
+     * @param count        number to read
+     */
+    public void InitReadHoldingsRequest(int serverId, int startAddress, int count) {
+        if ((count < 1) || (count > MAX_READ_REGS))
+            throw new IllegalArgumentException();
+        initRequest(serverId, 5, FN_READ_HOLDING_REGISTERS, startAddress, count,
+                startAddress, count, 2 + count * 2);
+    }
+
+    /**
+     * Initialize a READ INPUT REGISTERs request
+     *
+     * @param serverId
+     * @param startAddress
+     * @param count
+     */
+    public void InitReadAInputsRequest(int serverId, int startAddress, int count) {
+        if ((count < 1) || (count > MAX_READ_REGS))
+            throw new IllegalArgumentException();
+        initRequest(serverId, 5, FN_READ_INPUT_REGISTERS, startAddress, count,
+                startAddress, count, 2 + count * 2);
+    }
+
+    /**
+     * Initialize a WRITE COIL register request - one register operation
+     *
+     * @param serverId    server id
+     * @param coilAddress coil address
+     * @param value       value
+     */
+    public void InitWriteCoilRequest(int serverId, int coilAddress, boolean value) {
+        initRequest(serverId, 5, FN_WRITE_SINGLE_COIL, coilAddress, value ? 0xFF00 : 0, -1, -1, 5);
+    }
+
+    /**
+     * Initialize a WRITE SINGLE REGISTER request
+     *
+     * @param serverId
+     * @param regAddress
+     * @param value
+     */
+    public void InitWriteRegisterRequest(int serverId, int regAddress, int value) {
+        initRequest(serverId, 5, FN_WRITE_SINGLE_REGISTER, regAddress, value, -1, -1, 5);
+    }
+
+    /**
+     * Initialize WRITE MULTIPLE COILS registers
+     *
+     * @param serverId
+     * @param startAddress
+     * @param values
+     */
+    public void InitWriteCoilsRequest(int serverId, int startAddress, boolean[] values) {
+        InitWriteCoilsRequest(serverId, startAddress, values, 0, values.length);
+    }
+
+    /**
+     * Initialize WRITE MULTIPLE COILS registers from a part of the array
+     *
+     * @param serverId
+     * @param startAddress
+     * @param values
+     * @param off          offset of the first value
+     * @param count        number of coils
+     */
+    public void InitWriteCoilsRequest(int serverId, int startAddress, boolean[] values, int off, int count) {
+        if ((count < 1) || (count > MAX_WRITE_COILS) || (off < 0) || (off + count > values.length))
+            throw new IllegalArgumentException();
+        int bytes = bytesCount(count);
+        initRequest(serverId, 6 + bytes, FN_WRITE_MULTIPLE_COILS, startAddress, count, -1, -1, 5);
+        writeByteToPDU(5, (byte) bytes);
+        for (int i = 0; i < bytes; i++) {
+            byte b = 0;
+            for (int j = 0; j < 8; j++) {
+                int k = i * 8 + j;
+                if ((k < count) && values[off + k])
+                    b = (byte) (b | (1 << j));
+            }
+            writeByteToPDU(6 + i, b);
+        }
+    }
+
+    /**
+     * Initialize WRITE MULTIPLE registers
+     *
+     * @param serverId
+     * @param startAddress
+     * @param values
+     */
+    public void InitWriteRegistersRequest(int serverId, int startAddress, int[] values) {
+        InitWriteRegistersRequest(serverId, startAddress, values, 0, values.length);
+    }
+
+    /**
+     * Initialize WRITE MULTIPLE registers from a part of the array
+     *
+     * @param serverId
+     * @param startAddress
+     * @param values
+     * @param off          offset of the first value
+     * @param count        number of registers
+     */
+    public void InitWriteRegistersRequest(int serverId, int startAddress, int[] values, int off, int count) {
+        if ((count < 1) || (count > MAX_WRITE_REGS) || (off < 0) || (off + count > values.length))
+            throw new IllegalArgumentException();
+        int bytes = count * 2;
+        initRequest(serverId, 6 + bytes, FN_WRITE_MULTIPLE_REGISTERS, startAddress, count, -1, -1, 5);
+        writeByteToPDU(5, (byte) bytes);
+        for (int i = 0; i < count; i++) {
+            writeInt16ToPDU(6 + i * 2, values[off + i]);
+        }
+    }
+
+    /**
+     * Initialize a request from an encoded PDU, such as one received by a
+     * gateway. The read and write functions are supported, the size of the
+     * response is known from the request.
+     *
+     * @param serverId server id
+     * @param pdu      function code and data
+     * @param off      offset of the PDU
+     * @param len      size of the PDU
+     * @throws IllegalArgumentException unsupported function or invalid data
+     */
+    public void InitPduRequest(int serverId, byte[] pdu, int off, int len) {
+        if ((len < 5) || (len > MAX_PDU_SIZE))
+            throw new IllegalArgumentException();
+
+        int function = pdu[off];
+        int address = ((pdu[off + 1] & 0xFF) << 8) | (pdu[off + 2] & 0xFF);
+        int count = ((pdu[off + 3] & 0xFF) << 8) | (pdu[off + 4] & 0xFF);
+
+        switch (function) {
+            case FN_READ_COILS:
+            case FN_READ_DISCRETE_INPUTS:
+                if (len != 5)
+                    throw new IllegalArgumentException();
+                if (function == FN_READ_COILS)
+                    InitReadCoilsRequest(serverId, address, count);
+                else
+                    InitReadDInputsRequest(serverId, address, count);
+                return;
+            case FN_READ_HOLDING_REGISTERS:
+            case FN_READ_INPUT_REGISTERS:
+                if (len != 5)
+                    throw new IllegalArgumentException();
+                if (function == FN_READ_HOLDING_REGISTERS)
+                    InitReadHoldingsRequest(serverId, address, count);
+                else
+                    InitReadAInputsRequest(serverId, address, count);
+                return;
+            case FN_WRITE_SINGLE_COIL:
+            case FN_WRITE_SINGLE_REGISTER:
+                if (len != 5)
+                    throw new IllegalArgumentException();
+                break;
+            case FN_WRITE_MULTIPLE_COILS:
+            case FN_WRITE_MULTIPLE_REGISTERS:
+                int max = function == FN_WRITE_MULTIPLE_COILS ? MAX_WRITE_COILS : MAX_WRITE_REGS;
+                int bytes = function == FN_WRITE_MULTIPLE_COILS ? bytesCount(count) : count * 2;
+                if ((count < 1) || (count > max) || (len < 6) || ((pdu[off + 5] & 0xFF) != bytes)
+                        || (len != 6 + bytes))
+                    throw new IllegalArgumentException();
+                break;
+            default:
+                throw new IllegalArgumentException("Function " + function);
+        }
+
+        // writes are sent as received, the response echoes address and value or count
+        initCustomRequest(serverId, len, (byte) function, 5);
+        writeToPdu(pdu, off, len, 0);
+    }
+
+    /**
+     * Whether the request is a write request accepted by broadcast
+     *
+     * @param function
+     * @return
+     */
+    public static boolean isWriteFunction(int function) {
+        return (function == FN_WRITE_SINGLE_COIL) || (function == FN_WRITE_SINGLE_REGISTER)
+                || (function == FN_WRITE_MULTIPLE_COILS) || (function == FN_WRITE_MULTIPLE_REGISTERS);
+    }
+
+    /**
+     * Timeout of the request for the transport
+     *
+     * @return milliseconds, 0 for the transport timeout
+     */
+    public int getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    void setRequestTimeout(int ms) {
+        this.requestTimeout = ms;
+    }
+
+    /**
+     * Result of the execution
+     *
+     * @param result RESULT_*
+     */
+    void setResult(int result) {
+        setResult(result, result == RESULT_OK);
+    }
+
+    void setResult(int result, boolean responseReady) {
+        this.result = result;
+        this.responseReady = responseReady;
+    }
+
+    /**
+     * Response result
+     *
+     * @return
+     */
+    public int getResult() {
+        return result;
+    }
+
+    public String getResultAsString() {
+        switch (result) {
+            case RESULT_OK:
+                return "OK";
+            case RESULT_BAD_RESPONSE:
+                return "Bad response";
+            case RESULT_EXCEPTION:
+                return "Exception " + getExceptionCode();
+            case RESULT_TIMEOUT:
+                return "Timeout";
+            case RESULT_SKIPPED:
+                return "Skipped";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Get modbus exception code
+     *
+     * @return
+     */
+    public int getExceptionCode() {
+        if (((getFunction() & 0x80) == 0) || (getPduSize() < 2))
+            return 0;
+        else
+            return readByteFromPDU(1, true);
+    }
+
+    /**
+     * get response start address
+     *
+     * @return
+     */
+    public int getResponseAddress() {
+        if (responseReady && (expectedAddress >= 0))
+            return (expectedAddress);
+        else
+            throw new IllegalStateException();
+    }
+
+    /**
+     * get reponse register count
+     *
+     * @return
+     */
+    public int getResponseCount() {
+        if (responseReady && (expectedCount >= 0))
+            return (expectedCount);
+        else
+            throw new IllegalStateException();
+    }
+
+    /**
+     * Get discrete value from response to request initiated by {@link #InitReadCoilsRequest()} or
+     * {@link #InitReadDInputsRequest()}. Call this method ONLY after successful execution
+     * of {@link ModbusClient#execute(ModbusTransaction)}.<br>
+     *
+     * @param address - Address of bit. It must be in the range specified in request.
+     *                You can use {@link #getResponseAddress()} and {@link #getResponseCount()}.
+     * @return Value of bit at given address.
+     */
+    public boolean getResponseBit(int address) {
+        if ((getFunction() == FN_READ_COILS) || (getFunction() == FN_READ_DISCRETE_INPUTS)) {
+            int offset = address - getResponseAddress();
+            if ((offset < 0) || (offset >= getResponseCount()))
+                throw new IndexOutOfBoundsException();
+            byte b = readByteFromPDU(2 + offset / 8);
+            return (b & (1 << (offset % 8))) != 0;
+        } else
+            throw new IllegalStateException();
+    }
+
+    /**
+     * Get register value from response to request initiated by {@link #InitReadHoldingsRequest()} or
+     * {@link #InitReadAInputsRequest()}. Call this method ONLY after successful execution
+     * of {@link ModbusClient#execute(ModbusTransaction)}.<br>
+     * There are various utility methods in {@link ModbusPdu} to manipulate int16 values.
+     *
+     * @param address  - Address of register. It must be in the range specified in request.
+     *                 You can use {@link #getResponseAddress()} and {@link #getResponseCount()}.
+     * @param unsigned - Should value stored in PDU be interpreted as signed or unsigned.
+     * @return Value of register at given address. This value is 16 bit signed (-32768..+32767) or
+     * 16 bit unsigned (0..65535) depending on <b>unsigned</b> parameter.
+     */
+    public int getResponseRegister(int address, boolean unsigned) {
+        if ((getFunction() == FN_READ_HOLDING_REGISTERS) || (getFunction() == FN_READ_INPUT_REGISTERS)) {
+            int offset = address - getResponseAddress();
+            if ((offset < 0) || (offset >= getResponseCount()))
+                throw new IndexOutOfBoundsException();
+            return readInt16FromPDU(2 + offset * 2, unsigned);
+        } else
+            throw new IllegalStateException();
+    }
+
+    /**
+     * Get register value from response and convert to a float value (4bytes)
+     *
+     * @param address
+     * @param bigEndian big or little endian
+     * @return float value from the response
+     */
+    public float getResponseRegisterFloat(int address, boolean bigEndian) {
+        if ((getFunction() == FN_READ_HOLDING_REGISTERS) || (getFunction() == FN_READ_INPUT_REGISTERS)) {
+            int offset = address - getResponseAddress();
+            if ((offset < 0) || (offset >= getResponseCount()))
+                throw new IndexOutOfBoundsException();
+            return readFloatFromPDU(2 + offset * 2, bigEndian);
+        } else
+            throw new IllegalStateException();
+    }
+
+    /**
+     * Get register value from response and convert to a int32 value (4 bytes)
+     *
+     * @param address
+     * @param bigEndian
+     * @return
+     */
+    public int getResponseRegisterInt32(int address, boolean bigEndian) {
+        if ((getFunction() == FN_READ_HOLDING_REGISTERS) || (getFunction() == FN_READ_INPUT_REGISTERS)) {
+            int offset = address - getResponseAddress();
+            if ((offset < 0) || (offset >= getResponseCount()))
+                throw new IndexOutOfBoundsException();
+            return readInt32FromPDU(2 + offset * 2, bigEndian);
+        } else
+            throw new IllegalStateException();
+    }
+
+    /**
+     * Get register value with unsigned value
+     *
+     * @param address
+     * @return value of register (0 - 65536)
+     */
+    public int getResponseRegister(int address) {
+        return getResponseRegister(address, true);
+    }
+
+
+    /**
+     * Whether the submitted transaction is executed
+     *
+     * @return
+     */
+    public synchronized boolean isCompleted() {
+        return completed;
+    }
+
+    /**
+     * Wait for the submitted transaction
+     *
+     * @param timeout milliseconds, 0 to wait forever
+     * @return result, RESULT_TIMEOUT if it's not executed in time
+     * @throws Exception the error of the execution
+     */
+    public synchronized int waitCompleted(int timeout) throws Exception {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!completed) {
+            long wait = 0;
+            if (timeout > 0) {
+                wait = deadline - System.currentTimeMillis();
+                if (wait <= 0)
+                    return RESULT_TIMEOUT;
+            }
+            this.wait(wait);
+        }
+
+        if (error != null)
+            throw error;
+        return result;
+    }
+
+    synchronized void submitted(IModbusTransactionListener listener) {
+        this.listener = listener;
+        this.completed = false;
+        this.error = null;
+    }
+
+    void completed(Exception error) {
+        IModbusTransactionListener l;
+        synchronized (this) {
+            this.error = error;
+            this.completed = true;
+            l = this.listener;
+            this.listener = null;
+            this.notifyAll();
+        }
+
+        if (l != null)
+            l.onTransactionCompleted(this, error);
+    }
+
+    /**
+     * Register values of the response
+     *
+     * @param dst
+     * @param dstOff
+     */
+    public void getResponseRegisters(short[] dst, int dstOff) {
+        if (!responseReady)
+            throw new IllegalStateException();
+        checkBounds(dst.length, dstOff, expectedCount);
+        decodeRegisters(expectedCount, dst, dstOff);
+    }
+
+    static void checkBounds(int length, int off, int count) {
+        if ((off < 0) || (count < 0) || (count > length - off))
+            throw new IndexOutOfBoundsException();
+    }
+
+    // the response is checked by the transport, the data starts at pdu[2] in the ADU
+    void decodeRegisters(int count, short[] dst, int dstOff) {
+        for (int i = 0, p = PDU_OFFSET + 2; i < count; i++, p += 2)
+            dst[dstOff + i] = (short) ((adu[p] << 8) | (adu[p + 1] & 0xFF));
+    }
+
+    void decodeBits(int count, boolean[] dst, int dstOff) {
+        for (int i = 0; i < count; i++)
+            dst[dstOff + i] = (adu[PDU_OFFSET + 2 + (i >> 3)] & (1 << (i & 7))) != 0;
+    }
+
+    void decodeInt32s(int count, int[] dst, int dstOff, boolean bigEndian) {
+        for (int i = 0, p = PDU_OFFSET + 2; i < count; i++, p += 4)
+            dst[dstOff + i] = int32At(p, bigEndian);
+    }
+
+    void decodeFloats(int count, float[] dst, int dstOff, boolean bigEndian) {
+        for (int i = 0, p = PDU_OFFSET + 2; i < count; i++, p += 4)
+            dst[dstOff + i] = Float.intBitsToFloat(int32At(p, bigEndian));
+    }
+
+    private int int32At(int p, boolean bigEndian) {
+        int first = ((adu[p] & 0xFF) << 8) | (adu[p + 1] & 0xFF);
+        int second = ((adu[p + 2] & 0xFF) << 8) | (adu[p + 3] & 0xFF);
+        if (bigEndian)
+            return (first << 16) | second;
+        else
+            return (second << 16) | first;
+    }
+
+}
@@ -2,10 +2,9 @@
 
 package tijos.framework.component.modbus.rtu;
 
-import static tijos.framework.component.modbus.protocol.ModbusConstants.MAX_PDU_SIZE;
-
 import java.io.IOException;
 
+import tijos.framework.component.modbus.protocol.ModbusCrc16;
 import tijos.framework.component.modbus.protocol.ModbusPdu;
 import tijos.framework.component.serialport.*;
 import tijos.framework.util.logging.Logger;
@@ -13,23 +12,28 @@ import tijos.framework.util.logging.Logger;
 /**
  * MODBUS RTU RS485 Transport
  */
-public class RtuTransportUART implements ModbusClientTransport {
+public class RtuTransportUART implements ModbusClientTransport, ISerialFrameListener {
 
-    TiSerialPort serialPort;
+    ISerialPort serialPort;
 
     protected final int timeout;
     protected final int pause;
-    protected final byte[] buffer = new byte[MAX_PDU_SIZE + 3]; // ADU: [ID(1), PDU(n), CRC(2)]
     protected int expectedBytes; // for logging
+    protected boolean logFrames;
+
+    // CRC of the response, updated as the bytes arrive
+    private ModbusCrc16 crc = new ModbusCrc16();
+    protected long lastFrame; // end of the last frame on the bus
 
     /**
      * Initialize with UART and timeout
      *
      * @param uart
-     * @param timeout timeout for receiving data from UART
+     * @param timeout timeout for the first byte of the response, a missing
+     *                server fails after it
      * @param pause   pause after sending data
      */
-    public RtuTransportUART(TiSerialPort rs485, int timeout, int pause) {
+    public RtuTransportUART(ISerialPort rs485, int timeout, int pause) {
         this.serialPort = rs485;
 
         this.timeout = timeout;
@@ -49,6 +53,24 @@ public class RtuTransportUART implements ModbusClientTransport {
         this.serialPort.open(baudRate, dataBitNum, stopBitNum, parity);
     }
 
+    /**
+     * Log the frames in hex, the log is not built if it's disabled
+     *
+     * @param enable false by default
+     */
+    public void setLogFrames(boolean enable) {
+        this.logFrames = enable;
+    }
+
+    /**
+     * CRC engine of the responses
+     *
+     * @param engine ModbusCrc16.ENGINE_*
+     */
+    public void setCrcEngine(int engine) {
+        this.crc = new ModbusCrc16(engine);
+    }
+
     /**
      * Close
      */
@@ -66,108 +88,145 @@ public class RtuTransportUART implements ModbusClientTransport {
      * Send MODBUS request
      */
     @Override
-    public void sendRequest(ModbusClient modbusClient) throws Exception {
+    public void sendRequest(ModbusTransaction transaction) throws Exception {
+
+        // t3.5 silence between frames
+        long idle = System.currentTimeMillis() - lastFrame;
+        if (idle < this.serialPort.getFrameSilence())
+            Thread.sleep(this.serialPort.getFrameSilence() - idle);
 
         this.serialPort.clearInput();
 
-        buffer[0] = modbusClient.getServerId();
-        modbusClient.readFromPdu(0, modbusClient.getPduSize(), buffer, 1);
-        int size = modbusClient.getPduSize() + 1; // including 1 byte for serverId
-        int crc = ModbusPdu.calcCRC16(buffer, 0, size);
-        buffer[size] = ModbusPdu.lowByte(crc);
-        buffer[size + 1] = ModbusPdu.highByte(crc);
+        // the PDU is already in the ADU after the id
+        byte[] adu = transaction.getAdu();
+        adu[0] = transaction.getServerId();
+        int size = transaction.getPduSize() + 1; // including 1 byte for serverId
+        int crc = ModbusPdu.calcCRC16(adu, 0, size);
+        adu[size] = ModbusPdu.lowByte(crc);
+        adu[size + 1] = ModbusPdu.highByte(crc);
         size = size + 2;
 
-        Logger.info("Modbus", "Write: " + ModbusPdu.toHex(buffer, 0, size));
+        if (logFrames)
+            Logger.info("Modbus", "Write: " + ModbusPdu.toHex(adu, 0, size));
 
-        this.serialPort.write(buffer, 0, size);
-        if (pause > 0) {
-            Logger.info("Modbus", "Pause " + pause);
+        this.serialPort.write(adu, 0, size);
+        if (pause > 0)
             Thread.sleep(pause);
-        }
 
     }
 
 
     /**
-     * Waiting for response
+     * Waiting for response, the frame ends on its expected length or on t3.5
+     * silence, the CRC is checked as the bytes arrive. It's received into
+     * the ADU of the transaction in place of the request, the request is put
+     * back when the response is not valid.
      */
     @Override
-    public int waitResponse(ModbusClient modbusClient) throws Exception {
+    public int waitResponse(ModbusTransaction transaction) throws Exception {
+        transaction.saveRequest();
+        boolean received = false;
+        try {
+            int result = receive(transaction);
+            received = (result == ModbusTransaction.RESULT_OK) || (result == ModbusTransaction.RESULT_EXCEPTION);
+            return result;
+        } finally {
+            if (!received)
+                transaction.restoreRequest();
+        }
+    }
 
-        expectedBytes = modbusClient.getExpectedPduSize() + 3; // id(1), PDU(n), crc(2)
+    private int receive(ModbusTransaction transaction) throws Exception {
 
-        // read id
-        if (!this.serialPort.readToBuffer(this.buffer, 0, 1, this.timeout))
-            return ModbusClient.RESULT_TIMEOUT;
-        if (buffer[0] != modbusClient.getServerId()) {
-            logData("bad id", 0, 1);
+        expectedBytes = transaction.getExpectedPduSize() + 3; // id(1), PDU(n), crc(2)
+
+        // function of the request before the response replaces it
+        int function = transaction.getFunction();
+        byte[] adu = transaction.getAdu();
+        int wait = transaction.getRequestTimeout() > 0 ? transaction.getRequestTimeout() : this.timeout;
+        crc.reset();
+        int size = this.serialPort.readFrame(adu, 0, adu.length, wait, this);
+        lastFrame = System.currentTimeMillis();
+        if (size == 0)
+            return ModbusTransaction.RESULT_TIMEOUT;
+
+        if (adu[0] != transaction.getServerId()) {
+            logData("bad id", adu, size);
             Logger.warning("Modbus",
-                    "waitResponse(): Invalid id: " + buffer[0] + "expected:" + modbusClient.getServerId());
-            return ModbusClient.RESULT_BAD_RESPONSE;
+                    "waitResponse(): Invalid id: " + adu[0] + "expected:" + transaction.getServerId());
+            return ModbusTransaction.RESULT_BAD_RESPONSE;
         }
 
-        // read function (bit7 means exception)
-        if (!this.serialPort.readToBuffer(this.buffer, 1, 1, this.timeout))
-            return ModbusClient.RESULT_TIMEOUT;
-        if ((buffer[1] & 0x7f) != modbusClient.getFunction()) {
-            logData("bad function", 0, 2);
-            Logger.warning("Modbus",
-                    "waitResponse(): Invalid function: " + buffer[1] + "expected: " + modbusClient.getFunction());
-            return ModbusClient.RESULT_BAD_RESPONSE;
+        // function (bit7 means exception)
+        if ((size < 2) || ((adu[1] & 0x7f) != function)) {
+            logData("bad function", adu, size);
+            Logger.warning("Modbus", "waitResponse(): Invalid function: " + adu[1] + "expected: " + function);
+            return ModbusTransaction.RESULT_BAD_RESPONSE;
         }
 
-        if ((buffer[1] & 0x80) != 0) {
+        if ((adu[1] & 0x80) != 0) {
             // EXCEPTION
             expectedBytes = 5; // id(1), function(1), exception code(1), crc(2)
-            if (!this.serialPort.readToBuffer(this.buffer, 2, 3, this.timeout)) // exception code + CRC
-                return ModbusClient.RESULT_TIMEOUT;
-            if (crcValid(3)) {
-                logData("exception", 0, expectedBytes);
-                modbusClient.setPduSize(2); // function + exception code
-                modbusClient.writeToPdu(buffer, 1, modbusClient.getPduSize(), 0);
-                return ModbusClient.RESULT_EXCEPTION;
+            if ((size == expectedBytes) && crcValid()) {
+                logData("exception", adu, expectedBytes);
+                transaction.setPduSize(2); // function + exception code
+                return ModbusTransaction.RESULT_EXCEPTION;
             } else {
-                logData("bad crc (exception)", 0, expectedBytes);
-                return ModbusClient.RESULT_BAD_RESPONSE;
+                logData("bad exception", adu, size);
+                return ModbusTransaction.RESULT_BAD_RESPONSE;
             }
         } else {
             // NORMAL RESPONSE
-            if (!this.serialPort.readToBuffer(this.buffer, 2, modbusClient.getExpectedPduSize() + 1, this.timeout)) // data + CRC (without function)
-                return ModbusClient.RESULT_TIMEOUT;
+            if (size != expectedBytes) {
+                logData("bad length", adu, size);
+                Logger.warning("Modbus", "waitResponse(): Invalid length: " + size + " expected: " + expectedBytes);
+                return ModbusTransaction.RESULT_BAD_RESPONSE;
+            }
+
             // CRC check of (serverId + PDU)
-            if (crcValid(1 + modbusClient.getExpectedPduSize())) {
-                logData("normal", 0, expectedBytes);
-                modbusClient.setPduSize(modbusClient.getExpectedPduSize());
-                modbusClient.writeToPdu(buffer, 1, modbusClient.getPduSize(), 0);
-                return ModbusClient.RESULT_OK;
+            if (crcValid()) {
+                logData("normal", adu, expectedBytes);
+                transaction.setPduSize(transaction.getExpectedPduSize());
+                return ModbusTransaction.RESULT_OK;
             } else {
-                logData("bad crc", 0, expectedBytes);
-                return ModbusClient.RESULT_BAD_RESPONSE;
+                logData("bad crc", adu, expectedBytes);
+                return ModbusTransaction.RESULT_BAD_RESPONSE;
             }
         }
     }
 
-    protected void logData(String kind, int start, int length) {
-        Logger.info("Modbus", "Read: " + ModbusPdu.toHex(buffer, start, length));
+    protected void logData(String kind, byte[] adu, int length) {
+        if (logFrames)
+            Logger.info("Modbus", "Read " + kind + ": " + ModbusPdu.toHex(adu, 0, length));
     }
 
     /**
-     * CRC validation
+     * Response bytes arrived, the frame is complete at the expected length
+     */
+    @Override
+    public boolean onFrameData(byte[] buffer, int off, int len) {
+        crc.update(buffer, off, len);
+
+        int size = off + len;
+        if (size < 2)
+            return false;
+
+        // exception: id(1), function(1), exception code(1), crc(2)
+        int expected = ((buffer[1] & 0x80) != 0) ? 5 : expectedBytes;
+        return size >= expected;
+    }
+
+    /**
+     * CRC validation of the received frame including its CRC
      *
-     * @param size
      * @return
      */
-    protected boolean crcValid(int size) {
-        int crc = ModbusPdu.calcCRC16(buffer, 0, size);
-        int crc2 = ModbusPdu.bytesToInt16(buffer[size], buffer[size + 1], true);
-        if (crc == crc2)
+    protected boolean crcValid() {
+        if (crc.isValid())
             return true;
-        else {
-            Logger.warning("Modbus",
-                    "CRC error calc:" + Integer.toHexString(crc) + " in response: " + Integer.toHexString(crc2));
-            return false;
-        }
+
+        Logger.warning("Modbus", "CRC error in response");
+        return false;
     }
 
 }
@@ -0,0 +1,334 @@
+package tijos.framework.component.modbus.sim;
+
+import java.io.IOException;
+import java.util.Random;
+
+import tijos.framework.component.modbus.protocol.ModbusCrc16;
+import tijos.framework.component.serialport.ISerialFrameListener;
+import tijos.framework.component.serialport.ISerialPort;
+
+/**
+ * Emulated RS485 multi-drop bus with simulated servers, used as the serial
+ * port of a {@link tijos.framework.component.modbus.rtu.ModbusClient} without
+ * hardware. A request frame is executed by the server with its id, or by all
+ * servers for broadcast, and the response is received after the time of the
+ * request on the line, the latency of the server and the time of the response
+ * on the line at the baud rate.
+ * <p>
+ * The faults come from a random generator with a fixed seed, and the time on
+ * the bus is counted by a virtual clock from the frame sizes, the latencies and
+ * the timeouts, so a run gives the same results on any machine. In real time
+ * mode the reads also wait the time of the bus, otherwise they return at once.
+ * </p>
+ */
+public class ModbusSimulatedBus implements ISerialPort {
+
+    private final Random random;
+    private boolean realTime = true;
+
+    private ModbusSlaveSimulator[] slaves = new ModbusSlaveSimulator[4];
+    private int slaveCount;
+
+    // communication parameters
+    private int baudRate;
+    private int charTime;
+    private int frameSilence = 5;
+
+    // pending response, the bytes are on the line from start to end
+    private final byte[] response = new byte[256];
+    private int responseSize;
+    private long responseStart; // virtual microseconds
+    private long responseEnd;
+    private long responseWall; // wall clock milliseconds of the end in real time mode
+
+    // virtual clock and statistics
+    private long clock; // microseconds
+    private long lineTime; // microseconds with a frame on the line
+    private int frames;
+    private int timeouts;
+    private int badRequests;
+
+    /**
+     * Initialize at 9600 8N1
+     *
+     * @param seed seed of the faults
+     */
+    public ModbusSimulatedBus(long seed) {
+        this.random = new Random(seed);
+        open(9600, 8, 1, 0);
+    }
+
+    /**
+     * Whether the reads wait the time of the bus
+     *
+     * @param enable true by default
+     */
+    public synchronized void setRealTime(boolean enable) {
+        this.realTime = enable;
+    }
+
+    /**
+     * Add a server to the bus
+     *
+     * @param slave
+     */
+    public synchronized void add(ModbusSlaveSimulator slave) {
+        if (find(slave.getServerId()) != null)
+            throw new IllegalArgumentException("Duplicated server id " + slave.getServerId());
+
+        if (slaveCount == slaves.length) {
+            ModbusSlaveSimulator[] a = new ModbusSlaveSimulator[slaves.length * 2];
+            System.arraycopy(slaves, 0, a, 0, slaveCount);
+            slaves = a;
+        }
+        slaves[slaveCount++] = slave;
+    }
+
+    /**
+     * Server on the bus
+     *
+     * @param serverId
+     * @return null if it's not on the bus
+     */
+    public synchronized ModbusSlaveSimulator find(int serverId) {
+        for (int i = 0; i < slaveCount; i++) {
+            if (slaves[i].getServerId() == serverId)
+                return slaves[i];
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized void open(int baudRate, int dataBitNum, int stopBitNum, int parity) {
+        int bits = 1 + dataBitNum + (parity != 0 ? 1 : 0) + stopBitNum;
+        this.baudRate = baudRate;
+        this.charTime = (int) (bits * 1000000L / baudRate);
+        this.frameSilence = (getT35() + 999) / 1000 + 1;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public synchronized int getBaudRate() {
+        return baudRate;
+    }
+
+    @Override
+    public synchronized int getCharTime() {
+        return charTime;
+    }
+
+    @Override
+    public synchronized int getT15() {
+        if (baudRate > 19200)
+            return 750;
+        return charTime * 3 / 2;
+    }
+
+    @Override
+    public synchronized int getT35() {
+        if (baudRate > 19200)
+            return 1750;
+        return charTime * 7 / 2;
+    }
+
+    @Override
+    public synchronized int getFrameSilence() {
+        return frameSilence;
+    }
+
+    @Override
+    public synchronized void setFrameSilence(int ms) {
+        if (ms < 1)
+            throw new IllegalArgumentException();
+        this.frameSilence = ms;
+    }
+
+    /**
+     * Time of the bus since the start
+     *
+     * @return virtual microseconds
+     */
+    public synchronized long getTime() {
+        return clock;
+    }
+
+    /**
+     * Time with a frame on the line
+     *
+     * @return virtual microseconds
+     */
+    public synchronized long getLineTime() {
+        return lineTime;
+    }
+
+    /**
+     * Percentage of the time with a frame on the line
+     *
+     * @return 0 - 100
+     */
+    public synchronized int getUtilization() {
+        return clock == 0 ? 0 : (int) (lineTime * 100 / clock);
+    }
+
+    /**
+     * Request frames written
+     *
+     * @return
+     */
+    public synchronized int getFrames() {
+        return frames;
+    }
+
+    /**
+     * Reads without response
+     *
+     * @return
+     */
+    public synchronized int getTimeouts() {
+        return timeouts;
+    }
+
+    /**
+     * Request frames with a wrong CRC, ignored by the servers
+     *
+     * @return
+     */
+    public synchronized int getBadRequests() {
+        return badRequests;
+    }
+
+    /**
+     * Reset the clock and the statistics
+     */
+    public synchronized void resetStatistics() {
+        clock = 0;
+        lineTime = 0;
+        frames = 0;
+        timeouts = 0;
+        badRequests = 0;
+    }
+
+    @Override
+    public synchronized void clearInput() {
+        responseSize = 0;
+    }
+
+    /**
+     * Send a request frame to the servers
+     */
+    @Override
+    public synchronized void write(byte[] buffer, int start, int length) throws IOException {
+        if (frames > 0)
+            clock += getT35(); // silence between frames
+        frames++;
+        long wall = System.currentTimeMillis();
+        long sent = clock;
+        passLine(length);
+
+        if ((length < 4) || (ModbusCrc16.compute(buffer, start, length) != 0)) {
+            badRequests++;
+            return;
+        }
+
+        int id = buffer[start] & 0xFF;
+        if (id == 0) {
+            for (int i = 0; i < slaveCount; i++)
+                slaves[i].process(buffer, start, length, response, random);
+            return;
+        }
+
+        ModbusSlaveSimulator slave = find(id);
+        if (slave == null)
+            return;
+
+        int latency = slave.nextLatency(random);
+        int size = slave.process(buffer, start, length, response, random);
+        if (size == 0)
+            return;
+
+        responseSize = size;
+        responseStart = clock + Math.max(getT35(), latency * 1000L);
+        responseEnd = responseStart + (long) size * charTime;
+        responseWall = wall + (responseEnd - sent + 999) / 1000;
+    }
+
+    @Override
+    public byte[] read() throws IOException {
+        return read(0);
+    }
+
+    @Override
+    public byte[] read(int msec) throws IOException {
+        byte[] buf = new byte[256];
+        int n = readFrame(buf, 0, buf.length, msec);
+        if (n == 0)
+            return null;
+
+        byte[] data = new byte[n];
+        System.arraycopy(buf, 0, data, 0, n);
+        return data;
+    }
+
+    @Override
+    public int readFrame(byte[] buffer, int start, int length, int firstByteTimeout) throws IOException {
+        return readFrame(buffer, start, length, firstByteTimeout, null);
+    }
+
+    /**
+     * Read the pending response if its first byte arrives in time, the clock
+     * passes the response and the silence ending it
+     */
+    @Override
+    public int readFrame(byte[] buffer, int start, int length, int firstByteTimeout, ISerialFrameListener listener)
+            throws IOException {
+        long wait;
+        int n;
+
+        synchronized (this) {
+            long timeout = firstByteTimeout * 1000L;
+            if ((responseSize == 0) || (responseStart - clock > timeout)) {
+                // a late response stays in the input
+                clock += timeout;
+                timeouts++;
+                wait = firstByteTimeout;
+                n = 0;
+            } else {
+                n = Math.min(responseSize, length);
+                System.arraycopy(response, 0, buffer, start, n);
+                responseSize = 0;
+                lineTime += responseEnd - responseStart;
+                clock = responseEnd;
+                wait = responseWall - System.currentTimeMillis();
+
+                boolean ended = (listener != null) && listener.onFrameData(buffer, start, n);
+                if (!ended) {
+                    clock += frameSilence * 1000L;
+                    wait += frameSilence;
+                }
+            }
+        }
+
+        if (realTime && (wait > 0)) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException ie) {
+                throw new IOException("Interrupted");
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public boolean readToBuffer(byte[] buffer, int start, int length, int timeOut) throws IOException {
+        return readFrame(buffer, start, length, timeOut) == length;
+    }
+
+    private void passLine(int bytes) {
+        long t = (long) bytes * charTime;
+        clock += t;
+        lineTime += t;
+    }
+}
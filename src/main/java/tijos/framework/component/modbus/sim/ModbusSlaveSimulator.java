@@ -0,0 +1,283 @@
+package tijos.framework.component.modbus.sim;
+
+import static tijos.framework.component.modbus.protocol.ModbusConstants.*;
+
+import java.util.Random;
+
+import tijos.framework.component.modbus.protocol.ModbusPdu;
+
+/**
+ * Simulated MODBUS RTU server with its register maps, hosted by a
+ * {@link ModbusSimulatedBus}. It executes the read and write functions, an
+ * address out of the maps gets the exception ILLEGAL DATA ADDRESS. The
+ * response time and the rates of missing and corrupted responses are set per
+ * server.
+ */
+public class ModbusSlaveSimulator {
+
+    private final int serverId;
+
+    private final boolean[] coils;
+    private final boolean[] discreteInputs;
+    private final short[] holdingRegisters;
+    private final short[] inputRegisters;
+
+    private int latency; // milliseconds
+    private int jitter;
+    private double dropoutRate;
+    private double corruptionRate;
+
+    // statistics
+    private int requests;
+    private int responses;
+    private int exceptions;
+    private int dropped;
+    private int corrupted;
+
+    /**
+     * Initialize with the size of the register maps
+     *
+     * @param serverId         1 - 247
+     * @param coils
+     * @param discreteInputs
+     * @param holdingRegisters
+     * @param inputRegisters
+     */
+    public ModbusSlaveSimulator(int serverId, int coils, int discreteInputs, int holdingRegisters,
+                                int inputRegisters) {
+        if ((serverId < 1) || (serverId > 247))
+            throw new IllegalArgumentException("Server id " + serverId);
+        this.serverId = serverId;
+        this.coils = new boolean[coils];
+        this.discreteInputs = new boolean[discreteInputs];
+        this.holdingRegisters = new short[holdingRegisters];
+        this.inputRegisters = new short[inputRegisters];
+    }
+
+    public int getServerId() {
+        return serverId;
+    }
+
+    /**
+     * Processing time before the response
+     *
+     * @param ms     milliseconds
+     * @param jitter random milliseconds added, 0 - jitter
+     */
+    public synchronized void setLatency(int ms, int jitter) {
+        if ((ms < 0) || (jitter < 0))
+            throw new IllegalArgumentException();
+        this.latency = ms;
+        this.jitter = jitter;
+    }
+
+    /**
+     * Rates of faults
+     *
+     * @param dropout    probability of a request without response, 0 - 1
+     * @param corruption probability of a response with a corrupted bit, 0 - 1
+     */
+    public synchronized void setErrorRates(double dropout, double corruption) {
+        if ((dropout < 0) || (dropout > 1) || (corruption < 0) || (corruption > 1))
+            throw new IllegalArgumentException();
+        this.dropoutRate = dropout;
+        this.corruptionRate = corruption;
+    }
+
+    public synchronized void setCoil(int address, boolean value) {
+        coils[address] = value;
+    }
+
+    public synchronized boolean getCoil(int address) {
+        return coils[address];
+    }
+
+    public synchronized void setDiscreteInput(int address, boolean value) {
+        discreteInputs[address] = value;
+    }
+
+    public synchronized void setHoldingRegister(int address, int value) {
+        holdingRegisters[address] = (short) value;
+    }
+
+    public synchronized int getHoldingRegister(int address) {
+        return holdingRegisters[address] & 0xFFFF;
+    }
+
+    public synchronized void setInputRegister(int address, int value) {
+        inputRegisters[address] = (short) value;
+    }
+
+    public synchronized int getRequests() {
+        return requests;
+    }
+
+    public synchronized int getResponses() {
+        return responses;
+    }
+
+    public synchronized int getExceptions() {
+        return exceptions;
+    }
+
+    /**
+     * Requests without response by the dropout rate
+     *
+     * @return
+     */
+    public synchronized int getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Responses corrupted by the corruption rate
+     *
+     * @return
+     */
+    public synchronized int getCorrupted() {
+        return corrupted;
+    }
+
+    /**
+     * Execute a request frame addressed to the server or broadcast, its CRC is
+     * checked by the bus hosting the server
+     *
+     * @param frame    id, PDU and CRC
+     * @param off
+     * @param len
+     * @param response id, PDU and CRC of the response
+     * @param random   source of the faults
+     * @return size of the response, 0 for no response
+     */
+    public synchronized int process(byte[] frame, int off, int len, byte[] response, Random random) {
+        requests++;
+        boolean broadcast = frame[off] == BROADCAST_ID;
+
+        if (!broadcast && (dropoutRate > 0) && (random.nextDouble() < dropoutRate)) {
+            dropped++;
+            return 0;
+        }
+
+        int pduSize = execute(frame, off + 1, len - 3, response, 1);
+        if (broadcast)
+            return 0;
+
+        if ((response[1] & 0x80) != 0)
+            exceptions++;
+        responses++;
+
+        response[0] = (byte) serverId;
+        int size = pduSize + 1;
+        int crc = ModbusPdu.calcCRC16(response, 0, size);
+        response[size] = ModbusPdu.lowByte(crc);
+        response[size + 1] = ModbusPdu.highByte(crc);
+        size += 2;
+
+        if ((corruptionRate > 0) && (random.nextDouble() < corruptionRate)) {
+            corrupted++;
+            response[random.nextInt(size)] ^= (byte) (1 << random.nextInt(8));
+        }
+        return size;
+    }
+
+    /**
+     * Response time of the next request
+     *
+     * @param random
+     * @return milliseconds
+     */
+    public synchronized int nextLatency(Random random) {
+        return jitter > 0 ? latency + random.nextInt(jitter + 1) : latency;
+    }
+
+    // execute the PDU, the size of the response PDU
+    private int execute(byte[] req, int off, int len, byte[] resp, int p) {
+        int function = req[off];
+        if (len < 5)
+            return exception(resp, p, function, EX_ILLEGAL_DATA_VALUE);
+
+        int address = ((req[off + 1] & 0xFF) << 8) | (req[off + 2] & 0xFF);
+        int value = ((req[off + 3] & 0xFF) << 8) | (req[off + 4] & 0xFF);
+
+        switch (function) {
+            case FN_READ_COILS:
+            case FN_READ_DISCRETE_INPUTS: {
+                boolean[] bits = function == FN_READ_COILS ? coils : discreteInputs;
+                if ((value < 1) || (value > MAX_READ_COILS))
+                    return exception(resp, p, function, EX_ILLEGAL_DATA_VALUE);
+                if (address + value > bits.length)
+                    return exception(resp, p, function, EX_ILLEGAL_DATA_ADDRESS);
+
+                int bytes = ModbusPdu.bytesCount(value);
+                resp[p] = (byte) function;
+                resp[p + 1] = (byte) bytes;
+                for (int i = 0; i < bytes; i++)
+                    resp[p + 2 + i] = 0;
+                for (int i = 0; i < value; i++) {
+                    if (bits[address + i])
+                        resp[p + 2 + (i >> 3)] |= (byte) (1 << (i & 7));
+                }
+                return 2 + bytes;
+            }
+            case FN_READ_HOLDING_REGISTERS:
+            case FN_READ_INPUT_REGISTERS: {
+                short[] regs = function == FN_READ_HOLDING_REGISTERS ? holdingRegisters : inputRegisters;
+                if ((value < 1) || (value > MAX_READ_REGS))
+                    return exception(resp, p, function, EX_ILLEGAL_DATA_VALUE);
+                if (address + value > regs.length)
+                    return exception(resp, p, function, EX_ILLEGAL_DATA_ADDRESS);
+
+                resp[p] = (byte) function;
+                resp[p + 1] = (byte) (value * 2);
+                for (int i = 0; i < value; i++) {
+                    resp[p + 2 + i * 2] = (byte) (regs[address + i] >> 8);
+                    resp[p + 3 + i * 2] = (byte) regs[address + i];
+                }
+                return 2 + value * 2;
+            }
+            case FN_WRITE_SINGLE_COIL:
+                if ((value != 0) && (value != 0xFF00))
+                    return exception(resp, p, function, EX_ILLEGAL_DATA_VALUE);
+                if (address >= coils.length)
+                    return exception(resp, p, function, EX_ILLEGAL_DATA_ADDRESS);
+                coils[address] = value != 0;
+                return echo(req, off, resp, p);
+            case FN_WRITE_SINGLE_REGISTER:
+                if (address >= holdingRegisters.length)
+                    return exception(resp, p, function, EX_ILLEGAL_DATA_ADDRESS);
+                holdingRegisters[address] = (short) value;
+                return echo(req, off, resp, p);
+            case FN_WRITE_MULTIPLE_COILS:
+                if ((value < 1) || (value > MAX_WRITE_COILS) || (len != 6 + ModbusPdu.bytesCount(value)))
+                    return exception(resp, p, function, EX_ILLEGAL_DATA_VALUE);
+                if (address + value > coils.length)
+                    return exception(resp, p, function, EX_ILLEGAL_DATA_ADDRESS);
+                for (int i = 0; i < value; i++)
+                    coils[address + i] = (req[off + 6 + (i >> 3)] & (1 << (i & 7))) != 0;
+                return echo(req, off, resp, p);
+            case FN_WRITE_MULTIPLE_REGISTERS:
+                if ((value < 1) || (value > MAX_WRITE_REGS) || (len != 6 + value * 2))
+                    return exception(resp, p, function, EX_ILLEGAL_DATA_VALUE);
+                if (address + value > holdingRegisters.length)
+                    return exception(resp, p, function, EX_ILLEGAL_DATA_ADDRESS);
+                for (int i = 0; i < value; i++)
+                    holdingRegisters[address + i] = (short) (((req[off + 6 + i * 2] & 0xFF) << 8)
+                            | (req[off + 7 + i * 2] & 0xFF));
+                return echo(req, off, resp, p);
+            default:
+                return exception(resp, p, function, EX_ILLEGAL_FUNCTION);
+        }
+    }
+
+    // function, address and value or count of a write request
+    private static int echo(byte[] req, int off, byte[] resp, int p) {
+        System.arraycopy(req, off, resp, p, 5);
+        return 5;
+    }
+
+    private static int exception(byte[] resp, int p, int function, int code) {
+        resp[p] = (byte) (function | 0x80);
+        resp[p + 1] = (byte) code;
+        return 2;
+    }
+}
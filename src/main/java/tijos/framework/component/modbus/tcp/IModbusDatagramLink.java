@@ -0,0 +1,36 @@
+package tijos.framework.component.modbus.tcp;
+
+import java.io.IOException;
+
+/**
+ * Datagram link to a MODBUS server, such as a UDP socket bound to the address
+ * of the server. A datagram carries one whole frame.
+ */
+public interface IModbusDatagramLink {
+
+    /**
+     * Send a datagram
+     *
+     * @param buf
+     * @param off
+     * @param len
+     * @throws IOException
+     */
+    void send(byte[] buf, int off, int len) throws IOException;
+
+    /**
+     * Wait for the next datagram, the bytes beyond the buffer are dropped
+     *
+     * @param buf
+     * @param off
+     * @param len size of the buffer
+     * @return size of the datagram
+     * @throws IOException the link is closed
+     */
+    int receive(byte[] buf, int off, int len) throws IOException;
+
+    /**
+     * Close the link, a waiting receive fails
+     */
+    void close();
+}
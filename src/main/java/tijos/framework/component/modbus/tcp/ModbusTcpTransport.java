@@ -0,0 +1,346 @@
+package tijos.framework.component.modbus.tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import tijos.framework.component.modbus.protocol.ModbusMbap;
+import tijos.framework.component.modbus.protocol.ModbusPdu;
+import tijos.framework.component.modbus.rtu.IModbusPipelinedTransport;
+import tijos.framework.component.modbus.rtu.ModbusTransaction;
+
+/**
+ * MODBUS TCP transport on the streams of a connection, such as a TCP socket
+ * to a MODBUS TCP server or an Ethernet to RS485 gateway. Up to the window of
+ * requests are outstanding, a reader thread matches the responses to the
+ * requests by the transaction id of the MBAP header, late responses of timed
+ * out requests are discarded.
+ */
+public class ModbusTcpTransport implements IModbusPipelinedTransport {
+
+    /**
+     * Default max outstanding requests
+     */
+    public static final int DEFAULT_WINDOW = 4;
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final int timeout;
+
+    // outstanding requests, the slot is free if tx is null
+    private final ModbusTransaction[] txs;
+    private final int[] tids;
+    private final int[] functions;
+    private final int[] sizes; // PDU size of the response, -1 until it arrives
+    private int pending;
+
+    private int nextTid;
+    private int discarded;
+    private Thread reader;
+    private IOException error;
+    private boolean closed;
+
+    private final byte[] tx = new byte[ModbusMbap.MAX_FRAME_SIZE]; // used by the client bus thread
+    private final byte[] rx = new byte[ModbusMbap.MAX_FRAME_SIZE]; // used by the reader thread
+
+    /**
+     * Initialize for a subclass writing and reading the frames on its own link,
+     * see {@link #writeFrame(byte[], int)} and {@link #readFrame(byte[])}
+     *
+     * @param timeout timeout of a response in milliseconds
+     * @param window  max outstanding requests
+     */
+    protected ModbusTcpTransport(int timeout, int window) {
+        this(null, null, timeout, window);
+    }
+
+    /**
+     * Initialize with the default window
+     *
+     * @param in
+     * @param out
+     * @param timeout timeout of a response in milliseconds
+     */
+    public ModbusTcpTransport(InputStream in, OutputStream out, int timeout) {
+        this(in, out, timeout, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Initialize
+     *
+     * @param in
+     * @param out
+     * @param timeout timeout of a response in milliseconds
+     * @param window  max outstanding requests, 1 for one request at a time
+     */
+    public ModbusTcpTransport(InputStream in, OutputStream out, int timeout, int window) {
+        if ((timeout <= 0) || (window < 1))
+            throw new IllegalArgumentException();
+        this.in = in;
+        this.out = out;
+        this.timeout = timeout;
+
+        this.txs = new ModbusTransaction[window];
+        this.tids = new int[window];
+        this.functions = new int[window];
+        this.sizes = new int[window];
+    }
+
+    @Override
+    public int getWindow() {
+        return txs.length;
+    }
+
+    /**
+     * Responses without a waiting request, such as late responses
+     *
+     * @return
+     */
+    public synchronized int getDiscarded() {
+        return discarded;
+    }
+
+    /**
+     * Send the request with the next transaction id, it waits while the window
+     * is full
+     */
+    @Override
+    public void sendRequest(ModbusTransaction transaction) throws Exception {
+        int unit = transaction.getServerId() & 0xFF;
+        int tid;
+        int slot = -1;
+
+        synchronized (this) {
+            checkOpen();
+
+            // no response to broadcast
+            if (unit != 0) {
+                while (pending == txs.length) {
+                    this.wait();
+                    checkOpen();
+                }
+            }
+
+            nextTid = (nextTid + 1) & 0xFFFF;
+            tid = nextTid;
+
+            if (unit != 0) {
+                slot = 0;
+                while (txs[slot] != null)
+                    slot++;
+                txs[slot] = transaction;
+                tids[slot] = tid;
+                functions[slot] = transaction.getFunction();
+                sizes[slot] = -1;
+                pending++;
+            }
+
+            if (reader == null) {
+                reader = new Thread(new Runnable() {
+                    public void run() {
+                        readResponses();
+                    }
+                });
+                reader.setDaemon(true);
+                reader.start();
+            }
+        }
+
+        int pduSize = transaction.getPduSize();
+        ModbusMbap.writeHeader(tx, 0, tid, unit, pduSize);
+        transaction.readFromPdu(0, pduSize, tx, ModbusMbap.HEADER_SIZE);
+
+        try {
+            writeFrame(tx, ModbusMbap.HEADER_SIZE + pduSize);
+        } catch (IOException ex) {
+            synchronized (this) {
+                if (slot >= 0)
+                    free(slot);
+            }
+            failed(ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Wait for the response with the transaction id of the request, it's
+     * copied to the PDU of the transaction
+     */
+    @Override
+    public int waitResponse(ModbusTransaction transaction) throws Exception {
+        int wait = transaction.getRequestTimeout() > 0 ? transaction.getRequestTimeout() : this.timeout;
+        int size;
+        int function;
+
+        synchronized (this) {
+            int slot = find(transaction);
+            if (slot < 0)
+                throw new IllegalStateException("Not sent");
+
+            long deadline = System.currentTimeMillis() + wait;
+            while ((sizes[slot] < 0) && (error == null)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    free(slot);
+                    return ModbusTransaction.RESULT_TIMEOUT;
+                }
+                this.wait(remaining);
+            }
+
+            size = sizes[slot];
+            function = functions[slot];
+            free(slot);
+            if (size < 0)
+                throw error;
+        }
+
+        int received = transaction.getFunction();
+        if ((received & 0x7F) != function)
+            return ModbusTransaction.RESULT_BAD_RESPONSE;
+
+        if ((received & 0x80) != 0) {
+            if (size != 2)
+                return ModbusTransaction.RESULT_BAD_RESPONSE;
+            transaction.setPduSize(2); // function + exception code
+            return ModbusTransaction.RESULT_EXCEPTION;
+        }
+
+        if (size != transaction.getExpectedPduSize())
+            return ModbusTransaction.RESULT_BAD_RESPONSE;
+        transaction.setPduSize(size);
+        return ModbusTransaction.RESULT_OK;
+    }
+
+    // reader thread
+    private void readResponses() {
+        try {
+            while (true) {
+                int size = readFrame(rx);
+                if (ModbusMbap.getProtocolId(rx, 0) != ModbusMbap.PROTOCOL_ID)
+                    continue;
+                received(ModbusMbap.getTransactionId(rx, 0), ModbusMbap.getUnitId(rx, 0), size);
+            }
+        } catch (IOException ex) {
+            failed(ex);
+        }
+    }
+
+    /**
+     * Write a frame to the link, called by the bus thread of the client
+     *
+     * @param frame MBAP header and PDU
+     * @param len
+     * @throws IOException
+     */
+    protected void writeFrame(byte[] frame, int len) throws IOException {
+        out.write(frame, 0, len);
+        out.flush();
+    }
+
+    /**
+     * Read the next frame from the link, called by the reader thread
+     *
+     * @param frame buffer of the max frame size
+     * @return size of the frame
+     * @throws IOException the link is closed or out of sync
+     */
+    protected int readFrame(byte[] frame) throws IOException {
+        readFully(frame, 0, ModbusMbap.HEADER_SIZE);
+        int size = ModbusMbap.getFrameSize(frame, 0);
+        if ((size <= ModbusMbap.HEADER_SIZE) || (size > frame.length))
+            throw new IOException("Invalid MBAP length " + ModbusMbap.getLength(frame, 0));
+        readFully(frame, ModbusMbap.HEADER_SIZE, size - ModbusMbap.HEADER_SIZE);
+        return size;
+    }
+
+    /**
+     * Count a frame dropped by the link, such as an invalid datagram
+     */
+    protected synchronized void discard() {
+        discarded++;
+    }
+
+    /**
+     * Close the link, called by {@link #close()}
+     */
+    protected void closeLink() {
+        try {
+            in.close();
+        } catch (IOException ex) {
+        }
+        try {
+            out.close();
+        } catch (IOException ex) {
+        }
+    }
+
+    private synchronized void received(int tid, int unit, int size) {
+        for (int i = 0; i < txs.length; i++) {
+            ModbusTransaction t = txs[i];
+            if ((t != null) && (tids[i] == tid) && (sizes[i] < 0)) {
+                if ((t.getServerId() & 0xFF) != unit)
+                    break;
+
+                // the response replaces the request
+                int pduSize = size - ModbusMbap.HEADER_SIZE;
+                System.arraycopy(rx, ModbusMbap.HEADER_SIZE, t.getAdu(), ModbusPdu.PDU_OFFSET, pduSize);
+                sizes[i] = pduSize;
+                this.notifyAll();
+                return;
+            }
+        }
+        discarded++;
+    }
+
+    private void readFully(byte[] buf, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = in.read(buf, off, len);
+            if (n < 0)
+                throw new IOException("Connection closed");
+            off += n;
+            len -= n;
+        }
+    }
+
+    private int find(ModbusTransaction transaction) {
+        for (int i = 0; i < txs.length; i++) {
+            if (txs[i] == transaction)
+                return i;
+        }
+        return -1;
+    }
+
+    private void free(int slot) {
+        txs[slot] = null;
+        pending--;
+        this.notifyAll();
+    }
+
+    private synchronized void failed(IOException ex) {
+        if (error == null)
+            error = ex;
+        this.notifyAll();
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed)
+            throw new IOException("Closed");
+        if (error != null)
+            throw error;
+    }
+
+    /**
+     * Close the link, the outstanding requests fail
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            if (error == null)
+                error = new IOException("Closed");
+            this.notifyAll();
+        }
+
+        closeLink();
+    }
+}
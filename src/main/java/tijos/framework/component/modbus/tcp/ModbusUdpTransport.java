@@ -0,0 +1,58 @@
+package tijos.framework.component.modbus.tcp;
+
+import java.io.IOException;
+
+import tijos.framework.component.modbus.protocol.ModbusMbap;
+
+/**
+ * MODBUS TCP frames over UDP, each request and response is one datagram with
+ * the MBAP header. Responses are matched by the transaction id like on a TCP
+ * connection, a lost datagram times out its request only and datagrams which
+ * are not MODBUS frames are discarded.
+ */
+public class ModbusUdpTransport extends ModbusTcpTransport {
+
+    private final IModbusDatagramLink link;
+
+    /**
+     * Initialize with the default window
+     *
+     * @param link
+     * @param timeout timeout of a response in milliseconds
+     */
+    public ModbusUdpTransport(IModbusDatagramLink link, int timeout) {
+        this(link, timeout, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Initialize
+     *
+     * @param link
+     * @param timeout timeout of a response in milliseconds
+     * @param window  max outstanding requests, 1 for one request at a time
+     */
+    public ModbusUdpTransport(IModbusDatagramLink link, int timeout, int window) {
+        super(timeout, window);
+        this.link = link;
+    }
+
+    @Override
+    protected void writeFrame(byte[] frame, int len) throws IOException {
+        link.send(frame, 0, len);
+    }
+
+    @Override
+    protected int readFrame(byte[] frame) throws IOException {
+        while (true) {
+            int len = link.receive(frame, 0, frame.length);
+            if (ModbusMbap.isValid(frame, 0, len))
+                return len;
+            discard();
+        }
+    }
+
+    @Override
+    protected void closeLink() {
+        link.close();
+    }
+}
@@ -0,0 +1,139 @@
+package tijos.framework.component.modbus.tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import tijos.framework.component.modbus.protocol.ModbusCrc16;
+import tijos.framework.component.modbus.protocol.ModbusPdu;
+import tijos.framework.component.modbus.rtu.ModbusClientTransport;
+import tijos.framework.component.modbus.rtu.ModbusTransaction;
+
+/**
+ * MODBUS RTU frames on the streams of a connection, such as a TCP socket to
+ * a transparent serial device server. The frames have no transaction id, so
+ * one request is outstanding at a time as on the RS485 bus. The frame ends on
+ * its expected length, bytes left from a late response are dropped before
+ * the next request.
+ */
+public class RtuOverTcpTransport implements ModbusClientTransport {
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final int timeout;
+    private final ModbusCrc16 crc = new ModbusCrc16();
+
+    /**
+     * Initialize
+     *
+     * @param in
+     * @param out
+     * @param timeout timeout of a response in milliseconds
+     */
+    public RtuOverTcpTransport(InputStream in, OutputStream out, int timeout) {
+        if (timeout <= 0)
+            throw new IllegalArgumentException();
+        this.in = in;
+        this.out = out;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void sendRequest(ModbusTransaction transaction) throws Exception {
+        // late response of a previous request
+        int stale = in.available();
+        while (stale > 0) {
+            in.skip(stale);
+            stale = in.available();
+        }
+
+        // the PDU is already in the ADU after the id
+        byte[] adu = transaction.getAdu();
+        adu[0] = transaction.getServerId();
+        int size = transaction.getPduSize() + 1;
+        int crc = ModbusPdu.calcCRC16(adu, 0, size);
+        adu[size] = ModbusPdu.lowByte(crc);
+        adu[size + 1] = ModbusPdu.highByte(crc);
+
+        out.write(adu, 0, size + 2);
+        out.flush();
+    }
+
+    /**
+     * Wait for the response, it's received into the ADU of the transaction in
+     * place of the request, the request is put back when the response is not
+     * valid
+     */
+    @Override
+    public int waitResponse(ModbusTransaction transaction) throws Exception {
+        transaction.saveRequest();
+        boolean received = false;
+        try {
+            int result = receive(transaction);
+            received = (result == ModbusTransaction.RESULT_OK) || (result == ModbusTransaction.RESULT_EXCEPTION);
+            return result;
+        } finally {
+            if (!received)
+                transaction.restoreRequest();
+        }
+    }
+
+    private int receive(ModbusTransaction transaction) throws Exception {
+        int function = transaction.getFunction();
+        int wait = transaction.getRequestTimeout() > 0 ? transaction.getRequestTimeout() : this.timeout;
+        long deadline = System.currentTimeMillis() + wait;
+        byte[] adu = transaction.getAdu();
+
+        // id and function, then the rest of a response or an exception
+        if (!read(adu, 0, 2, deadline))
+            return ModbusTransaction.RESULT_TIMEOUT;
+        boolean exception = (adu[1] & 0x80) != 0;
+        int expected = exception ? 5 : transaction.getExpectedPduSize() + 3;
+        if (!read(adu, 2, expected - 2, deadline))
+            return ModbusTransaction.RESULT_TIMEOUT;
+
+        crc.reset();
+        crc.update(adu, 0, expected);
+        if ((adu[0] != transaction.getServerId()) || ((adu[1] & 0x7F) != function) || !crc.isValid())
+            return ModbusTransaction.RESULT_BAD_RESPONSE;
+
+        if (exception) {
+            transaction.setPduSize(2); // function + exception code
+            return ModbusTransaction.RESULT_EXCEPTION;
+        }
+        transaction.setPduSize(transaction.getExpectedPduSize());
+        return ModbusTransaction.RESULT_OK;
+    }
+
+    // read the bytes until the deadline, false on timeout
+    private boolean read(byte[] buf, int off, int len, long deadline) throws IOException, InterruptedException {
+        while (len > 0) {
+            int available = in.available();
+            if (available <= 0) {
+                if (System.currentTimeMillis() >= deadline)
+                    return false;
+                Thread.sleep(1);
+                continue;
+            }
+
+            int n = in.read(buf, off, Math.min(available, len));
+            if (n < 0)
+                throw new IOException("Connection closed");
+            off += n;
+            len -= n;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        try {
+            in.close();
+        } catch (IOException ex) {
+        }
+        try {
+            out.close();
+        } catch (IOException ex) {
+        }
+    }
+}
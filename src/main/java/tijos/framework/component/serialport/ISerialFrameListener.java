@@ -0,0 +1,15 @@
+package tijos.framework.component.serialport;
+
+public interface ISerialFrameListener {
+
+    /**
+     * Bytes of the frame arrived, it's called while the frame is received
+     *
+     * @param buffer the frame buffer
+     * @param off    offset of the new bytes
+     * @param len    number of the new bytes
+     * @return true if the frame is complete, the reading stops without waiting
+     * for the silence
+     */
+    boolean onFrameData(byte[] buffer, int off, int len);
+}
@@ -0,0 +1,120 @@
+package tijos.framework.component.serialport;
+
+import java.io.IOException;
+
+/**
+ * Serial port, implemented by {@link TiSerialPort} on the UART and by
+ * emulated ports for tests without hardware
+ */
+public interface ISerialPort {
+
+    /**
+     * Open with communication parameters
+     *
+     * @param baudRate
+     * @param dataBitNum
+     * @param stopBitNum
+     * @param parity
+     * @throws IOException
+     */
+    void open(int baudRate, int dataBitNum, int stopBitNum, int parity) throws IOException;
+
+    void close() throws IOException;
+
+    int getBaudRate();
+
+    /**
+     * Time of a character on the line
+     *
+     * @return microseconds
+     */
+    int getCharTime();
+
+    /**
+     * Max silence between 2 characters of a RTU frame
+     *
+     * @return microseconds
+     */
+    int getT15();
+
+    /**
+     * Min silence between 2 RTU frames
+     *
+     * @return microseconds
+     */
+    int getT35();
+
+    /**
+     * Silence ending a frame
+     *
+     * @return milliseconds
+     */
+    int getFrameSilence();
+
+    void setFrameSilence(int ms);
+
+    /**
+     * Drop the received data
+     *
+     * @throws IOException
+     */
+    void clearInput() throws IOException;
+
+    void write(byte[] buffer, int start, int length) throws IOException;
+
+    /**
+     * Read the received data
+     *
+     * @return data or null
+     * @throws IOException
+     */
+    byte[] read() throws IOException;
+
+    /**
+     * Read the data received within the time interval
+     *
+     * @param msec
+     * @return data or null
+     * @throws IOException
+     */
+    byte[] read(int msec) throws IOException;
+
+    /**
+     * Read a frame ended by silence
+     *
+     * @param buffer
+     * @param start            start offset in the buffer
+     * @param length           max length of the frame
+     * @param firstByteTimeout max time to wait for the first byte in milliseconds
+     * @return length of the frame, 0 if no data within the first byte timeout
+     * @throws IOException
+     */
+    int readFrame(byte[] buffer, int start, int length, int firstByteTimeout) throws IOException;
+
+    /**
+     * Read a frame ended by silence or by the listener
+     *
+     * @param buffer
+     * @param start            start offset in the buffer
+     * @param length           max length of the frame
+     * @param firstByteTimeout max time to wait for the first byte in milliseconds
+     * @param listener         called with the bytes as they arrive, it can end
+     *                         the frame on its last byte
+     * @return length of the frame, 0 if no data within the first byte timeout
+     * @throws IOException
+     */
+    int readFrame(byte[] buffer, int start, int length, int firstByteTimeout, ISerialFrameListener listener)
+            throws IOException;
+
+    /**
+     * Read the given length of data
+     *
+     * @param buffer
+     * @param start
+     * @param length
+     * @param timeOut milliseconds
+     * @return false if it's incomplete in time
+     * @throws IOException
+     */
+    boolean readToBuffer(byte[] buffer, int start, int length, int timeOut) throws IOException;
+}
@@ -12,10 +12,20 @@ import tijos.framework.util.logging.Logger;
  *
  * @author TiJOS
  */
-public class TiSerialPort {
+public class TiSerialPort implements ISerialPort {
 
     private TiUART uart;
 
+    // communication parameters
+    private int baudRate;
+    private int charTime; // microseconds per character
+
+    // silence in milliseconds ending a frame
+    private int frameSilence = 5;
+
+    // polling interval in milliseconds while waiting for data
+    private int pollInterval = 10;
+
     /**
      * Initialize TiSerialPort with UART and GPIO
      *
@@ -43,6 +53,71 @@ public class TiSerialPort {
 
         // UART通讯参数
         uart.setWorkParameters(dataBitNum, stopBitNum, parity, baudRate);
+
+        // start bit, data bits, parity bit, stop bits
+        int bits = 1 + dataBitNum + (parity != 0 ? 1 : 0) + stopBitNum;
+        this.baudRate = baudRate;
+        this.charTime = (int) (bits * 1000000L / baudRate);
+
+        // 1 ms for the resolution of the clock
+        this.frameSilence = (getT35() + 999) / 1000 + 1;
+        this.pollInterval = Math.max(1, Math.min(10, getT35() / 2000));
+    }
+
+    public int getBaudRate() {
+        return baudRate;
+    }
+
+    /**
+     * Time of a character on the line
+     *
+     * @return microseconds
+     */
+    public int getCharTime() {
+        return charTime;
+    }
+
+    /**
+     * Max silence between 2 characters of a RTU frame, it's 750us above 19200 bps
+     *
+     * @return microseconds
+     */
+    public int getT15() {
+        if (baudRate > 19200)
+            return 750;
+        return charTime * 3 / 2;
+    }
+
+    /**
+     * Min silence between 2 RTU frames, it's 1750us above 19200 bps
+     *
+     * @return microseconds
+     */
+    public int getT35() {
+        if (baudRate > 19200)
+            return 1750;
+        return charTime * 7 / 2;
+    }
+
+    /**
+     * Silence ending a frame in {@link #readFrame(byte[], int, int, int)}
+     *
+     * @return milliseconds
+     */
+    public int getFrameSilence() {
+        return frameSilence;
+    }
+
+    /**
+     * Silence ending a frame, it's t3.5 rounded up by default. Devices with gaps
+     * inside the frame need a longer one.
+     *
+     * @param ms milliseconds
+     */
+    public void setFrameSilence(int ms) {
+        if (ms < 1)
+            throw new IllegalArgumentException();
+        this.frameSilence = ms;
     }
 
     /**
@@ -128,6 +203,64 @@ public class TiSerialPort {
         return newBuff;
     }
 
+    /**
+     * Read a frame ended by silence
+     *
+     * @param buffer
+     * @param start            start offset in the buffer
+     * @param length           max length of the frame
+     * @param firstByteTimeout max time to wait for the first byte in milliseconds
+     * @return length of the frame, 0 if no data within the first byte timeout
+     * @throws IOException
+     */
+    public int readFrame(byte[] buffer, int start, int length, int firstByteTimeout) throws IOException {
+        return readFrame(buffer, start, length, firstByteTimeout, null);
+    }
+
+    /**
+     * Read a frame ended by silence or by the listener
+     *
+     * @param buffer
+     * @param start            start offset in the buffer
+     * @param length           max length of the frame
+     * @param firstByteTimeout max time to wait for the first byte in milliseconds
+     * @param listener         called with the bytes as they arrive, it can end
+     *                         the frame on its last byte
+     * @return length of the frame, 0 if no data within the first byte timeout
+     * @throws IOException
+     */
+    public int readFrame(byte[] buffer, int start, int length, int firstByteTimeout, ISerialFrameListener listener)
+            throws IOException {
+        long now = System.currentTimeMillis();
+        long deadline = now + firstByteTimeout;
+        long last = now;
+        int num = 0;
+
+        while (num < length) {
+            int res = this.uart.read(buffer, start + num, length - num);
+            now = System.currentTimeMillis();
+            if (res > 0) {
+                num += res;
+                last = now;
+                if ((listener != null) && listener.onFrameData(buffer, start + num - res, res))
+                    break;
+                continue;
+            }
+
+            if (num == 0) {
+                if (now >= deadline)
+                    break;
+                Delay.msDelay(pollInterval);
+            } else {
+                if (now - last >= frameSilence)
+                    break;
+                Delay.msDelay(1);
+            }
+        }
+
+        return num;
+    }
+
     /**
      * Read data into buffer from the UART
      *
@@ -147,7 +280,7 @@ public class TiSerialPort {
         while ((now < deadline) && (bytesToRead > 0)) {
             res = this.uart.read(buffer, offset, bytesToRead);
             if (res <= 0) {
-                Delay.msDelay(10);
+                Delay.msDelay(pollInterval);
                 now = System.currentTimeMillis();
                 continue;
             }
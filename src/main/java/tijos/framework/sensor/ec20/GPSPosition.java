@@ -2,6 +2,8 @@ package tijos.framework.sensor.ec20;
 
 import java.io.IOException;
 
+import tijos.framework.sensor.ec20.io.ATTokenizer;
+
 public class GPSPosition {
 	public String UTC;
 	public double latitude;
@@ -16,38 +18,40 @@ public class GPSPosition {
 	public int nsat;
 
 	public void parse(String resp) throws IOException {
+		byte[] data = resp.getBytes();
+		parse(new ATTokenizer(data, 0, data.length));
+	}
+
+	/**
+	 * Parse +QGPSLOC response in place
+	 * 
+	 * @param resp tokenizer over the response
+	 * @throws IOException
+	 */
+	public void parse(ATTokenizer resp) throws IOException {
 
-		int begin = resp.indexOf(':');
-		if (begin < 0)
+		if (!resp.seek("+QGPSLOC:"))
 			throw new IOException("Wrong response");
 
-		resp = resp.substring(begin + 2);
-		String[] result = resp.split(",");
-
-		if (result.length < 11)
-			throw new IOException("Invalid format.");
-
-		int pos = 0;
-		this.UTC = result[pos++];
-		this.latitude = RMC2Double(result[pos++]);
-		pos++;
-		this.longitude = RMC2Double(result[pos++]);
-		pos++;
-		this.hdop = Double.parseDouble(result[pos++]);
-		this.altitude = Double.parseDouble(result[pos++]);
-		this.fix = Integer.parseInt(result[pos++]);
-		this.cog = Double.parseDouble(result[pos++]);
-		this.spkm = Double.parseDouble(result[pos++]);
-		this.spkn = Double.parseDouble(result[pos++]);
-		this.date = result[pos++];
-		this.nsat = Integer.parseInt(result[pos++]);
+		this.UTC = resp.nextQuoted();
+		this.latitude = RMC2Double(resp.nextDouble());
+		resp.skip(); // N/S
+		this.longitude = RMC2Double(resp.nextDouble());
+		resp.skip(); // E/W
+		this.hdop = resp.nextDouble();
+		this.altitude = resp.nextDouble();
+		this.fix = resp.nextInt();
+		this.cog = resp.nextDouble();
+		this.spkm = resp.nextDouble();
+		this.spkn = resp.nextDouble();
+		this.date = resp.nextQuoted();
+		this.nsat = resp.nextInt();
 
 	}
 
 //	+QGPSLOC: 093929.0,3959.807968,N,11619.997406,E,0.8,27.0,2,175.21,0.0,0.0,050719,07
 
-	double RMC2Double(String rmc) {
-		double temp = Double.parseDouble(rmc);
+	double RMC2Double(double temp) {
 		int firstPart = ((int) temp) / 100;
 
 		double result = firstPart + (temp - firstPart * 100) / 60.0d;
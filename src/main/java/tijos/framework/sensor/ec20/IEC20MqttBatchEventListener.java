@@ -0,0 +1,19 @@
+package tijos.framework.sensor.ec20;
+
+import tijos.framework.sensor.ec20.mqtt.MQTTMessage;
+
+/**
+ * Optional event listener of the messages read from the buffers of the module
+ * in buffer mode, other listeners receive them one by one by
+ * {@link IEC20MqttEventListener#onMQTTPublishDataArrived}
+ */
+public interface IEC20MqttBatchEventListener extends IEC20MqttEventListener {
+
+    /**
+     * Messages read from the buffers of the module in buffer mode
+     *
+     * @param messages the array is reused after the call
+     * @param count    number of messages
+     */
+    void onMQTTPublishBatchArrived(int client_idx, MQTTMessage[] messages, int count);
+}
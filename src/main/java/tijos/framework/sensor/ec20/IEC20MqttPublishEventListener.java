@@ -0,0 +1,17 @@
+package tijos.framework.sensor.ec20;
+
+/**
+ * Optional event listener of the publish results, a listener set by
+ * {@link TiEC20#setEventListener} receives them if it implements this
+ * interface
+ */
+public interface IEC20MqttPublishEventListener extends IEC20MqttEventListener {
+
+    /**
+     * Result of publish from +QMTPUBEX
+     *
+     * @param result 0 - success, 1 - retransmission, 2 - failed
+     * @param value  retransmission count if result is 1
+     */
+    void onMQTTPublishResult(int client_idx, int msgId, int result, int value);
+}
@@ -0,0 +1,171 @@
+package tijos.framework.sensor.ec20;
+
+import java.io.IOException;
+
+import tijos.framework.sensor.ec20.io.ATCommand;
+import tijos.framework.sensor.ec20.mqtt.MQTTMessage;
+
+/**
+ * Drains the receive buffers of the module in buffer mode ("recv/mode" 1).
+ * The reader thread marks the buffers reported by +QMTRECV and collects the
+ * messages read back, the AT commands are sent from the receiver thread since
+ * the reader thread must not wait for results.
+ */
+class MQTTBufferedReceiver implements Runnable {
+
+	// receive buffers (recv_id 0 - 4) of each client
+	public static final int RECV_BUFFERS = 5;
+
+	private final TiEC20 ec20;
+
+	// bit mask of the receive buffers with message
+	private final int[] pending = new int[TiEC20.MQTT_CLIENTS];
+	private boolean signaled;
+
+	// messages read back in the current drain
+	private final MQTTMessage[] messages = new MQTTMessage[TiEC20.MQTT_CLIENTS * RECV_BUFFERS];
+	private final int[] clients = new int[messages.length];
+	private int count;
+
+	// delivered to the listener of a client
+	private final MQTTMessage[] batch = new MQTTMessage[RECV_BUFFERS];
+
+	private final ATCommand[] reads = new ATCommand[messages.length];
+	private final int[] readClients = new int[messages.length];
+	private final int[] readBuffers = new int[messages.length];
+
+	MQTTBufferedReceiver(TiEC20 ec20) {
+		this.ec20 = ec20;
+
+		for (int i = 0; i < messages.length; i++)
+			messages[i] = new MQTTMessage();
+
+		Thread t = new Thread(this);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/*
+	 * +QMTRECV: <client_idx>,<recv_id>, called by the reader thread
+	 */
+	synchronized void onNotified(int id, int recvId) {
+		if (id < 0 || id >= pending.length || recvId < 0 || recvId >= RECV_BUFFERS)
+			return;
+
+		pending[id] |= 1 << recvId;
+		signaled = true;
+		this.notifyAll();
+	}
+
+	/*
+	 * status of the buffers from AT+QMTRECV?, called by the reader thread
+	 */
+	synchronized void onStatus(int id, int mask) {
+		if (id < 0 || id >= pending.length)
+			return;
+
+		pending[id] |= mask;
+	}
+
+	/*
+	 * message read back, called by the reader thread
+	 */
+	synchronized boolean onMessage(int id, int msgId, String topic, byte[] payload) {
+		if (count == messages.length)
+			return false;
+
+		messages[count].set(topic, payload, 0, false);
+		messages[count].setMsgId(msgId);
+		clients[count] = id;
+		count++;
+		return true;
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				synchronized (this) {
+					while (!signaled)
+						this.wait();
+					signaled = false;
+				}
+
+				drain();
+			} catch (Exception ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	private void drain() throws IOException, InterruptedException {
+		// status of all buffers, a notification may be lost in a burst
+		ATCommand status = ec20.sendCommandAsync("AT+QMTRECV?", null, TiEC20.COMMAND_TIMEOUT);
+
+		// read all buffers back to back in one batch
+		int n = 0;
+		status.waitDone(TiEC20.COMMAND_TIMEOUT);
+		synchronized (this) {
+			count = 0;
+			for (int id = 0; id < pending.length; id++) {
+				for (int recvId = 0; recvId < RECV_BUFFERS; recvId++) {
+					if ((pending[id] & (1 << recvId)) == 0)
+						continue;
+
+					reads[n] = new ATCommand("AT+QMTRECV=" + id + "," + recvId, TiEC20.COMMAND_TIMEOUT);
+					readClients[n] = id;
+					readBuffers[n] = recvId;
+					n++;
+				}
+				pending[id] = 0;
+			}
+		}
+
+		if (n == 0)
+			return;
+
+		int sent = 0;
+		try {
+			for (; sent < n; sent++)
+				ec20.sendCommandAsync(reads[sent]);
+		} catch (IOException ex) {
+			// command queue is full, read the rest in the next drain
+			synchronized (this) {
+				for (int i = sent; i < n; i++) {
+					pending[readClients[i]] |= 1 << readBuffers[i];
+					reads[i] = null;
+				}
+				signaled = true;
+			}
+		}
+
+		// each command is completed by the queue, at the latest by its timeout
+		for (int i = 0; i < sent; i++) {
+			reads[i].get();
+			reads[i] = null;
+		}
+
+		deliver();
+	}
+
+	private void deliver() {
+		for (int id = 0; id < TiEC20.MQTT_CLIENTS; id++) {
+			int size = 0;
+			synchronized (this) {
+				for (int i = 0; i < count; i++) {
+					if (clients[i] == id && size < batch.length)
+						batch[size++] = messages[i];
+				}
+			}
+
+			if (size > 0)
+				ec20.mqttBatchArrived(id, batch, size);
+		}
+
+		synchronized (this) {
+			for (int i = 0; i < count; i++)
+				messages[i].set(null, null, 0, false);
+			count = 0;
+		}
+	}
+}
@@ -1,16 +1,19 @@
 package tijos.framework.sensor.ec20;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Calendar;
 
 import tijos.framework.devicecenter.TiUART;
-import tijos.framework.sensor.ec20.io.ATResponse;
-import tijos.framework.sensor.ec20.io.TiUartInputStream;
+import tijos.framework.sensor.ec20.io.ATCommand;
+import tijos.framework.sensor.ec20.io.ATCommandQueue;
+import tijos.framework.sensor.ec20.io.ATLineReader;
+import tijos.framework.sensor.ec20.io.ATTokenizer;
+import tijos.framework.sensor.ec20.io.IATCommandListener;
+import tijos.framework.sensor.ec20.io.LatencyHistogram;
 import tijos.framework.sensor.ec20.io.TiUartOutputStream;
 import tijos.framework.sensor.ec20.mqtt.MQTTClient;
+import tijos.framework.sensor.ec20.mqtt.MQTTMessage;
 import tijos.framework.util.Delay;
 import tijos.framework.util.logging.*;
 
@@ -19,8 +22,11 @@ import tijos.framework.util.logging.*;
  */
 public class TiEC20 extends Thread {
 
-	// IO stream for UART
-	InputStream input;
+	// default timeout of AT command
+	public static final int COMMAND_TIMEOUT = 5000;
+
+	// IO for UART
+	ATLineReader input;
 	OutputStream output;
 
 	TiUART uart;
@@ -28,10 +34,33 @@ public class TiEC20 extends Thread {
 	// Keep the UART read thread running
 	private boolean keeprunning = true;
 
-	private ATResponse atResp = new ATResponse();
+	private ATCommandQueue commands;
+
+	// tokenizer of unsolicited result codes, used by the reader thread only
+	private ATTokenizer urc = new ATTokenizer();
+
+	// print AT commands and responses
+	private boolean debug = true;
+
+	// MQTT client slots of the module, AT+QMTOPEN client_idx 0 - 5
+	public static final int MQTT_CLIENTS = 6;
 
+	// listener of the URCs without a listener of the client slot
 	private IEC20MqttEventListener eventListener;
 
+	private IEC20MqttEventListener[] mqttListeners = new IEC20MqttEventListener[MQTT_CLIENTS];
+
+	private MQTTClient[] mqttClients = new MQTTClient[MQTT_CLIENTS];
+
+	// receive mode of the client slots, true for buffer mode
+	private boolean[] mqttBuffered = new boolean[MQTT_CLIENTS];
+
+	// drains the receive buffers of the module, created on first use
+	private MQTTBufferedReceiver receiver;
+
+	// last check of the publish messages without result
+	private long expireCheck;
+
 	/**
 	 * Initialize IO stream for UART
 	 *
@@ -39,8 +68,9 @@ public class TiEC20 extends Thread {
 	 */
 	public TiEC20(TiUART uart) {
 		this.uart = uart;
-		this.input = new BufferedInputStream(new TiUartInputStream(uart), 256);
+		this.input = new ATLineReader(uart);
 		this.output = new TiUartOutputStream(uart);
+		this.commands = new ATCommandQueue(this.output);
 
 		this.setDaemon(true);
 		this.start();
@@ -50,47 +80,36 @@ public class TiEC20 extends Thread {
 	public void run() {
 		while (keeprunning) {
 			try {
-				String resp = readLine();
-				if (resp.length() == 0) {
+				// return periodically to check command timeout
+				int len = this.input.readLine(100);
+				this.commands.checkTimeout();
+				this.expirePublish();
+
+				if (len <= 0) {
 					continue;
 				}
 
-				logMsg(resp);
+				byte[] resp = this.input.getLine();
+				if (debug)
+					logMsg(this.input.getLineString());
 
-				if (resp.equals("ERROR") || resp.startsWith("+CME ERROR:")) {
-					this.atResp.setResponse(resp);
-					synchronized (this.atResp) {
-						this.atResp.notifyAll();
-					}
+				// final result of the command in progress
+				if (this.commands.onResult(resp, len)) {
 					continue;
 				}
 
-				if (atResp.getKeywords().length() > 0) {
-					if (resp.contains(atResp.getKeywords())) {
-						this.atResp.setResponse(resp);
-						synchronized (this.atResp) {
-							this.atResp.notifyAll();
-						}
-						continue;
-					}
-				} else {
-					if (resp.equals("OK")) {
-						synchronized (this.atResp) {
-							this.atResp.notifyAll();
-						}
-						continue;
-					}
-				}
-
-				if (resp.contains("+QMTSTAT:")) // there is a change in the state of MQTT link layer
+				if (urc.reset(resp, 0, len).seek("+QMTSTAT:")) // there is a change in the state of MQTT link layer
 				{
-					this.mqttLinkChanged(resp);
+					this.mqttLinkChanged(urc);
 
-				} else if (resp.contains("+QMTRECV:")) // Notify the Host to Read MQTT Packet Data
+				} else if (urc.reset(resp, 0, len).seek("+QMTRECV:")) // Notify the Host to Read MQTT Packet Data
 				{
-					this.mqttDataArrived(resp);
+					this.mqttDataArrived(urc);
+				} else if (urc.reset(resp, 0, len).seek("+QMTPUBEX:")) // result of asynchronous publish
+				{
+					this.mqttPublished(urc);
 				} else {
-					this.atResp.setResponse(resp);
+					this.commands.onInformation(resp, len);
 				}
 			} catch (Exception e) {
 				e.printStackTrace();
@@ -99,6 +118,24 @@ public class TiEC20 extends Thread {
 		}
 	}
 
+	/**
+	 * Latency statistics of the received lines
+	 * 
+	 * @return
+	 */
+	public LatencyHistogram getLineLatency() {
+		return this.input.getLatency();
+	}
+
+	/**
+	 * Enable or disable printing of AT commands and responses
+	 * 
+	 * @param debug
+	 */
+	public void setDebug(boolean debug) {
+		this.debug = debug;
+	}
+
 	/**
 	 * Event listener for data arrived from remote node
 	 *
@@ -108,6 +145,28 @@ public class TiEC20 extends Thread {
 		this.eventListener = listener;
 	}
 
+	/**
+	 * Event listener of a MQTT client slot, URCs of the slot are routed to it
+	 *
+	 * @param id       client slot (0-5)
+	 * @param listener null to remove
+	 */
+	public void setEventListener(int id, IEC20MqttEventListener listener) {
+		checkClientId(id);
+		this.mqttListeners[id] = listener;
+	}
+
+	private IEC20MqttEventListener getEventListener(int id) {
+		if (id >= 0 && id < MQTT_CLIENTS && this.mqttListeners[id] != null)
+			return this.mqttListeners[id];
+		return this.eventListener;
+	}
+
+	private static void checkClientId(int id) {
+		if (id < 0 || id >= MQTT_CLIENTS)
+			throw new IllegalArgumentException("Invalid MQTT client id " + id);
+	}
+
 	/**
 	 * 检查模块是否连接
 	 * 
@@ -115,14 +174,8 @@ public class TiEC20 extends Thread {
 	 * @throws IOException
 	 */
 	public boolean isReady() throws IOException {
-		String resp = sendCommand("AT");		
-		if(resp == null)
-			return false;
-		
-		if(resp.equals("AT"))
-			return true;
-
-		return false;
+		ATCommand cmd = execute("AT", null, COMMAND_TIMEOUT);
+		return cmd.isOK();
 	}
 	
 	/**
@@ -143,11 +196,8 @@ public class TiEC20 extends Thread {
 	 */
 	public boolean isMTOn() throws IOException {
 
-		String resp = sendCommand("AT+CFUN?");
-		if (resp.equals("+CFUN: 1"))
-			return true;
-
-		return false;
+		ATTokenizer resp = execute("AT+CFUN?", null, COMMAND_TIMEOUT).getTokenizer();
+		return resp.seek("+CFUN:") && resp.nextInt() == 1;
 	}
 
 	public void echoOff() throws IOException {
@@ -218,17 +268,11 @@ public class TiEC20 extends Thread {
 	 * @throws IOException
 	 */
 	public int getRSSI() throws IOException {
-		String resp = sendCommand("AT+CSQ");
-
-		int begin = resp.indexOf(':');
-		int end = resp.lastIndexOf(',');
-
-		if (begin < 0 || end < 0 || begin >= end)
+		ATTokenizer resp = execute("AT+CSQ", null, COMMAND_TIMEOUT).getTokenizer();
+		if (!resp.seek("+CSQ:"))
 			throw new IOException("Wrong response");
 
-		String rssi = resp.substring(begin + 2, end);
-
-		int r = Integer.parseInt(rssi);
+		int r = resp.nextInt();
 		if (r == 99) {// no signl
 			r = 0;
 		}
@@ -255,10 +299,8 @@ public class TiEC20 extends Thread {
 	 * @throws IOException
 	 */
 	public boolean isNetworkAttached() throws IOException {
-		String resp = sendCommand("AT+CGATT?");
-		if (resp.equals("+CGATT: 1"))
-			return true;
-		return false;
+		ATTokenizer resp = execute("AT+CGATT?", null, COMMAND_TIMEOUT).getTokenizer();
+		return resp.seek("+CGATT:") && resp.nextInt() == 1;
 
 	}
 
@@ -281,13 +323,8 @@ public class TiEC20 extends Thread {
 	 * @throws IOException
 	 */
 	public boolean checkSIMCard() throws IOException {
-		String resp = sendCommand("AT+CPIN?");
-		
-		
-		if (resp.equals("+CPIN: READY"))
-			return true;
-
-		return false;
+		ATTokenizer resp = execute("AT+CPIN?", null, COMMAND_TIMEOUT).getTokenizer();
+		return resp.seek("+CPIN:") && resp.startsWith("READY");
 	}
 
 	/**
@@ -299,16 +336,12 @@ public class TiEC20 extends Thread {
 	public boolean isNetworkRegistred() throws IOException {
 		sendCommand("AT+CEREG=2"); // 允许返回CI等信息
 
-		String resp = sendCommand("AT+CEREG?");
-
-		int begin = resp.indexOf(':');
-		if (begin < 0)
+		ATTokenizer resp = execute("AT+CEREG?", null, COMMAND_TIMEOUT).getTokenizer();
+		if (!resp.seek("+CEREG:"))
 			throw new IOException("Wrong response");
 
-		resp = resp.substring(begin + 2);
-		String[] result = resp.split(",");
-
-		int s = Integer.parseInt(result[1]);
+		resp.skip(); // <n>
+		int s = resp.nextInt();
 		return s > 0 ? true : false;
 	}
 
@@ -371,19 +404,58 @@ public class TiEC20 extends Thread {
 	}
 
 	/**
-	 * Create mqtt client instance
+	 * Create mqtt client instance on a free client slot of the module (0-5),
+	 * the URCs of the slot are routed to the client. The slot is kept until the
+	 * client is closed by {@link MQTTClient#close()} or released by
+	 * {@link #releaseMqttClient(MQTTClient)}.
 	 * 
 	 * @param server
 	 * @param port
 	 * @param clientId
 	 * @return
+	 * @throws IllegalStateException all slots are used
 	 */
 	public MQTTClient getMqttClient(String server, int port, String clientId) {
 
-		MQTTClient client = new MQTTClient(this, server, port, clientId);
+		synchronized (this.mqttClients) {
+			for (int id = 0; id < MQTT_CLIENTS; id++) {
+				if (this.mqttClients[id] == null) {
+					MQTTClient client = new MQTTClient(this, id, server, port, clientId);
+					this.mqttClients[id] = client;
+					return client;
+				}
+			}
+		}
+
+		throw new IllegalStateException("No free MQTT client slot");
+	}
 
-		return client;
+	/**
+	 * Release the slot of a MQTT client, the client should be disconnected
+	 *
+	 * @param client
+	 */
+	public void releaseMqttClient(MQTTClient client) {
+		synchronized (this.mqttClients) {
+			int id = client.getClientIndex();
+			if (this.mqttClients[id] == client)
+				this.mqttClients[id] = null;
+			if (this.mqttListeners[id] == client)
+				this.mqttListeners[id] = null;
+		}
+	}
 
+	/**
+	 * MQTT client of the slot
+	 *
+	 * @param id client slot (0-5)
+	 * @return null if the slot is free
+	 */
+	public MQTTClient getMqttClient(int id) {
+		checkClientId(id);
+		synchronized (this.mqttClients) {
+			return this.mqttClients[id];
+		}
 	}
 
 	/**
@@ -439,6 +511,20 @@ public class TiEC20 extends Thread {
 
 	}
 
+	/**
+	 * Receive mode of the client, it is applied by the next
+	 * {@link #mqttConnect(int, String, int, String, String, String)}. In buffer
+	 * mode messages are kept by the module and read back in batch when
+	 * notified.
+	 * 
+	 * @param id       client id (0-5)
+	 * @param buffered true for buffer mode, false for push mode
+	 */
+	public void mqttConfigRecvMode(int id, boolean buffered) {
+		checkClientId(id);
+		this.mqttBuffered[id] = buffered;
+	}
+
 	/**
 	 * Connect to MQTT Server
 	 * 
@@ -453,20 +539,21 @@ public class TiEC20 extends Thread {
 	public void mqttConnect(int id, String host, int port, String clientId, String userName, String password)
 			throws IOException {
 
-		String cmd = "AT+QMTCFG=\"recv/mode\"," + id + ",0,1";
-		sendCommand(cmd);
+		// configuration is queued together with the open command
+		String cmd = "AT+QMTCFG=\"recv/mode\"," + id + "," + (this.mqttBuffered[id] ? 1 : 0) + ",1";
+		sendCommandAsync(cmd, null, COMMAND_TIMEOUT);
 
 		cmd = "AT+QMTOPEN=" + id + ",\"" + host + "\"," + port;
-		String resp = sendCommand2(cmd, "+QMTOPEN");
-		if (resp.contains("+QMTOPEN")) {
-			int pos = resp.lastIndexOf(',');
-			String result = resp.substring(pos + 1);
-			int ret = Integer.parseInt(result);
+		ATCommand open = execute(cmd, "+QMTOPEN: " + id + ",", COMMAND_TIMEOUT);
+		ATTokenizer resp = open.getTokenizer();
+		if (resp.seek("+QMTOPEN:")) {
+			resp.skip(); // client idx
+			int ret = resp.nextInt();
 			if (ret != 0) {
 				throw new IOException("Failed to open connection, err " + ret);
 			}
 		} else {
-			throw new IOException(resp);
+			throw new IOException(open.getResponse());
 		}
 
 		cmd = "AT+QMTCONN=" + id + ",\"" + clientId + "\"";
@@ -475,11 +562,15 @@ public class TiEC20 extends Thread {
 			cmd += "\"" + userName + "\",";
 			cmd += "\"" + password + "\"";
 		}
-		resp = sendCommand2(cmd, "+QMTCONN");
+		resp = execute(cmd, "+QMTCONN: " + id + ",", COMMAND_TIMEOUT).getTokenizer();
+		if (!resp.seek("+QMTCONN:"))
+			throw new IOException("Wrong response");
 
-		int pos = resp.lastIndexOf(',');
-		String result = resp.substring(pos + 1);
-		int ret = Integer.parseInt(result);
+		// <client_idx>,<result>[,<ret_code>]
+		resp.skip();
+		int ret = resp.nextInt();
+		if (ret == 0 && resp.hasNext())
+			ret = resp.nextInt();
 		if (ret != 0) {
 			throw new IOException("Failed to connnect server, err " + ret);
 		}
@@ -494,10 +585,10 @@ public class TiEC20 extends Thread {
 	 */
 	public void mqttDisconnect(int id) throws IOException {
 		String cmd = "AT+QMTDISC=" + id;
-		sendCommand2(cmd, "+QMTDISC");
+		sendCommand2(cmd, "+QMTDISC: " + id + ",");
 
 		cmd = "AT+QMTCLOSE=" + id;
-		this.sendCommand2(cmd, "+QMTCLOSE");
+		this.sendCommand2(cmd, "+QMTCLOSE: " + id + ",");
 	}
 	
 	/**
@@ -515,6 +606,26 @@ public class TiEC20 extends Thread {
 		
 	}
 
+	/**
+	 * Is the mqtt client of the slot connected
+	 * 
+	 * @param id client slot (0-5)
+	 * @return
+	 * @throws IOException
+	 */
+	public boolean isMqttConnected(int id) throws IOException {
+		ATTokenizer resp = execute("AT+QMTCONN?", null, COMMAND_TIMEOUT).getTokenizer();
+
+		// +QMTCONN: <client_idx>,<state> for each client, 3 - connected
+		while (resp.seek("+QMTCONN:")) {
+			int idx = resp.nextInt();
+			int state = resp.nextInt();
+			if (idx == id)
+				return state == 3;
+		}
+		return false;
+	}
+
 	/**
 	 * publish topic message
 	 * 
@@ -527,28 +638,55 @@ public class TiEC20 extends Thread {
 	 * @throws IOException
 	 */
 	public void mqttPublish(int id, int msgId, int qos, int retain, String topic, String message) throws IOException {
+		byte[] payload = message.getBytes();
+		mqttPublish(id, msgId, qos, retain, topic, payload, 0, payload.length);
+	}
 
-		String cmd = "AT+QMTPUBEX=" + id + "," + msgId + "," + qos + "," + retain + ",\"" + topic + "\","
-				+ message.length();
-		String resp = sendCommand2(cmd, ">");
-		if (resp.contains("ERROR"))
-			throw new IOException(resp);
+	/**
+	 * publish binary message, the payload is written to the UART after the ">"
+	 * prompt without any conversion
+	 * 
+	 * @param id
+	 * @param msgId
+	 * @param qos
+	 * @param retain
+	 * @param topic
+	 * @param payload
+	 * @param off     offset of the payload
+	 * @param len     length of the payload
+	 * @throws IOException
+	 */
+	public void mqttPublish(int id, int msgId, int qos, int retain, String topic, byte[] payload, int off, int len)
+			throws IOException {
 
-		resp = sendCommand2(message, "+QMTPUBEX:");
+		String cmd = "AT+QMTPUBEX=" + id + "," + msgId + "," + qos + "," + retain + ",\"" + topic + "\"," + len;
 
-		int ret = 0;
-		while (resp != null) {
-			int begin = resp.indexOf(':');
-			if (begin < 0)
-				throw new IOException("Wrong response");
+		// only the result of this message completes the command
+		String result = "+QMTPUBEX: " + id + "," + msgId + ",";
+
+		ATCommand pub = new ATCommand(cmd, result, COMMAND_TIMEOUT);
+		pub.setData(payload, off, len);
+
+		// packet retransmission "+QMTPUBEX: <client_idx>,<msgID>,1,<count>" keeps
+		// the command pending
+		pub.setIntermediate(result + "1,");
 
-			resp = resp.substring(begin + 2);
-			String[] result = resp.split(",");
-			ret = Integer.parseInt(result[2]);
-			if (ret != 1)
-				break;
+		execute(pub);
+		if (pub.getState() == ATCommand.STATE_ERROR)
+			throw new IOException(pub.getResponse());
+
+		ATTokenizer resp = pub.getTokenizer();
+
+		int ret = 1;
+		while (ret == 1) {
+			if (!resp.seek("+QMTPUBEX:"))
+				throw new IOException("Wrong response");
 
-			resp = this.waitResponse("+QMTPUBEX:", 5000);
+			// <client_idx>,<msgID>,<result>[,<value>]
+			resp.skip(2);
+			ret = resp.nextInt();
+			if (ret == 1)
+				mqttPublished(id, msgId, ret, resp.hasNext() ? resp.nextInt() : 0);
 		}
 
 		if (ret == 2)
@@ -556,6 +694,34 @@ public class TiEC20 extends Thread {
 
 	}
 
+	/**
+	 * publish binary message without waiting for the acknowledgement, the result
+	 * is reported by {@link IEC20MqttPublishEventListener#onMQTTPublishResult}
+	 * 
+	 * @param id
+	 * @param msgId
+	 * @param qos
+	 * @param retain
+	 * @param topic
+	 * @param payload  the buffer must not be modified until the command is done
+	 * @param off
+	 * @param len
+	 * @param listener called when the packet is accepted or rejected by the module
+	 * @return the publish command
+	 * @throws IOException
+	 */
+	public ATCommand mqttPublishAsync(int id, int msgId, int qos, int retain, String topic, byte[] payload, int off,
+			int len, IATCommandListener listener) throws IOException {
+
+		String cmd = "AT+QMTPUBEX=" + id + "," + msgId + "," + qos + "," + retain + ",\"" + topic + "\"," + len;
+
+		ATCommand pub = new ATCommand(cmd, COMMAND_TIMEOUT);
+		pub.setData(payload, off, len);
+		pub.setListener(listener);
+
+		return sendCommandAsync(pub);
+	}
+
 	/**
 	 * subscribe topic
 	 * 
@@ -572,18 +738,17 @@ public class TiEC20 extends Thread {
 			cmd += "\"" + topic + "\"," + qos;
 		}
 
-		String resp = this.sendCommand2(cmd, "+QMTSUB:");
-		if (resp.contains("+CME ERROR"))
-			throw new IOException(resp);
+		ATCommand sub = execute(cmd, "+QMTSUB: " + id + ",", COMMAND_TIMEOUT);
+		if (sub.getState() == ATCommand.STATE_ERROR)
+			throw new IOException(sub.getResponse());
 
-		int begin = resp.indexOf(':');
-		if (begin < 0)
+		ATTokenizer resp = sub.getTokenizer();
+		if (!resp.seek("+QMTSUB:"))
 			throw new IOException("Wrong response");
 
-		resp = resp.substring(begin + 2);
-		String[] result = resp.split(",");
-
-		int ret = Integer.parseInt(result[2]);
+		// <client_idx>,<msgID>,<result>[,<value>]
+		resp.skip(2);
+		int ret = resp.nextInt();
 
 		if (ret != 0)
 			throw new IOException("Subscription error " + ret);
@@ -605,18 +770,17 @@ public class TiEC20 extends Thread {
 			cmd += "\"" + topic + "\"";
 		}
 
-		String resp = this.sendCommand2(cmd, "+QMTUNS");
-		if (resp.contains("+CME ERROR"))
-			throw new IOException(resp);
+		ATCommand uns = execute(cmd, "+QMTUNS: " + id + ",", COMMAND_TIMEOUT);
+		if (uns.getState() == ATCommand.STATE_ERROR)
+			throw new IOException(uns.getResponse());
 
-		int begin = resp.indexOf(':');
-		if (begin < 0)
+		ATTokenizer resp = uns.getTokenizer();
+		if (!resp.seek("+QMTUNS:"))
 			throw new IOException("Wrong response");
 
-		resp = resp.substring(begin + 2);
-		String[] result = resp.split(",");
-
-		int ret = Integer.parseInt(result[2]);
+		// <client_idx>,<msgID>,<result>
+		resp.skip(2);
+		int ret = resp.nextInt();
 
 		if (ret != 0)
 			throw new IOException("Unsubscription error " + ret);
@@ -718,14 +882,14 @@ public class TiEC20 extends Thread {
 	 * @throws IOException
 	 */
 	public GPSPosition getGPSPosition() throws IOException {
-		String resp = this.sendCommand("AT+QGPSLOC=1");
+		ATCommand loc = execute("AT+QGPSLOC=1", null, COMMAND_TIMEOUT);
 		// not ready
-		if (resp.contains("+CME ERROR")) {
+		if (loc.getState() == ATCommand.STATE_ERROR) {
 			return null;
 		}
 
 		GPSPosition gps = new GPSPosition();
-		gps.parse(resp);
+		gps.parse(loc.getTokenizer());
 
 		return gps;
 	}
@@ -743,146 +907,187 @@ public class TiEC20 extends Thread {
 	
 	
 	/**
-	 * Send AT command to device
+	 * Queue AT command without waiting for the result, commands are sent to the
+	 * device back to back
 	 *
-	 * @param cmd
+	 * @param cmd         AT command
+	 * @param expKeyWords expected keywords of final result, null for "OK"
+	 * @param timeout     timeout in milliseconds
+	 * @return the command to wait for the result
 	 * @throws IOException
 	 */
-	private String sendCommand(String cmd) throws IOException {
-
-		logMsg(cmd);
-
-		synchronized (this.atResp) {
-			try {
-				this.atResp.reset();
-				output.write((cmd + "\r\n").getBytes());
-
-				this.atResp.wait(5000);
-				//this.atResp.wait();
+	public ATCommand sendCommandAsync(String cmd, String expKeyWords, int timeout) throws IOException {
+		return sendCommandAsync(new ATCommand(cmd, expKeyWords, timeout));
+	}
 
-				return atResp.getResponse();
+	/**
+	 * Queue AT command without waiting for the result
+	 *
+	 * @param cmd
+	 * @return the command to wait for the result
+	 * @throws IOException
+	 */
+	public ATCommand sendCommandAsync(ATCommand cmd) throws IOException {
+		if (cmd.getCommand() != null)
+			logMsg(cmd.getCommand());
+		return this.commands.submit(cmd);
+	}
 
-			} catch (Exception ie) {
+	/**
+	 * Send AT command and wait for the final result
+	 *
+	 * @param cmd
+	 * @param expKeyWords
+	 * @param timeout
+	 * @return
+	 * @throws IOException
+	 */
+	private ATCommand execute(String cmd, String expKeyWords, int timeout) throws IOException {
+		return execute(new ATCommand(cmd, expKeyWords, timeout));
+	}
 
-			}
+	private ATCommand execute(ATCommand at) throws IOException {
+		sendCommandAsync(at);
+		try {
+			at.get();
+		} catch (InterruptedException ie) {
+			throw new IOException("Interrupted");
 		}
-		return null;
+		return at;
 	}
 
-	private String sendCommand2(String cmd, String expKeyWords) throws IOException {
-
-		logMsg(cmd);
-		synchronized (this.atResp) {
-			try {
-				this.atResp.reset();
-				this.atResp.setExpectedRsp(expKeyWords);
-
-				output.write((cmd + "\r\n").getBytes());
+	/**
+	 * Send AT command to device
+	 *
+	 * @param cmd
+	 * @throws IOException
+	 */
+	private String sendCommand(String cmd) throws IOException {
+		return execute(cmd, null, COMMAND_TIMEOUT).getResponse();
+	}
 
-				this.atResp.wait(5000);
-				//this.atResp.wait();
+	private String sendCommand2(String cmd, String expKeyWords) throws IOException {
+		return execute(cmd, expKeyWords, COMMAND_TIMEOUT).getResponse();
+	}
 
-				return atResp.getResponse();
+	private void mqttLinkChanged(ATTokenizer resp) throws IOException {
 
-			} catch (Exception ie) {
+		int id = resp.nextInt();
+		int error = resp.nextInt();
 
-			}
+		IEC20MqttEventListener listener = getEventListener(id);
+		if (listener != null) {
+			listener.onMQTTLinkLost(id, error);
 		}
-
-		return null;
 	}
 
-	private String waitResponse(String expKeyWords, int timeOut) throws IOException {
-		synchronized (this.atResp) {
-			try {
-				this.atResp.reset();
-				this.atResp.setExpectedRsp(expKeyWords);
-
-				this.atResp.wait(timeOut);
+	private void mqttPublished(ATTokenizer resp) throws IOException {
 
-				return atResp.getResponse();
+		// <client_idx>,<msgID>,<result>[,<value>]
+		int id = resp.nextInt();
+		int msgId = resp.nextInt();
+		int result = resp.nextInt();
+		int value = resp.hasNext() ? resp.nextInt() : 0;
 
-			} catch (Exception ie) {
+		mqttPublished(id, msgId, result, value);
+	}
 
-			}
+	private void mqttPublished(int id, int msgId, int result, int value) {
+		IEC20MqttEventListener listener = getEventListener(id);
+		if (listener instanceof IEC20MqttPublishEventListener) {
+			((IEC20MqttPublishEventListener) listener).onMQTTPublishResult(id, msgId, result, value);
 		}
-
-		return null;
 	}
 
-	private String readLine() throws IOException {
-		StringBuilder sb = new StringBuilder(32);
-
-		int timeout = 4000;
-		while ((timeout -= 50) > 0) {
-			if (input.available() < 2) {
-				Delay.msDelay(50);
-				continue;
-			}
+	private void mqttDataArrived(ATTokenizer resp) throws IOException {
 
-			int val = input.read();
-			if (val == 0x0D) {
-				val = input.read(); // 0x0a
-				break;
-			}
+		int id = resp.nextInt();
+		int value = resp.nextInt();
 
-			// only for character
-			if (val >= 0x20)
-				sb.append((char) val);
+		if (!resp.hasNext()) {
+			// <client_idx>,<recv_id>: message kept in the buffer of the module
+			getReceiver().onNotified(id, value);
+			return;
 		}
-		return sb.toString();
-	}
-
-	private void mqttLinkChanged(String resp) throws IOException {
-		
-		this.logMsg("mqttLinkChanged " + resp);
 
-		int begin = resp.indexOf(':');
-		if (begin < 0)
-			throw new IOException("Wrong response");
+		if (!resp.startsWith("\"")) {
+			// <client_idx>,<status0>,...,<status4>: reply of AT+QMTRECV?
+			int mask = value;
+			for (int i = 1; i < MQTTBufferedReceiver.RECV_BUFFERS && resp.hasNext(); i++)
+				mask |= resp.nextInt() << i;
+			getReceiver().onStatus(id, mask);
+			return;
+		}
 
-		resp = resp.substring(begin + 2);
-		String[] result = resp.split(",");
+		// <client_idx>,<msgID>,"<topic>",<payload_len>,"<payload>"
+		int msgId = value;
+		String topic = resp.nextQuoted();
+		int length = resp.nextInt();
+
+		if (id >= 0 && id < MQTT_CLIENTS && this.mqttBuffered[id]) {
+			// read back by the receiver
+			byte[] payload = new byte[length];
+			resp.nextQuoted(payload, 0, length);
+			getReceiver().onMessage(id, msgId, topic, payload);
+			return;
+		}
 
-		int id = Integer.parseInt(result[0]);
-		int error = Integer.parseInt(result[1]);
+		String payload = resp.nextQuoted(length);
 
-		if (this.eventListener != null) {
-			this.eventListener.onMQTTLinkLost(id, error);
+		IEC20MqttEventListener listener = getEventListener(id);
+		if (listener != null) {
+			listener.onMQTTPublishDataArrived(id, msgId, topic, payload);
 		}
 	}
 
-	private void mqttDataArrived(String resp) throws IOException {
-		this.logMsg("mqttDataArrived " + resp);
-
-		int begin = resp.indexOf(':');
-		if (begin < 0)
-			throw new IOException("Wrong response");
-
-		resp = resp.substring(begin + 2);
-		String[] result = resp.split(",");
-
-		if (result.length == 5) {
-
-			int id = Integer.parseInt(result[0]);
-			int msgId = Integer.parseInt(result[1]);
-			String topic = result[2];
-
-			String payload = result[4];
-
-			if (this.eventListener != null) {
-				this.eventListener.onMQTTPublishDataArrived(id, msgId, topic, payload);
+	/*
+	 * fail the asynchronous publish messages without result, at most every 100 ms
+	 */
+	private void expirePublish() {
+		long now = System.currentTimeMillis();
+		if (now - this.expireCheck < 100)
+			return;
+		this.expireCheck = now;
+
+		for (int id = 0; id < MQTT_CLIENTS; id++) {
+			MQTTClient client;
+			synchronized (this.mqttClients) {
+				client = this.mqttClients[id];
 			}
+			if (client != null)
+				client.getInflight().expire();
+		}
+	}
 
-		} else {
-			String cmd = "AT+QMTRECV=" + result[0] + result[1];
-			output.write((cmd + "\r\n").getBytes());
+	private synchronized MQTTBufferedReceiver getReceiver() {
+		if (this.receiver == null)
+			this.receiver = new MQTTBufferedReceiver(this);
+		return this.receiver;
+	}
+
+	/*
+	 * messages read from the buffers of the client, called by the receiver
+	 */
+	void mqttBatchArrived(int id, MQTTMessage[] messages, int count) {
+		IEC20MqttEventListener listener = getEventListener(id);
+		if (listener == null)
+			return;
+
+		if (listener instanceof IEC20MqttBatchEventListener) {
+			((IEC20MqttBatchEventListener) listener).onMQTTPublishBatchArrived(id, messages, count);
+			return;
 		}
 
+		for (int i = 0; i < count; i++)
+			listener.onMQTTPublishDataArrived(id, messages[i].getMsgId(), messages[i].getTopic(),
+					messages[i].toString());
 	}
-	
+
 	private void logMsg(String msg)
 	{
+		if (!debug)
+			return;
+
 		//Logger.info("EC20", msg);
 		System.out.println(msg);
 	}
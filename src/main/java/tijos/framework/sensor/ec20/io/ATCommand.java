@@ -0,0 +1,257 @@
+package tijos.framework.sensor.ec20.io;
+
+/**
+ * AT command queued in {@link ATCommandQueue}, it is also the future of the
+ * command result
+ */
+public class ATCommand {
+
+	public static final int STATE_QUEUED = 0;
+	public static final int STATE_SENT = 1;
+	public static final int STATE_OK = 2;
+	public static final int STATE_ERROR = 3;
+	public static final int STATE_TIMEOUT = 4;
+
+	private String command;
+	private String keywords;
+	private String intermediate;
+	private int timeout;
+
+	// information lines and final result line separated by '\n'
+	private byte[] response;
+	private int responseLength;
+	private int lastLine; // offset of the last line
+	private ATTokenizer tokenizer;
+
+	// data sent after the ">" prompt
+	private byte[] data;
+	private int dataOffset;
+	private int dataLength;
+
+	private IATCommandListener listener;
+
+	private int state = STATE_QUEUED;
+	private long sentTime;
+	private long deadline;
+	private long doneTime;
+
+	/**
+	 * AT command completed by "OK"
+	 *
+	 * @param command command without CR/LF
+	 * @param timeout timeout in milliseconds
+	 */
+	public ATCommand(String command, int timeout) {
+		this(command, null, timeout);
+	}
+
+	/**
+	 * AT command completed by a line containing the keywords, "ERROR" and
+	 * "+CME ERROR" always complete the command
+	 *
+	 * @param command  command without CR/LF, null to wait for the keywords only
+	 * @param keywords expected keywords in final result, null for "OK"
+	 * @param timeout  timeout in milliseconds
+	 */
+	public ATCommand(String command, String keywords, int timeout) {
+		this.command = command;
+		this.keywords = (keywords != null && keywords.length() > 0) ? keywords : null;
+		this.timeout = timeout;
+	}
+
+	public String getCommand() {
+		return command;
+	}
+
+	public String getKeywords() {
+		return keywords;
+	}
+
+	public String getIntermediate() {
+		return intermediate;
+	}
+
+	public int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * A line containing both the keywords and the intermediate keywords is kept
+	 * as information and restarts the timeout instead of completing the
+	 * command, such as "+QMTPUBEX: 0,1,1," of a packet retransmission
+	 *
+	 * @param intermediate null for none
+	 */
+	public void setIntermediate(String intermediate) {
+		this.intermediate = (intermediate != null && intermediate.length() > 0) ? intermediate : null;
+	}
+
+	/**
+	 * Data to be written to the module once the ">" prompt arrives, the buffer
+	 * must not be modified until the command is done
+	 *
+	 * @param data
+	 * @param off
+	 * @param len
+	 */
+	public void setData(byte[] data, int off, int len) {
+		if (off < 0 || len < 0 || off + len > data.length)
+			throw new IndexOutOfBoundsException();
+
+		this.data = data;
+		this.dataOffset = off;
+		this.dataLength = len;
+	}
+
+	/**
+	 * Listener called when the command is done
+	 *
+	 * @param listener
+	 */
+	public void setListener(IATCommandListener listener) {
+		this.listener = listener;
+	}
+
+	byte[] getData() {
+		return data;
+	}
+
+	int getDataOffset() {
+		return dataOffset;
+	}
+
+	int getDataLength() {
+		return dataLength;
+	}
+
+	public synchronized int getState() {
+		return state;
+	}
+
+	public synchronized boolean isDone() {
+		return state > STATE_SENT;
+	}
+
+	public synchronized boolean isOK() {
+		return state == STATE_OK;
+	}
+
+	/**
+	 * Last line received for the command, it's the final result line for
+	 * keywords and error, otherwise the last information line
+	 *
+	 * @return
+	 */
+	public synchronized String getResponse() {
+		if (responseLength == 0)
+			return "";
+		return new String(response, lastLine, responseLength - lastLine);
+	}
+
+	/**
+	 * All lines received for the command separated by '\n'
+	 *
+	 * @return
+	 */
+	public synchronized String getResponseLines() {
+		if (responseLength == 0)
+			return "";
+		return new String(response, 0, responseLength);
+	}
+
+	/**
+	 * Tokenizer over the raw bytes of all lines of the response, a field does
+	 * not run across the end of a line
+	 *
+	 * @return
+	 */
+	public synchronized ATTokenizer getTokenizer() {
+		if (tokenizer == null)
+			tokenizer = new ATTokenizer();
+		return tokenizer.reset(response, 0, responseLength);
+	}
+
+	/**
+	 * Time from sending the command to its final result
+	 *
+	 * @return milliseconds or -1 if not completed
+	 */
+	public synchronized int getElapsed() {
+		if (!isDone())
+			return -1;
+		return (int) (doneTime - sentTime);
+	}
+
+	/**
+	 * Wait for the completion of the command
+	 *
+	 * @return response
+	 * @throws InterruptedException
+	 */
+	public synchronized String get() throws InterruptedException {
+		while (state <= STATE_SENT) {
+			this.wait();
+		}
+		return getResponse();
+	}
+
+	/**
+	 * Wait for the completion of the command
+	 *
+	 * @param timeout max time to wait in milliseconds
+	 * @return true if completed
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean waitDone(int timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (state <= STATE_SENT) {
+			long left = deadline - System.currentTimeMillis();
+			if (left <= 0)
+				return false;
+			this.wait(left);
+		}
+		return true;
+	}
+
+	synchronized void sent(long now) {
+		this.state = STATE_SENT;
+		this.sentTime = now;
+		this.deadline = now + timeout;
+	}
+
+	synchronized void restart(long now) {
+		this.deadline = now + timeout;
+	}
+
+	synchronized long getDeadline() {
+		return deadline;
+	}
+
+	synchronized void append(byte[] line, int off, int len) {
+		int size = responseLength + len + (responseLength > 0 ? 1 : 0);
+		if (response == null) {
+			response = new byte[Math.max(len, 32)];
+		} else if (size > response.length) {
+			byte[] temp = new byte[Math.max(size, response.length * 2)];
+			System.arraycopy(response, 0, temp, 0, responseLength);
+			response = temp;
+		}
+
+		if (responseLength > 0)
+			response[responseLength++] = '\n';
+		lastLine = responseLength;
+		System.arraycopy(line, off, response, responseLength, len);
+		responseLength += len;
+	}
+
+	void complete(int state) {
+		synchronized (this) {
+			this.state = state;
+			this.doneTime = System.currentTimeMillis();
+			this.notifyAll();
+		}
+
+		if (listener != null)
+			listener.onCommandCompleted(this);
+	}
+}
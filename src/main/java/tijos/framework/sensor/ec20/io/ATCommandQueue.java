@@ -0,0 +1,213 @@
+package tijos.framework.sensor.ec20.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * AT command queue, commands are written to the module back to back: the next
+ * command is sent the moment the final result of the previous one arrives.
+ * Responses are correlated by the order of the commands since the module
+ * processes one command at a time.
+ */
+public class ATCommandQueue {
+
+	public static final int DEFAULT_CAPACITY = 16;
+
+	// data after ">" prompt is written in chunks of the UART buffer size
+	public static final int DATA_CHUNK = 256;
+
+	private OutputStream output;
+
+	private final ATCommand[] queue;
+	private int head;
+	private int count;
+
+	// command waiting for its final result
+	private ATCommand current;
+	private boolean dataSent;
+
+	private final ATTokenizer matcher = new ATTokenizer();
+
+	/**
+	 * Initialize with the output stream of the module
+	 *
+	 * @param output
+	 */
+	public ATCommandQueue(OutputStream output) {
+		this(output, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Initialize with the output stream of the module
+	 *
+	 * @param output
+	 * @param capacity max commands waiting in the queue
+	 */
+	public ATCommandQueue(OutputStream output, int capacity) {
+		this.output = output;
+		this.queue = new ATCommand[capacity];
+	}
+
+	/**
+	 * Queue a command, it is sent immediately if no command is in progress
+	 *
+	 * @param cmd
+	 * @return the command as future of the result
+	 * @throws IOException queue is full
+	 */
+	public synchronized ATCommand submit(ATCommand cmd) throws IOException {
+		if (count == queue.length)
+			throw new IOException("AT command queue is full");
+
+		queue[(head + count) % queue.length] = cmd;
+		count++;
+
+		if (current == null)
+			sendNext();
+
+		return cmd;
+	}
+
+	/**
+	 * Commands waiting in the queue, excluding the one in progress
+	 *
+	 * @return
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * Check a line received from the module for final result of the current
+	 * command
+	 *
+	 * @param line line buffer
+	 * @param len  line length
+	 * @return true if the line is consumed by the current command
+	 * @throws IOException
+	 */
+	public synchronized boolean onResult(byte[] line, int len) throws IOException {
+		if (current == null)
+			return false;
+
+		matcher.reset(line, 0, len);
+		if (matcher.equalsTo("ERROR") || matcher.startsWith("+CME ERROR:")) {
+			current.append(line, 0, len);
+			complete(ATCommand.STATE_ERROR);
+			return true;
+		}
+
+		if (current.getData() != null && !dataSent && matcher.equalsTo(">")) {
+			writeData(current);
+			return true;
+		}
+
+		String keywords = current.getKeywords();
+		if (keywords != null) {
+			if (matcher.contains(keywords)) {
+				current.append(line, 0, len);
+
+				String intermediate = current.getIntermediate();
+				if (intermediate != null && matcher.contains(intermediate)) {
+					// not final yet, keep the command pending
+					current.restart(System.currentTimeMillis());
+					return true;
+				}
+
+				complete(ATCommand.STATE_OK);
+				return true;
+			}
+			// intermediate result before the keywords
+			return matcher.equalsTo("OK");
+		}
+
+		if (matcher.equalsTo("OK")) {
+			complete(ATCommand.STATE_OK);
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Information line of the current command
+	 *
+	 * @param line line buffer
+	 * @param len  line length
+	 */
+	public synchronized void onInformation(byte[] line, int len) {
+		if (current == null)
+			return;
+
+		// echo of the command before ATE0
+		String cmd = current.getCommand();
+		if (cmd != null && matcher.reset(line, 0, len).equalsTo(cmd))
+			return;
+
+		current.append(line, 0, len);
+	}
+
+	/**
+	 * Complete the current command if it times out, it should be called
+	 * periodically by the reader thread
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void checkTimeout() throws IOException {
+		if (current == null)
+			return;
+
+		if (System.currentTimeMillis() >= current.getDeadline())
+			complete(ATCommand.STATE_TIMEOUT);
+	}
+
+	private void complete(int state) throws IOException {
+		ATCommand cmd = current;
+		current = null;
+		cmd.complete(state);
+
+		sendNext();
+	}
+
+	private void sendNext() throws IOException {
+		while (current == null && count > 0) {
+			ATCommand cmd = queue[head];
+			queue[head] = null;
+			head = (head + 1) % queue.length;
+			count--;
+
+			current = cmd;
+			dataSent = false;
+			cmd.sent(System.currentTimeMillis());
+
+			// null command only waits for the keywords
+			if (cmd.getCommand() == null)
+				continue;
+
+			try {
+				output.write((cmd.getCommand() + "\r\n").getBytes());
+			} catch (IOException ex) {
+				current = null;
+				cmd.complete(ATCommand.STATE_ERROR);
+			}
+		}
+	}
+
+	private void writeData(ATCommand cmd) throws IOException {
+		dataSent = true;
+
+		byte[] data = cmd.getData();
+		int off = cmd.getDataOffset();
+		int left = cmd.getDataLength();
+		try {
+			while (left > 0) {
+				int len = Math.min(left, DATA_CHUNK);
+				output.write(data, off, len);
+				off += len;
+				left -= len;
+			}
+		} catch (IOException ex) {
+			complete(ATCommand.STATE_ERROR);
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package tijos.framework.sensor.ec20.io;
+
+import java.io.IOException;
+
+import tijos.framework.devicecenter.TiUART;
+import tijos.framework.util.Delay;
+
+/**
+ * Line framer for AT responses. All bytes the UART has ready are read at once
+ * into a reusable ring buffer and split into CR/LF terminated lines without
+ * allocation, a line is returned as soon as its terminator arrives.
+ */
+public class ATLineReader {
+
+	public static final int BUFFER_SIZE = 1024;
+
+	// poll interval when the UART is idle, it grows while there is no data
+	private static final int IDLE_DELAY_MIN = 1;
+	private static final int IDLE_DELAY_MAX = 16;
+
+	private TiUART uart;
+
+	private final byte[] ring = new byte[BUFFER_SIZE];
+	private int head; // first unread byte
+	private int count; // unread bytes in ring
+	private int scanned; // unread bytes already checked for terminator
+
+	private final byte[] line = new byte[BUFFER_SIZE];
+	private int lineLength;
+
+	// time when the first byte of the pending line was read
+	private long lineStart;
+	private int idleDelay = IDLE_DELAY_MIN;
+
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	public ATLineReader(TiUART uart) {
+		this.uart = uart;
+	}
+
+	/**
+	 * Read next non-empty line
+	 *
+	 * @param timeout max time to wait in milliseconds
+	 * @return line length or -1 if timeout, the content is available by
+	 *         {@link #getLine()}
+	 * @throws IOException
+	 */
+	public int readLine(int timeout) throws IOException {
+		long deadline = System.currentTimeMillis() + timeout;
+
+		while (true) {
+			if (nextLine())
+				return lineLength;
+
+			if (fill() > 0)
+				continue;
+
+			if (System.currentTimeMillis() >= deadline)
+				return -1;
+
+			Delay.msDelay(idleDelay);
+			if (idleDelay < IDLE_DELAY_MAX)
+				idleDelay <<= 1;
+		}
+	}
+
+	/**
+	 * Line buffer, valid until next {@link #readLine(int)}
+	 *
+	 * @return
+	 */
+	public byte[] getLine() {
+		return line;
+	}
+
+	public int getLineLength() {
+		return lineLength;
+	}
+
+	/**
+	 * Current line as string
+	 *
+	 * @return
+	 */
+	public String getLineString() {
+		return new String(line, 0, lineLength);
+	}
+
+	/**
+	 * Latency from the arrival of the first byte of a line to its delivery
+	 *
+	 * @return
+	 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Read all available bytes from UART into ring buffer
+	 *
+	 * @return bytes read
+	 * @throws IOException
+	 */
+	private int fill() throws IOException {
+		int avail = uart.available();
+		if (avail <= 0 || count == BUFFER_SIZE)
+			return 0;
+
+		int total = 0;
+		while (avail > 0 && count < BUFFER_SIZE) {
+			int tail = (head + count) % BUFFER_SIZE;
+			int room = (tail >= head) ? BUFFER_SIZE - tail : head - tail;
+			if (count == 0) {
+				head = 0;
+				tail = 0;
+				room = BUFFER_SIZE;
+			}
+
+			int len = uart.read(ring, tail, Math.min(avail, room));
+			if (len <= 0)
+				break;
+
+			if (count == 0 && total == 0)
+				lineStart = System.currentTimeMillis();
+
+			count += len;
+			total += len;
+			avail -= len;
+		}
+
+		if (total > 0)
+			idleDelay = IDLE_DELAY_MIN;
+
+		return total;
+	}
+
+	/**
+	 * Extract next line from ring buffer
+	 *
+	 * @return true if a non-empty line is extracted
+	 */
+	private boolean nextLine() {
+		while (scanned < count) {
+			byte b = ring[(head + scanned) % BUFFER_SIZE];
+			if (b == 0x0D || b == 0x0A) {
+				copyLine(scanned, scanned + 1);
+				if (lineLength > 0)
+					return true;
+				continue;
+			}
+			scanned++;
+		}
+
+		if (count == 0)
+			return false;
+
+		// data prompt "> " is not terminated by CR/LF
+		if (ring[head] == '>') {
+			int consume = 1;
+			while (consume < count && ring[(head + consume) % BUFFER_SIZE] == ' ')
+				consume++;
+			copyLine(1, consume);
+			return true;
+		}
+
+		// line longer than buffer
+		if (count == BUFFER_SIZE) {
+			copyLine(count, count);
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Copy bytes from ring to line buffer and consume them
+	 *
+	 * @param length  line length
+	 * @param consume bytes to be removed from ring
+	 */
+	private void copyLine(int length, int consume) {
+		int n = 0;
+		for (int i = 0; i < length; i++) {
+			byte b = ring[(head + i) % BUFFER_SIZE];
+			// only for character, leading spaces are dropped
+			if ((b & 0xFF) > 0x20 || (b == ' ' && n > 0))
+				line[n++] = b;
+		}
+		lineLength = n;
+
+		head = (head + consume) % BUFFER_SIZE;
+		count -= consume;
+		scanned = 0;
+
+		if (n > 0)
+			latency.record((int) (System.currentTimeMillis() - lineStart));
+
+		// next line starts with the remaining bytes
+		if (count > 0)
+			lineStart = System.currentTimeMillis();
+	}
+}
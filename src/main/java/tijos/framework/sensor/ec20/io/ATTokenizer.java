@@ -0,0 +1,317 @@
+package tijos.framework.sensor.ec20.io;
+
+import java.io.IOException;
+
+/**
+ * Cursor based tokenizer over the raw bytes of an AT response such as
+ * "+QMTPUBEX: 0,1,0", the fields are parsed in place without intermediate
+ * strings. The lines of a response are separated by '\n', a field ends at the
+ * end of its line.
+ */
+public class ATTokenizer {
+
+	private byte[] data;
+	private int pos;
+	private int end;
+
+	public ATTokenizer() {
+	}
+
+	public ATTokenizer(byte[] data, int off, int len) {
+		reset(data, off, len);
+	}
+
+	/**
+	 * Attach the tokenizer to a buffer
+	 *
+	 * @param data
+	 * @param off
+	 * @param len
+	 * @return this tokenizer
+	 */
+	public ATTokenizer reset(byte[] data, int off, int len) {
+		this.data = data;
+		this.pos = off;
+		this.end = off + len;
+		return this;
+	}
+
+	/**
+	 * Move the cursor behind the prefix and the following ':' and spaces
+	 *
+	 * @param prefix such as "+CSQ"
+	 * @return false if the prefix is not found
+	 */
+	public boolean seek(String prefix) {
+		int n = prefix.length();
+		for (int i = pos; i <= end - n; i++) {
+			if (matches(i, prefix)) {
+				pos = i + n;
+				if (pos < end && data[pos] == ':')
+					pos++;
+				skipSpaces();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Check if the remaining bytes start with the text
+	 *
+	 * @param text
+	 * @return
+	 */
+	public boolean startsWith(String text) {
+		return end - pos >= text.length() && matches(pos, text);
+	}
+
+	/**
+	 * Check if the remaining bytes are equal to the text
+	 *
+	 * @param text
+	 * @return
+	 */
+	public boolean equalsTo(String text) {
+		return end - pos == text.length() && matches(pos, text);
+	}
+
+	/**
+	 * Check if the text is contained in the remaining bytes
+	 *
+	 * @param text
+	 * @return
+	 */
+	public boolean contains(String text) {
+		int n = text.length();
+		for (int i = pos; i <= end - n; i++) {
+			if (matches(i, text))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Check if there are fields left in the current line
+	 *
+	 * @return
+	 */
+	public boolean hasNext() {
+		return pos < end && data[pos] != '\n';
+	}
+
+	public int position() {
+		return pos;
+	}
+
+	public int remaining() {
+		return end - pos;
+	}
+
+	/**
+	 * Parse an integer field
+	 *
+	 * @return
+	 * @throws IOException no digits in the field
+	 */
+	public int nextInt() throws IOException {
+		skipSpaces();
+		boolean negative = false;
+		if (pos < end && data[pos] == '-') {
+			negative = true;
+			pos++;
+		}
+
+		int start = pos;
+		int value = 0;
+		while (pos < end) {
+			int c = data[pos] - '0';
+			if (c < 0 || c > 9)
+				break;
+			value = value * 10 + c;
+			pos++;
+		}
+
+		if (pos == start)
+			throw new IOException("Wrong response");
+
+		skipSeparator();
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parse a decimal field such as "3959.807968"
+	 *
+	 * @return
+	 * @throws IOException no digits in the field
+	 */
+	public double nextDouble() throws IOException {
+		skipSpaces();
+		boolean negative = false;
+		if (pos < end && (data[pos] == '-' || data[pos] == '+')) {
+			negative = data[pos] == '-';
+			pos++;
+		}
+
+		int start = pos;
+		long mantissa = 0;
+		long scale = 1;
+		boolean fraction = false;
+		while (pos < end) {
+			byte b = data[pos];
+			if (b == '.' && !fraction) {
+				fraction = true;
+			} else if (b >= '0' && b <= '9') {
+				// extra fraction digits are beyond double precision
+				if (!fraction || mantissa < 100000000000000L) {
+					mantissa = mantissa * 10 + (b - '0');
+					if (fraction)
+						scale *= 10;
+				}
+			} else {
+				break;
+			}
+			pos++;
+		}
+
+		if (pos == start)
+			throw new IOException("Wrong response");
+
+		skipSeparator();
+
+		double value = (double) mantissa / scale;
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parse a quoted string field, quotes are optional
+	 *
+	 * @return the string without quotes
+	 */
+	public String nextQuoted() {
+		skipSpaces();
+		int start;
+		int stop;
+		if (pos < end && data[pos] == '"') {
+			start = ++pos;
+			while (pos < end && data[pos] != '"')
+				pos++;
+			stop = pos;
+			if (pos < end)
+				pos++;
+		} else {
+			start = pos;
+			while (pos < end && data[pos] != ',' && data[pos] != '\n')
+				pos++;
+			stop = pos;
+		}
+
+		skipSeparator();
+		return new String(data, start, stop - start);
+	}
+
+	/**
+	 * Parse a quoted field with known length, the content may contain quotes and
+	 * commas
+	 *
+	 * @param length length of the content
+	 * @return the string without quotes
+	 */
+	public String nextQuoted(int length) {
+		skipSpaces();
+		if (pos < end && data[pos] == '"')
+			pos++;
+
+		int start = pos;
+		pos += Math.min(length, end - pos);
+		String value = new String(data, start, pos - start);
+
+		skipSeparator();
+		return value;
+	}
+
+	/**
+	 * Copy a quoted field with known length, the content may contain quotes and
+	 * commas
+	 *
+	 * @param dest
+	 * @param off
+	 * @param len  length of the content
+	 * @return bytes copied
+	 */
+	public int nextQuoted(byte[] dest, int off, int len) {
+		skipSpaces();
+		if (pos < end && data[pos] == '"')
+			pos++;
+
+		len = nextBytes(dest, off, len);
+
+		skipSeparator();
+		return len;
+	}
+
+	/**
+	 * Copy the next raw bytes without parsing, it's used for payload with known
+	 * length
+	 *
+	 * @param dest
+	 * @param off
+	 * @param len
+	 * @return bytes copied
+	 */
+	public int nextBytes(byte[] dest, int off, int len) {
+		len = Math.min(len, end - pos);
+		System.arraycopy(data, pos, dest, off, len);
+		pos += len;
+		return len;
+	}
+
+	/**
+	 * Skip a field
+	 */
+	public void skip() {
+		skipSpaces();
+		boolean quoted = false;
+		while (pos < end) {
+			byte b = data[pos];
+			if (b == '"')
+				quoted = !quoted;
+			else if ((b == ',' || b == '\n') && !quoted)
+				break;
+			pos++;
+		}
+		skipSeparator();
+	}
+
+	/**
+	 * Skip fields
+	 *
+	 * @param count
+	 */
+	public void skip(int count) {
+		while (count-- > 0)
+			skip();
+	}
+
+	private void skipSpaces() {
+		while (pos < end && data[pos] == ' ')
+			pos++;
+	}
+
+	// move to the next field of the line, the cursor stays at the end of the line
+	private void skipSeparator() {
+		while (pos < end && data[pos] != ',' && data[pos] != '\n')
+			pos++;
+		if (pos < end && data[pos] == ',')
+			pos++;
+	}
+
+	private boolean matches(int offset, String text) {
+		int n = text.length();
+		for (int i = 0; i < n; i++) {
+			if (data[offset + i] != (byte) text.charAt(i))
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,10 @@
+package tijos.framework.sensor.ec20.io;
+
+public interface IATCommandListener {
+
+	/**
+	 * Command is done, it's called from the UART reader thread and must not block
+	 */
+	void onCommandCompleted(ATCommand cmd);
+
+}
@@ -0,0 +1,101 @@
+package tijos.framework.sensor.ec20.io;
+
+/**
+ * Latency histogram with power of 2 millisecond buckets: 0, 1, 2-3, 4-7 ...
+ * 2048+ ms
+ */
+public class LatencyHistogram {
+
+	public static final int BUCKETS = 13;
+
+	private final int[] counts = new int[BUCKETS];
+	private int total;
+	private long sum;
+	private int max;
+
+	/**
+	 * Record a latency sample
+	 *
+	 * @param ms latency in milliseconds
+	 */
+	public synchronized void record(int ms) {
+		if (ms < 0)
+			ms = 0;
+
+		counts[bucketOf(ms)]++;
+		total++;
+		sum += ms;
+		if (ms > max)
+			max = ms;
+	}
+
+	/**
+	 * Bucket index of the latency
+	 *
+	 * @param ms
+	 * @return
+	 */
+	public static int bucketOf(int ms) {
+		int bucket = 0;
+		while (ms > 0 && bucket < BUCKETS - 1) {
+			ms >>>= 1;
+			bucket++;
+		}
+		return bucket;
+	}
+
+	/**
+	 * Lower limit of the bucket in milliseconds
+	 *
+	 * @param bucket
+	 * @return
+	 */
+	public static int bucketLimit(int bucket) {
+		if (bucket == 0)
+			return 0;
+		return 1 << (bucket - 1);
+	}
+
+	public synchronized int getCount(int bucket) {
+		return counts[bucket];
+	}
+
+	public synchronized int getTotal() {
+		return total;
+	}
+
+	public synchronized int getMax() {
+		return max;
+	}
+
+	/**
+	 * Average latency in milliseconds
+	 *
+	 * @return
+	 */
+	public synchronized int getMean() {
+		if (total == 0)
+			return 0;
+		return (int) (sum / total);
+	}
+
+	public synchronized void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			counts[i] = 0;
+		total = 0;
+		sum = 0;
+		max = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder(128);
+		sb.append("n=").append(total).append(" mean=").append(getMean()).append("ms max=").append(max).append("ms");
+		for (int i = 0; i < BUCKETS; i++) {
+			if (counts[i] == 0)
+				continue;
+			sb.append(' ').append(bucketLimit(i)).append("ms:").append(counts[i]);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,17 @@
+package tijos.framework.sensor.ec20.mqtt;
+
+/**
+ * Event listener of messages read from the buffer of the module in batch,
+ * see {@link MQTTClient#setReceiveBuffered(boolean)}
+ */
+public interface IMQTTBatchEventListener extends IMQTTEventListener {
+
+	/**
+	 * Messages drained from the module buffer, the array is reused after the
+	 * call
+	 *
+	 * @param messages
+	 * @param count    number of messages
+	 */
+	void onPublishBatchArrived(MQTTMessage[] messages, int count);
+}
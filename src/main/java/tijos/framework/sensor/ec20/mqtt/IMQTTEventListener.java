@@ -4,6 +4,10 @@ public interface IMQTTEventListener {
 
     /**
      * Data arrived from the CDP server
+     * <p>
+     * The topic and the message are given without the surrounding quotes of
+     * +QMTRECV, such as "sensor/1" rather than "\"sensor/1\"".
+     * </p>
      */
     void onPublishDataArrived(int msgId, String topic, String message);
 
@@ -0,0 +1,16 @@
+package tijos.framework.sensor.ec20.mqtt;
+
+/**
+ * Event listener of the packet retransmissions of all publish messages of a
+ * client, see {@link MQTTClient#setEventListener(IMQTTEventListener)}
+ */
+public interface IMQTTPublishEventListener extends IMQTTEventListener {
+
+	/**
+	 * Packet is retransmitted by the module, the message is still in flight
+	 *
+	 * @param msgId message id
+	 * @param count retransmission count
+	 */
+	void onPublishRetransmitted(int msgId, int count);
+}
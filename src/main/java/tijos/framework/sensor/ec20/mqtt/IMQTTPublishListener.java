@@ -0,0 +1,21 @@
+package tijos.framework.sensor.ec20.mqtt;
+
+public interface IMQTTPublishListener {
+
+	/**
+	 * Publish is acknowledged by the server or failed
+	 * 
+	 * @param msgId   message id
+	 * @param success true if the packet is sent successfully
+	 */
+	void onPublishCompleted(int msgId, boolean success);
+
+	/**
+	 * Packet is retransmitted by the module
+	 * 
+	 * @param msgId message id
+	 * @param count retransmission count
+	 */
+	void onPublishRetransmitted(int msgId, int count);
+
+}
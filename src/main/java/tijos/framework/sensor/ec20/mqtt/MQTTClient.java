@@ -2,12 +2,23 @@ package tijos.framework.sensor.ec20.mqtt;
 
 import java.io.IOException;
 
-import tijos.framework.sensor.ec20.IEC20MqttEventListener;
+import tijos.framework.sensor.ec20.IEC20MqttBatchEventListener;
+import tijos.framework.sensor.ec20.IEC20MqttPublishEventListener;
 import tijos.framework.sensor.ec20.TiEC20;
+import tijos.framework.sensor.ec20.io.ATCommand;
+import tijos.framework.sensor.ec20.io.IATCommandListener;
 import tijos.framework.util.Delay;
 
-public class MQTTClient implements IEC20MqttEventListener {
+public class MQTTClient implements IEC20MqttPublishEventListener, IEC20MqttBatchEventListener {
 
+	/**
+	 * Default window of asynchronous publish
+	 */
+	public static final int DEFAULT_PUBLISH_WINDOW = 4;
+
+	/*
+	 * client slot of the module (0-5)
+	 */
 	private int client_idx = 0;
 
 	/*
@@ -28,6 +39,34 @@ public class MQTTClient implements IEC20MqttEventListener {
 
 	private IMQTTEventListener _mqttEventListener = null;
 
+	/*
+	 * asynchronous publish in flight
+	 */
+	private MQTTInflightTable _inflight = new MQTTInflightTable(DEFAULT_PUBLISH_WINDOW);
+
+	/*
+	 * max time to wait for a free slot of the publish window
+	 */
+	private int _windowTimeout = 30000;
+
+	/*
+	 * messages kept while the link is down, null if not used
+	 */
+	private MQTTOutbox _outbox;
+
+	private volatile boolean _connected;
+
+	private final Object _flushLock = new Object();
+
+	/*
+	 * topics subscribed, they are subscribed again after reconnected
+	 */
+	private String[] _topics = new String[4];
+	private int[] _topicQos = new int[4];
+	private int _topicCount;
+
+	private MQTTReconnectSupervisor _supervisor;
+
 	/**
 	 * Initialize mqtt client with ec20 and server options
 	 * 
@@ -37,11 +76,38 @@ public class MQTTClient implements IEC20MqttEventListener {
 	 * @param clientId cilent id
 	 */
 	public MQTTClient(TiEC20 ec20, String server, int port, String clientId) {
+		this(ec20, 0, server, port, clientId);
+	}
+
+	/**
+	 * Initialize mqtt client with ec20, client slot and server options, the URCs
+	 * of the slot are routed to the client
+	 * 
+	 * @param ec20
+	 * @param clientIndex client slot of the module (0-5)
+	 * @param server      mqtt server
+	 * @param port        mqtt port
+	 * @param clientId    cilent id
+	 */
+	public MQTTClient(TiEC20 ec20, int clientIndex, String server, int port, String clientId) {
 		this._ec20 = ec20;
+		this.client_idx = clientIndex;
 
 		this._server = server;
 		this._port = port;
 		this._clientId = clientId;
+
+		// publish results and link state are needed without an application listener
+		ec20.setEventListener(clientIndex, this);
+	}
+
+	/**
+	 * Client slot of the module
+	 * 
+	 * @return
+	 */
+	public int getClientIndex() {
+		return this.client_idx;
 	}
 
 	/*
@@ -58,7 +124,60 @@ public class MQTTClient implements IEC20MqttEventListener {
 	 */
 	public void setEventListener(IMQTTEventListener listener) {
 		_mqttEventListener = listener;
-		this._ec20.setEventListener(this);
+	}
+
+	/**
+	 * Set the window of asynchronous publish, it should be called when no
+	 * message is in flight
+	 * 
+	 * @param window  max messages in flight
+	 * @param timeout max time to wait for a free slot when the window is full
+	 */
+	public void setPublishWindow(int window, int timeout) {
+		this._inflight = new MQTTInflightTable(window);
+		this._windowTimeout = timeout;
+	}
+
+	/**
+	 * Messages in flight and the statistics
+	 * 
+	 * @return
+	 */
+	public MQTTInflightTable getInflight() {
+		return this._inflight;
+	}
+
+	/**
+	 * Receive mode, it is applied by the next connect. In buffer mode the
+	 * messages are kept by the module and read back in batch, a burst of
+	 * messages is not lost. Messages are delivered to
+	 * {@link IMQTTBatchEventListener#onPublishBatchArrived(MQTTMessage[], int)}
+	 * if the event listener implements it.
+	 * 
+	 * @param buffered true for buffer mode, false for push mode (default)
+	 */
+	public void setReceiveBuffered(boolean buffered) {
+		this._ec20.mqttConfigRecvMode(this.client_idx, buffered);
+	}
+
+	/**
+	 * Keep messages published while the link is down and send them after
+	 * connected, in order
+	 * 
+	 * @param outbox the outbox, null to disable
+	 */
+	public void setOutbox(MQTTOutbox outbox) {
+		this._outbox = outbox;
+	}
+
+	public MQTTOutbox getOutbox() {
+		return this._outbox;
+	}
+
+	synchronized void setSupervisor(MQTTReconnectSupervisor supervisor) {
+		if (supervisor != null && this._supervisor != null && this._supervisor != supervisor)
+			throw new IllegalStateException("Supervisor already attached");
+		this._supervisor = supervisor;
 	}
 
 	/**
@@ -84,9 +203,39 @@ public class MQTTClient implements IEC20MqttEventListener {
 	 */
 	public void connect(MQTTConnectOptions options) throws IOException {
 
-		if(_ec20.isMqttConnected())
+		if(_ec20.isMqttConnected(this.client_idx))
 			_ec20.mqttDisconnect(this.client_idx);
 
+		try {
+			open(options);
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			_ec20.mqttDisconnect(this.client_idx);
+			Delay.msDelay(2000);
+			open(options);
+		}
+	}
+
+	/*
+	 * Single connect attempt used by the reconnect supervisor, the connection is
+	 * closed if it fails
+	 */
+	void reconnect(MQTTConnectOptions options) throws IOException {
+		try {
+			open(options);
+		} catch (IOException ex) {
+			try {
+				_ec20.mqttDisconnect(this.client_idx);
+			} catch (IOException ignored) {
+			}
+			throw ex;
+		}
+	}
+
+	/*
+	 * connect, subscribe the topics again and send the outbox
+	 */
+	private void open(MQTTConnectOptions options) throws IOException {
 		String user = null;
 		String password = null;
 
@@ -102,15 +251,40 @@ public class MQTTClient implements IEC20MqttEventListener {
 			password = options.getPassword();
 		}
 
+		_ec20.mqttConnect(this.client_idx, this._server, this._port, this._clientId, user, password);
+
+		this._connected = true;
+
 		try {
-			_ec20.mqttConnect(this.client_idx, this._server, this._port, this._clientId, user, password);
+			resubscribe();
+			flushOutbox();
 		} catch (IOException ex) {
-			ex.printStackTrace();
-			_ec20.mqttDisconnect(this.client_idx);
-			Delay.msDelay(2000);
-			_ec20.mqttConnect(this.client_idx, this._server, this._port, this._clientId, user, password);
+			this._connected = false;
+			throw ex;
+		}
+	}
+
+	private void resubscribe() throws IOException {
+		String[] topics;
+		int[] qos;
+		int count;
+		synchronized (this) {
+			topics = this._topics;
+			qos = this._topicQos;
+			count = this._topicCount;
 		}
 
+		for (int i = 0; i < count; i++)
+			_ec20.mqttSubscribe(this.client_idx, nextMsgId(), qos[i], topics[i]);
+	}
+
+	/**
+	 * Is the client connected, it is cleared when the link is lost
+	 * 
+	 * @return
+	 */
+	public boolean isConnected() {
+		return this._connected;
 	}
 
 	/**
@@ -120,9 +294,25 @@ public class MQTTClient implements IEC20MqttEventListener {
 	 */
 	public void disconnect() throws IOException {
 
+		this._connected = false;
 		_ec20.mqttDisconnect(this.client_idx);
 	}
 
+	/**
+	 * Disconnect the server if connected and release the client slot of the
+	 * module, the client is not used afterwards
+	 * 
+	 * @throws IOException If error occurs
+	 */
+	public void close() throws IOException {
+		try {
+			if (this._connected)
+				disconnect();
+		} finally {
+			_ec20.releaseMqttClient(this);
+		}
+	}
+
 	/**
 	 * subscribe a topic from the server
 	 * 
@@ -134,10 +324,38 @@ public class MQTTClient implements IEC20MqttEventListener {
 	 */
 	public int subscribe(int qos, String... topics) throws IOException {
 
-		this._msgId++;
-		_ec20.mqttSubscribe(this.client_idx, this._msgId, qos, topics);
+		int msgId = nextMsgId();
+		_ec20.mqttSubscribe(this.client_idx, msgId, qos, topics);
 
-		return this._msgId;
+		for (int i = 0; i < topics.length; i++)
+			remember(topics[i], qos);
+
+		return msgId;
+	}
+
+	private synchronized void remember(String topic, int qos) {
+		for (int i = 0; i < this._topicCount; i++) {
+			if (this._topics[i].equals(topic)) {
+				this._topicQos[i] = qos;
+				return;
+			}
+		}
+
+		// copy on write, resubscribe reads the arrays without lock
+		int size = this._topics.length;
+		if (this._topicCount == size)
+			size *= 2;
+
+		String[] topics = new String[size];
+		int[] qosList = new int[size];
+		System.arraycopy(this._topics, 0, topics, 0, this._topicCount);
+		System.arraycopy(this._topicQos, 0, qosList, 0, this._topicCount);
+		topics[this._topicCount] = topic;
+		qosList[this._topicCount] = qos;
+
+		this._topics = topics;
+		this._topicQos = qosList;
+		this._topicCount++;
 	}
 
 	/**
@@ -151,13 +369,159 @@ public class MQTTClient implements IEC20MqttEventListener {
 	 * @throws IOException error occurs
 	 */
 	public int publish(String topic, String message, int qos, boolean retained) throws IOException {
-		this._msgId++;
+		byte[] payload = message.getBytes();
+		return publish(topic, payload, 0, payload.length, qos, retained);
+	}
+
+	/**
+	 * publish binary message to the server, the payload is streamed to the
+	 * module without conversion
+	 * 
+	 * @param topic    the topic name
+	 * @param payload  the message buffer
+	 * @param off      offset of the message in the buffer
+	 * @param len      length of the message
+	 * @param qos      the qos
+	 * @param retained if retained in server
+	 * @return the message id for the current publish, 0 if it is put to the
+	 *         outbox
+	 * @throws IOException error occurs
+	 */
+	public int publish(String topic, byte[] payload, int off, int len, int qos, boolean retained) throws IOException {
+		MQTTOutbox outbox = this._outbox;
+		if (outbox != null && (!this._connected || !outbox.isEmpty())) {
+			// keep the order of the messages in the outbox
+			outbox.put(topic, payload, off, len, qos, retained);
+			if (this._connected)
+				flushOutbox();
+			return 0;
+		}
+
+		int msgId = qos > 0 ? nextMsgId() : 0;
+
+		try {
+			_ec20.mqttPublish(this.client_idx, msgId, qos, retained ? 1 : 0, topic, payload, off, len);
+		} catch (IOException ex) {
+			if (outbox == null)
+				throw ex;
+
+			outbox.put(topic, payload, off, len, qos, retained);
+			return 0;
+		}
+
+		return msgId;
+	}
+
+	/**
+	 * Send the messages in the outbox, messages are removed once acknowledged
+	 * by the module. It stops at the first failed message, the rest are kept.
+	 * 
+	 * @return number of messages sent
+	 * @throws IOException error occurs
+	 */
+	public int flushOutbox() throws IOException {
+		MQTTOutbox outbox = this._outbox;
+		if (outbox == null)
+			return 0;
+
+		synchronized (this._flushLock) {
+			int window = this._inflight.getWindow();
+			MQTTMessage[] batch = new MQTTMessage[window];
+			for (int i = 0; i < window; i++)
+				batch[i] = new MQTTMessage();
+
+			int total = 0;
+			while (this._connected) {
+				int count = outbox.peek(batch);
+				if (count == 0)
+					break;
+
+				OutboxBatch result = new OutboxBatch();
+				IOException error = null;
+				int sent = 0;
+				for (; sent < count; sent++) {
+					MQTTMessage msg = batch[sent];
+					byte[] payload = msg.getPayload();
+					try {
+						publishAsync(msg.getTopic(), payload, 0, payload.length, msg.getQos(), msg.isRetained(), result);
+					} catch (IOException ex) {
+						error = ex;
+						break;
+					}
+				}
+
+				int ok = result.waitCompleted(sent, window * TiEC20.COMMAND_TIMEOUT + this._windowTimeout);
+				outbox.remove(ok);
+				total += ok;
+
+				if (error != null)
+					throw error;
+				if (ok < count)
+					break;
+			}
 
-		_ec20.mqttPublish(this.client_idx, this._msgId, qos, retained ? 1 : 0, topic, message);
+			return total;
+		}
+	}
+
+	/**
+	 * publish binary message without waiting for the acknowledgement, several
+	 * messages can be in flight up to the publish window. The call waits if the
+	 * window is full.
+	 * 
+	 * @param topic    the topic name
+	 * @param payload  the message buffer, it must not be modified until the
+	 *                 message is completed
+	 * @param off      offset of the message in the buffer
+	 * @param len      length of the message
+	 * @param qos      the qos
+	 * @param retained if retained in server
+	 * @param listener completion listener, called from the UART reader thread
+	 * @return the message id for the current publish
+	 * @throws IOException error occurs
+	 */
+	public int publishAsync(String topic, byte[] payload, int off, int len, int qos, boolean retained,
+			IMQTTPublishListener listener) throws IOException {
+		final int msgId = qos > 0 ? nextMsgId() : 0;
 
+		final MQTTInflightTable inflight = this._inflight;
+		inflight.add(msgId, listener, this._windowTimeout);
+		try {
+			_ec20.mqttPublishAsync(this.client_idx, msgId, qos, retained ? 1 : 0, topic, payload, off, len,
+					new IATCommandListener() {
+						@Override
+						public void onCommandCompleted(ATCommand cmd) {
+							// rejected by the module, no +QMTPUBEX follows
+							if (!cmd.isOK())
+								inflight.fail(msgId);
+						}
+					});
+		} catch (IOException ex) {
+			inflight.fail(msgId);
+			throw ex;
+		}
+
+		return msgId;
+	}
+
+	/*
+	 * message id 1 - 65535, 0 is used for QoS 0 only
+	 */
+	private synchronized int nextMsgId() {
+		this._msgId = this._msgId % 65535 + 1;
 		return this._msgId;
 	}
 
+	@Override
+	public void onMQTTPublishResult(int client_idx, int msgId, int result, int value) {
+		this._inflight.onResult(msgId, result, value);
+
+		IMQTTEventListener listener = this._mqttEventListener;
+		if (result == 1 && listener instanceof IMQTTPublishEventListener) {
+			((IMQTTPublishEventListener) listener).onPublishRetransmitted(msgId, value);
+		}
+	}
+
 	@Override
 	public void onMQTTPublishDataArrived(int client_idx, int msgId, String topic, String message) {
 
@@ -166,9 +530,32 @@ public class MQTTClient implements IEC20MqttEventListener {
 		}
 	}
 
+	@Override
+	public void onMQTTPublishBatchArrived(int client_idx, MQTTMessage[] messages, int count) {
+
+		IMQTTEventListener listener = this._mqttEventListener;
+		if (listener == null)
+			return;
+
+		if (listener instanceof IMQTTBatchEventListener) {
+			((IMQTTBatchEventListener) listener).onPublishBatchArrived(messages, count);
+			return;
+		}
+
+		for (int i = 0; i < count; i++)
+			listener.onPublishDataArrived(messages[i].getMsgId(), messages[i].getTopic(), messages[i].toString());
+	}
+
 	@Override
 	public void onMQTTLinkLost(int client_idx, int error) {
 
+		this._connected = false;
+		this._inflight.failAll();
+
+		MQTTReconnectSupervisor supervisor = this._supervisor;
+		if (supervisor != null)
+			supervisor.linkLost(error);
+
 		if (this._mqttEventListener != null) {
 			new Thread(new Runnable() {
 				@Override
@@ -179,4 +566,46 @@ public class MQTTClient implements IEC20MqttEventListener {
 		}
 	}
 
+	/*
+	 * results of a batch from the outbox, the module acknowledges messages in
+	 * the order they are sent
+	 */
+	private static class OutboxBatch implements IMQTTPublishListener {
+		private int completed;
+		private int succeeded;
+		private boolean failed;
+
+		@Override
+		public synchronized void onPublishCompleted(int msgId, boolean success) {
+			completed++;
+			if (!success)
+				failed = true;
+			else if (!failed)
+				succeeded++;
+			this.notifyAll();
+		}
+
+		@Override
+		public void onPublishRetransmitted(int msgId, int count) {
+		}
+
+		/*
+		 * wait for results of the messages, returns the number of messages
+		 * succeeded before the first failure
+		 */
+		synchronized int waitCompleted(int count, int timeout) {
+			long deadline = System.currentTimeMillis() + timeout;
+			while (completed < count) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0)
+					break;
+				try {
+					this.wait(left);
+				} catch (InterruptedException ie) {
+					break;
+				}
+			}
+			return succeeded;
+		}
+	}
 }
@@ -0,0 +1,244 @@
+package tijos.framework.sensor.ec20.mqtt;
+
+import java.io.IOException;
+
+/**
+ * Publish messages waiting for the result from the module, keyed by message
+ * id. The table size is the window of messages in flight.
+ */
+public class MQTTInflightTable {
+
+	private final int[] msgIds;
+	private final IMQTTPublishListener[] listeners;
+	private final long[] sentTime;
+	private final long[] sequence;
+	private final boolean[] used;
+
+	private int count;
+	private long nextSequence;
+
+	// max time to wait for the result
+	private int expireTime = 60000;
+
+	// statistics
+	private int completed;
+	private int failed;
+	private int retransmissions;
+
+	/**
+	 * Initialize with window size
+	 *
+	 * @param window max messages in flight
+	 */
+	public MQTTInflightTable(int window) {
+		if (window < 1)
+			throw new IllegalArgumentException("Invalid window size");
+
+		msgIds = new int[window];
+		listeners = new IMQTTPublishListener[window];
+		sentTime = new long[window];
+		sequence = new long[window];
+		used = new boolean[window];
+	}
+
+	/**
+	 * Max time to wait for the result of a message, the message is failed after
+	 * the time
+	 *
+	 * @param ms
+	 */
+	public synchronized void setExpireTime(int ms) {
+		this.expireTime = ms;
+	}
+
+	public int getWindow() {
+		return used.length;
+	}
+
+	/**
+	 * Messages in flight
+	 *
+	 * @return
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * Add a message, wait if the window is full
+	 *
+	 * @param msgId
+	 * @param listener completion listener, may be null
+	 * @param timeout  max time to wait for a free slot
+	 * @throws IOException window is full after timeout
+	 */
+	public void add(int msgId, IMQTTPublishListener listener, int timeout) throws IOException {
+		long deadline = System.currentTimeMillis() + timeout;
+
+		while (true) {
+			synchronized (this) {
+				if (count < used.length) {
+					for (int i = 0; i < used.length; i++) {
+						if (!used[i]) {
+							used[i] = true;
+							msgIds[i] = msgId;
+							listeners[i] = listener;
+							sentTime[i] = System.currentTimeMillis();
+							sequence[i] = nextSequence++;
+							count++;
+							return;
+						}
+					}
+				}
+
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0)
+					throw new IOException("Publish window is full");
+
+				try {
+					this.wait(Math.min(left, 1000));
+				} catch (InterruptedException ie) {
+					throw new IOException("Interrupted");
+				}
+			}
+
+			// the window is still full, free the messages without result
+			expire();
+		}
+	}
+
+	/**
+	 * Result of a message from the module
+	 *
+	 * @param msgId
+	 * @param result 0 - success, 1 - retransmission, 2 - failed
+	 * @param value  retransmission count if result is 1
+	 * @return false if the message is not in the table
+	 */
+	public boolean onResult(int msgId, int result, int value) {
+		IMQTTPublishListener listener;
+
+		synchronized (this) {
+			int slot = find(msgId);
+			if (slot < 0)
+				return false;
+
+			listener = listeners[slot];
+			if (result == 1) {
+				retransmissions++;
+			} else {
+				release(slot);
+				if (result == 0)
+					completed++;
+				else
+					failed++;
+			}
+		}
+
+		if (listener != null) {
+			if (result == 1)
+				listener.onPublishRetransmitted(msgId, value);
+			else
+				listener.onPublishCompleted(msgId, result == 0);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Fail a message, such as the publish command is rejected by the module
+	 *
+	 * @param msgId
+	 */
+	public void fail(int msgId) {
+		onResult(msgId, 2, 0);
+	}
+
+	/**
+	 * Fail all messages, such as the link is lost
+	 */
+	public void failAll() {
+		while (true) {
+			int msgId;
+			synchronized (this) {
+				int slot = oldest();
+				if (slot < 0)
+					return;
+				msgId = msgIds[slot];
+			}
+			fail(msgId);
+		}
+	}
+
+	public synchronized int getCompleted() {
+		return completed;
+	}
+
+	public synchronized int getFailed() {
+		return failed;
+	}
+
+	public synchronized int getRetransmissions() {
+		return retransmissions;
+	}
+
+	// the oldest slot of the message id, msg id 0 (QoS 0) may be used more than once
+	private int find(int msgId) {
+		int slot = -1;
+		for (int i = 0; i < used.length; i++) {
+			if (used[i] && msgIds[i] == msgId && (slot < 0 || sequence[i] < sequence[slot]))
+				slot = i;
+		}
+		return slot;
+	}
+
+	private int oldest() {
+		int slot = -1;
+		for (int i = 0; i < used.length; i++) {
+			if (used[i] && (slot < 0 || sequence[i] < sequence[slot]))
+				slot = i;
+		}
+		return slot;
+	}
+
+	private void release(int slot) {
+		used[slot] = false;
+		listeners[slot] = null;
+		count--;
+		this.notifyAll();
+	}
+
+	/**
+	 * Fail the messages without result for longer than the expire time, it
+	 * should be called periodically. The listeners are called by the calling
+	 * thread.
+	 */
+	public void expire() {
+		int[] expired = null;
+		IMQTTPublishListener[] notified = null;
+		int n = 0;
+
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < used.length; i++) {
+				if (used[i] && now - sentTime[i] > expireTime) {
+					if (expired == null) {
+						expired = new int[count];
+						notified = new IMQTTPublishListener[count];
+					}
+					expired[n] = msgIds[i];
+					notified[n] = listeners[i];
+					n++;
+
+					release(i);
+					failed++;
+				}
+			}
+		}
+
+		for (int i = 0; i < n; i++) {
+			if (notified[i] != null)
+				notified[i].onPublishCompleted(expired[i], false);
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package tijos.framework.sensor.ec20.mqtt;
+
+/**
+ * MQTT application message
+ */
+public class MQTTMessage {
+
+	private String topic;
+	private byte[] payload;
+	private int qos;
+	private boolean retained;
+
+	// message id of received message
+	private int msgId;
+
+	public MQTTMessage() {
+	}
+
+	public MQTTMessage(String topic, byte[] payload, int qos, boolean retained) {
+		set(topic, payload, qos, retained);
+	}
+
+	public void set(String topic, byte[] payload, int qos, boolean retained) {
+		this.topic = topic;
+		this.payload = payload;
+		this.qos = qos;
+		this.retained = retained;
+	}
+
+	public void setMsgId(int msgId) {
+		this.msgId = msgId;
+	}
+
+	public int getMsgId() {
+		return msgId;
+	}
+
+	public String getTopic() {
+		return topic;
+	}
+
+	public byte[] getPayload() {
+		return payload;
+	}
+
+	public int getQos() {
+		return qos;
+	}
+
+	public boolean isRetained() {
+		return retained;
+	}
+
+	@Override
+	public String toString() {
+		return new String(payload);
+	}
+}
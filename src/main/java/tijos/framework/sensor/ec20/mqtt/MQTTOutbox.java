@@ -0,0 +1,517 @@
+package tijos.framework.sensor.ec20.mqtt;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Bounded store-and-forward queue of MQTT messages. With a directory every
+ * message is appended to a segmented log on the file system first, an
+ * in-memory ring keeps the newest messages of the log as a read cache, so the
+ * log is only read back after a long outage. Messages leave the outbox in the
+ * order they are put. When all segments are used, the oldest segment is
+ * dropped.
+ * <p>
+ * The read position is written to the directory when messages are removed,
+ * messages after it are sent again after a reboot (at least once). Without a
+ * directory the outbox is the ring only.
+ * </p>
+ */
+public class MQTTOutbox {
+
+	private static final String PREFIX = "outbox.";
+	private static final String SUFFIX = ".log";
+
+	// read position: first segment(4), offset(4)
+	private static final String POSITION = "outbox.pos";
+
+	// topic length(2), flags(1), payload length(4)
+	private static final int HEADER_SIZE = 7;
+
+	// in-memory ring, the newest messages of the log
+	private final MQTTMessage[] ring;
+	private final int[] ringSegments; // segment and end offset of the records
+	private final int[] ringEnds;
+	private int ringHead;
+	private int ringCount;
+
+	// segmented log of all messages
+	private final File dir;
+	private final int segmentSize;
+	private final int maxSegments;
+	private int firstSegment = 1;
+	private int lastSegment = 0; // no segment if first > last
+	private int readOffset; // in first segment
+	private int logCount; // messages after the read position
+
+	// log records of the last peek and the segments dropped before it
+	private final int[] peekSegments;
+	private final int[] peekEnds;
+	private int peekDrops;
+	private int drops;
+
+	private final byte[] header = new byte[HEADER_SIZE];
+
+	private int dropped;
+
+	/**
+	 * In-memory outbox without file system, the oldest message is dropped when it
+	 * is full
+	 *
+	 * @param ringCapacity max messages in memory
+	 */
+	public MQTTOutbox(int ringCapacity) {
+		this(ringCapacity, null, 0, 0);
+	}
+
+	/**
+	 * Initialize the outbox, segments left in the directory are loaded
+	 *
+	 * @param ringCapacity max messages in memory
+	 * @param directory    directory of the log segments
+	 * @param segmentSize  max bytes of a segment
+	 * @param maxSegments  max segments
+	 * @throws IOException
+	 */
+	public MQTTOutbox(int ringCapacity, String directory, int segmentSize, int maxSegments) {
+		if (ringCapacity < 1)
+			throw new IllegalArgumentException("Invalid ring capacity");
+
+		this.ring = new MQTTMessage[ringCapacity];
+		for (int i = 0; i < ringCapacity; i++)
+			ring[i] = new MQTTMessage();
+		this.ringSegments = new int[ringCapacity];
+		this.ringEnds = new int[ringCapacity];
+		this.peekSegments = new int[ringCapacity];
+		this.peekEnds = new int[ringCapacity];
+
+		this.dir = directory != null ? new File(directory) : null;
+		this.segmentSize = segmentSize;
+		this.maxSegments = maxSegments;
+
+		if (this.dir != null)
+			load();
+	}
+
+	/**
+	 * Put a message to the tail of the outbox, the payload is copied
+	 *
+	 * @param topic
+	 * @param payload
+	 * @param off
+	 * @param len
+	 * @param qos
+	 * @param retained
+	 * @throws IOException failed to write the log
+	 */
+	public synchronized void put(String topic, byte[] payload, int off, int len, int qos, boolean retained)
+			throws IOException {
+
+		if (dir == null) {
+			if (ringCount == ring.length) {
+				// no log, drop the oldest
+				popRing(1);
+				dropped++;
+			}
+			cache(topic, payload, off, len, qos, retained, 0, 0);
+			return;
+		}
+
+		int end = append(topic, payload, off, len, qos, retained);
+
+		// the oldest cached message is still in the log
+		if (ringCount == ring.length)
+			popRing(1);
+		cache(topic, payload, off, len, qos, retained, lastSegment, end);
+	}
+
+	/**
+	 * Messages in the outbox
+	 *
+	 * @return
+	 */
+	public synchronized int size() {
+		return dir == null ? ringCount : logCount;
+	}
+
+	public synchronized boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * Messages dropped because the outbox is full
+	 *
+	 * @return
+	 */
+	public synchronized int getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Read messages from the head without removing them, call
+	 * {@link #remove(int)} after they are sent
+	 *
+	 * @param batch messages to be filled, up to the ring capacity
+	 * @return number of messages
+	 * @throws IOException
+	 */
+	public synchronized int peek(MQTTMessage[] batch) throws IOException {
+		int max = Math.min(batch.length, ring.length);
+		peekDrops = drops;
+
+		if (ringCount > 0 && (dir == null || ringCount == logCount)) {
+			// all messages left are cached
+			int n = Math.min(max, ringCount);
+			for (int i = 0; i < n; i++) {
+				int slot = (ringHead + i) % ring.length;
+				MQTTMessage msg = ring[slot];
+				batch[i].set(msg.getTopic(), msg.getPayload(), msg.getQos(), msg.isRetained());
+				peekSegments[i] = ringSegments[slot];
+				peekEnds[i] = ringEnds[slot];
+			}
+			return n;
+		}
+
+		if (logCount == 0)
+			return 0;
+
+		File file = segment(firstSegment);
+		if (readOffset >= file.length() && firstSegment < lastSegment) {
+			// drained segment
+			file.delete();
+			firstSegment++;
+			readOffset = 0;
+			file = segment(firstSegment);
+		}
+
+		int n = 0;
+		InputStream in = new FileInputStream(file);
+		try {
+			skipFully(in, readOffset);
+
+			int offset = readOffset;
+			while (n < max) {
+				if (!readFully(in, header, 0, HEADER_SIZE))
+					break;
+
+				int topicLength = ((header[0] & 0xFF) << 8) | (header[1] & 0xFF);
+				int flags = header[2];
+				int payloadLength = ((header[3] & 0xFF) << 24) | ((header[4] & 0xFF) << 16)
+						| ((header[5] & 0xFF) << 8) | (header[6] & 0xFF);
+
+				byte[] topic = new byte[topicLength];
+				byte[] payload = new byte[payloadLength];
+				if (!readFully(in, topic, 0, topicLength) || !readFully(in, payload, 0, payloadLength))
+					break; // incomplete record
+
+				batch[n].set(new String(topic), payload, flags & 0x03, (flags & 0x04) != 0);
+				offset += HEADER_SIZE + topicLength + payloadLength;
+				peekSegments[n] = firstSegment;
+				peekEnds[n] = offset;
+				n++;
+			}
+		} finally {
+			in.close();
+		}
+
+		if (n == 0) {
+			// incomplete tail of a segment
+			logCount = countAfter(firstSegment);
+			readOffset = (int) file.length();
+			if (ringCount > logCount)
+				popRing(ringCount - logCount);
+		}
+
+		return n;
+	}
+
+	/**
+	 * Remove messages returned by the last {@link #peek(MQTTMessage[])}
+	 *
+	 * @param count
+	 */
+	public synchronized void remove(int count) {
+		if (count <= 0)
+			return;
+
+		if (dir == null) {
+			popRing(count);
+			return;
+		}
+
+		if (drops != peekDrops) {
+			// the messages are dropped with their segment since the peek
+			return;
+		}
+
+		count = Math.min(count, logCount);
+		if (count <= 0)
+			return;
+
+		advance(peekSegments[count - 1], peekEnds[count - 1]);
+		logCount -= count;
+
+		// the cache holds the newest messages only
+		if (ringCount > logCount)
+			popRing(ringCount - logCount);
+
+		if (logCount <= 0) {
+			// log drained
+			logCount = 0;
+			for (int i = firstSegment; i <= lastSegment; i++)
+				segment(i).delete();
+			firstSegment = lastSegment + 1;
+			readOffset = 0;
+			new File(dir, POSITION).delete();
+			return;
+		}
+
+		savePosition();
+	}
+
+	private void cache(String topic, byte[] payload, int off, int len, int qos, boolean retained, int segment,
+			int end) {
+		byte[] data = new byte[len];
+		System.arraycopy(payload, off, data, 0, len);
+
+		int slot = (ringHead + ringCount) % ring.length;
+		ring[slot].set(topic, data, qos, retained);
+		ringSegments[slot] = segment;
+		ringEnds[slot] = end;
+		ringCount++;
+	}
+
+	private void popRing(int count) {
+		count = Math.min(count, ringCount);
+		for (int i = 0; i < count; i++) {
+			ring[ringHead].set(null, null, 0, false);
+			ringHead = (ringHead + 1) % ring.length;
+		}
+		ringCount -= count;
+	}
+
+	// move the read position, drained segments are deleted
+	private void advance(int segment, int offset) {
+		while (firstSegment < segment) {
+			segment(firstSegment).delete();
+			firstSegment++;
+		}
+		readOffset = offset;
+	}
+
+	private void savePosition() {
+		byte[] b = new byte[8];
+		writeInt(b, 0, firstSegment);
+		writeInt(b, 4, readOffset);
+		try {
+			FileOutputStream out = new FileOutputStream(new File(dir, POSITION));
+			try {
+				out.write(b, 0, b.length);
+			} finally {
+				out.close();
+			}
+		} catch (IOException ex) {
+			// messages after the saved position are sent again after a reboot
+			ex.printStackTrace();
+		}
+	}
+
+	// end offset of the record in the last segment
+	private int append(String topic, byte[] payload, int off, int len, int qos, boolean retained)
+			throws IOException {
+
+		byte[] topicBytes = topic.getBytes();
+
+		if (firstSegment > lastSegment) {
+			lastSegment++;
+			firstSegment = lastSegment;
+			readOffset = 0;
+		}
+
+		File file = segment(lastSegment);
+		if (file.length() > 0 && file.length() + HEADER_SIZE + topicBytes.length + len > segmentSize) {
+			lastSegment++;
+			if (lastSegment - firstSegment + 1 > maxSegments)
+				dropOldestSegment();
+			file = segment(lastSegment);
+		}
+
+		header[0] = (byte) (topicBytes.length >>> 8);
+		header[1] = (byte) topicBytes.length;
+		header[2] = (byte) ((qos & 0x03) | (retained ? 0x04 : 0));
+		header[3] = (byte) (len >>> 24);
+		header[4] = (byte) (len >>> 16);
+		header[5] = (byte) (len >>> 8);
+		header[6] = (byte) len;
+
+		int end = (int) file.length() + HEADER_SIZE + topicBytes.length + len;
+
+		FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			out.write(header, 0, HEADER_SIZE);
+			out.write(topicBytes, 0, topicBytes.length);
+			out.write(payload, off, len);
+		} finally {
+			out.close();
+		}
+
+		logCount++;
+		return end;
+	}
+
+	private void dropOldestSegment() {
+		File file = segment(firstSegment);
+		int lost = countRecords(file, readOffset);
+		file.delete();
+
+		// cached messages of the segment
+		while (ringCount > 0 && ringSegments[ringHead] == firstSegment)
+			popRing(1);
+
+		logCount -= lost;
+		dropped += lost;
+		drops++;
+		firstSegment++;
+		readOffset = 0;
+		savePosition();
+	}
+
+	// find segments left in the directory
+	private void load() {
+		if (!dir.exists())
+			dir.mkdirs();
+
+		String[] names = dir.list();
+		if (names == null)
+			return;
+
+		int first = Integer.MAX_VALUE;
+		int last = 0;
+		for (int i = 0; i < names.length; i++) {
+			String name = names[i];
+			if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX))
+				continue;
+
+			try {
+				int n = Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+				if (n < first)
+					first = n;
+				if (n > last)
+					last = n;
+			} catch (NumberFormatException ex) {
+				// not a segment
+			}
+		}
+
+		if (last == 0) {
+			new File(dir, POSITION).delete();
+			return;
+		}
+
+		firstSegment = first;
+		lastSegment = last;
+		readOffset = 0;
+		loadPosition();
+		logCount = countAfter(firstSegment);
+	}
+
+	// read position saved by remove
+	private void loadPosition() {
+		File file = new File(dir, POSITION);
+		if (!file.exists())
+			return;
+
+		byte[] b = new byte[8];
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				if (!readFully(in, b, 0, b.length))
+					return;
+			} finally {
+				in.close();
+			}
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			return;
+		}
+
+		int segment = readInt(b, 0);
+		int offset = readInt(b, 4);
+		if (segment < firstSegment || segment > lastSegment || offset < 0)
+			return; // the segment is gone, start from the first one
+
+		advance(segment, offset);
+	}
+
+	// records from the read position to the end of the log
+	private int countAfter(int segment) {
+		int count = 0;
+		for (int i = segment; i <= lastSegment; i++)
+			count += countRecords(segment(i), i == firstSegment ? readOffset : 0);
+		return count;
+	}
+
+	private int countRecords(File file, int offset) {
+		if (!file.exists())
+			return 0;
+
+		int count = 0;
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				skipFully(in, offset);
+				while (readFully(in, header, 0, HEADER_SIZE)) {
+					int topicLength = ((header[0] & 0xFF) << 8) | (header[1] & 0xFF);
+					int payloadLength = ((header[3] & 0xFF) << 24) | ((header[4] & 0xFF) << 16)
+							| ((header[5] & 0xFF) << 8) | (header[6] & 0xFF);
+					long size = (long) topicLength + payloadLength;
+					if (in.skip(size) < size)
+						break;
+					count++;
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+		return count;
+	}
+
+	private File segment(int n) {
+		return new File(dir, PREFIX + n + SUFFIX);
+	}
+
+	private static void writeInt(byte[] b, int off, int v) {
+		b[off] = (byte) (v >>> 24);
+		b[off + 1] = (byte) (v >>> 16);
+		b[off + 2] = (byte) (v >>> 8);
+		b[off + 3] = (byte) v;
+	}
+
+	private static int readInt(byte[] b, int off) {
+		return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+	}
+
+	private static void skipFully(InputStream in, long n) throws IOException {
+		while (n > 0) {
+			long skipped = in.skip(n);
+			if (skipped <= 0)
+				break;
+			n -= skipped;
+		}
+	}
+
+	private static boolean readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = in.read(b, off, len);
+			if (n <= 0)
+				return false;
+			off += n;
+			len -= n;
+		}
+		return true;
+	}
+}
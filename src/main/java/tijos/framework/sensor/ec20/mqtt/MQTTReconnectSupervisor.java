@@ -0,0 +1,330 @@
+package tijos.framework.sensor.ec20.mqtt;
+
+import java.io.IOException;
+
+/**
+ * Keeps the MQTT client connected. When the link is lost it connects again
+ * with exponential backoff and jitter, the topics are subscribed again and the
+ * outbox is sent by the client. After a number of consecutive failures the
+ * circuit is opened and no attempt is made for a while, then a single attempt
+ * decides to close or open it again.
+ */
+public class MQTTReconnectSupervisor implements Runnable {
+
+	public static final int STATE_STOPPED = 0;
+	public static final int STATE_CONNECTING = 1;
+	public static final int STATE_CONNECTED = 2;
+	public static final int STATE_BACKOFF = 3;
+	public static final int STATE_OPEN = 4;
+
+	private final MQTTClient client;
+	private final MQTTConnectOptions options;
+
+	private int state = STATE_STOPPED;
+	private Thread thread;
+
+	// backoff
+	private int initialDelay = 1000;
+	private int maxDelay = 120000;
+	private int attempt;
+
+	// circuit breaker
+	private int failureThreshold = 8;
+	private int openTime = 600000;
+
+	private int seed;
+
+	// metrics
+	private long lostTime;
+	private int reconnects;
+	private int attempts;
+	private int failures;
+	private int circuitOpens;
+	private int lastReconnectTime;
+	private int maxReconnectTime;
+	private long totalReconnectTime;
+	private int lastError;
+
+	/**
+	 * Initialize supervisor of the client
+	 *
+	 * @param client
+	 * @param options connect options, may be null
+	 */
+	public MQTTReconnectSupervisor(MQTTClient client, MQTTConnectOptions options) {
+		this.client = client;
+		this.options = options;
+
+		// devices started at the same time get different delays
+		this.seed = (int) System.currentTimeMillis() ^ client.getClientId().hashCode();
+		if (this.seed == 0)
+			this.seed = 1;
+	}
+
+	/**
+	 * Delay before the attempts, it doubles after each failure
+	 *
+	 * @param initialDelay delay of the first attempt in milliseconds
+	 * @param maxDelay     max delay in milliseconds
+	 */
+	public synchronized void setBackoff(int initialDelay, int maxDelay) {
+		if (initialDelay < 1 || maxDelay < initialDelay)
+			throw new IllegalArgumentException("Invalid backoff");
+
+		this.initialDelay = initialDelay;
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * Open the circuit after consecutive failures
+	 *
+	 * @param failureThreshold consecutive failures to open the circuit
+	 * @param openTime         time without attempt in milliseconds
+	 */
+	public synchronized void setCircuitBreaker(int failureThreshold, int openTime) {
+		if (failureThreshold < 1 || openTime < 0)
+			throw new IllegalArgumentException("Invalid circuit breaker");
+
+		this.failureThreshold = failureThreshold;
+		this.openTime = openTime;
+	}
+
+	/**
+	 * Start the supervisor, it connects the client in background
+	 */
+	public synchronized void start() {
+		if (this.thread != null)
+			return;
+
+		this.client.setSupervisor(this);
+
+		this.state = STATE_CONNECTING;
+		this.lostTime = System.currentTimeMillis();
+		this.attempt = 0;
+
+		this.thread = new Thread(this);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Stop the supervisor, the client is not disconnected
+	 */
+	public void stop() {
+		Thread t;
+		synchronized (this) {
+			t = this.thread;
+			if (t == null)
+				return;
+
+			this.thread = null;
+			this.state = STATE_STOPPED;
+			this.notifyAll();
+		}
+
+		this.client.setSupervisor(null);
+
+		try {
+			t.join();
+		} catch (InterruptedException ie) {
+		}
+	}
+
+	public synchronized int getState() {
+		return state;
+	}
+
+	/**
+	 * Wait until the client is connected
+	 *
+	 * @param timeout max time to wait in milliseconds
+	 * @return true if connected
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean waitConnected(int timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (state != STATE_CONNECTED) {
+			long left = deadline - System.currentTimeMillis();
+			if (left <= 0 || state == STATE_STOPPED)
+				return false;
+			this.wait(left);
+		}
+		return true;
+	}
+
+	/*
+	 * called by the client from the UART reader thread, no AT command here
+	 */
+	synchronized void linkLost(int error) {
+		this.lastError = error;
+		if (state != STATE_CONNECTED)
+			return;
+
+		this.state = STATE_BACKOFF;
+		this.lostTime = System.currentTimeMillis();
+		this.attempt = 0;
+		this.notifyAll();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			synchronized (this) {
+				while (state == STATE_CONNECTED)
+					sleep(0);
+
+				if (state == STATE_STOPPED)
+					return;
+
+				if (state == STATE_OPEN) {
+					sleep(openTime);
+					if (state == STATE_STOPPED)
+						return;
+				} else if (state == STATE_BACKOFF) {
+					// spread the attempts of the fleet, also for the first one
+					sleep(nextDelay());
+					if (state == STATE_STOPPED)
+						return;
+				}
+
+				state = STATE_CONNECTING;
+				attempts++;
+			}
+
+			boolean connected = false;
+			try {
+				client.reconnect(options);
+				// the link may be lost again during the attempt
+				connected = client.isConnected();
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+
+			synchronized (this) {
+				if (state == STATE_STOPPED)
+					return;
+
+				if (connected) {
+					connected();
+				} else {
+					failures++;
+					attempt++;
+					if (attempt >= failureThreshold) {
+						// half open after the open time, one attempt decides
+						state = STATE_OPEN;
+						circuitOpens++;
+						attempt = failureThreshold - 1;
+					} else {
+						state = STATE_BACKOFF;
+					}
+				}
+			}
+		}
+	}
+
+	private void connected() {
+		int elapsed = (int) (System.currentTimeMillis() - lostTime);
+
+		reconnects++;
+		lastReconnectTime = elapsed;
+		totalReconnectTime += elapsed;
+		if (elapsed > maxReconnectTime)
+			maxReconnectTime = elapsed;
+
+		attempt = 0;
+		state = STATE_CONNECTED;
+		this.notifyAll();
+	}
+
+	/*
+	 * equal jitter: half of the exponential delay plus a random part of the other
+	 * half
+	 */
+	private int nextDelay() {
+		int delay = initialDelay;
+		for (int i = 0; i < attempt && delay < maxDelay; i++)
+			delay <<= 1;
+		if (delay > maxDelay || delay <= 0)
+			delay = maxDelay;
+
+		int half = delay / 2;
+		return half + random(delay - half + 1);
+	}
+
+	private int random(int bound) {
+		// xorshift
+		seed ^= seed << 13;
+		seed ^= seed >>> 17;
+		seed ^= seed << 5;
+		return (seed & 0x7FFFFFFF) % bound;
+	}
+
+	// wait on the monitor, woken up by link lost and stop
+	private void sleep(int ms) {
+		try {
+			this.wait(ms);
+		} catch (InterruptedException ie) {
+		}
+	}
+
+	/**
+	 * Successful reconnections
+	 *
+	 * @return
+	 */
+	public synchronized int getReconnects() {
+		return reconnects;
+	}
+
+	public synchronized int getAttempts() {
+		return attempts;
+	}
+
+	public synchronized int getFailures() {
+		return failures;
+	}
+
+	/**
+	 * Times the circuit is opened
+	 *
+	 * @return
+	 */
+	public synchronized int getCircuitOpens() {
+		return circuitOpens;
+	}
+
+	/**
+	 * Time from link lost to connected of the last reconnection
+	 *
+	 * @return milliseconds
+	 */
+	public synchronized int getLastReconnectTime() {
+		return lastReconnectTime;
+	}
+
+	public synchronized int getMaxReconnectTime() {
+		return maxReconnectTime;
+	}
+
+	public synchronized int getMeanReconnectTime() {
+		if (reconnects == 0)
+			return 0;
+		return (int) (totalReconnectTime / reconnects);
+	}
+
+	/**
+	 * Error code of the last link lost event
+	 *
+	 * @return
+	 */
+	public synchronized int getLastError() {
+		return lastError;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "state " + state + ", reconnects " + reconnects + ", attempts " + attempts + ", failures " + failures
+				+ ", circuit opens " + circuitOpens + ", reconnect time last " + lastReconnectTime + " ms, max "
+				+ maxReconnectTime + " ms, mean " + getMeanReconnectTime() + " ms";
+	}
+}
@@ -212,7 +212,8 @@ public class TiLTE200 {
 	}
 
 	/**
-	 * Get MQTT client
+	 * Get MQTT client on a free client slot of the module, call
+	 * {@link MQTTClient#close()} to release the slot
 	 * 
 	 * @param server
 	 * @param port
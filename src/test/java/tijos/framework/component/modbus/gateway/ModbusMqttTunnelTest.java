@@ -0,0 +1,101 @@
+package tijos.framework.component.modbus.gateway;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import tijos.framework.component.modbus.rtu.ModbusClient;
+import tijos.framework.component.modbus.sim.ModbusSimulatedBus;
+import tijos.framework.sensor.ec20.mqtt.IMQTTBatchEventListener;
+import tijos.framework.sensor.ec20.mqtt.IMQTTEventListener;
+import tijos.framework.sensor.ec20.mqtt.IMQTTPublishEventListener;
+import tijos.framework.sensor.ec20.mqtt.MQTTMessage;
+
+public class ModbusMqttTunnelTest {
+
+    private ModbusMqttTunnel tunnel;
+
+    // events passed on by the tunnel
+    static class Next implements IMQTTPublishEventListener, IMQTTBatchEventListener {
+        StringBuffer events = new StringBuffer();
+
+        @Override
+        public void onPublishDataArrived(int msgId, String topic, String message) {
+            events.append("data ").append(topic).append(';');
+        }
+
+        @Override
+        public void onLinkLost(int error) {
+            events.append("lost ").append(error).append(';');
+        }
+
+        @Override
+        public void onPublishRetransmitted(int msgId, int count) {
+            events.append("retransmitted ").append(msgId).append(' ').append(count).append(';');
+        }
+
+        @Override
+        public void onPublishBatchArrived(MQTTMessage[] messages, int count) {
+            events.append("batch");
+            for (int i = 0; i < count; i++)
+                events.append(' ').append(messages[i].getTopic());
+            events.append(';');
+        }
+    }
+
+    @Before
+    public void setUp() {
+        ModbusSimulatedBus bus = new ModbusSimulatedBus(1);
+        bus.setRealTime(false);
+        ModbusTcpGateway gateway = new ModbusTcpGateway(new ModbusClient(bus, 100, 0));
+        tunnel = new ModbusMqttTunnel(null, gateway, "modbus/req", "modbus/rsp", 1);
+    }
+
+    private static MQTTMessage message(String topic, String payload) {
+        return new MQTTMessage(topic, payload.getBytes(), 1, false);
+    }
+
+    @Test
+    public void forwardsRetransmissionsAndLinkLost() {
+        Next next = new Next();
+        tunnel.setNext(next);
+
+        tunnel.onPublishRetransmitted(5, 2);
+        tunnel.onLinkLost(3);
+        assertEquals("retransmitted 5 2;lost 3;", next.events.toString());
+    }
+
+    @Test
+    public void forwardsOtherTopicsOfBatch() {
+        Next next = new Next();
+        tunnel.setNext(next);
+
+        MQTTMessage[] batch = new MQTTMessage[] { message("a", "1"), message("modbus/req", "000100000006010300000001"),
+                message("b", "2") };
+        tunnel.onPublishBatchArrived(batch, batch.length);
+        assertEquals("batch a b;", next.events.toString());
+        assertEquals("modbus/req", batch[1].getTopic());
+    }
+
+    @Test
+    public void splitsBatchForPlainListener() {
+        final StringBuffer events = new StringBuffer();
+        tunnel.setNext(new IMQTTEventListener() {
+            @Override
+            public void onPublishDataArrived(int msgId, String topic, String message) {
+                events.append(topic).append('=').append(message).append(';');
+            }
+
+            @Override
+            public void onLinkLost(int error) {
+            }
+        });
+
+        MQTTMessage[] batch = new MQTTMessage[] { message("modbus/req", "000100000006010300000001"),
+                message("a", "1") };
+        tunnel.onPublishBatchArrived(batch, batch.length);
+        tunnel.onPublishRetransmitted(1, 1);
+        assertEquals("a=1;", events.toString());
+    }
+}
@@ -0,0 +1,178 @@
+package tijos.framework.component.modbus.gateway;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import tijos.framework.component.modbus.protocol.ModbusConstants;
+import tijos.framework.component.modbus.protocol.ModbusPdu;
+import tijos.framework.component.modbus.rtu.ModbusClient;
+import tijos.framework.component.modbus.rtu.ModbusResponseCache;
+import tijos.framework.component.modbus.sim.ModbusSimulatedBus;
+import tijos.framework.component.modbus.sim.ModbusSlaveSimulator;
+
+public class ModbusTcpGatewayTest {
+
+    private ModbusSimulatedBus bus;
+    private ModbusClient client;
+    private Responses responses;
+
+    // responses of the gateway in arrival order
+    static class Responses implements IModbusGatewayListener {
+        private final byte[][] frames = new byte[16][];
+        private int count;
+
+        @Override
+        public synchronized void onGatewayResponse(byte[] frame, int off, int len) {
+            byte[] copy = new byte[len];
+            System.arraycopy(frame, off, copy, 0, len);
+            frames[count++] = copy;
+            this.notifyAll();
+        }
+
+        synchronized byte[] get(int index) throws InterruptedException {
+            long end = System.currentTimeMillis() + 2000;
+            while (count <= index) {
+                long wait = end - System.currentTimeMillis();
+                if (wait <= 0)
+                    fail("no response " + index);
+                this.wait(wait);
+            }
+            return frames[index];
+        }
+    }
+
+    @Before
+    public void setUp() {
+        bus = new ModbusSimulatedBus(1);
+        bus.setRealTime(false);
+        client = new ModbusClient(bus, 100, 0);
+        responses = new Responses();
+    }
+
+    private ModbusSlaveSimulator addSlave(int id) {
+        ModbusSlaveSimulator slave = new ModbusSlaveSimulator(id, 0, 0, 10, 0);
+        slave.setHoldingRegister(2, 0x1234);
+        bus.add(slave);
+        return slave;
+    }
+
+    // read one holding register
+    private static byte[] read(int tid, int unit, int address) {
+        return new byte[] { (byte) (tid >> 8), (byte) tid, 0, 0, 0, 6, (byte) unit, 3, (byte) (address >> 8),
+                (byte) address, 0, 1 };
+    }
+
+    private static void assertFrame(byte[] expected, byte[] frame) {
+        assertEquals(ModbusPdu.toHex(expected, 0, expected.length), ModbusPdu.toHex(frame, 0, frame.length));
+    }
+
+    @Test
+    public void echoesTransactionId() throws Exception {
+        addSlave(1);
+        ModbusTcpGateway gateway = new ModbusTcpGateway(client);
+
+        byte[] req = read(0xABCD, 1, 2);
+        assertTrue(gateway.submit(req, 0, req.length, responses));
+        assertFrame(new byte[] { (byte) 0xAB, (byte) 0xCD, 0, 0, 0, 5, 1, 3, 2, 0x12, 0x34 }, responses.get(0));
+        assertEquals(0, gateway.getFailures());
+    }
+
+    @Test
+    public void forwardsUnitsAbove127() throws Exception {
+        addSlave(200);
+        ModbusTcpGateway gateway = new ModbusTcpGateway(client);
+
+        byte[] req = read(7, 200, 2);
+        assertTrue(gateway.submit(req, 0, req.length, responses));
+        assertFrame(new byte[] { 0, 7, 0, 0, 0, 5, (byte) 200, 3, 2, 0x12, 0x34 }, responses.get(0));
+    }
+
+    @Test
+    public void rejectsUnitsAbove247() throws Exception {
+        ModbusTcpGateway gateway = new ModbusTcpGateway(client);
+
+        byte[] req = read(8, 248, 2);
+        assertTrue(gateway.submit(req, 0, req.length, responses));
+        assertFrame(new byte[] { 0, 8, 0, 0, 0, 3, (byte) 248, (byte) 0x83,
+                ModbusConstants.EX_GATEWAY_PATH_UNAVAILABLE }, responses.get(0));
+        assertEquals(1, gateway.getFailures());
+        assertEquals(0, bus.getFrames());
+    }
+
+    @Test
+    public void answersFromShadow() throws Exception {
+        ModbusSlaveSimulator slave = addSlave(200);
+        ModbusTcpGateway gateway = new ModbusTcpGateway(client);
+        gateway.setShadowCache(new ModbusResponseCache(client, 4096, 60000));
+
+        byte[] req = read(1, 200, 2);
+        assertTrue(gateway.submit(req, 0, req.length, responses));
+        responses.get(0);
+        req = read(2, 200, 2);
+        assertTrue(gateway.submit(req, 0, req.length, responses));
+
+        assertFrame(new byte[] { 0, 2, 0, 0, 0, 5, (byte) 200, 3, 2, 0x12, 0x34 }, responses.get(1));
+        assertEquals(1, gateway.getShadowHits());
+        assertEquals(1, slave.getRequests());
+    }
+
+    @Test
+    public void rejectsWhenQueueIsFull() throws Exception {
+        addSlave(1);
+        ModbusTcpGateway gateway = new ModbusTcpGateway(client, 1);
+        gateway.setQueueTimeout(50);
+
+        // the slot is taken until the response of the first request is handled
+        final Object lock = new Object();
+        final boolean[] state = new boolean[2]; // entered, released
+        IModbusGatewayListener blocking = new IModbusGatewayListener() {
+            @Override
+            public void onGatewayResponse(byte[] frame, int off, int len) {
+                synchronized (lock) {
+                    state[0] = true;
+                    lock.notifyAll();
+                    while (!state[1]) {
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException ie) {
+                            return;
+                        }
+                    }
+                }
+            }
+        };
+
+        byte[] req = read(1, 1, 2);
+        assertTrue(gateway.submit(req, 0, req.length, blocking));
+        synchronized (lock) {
+            while (!state[0])
+                lock.wait(2000);
+        }
+
+        req = read(2, 1, 2);
+        assertTrue(gateway.submit(req, 0, req.length, responses));
+        assertFrame(new byte[] { 0, 2, 0, 0, 0, 3, 1, (byte) 0x83, ModbusConstants.EX_SERVER_DEVICE_BUSY },
+                responses.get(0));
+        assertEquals(1, gateway.getRejects());
+
+        synchronized (lock) {
+            state[1] = true;
+            lock.notifyAll();
+        }
+    }
+
+    @Test
+    public void reportsTargetFailedWithRequestFunction() throws Exception {
+        ModbusSlaveSimulator slave = addSlave(1);
+        slave.setErrorRates(0, 1);
+        ModbusTcpGateway gateway = new ModbusTcpGateway(client);
+
+        byte[] req = read(3, 1, 2);
+        assertTrue(gateway.submit(req, 0, req.length, responses));
+        assertFrame(new byte[] { 0, 3, 0, 0, 0, 3, 1, (byte) 0x83, ModbusConstants.EX_GATEWAY_TARGET_FAILED },
+                responses.get(0));
+        assertEquals(1, gateway.getFailures());
+    }
+}
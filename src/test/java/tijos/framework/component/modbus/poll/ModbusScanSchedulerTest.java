@@ -0,0 +1,77 @@
+package tijos.framework.component.modbus.poll;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import tijos.framework.component.modbus.protocol.ModbusConstants;
+import tijos.framework.component.modbus.rtu.ModbusClient;
+import tijos.framework.component.modbus.rtu.ModbusClientTransport;
+import tijos.framework.component.modbus.rtu.ModbusTransaction;
+
+public class ModbusScanSchedulerTest {
+
+    // transport of a closed connection
+    static class ClosedTransport implements ModbusClientTransport {
+        int requests;
+
+        @Override
+        public synchronized void sendRequest(ModbusTransaction transaction) throws Exception {
+            requests++;
+            throw new IOException("Connection closed");
+        }
+
+        @Override
+        public int waitResponse(ModbusTransaction transaction) throws Exception {
+            throw new IOException("Connection closed");
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void failsRequestsOfBrokenTransport() throws Exception {
+        ClosedTransport transport = new ClosedTransport();
+        ModbusScanScheduler scheduler = new ModbusScanScheduler(new ModbusClient(transport));
+        int group = scheduler.add(new ModbusPoint("t", 1, ModbusConstants.FN_READ_HOLDING_REGISTERS, 0,
+                ModbusPoint.TYPE_INT16), 60000, 0);
+        scheduler.add(new ModbusPoint("p", 2, ModbusConstants.FN_READ_HOLDING_REGISTERS, 0,
+                ModbusPoint.TYPE_INT16), 60000, 0);
+
+        final int[] failed = new int[] { -1 };
+        scheduler.setListener(new IModbusScanListener() {
+            @Override
+            public void onScanCompleted(int group, ModbusPollPlan plan, int count) {
+                failed[0] = count;
+            }
+        });
+
+        // both requests fail, then the group waits for its period
+        assertEquals(0, scheduler.runOnce());
+        assertEquals(0, scheduler.runOnce());
+        assertEquals(2, failed[0]);
+        assertEquals(1, scheduler.getScans(group));
+        assertTrue(scheduler.runOnce() > 50000);
+        assertEquals(2, transport.requests);
+    }
+
+    @Test
+    public void threadWaitsForNextRelease() throws Exception {
+        ClosedTransport transport = new ClosedTransport();
+        ModbusScanScheduler scheduler = new ModbusScanScheduler(new ModbusClient(transport));
+        scheduler.add(new ModbusPoint("t", 1, ModbusConstants.FN_READ_HOLDING_REGISTERS, 0,
+                ModbusPoint.TYPE_INT16), 100, 0);
+
+        scheduler.start();
+        Thread.sleep(500);
+        scheduler.stop();
+
+        // one request per period instead of a busy loop
+        assertTrue(transport.requests >= 3);
+        assertTrue(transport.requests <= 7);
+    }
+}
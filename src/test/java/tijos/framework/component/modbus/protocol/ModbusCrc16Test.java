@@ -0,0 +1,88 @@
+package tijos.framework.component.modbus.protocol;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ModbusCrc16Test {
+
+    static final int[] ENGINES = {ModbusCrc16.ENGINE_TABLE, ModbusCrc16.ENGINE_SLICE_BY_4,
+            ModbusCrc16.ENGINE_SLICE_BY_8};
+
+    @Test
+    public void checkValue() {
+        byte[] data = "123456789".getBytes();
+        for (int i = 0; i < ENGINES.length; i++)
+            assertEquals(0x4B37, ModbusCrc16.compute(ENGINES[i], data, 0, data.length));
+    }
+
+    @Test
+    public void enginesMatchBitwiseCrc() {
+        byte[] data = random(260);
+        for (int off = 0; off < 4; off++) {
+            for (int len = 0; len <= 256; len++) {
+                int expected = bitwise(data, off, len);
+                for (int i = 0; i < ENGINES.length; i++)
+                    assertEquals("engine " + ENGINES[i] + " off " + off + " len " + len, expected,
+                            ModbusCrc16.compute(ENGINES[i], data, off, len));
+            }
+        }
+    }
+
+    @Test
+    public void incrementalMatchesWholeFrame() {
+        byte[] data = random(256);
+        for (int i = 0; i < ENGINES.length; i++) {
+            ModbusCrc16 crc = new ModbusCrc16(ENGINES[i]);
+            for (int len = 1; len <= 256; len++) {
+                // chunks of 7 bytes and the residue
+                crc.reset();
+                for (int off = 0; off < len; off += 7)
+                    crc.update(data, off, Math.min(7, len - off));
+                assertEquals(bitwise(data, 0, len), crc.getValue());
+            }
+        }
+    }
+
+    @Test
+    public void frameWithCrcIsValid() {
+        byte[] frame = random(66);
+        int crc = ModbusCrc16.compute(frame, 0, 64);
+        frame[64] = ModbusPdu.lowByte(crc);
+        frame[65] = ModbusPdu.highByte(crc);
+
+        ModbusCrc16 check = new ModbusCrc16();
+        for (int i = 0; i < frame.length; i++)
+            check.update(frame[i]);
+        assertTrue(check.isValid());
+
+        frame[10] ^= 1;
+        check.reset();
+        check.update(frame, 0, frame.length);
+        assertFalse(check.isValid());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownEngine() {
+        ModbusCrc16.compute(2, new byte[1], 0, 1);
+    }
+
+    private static byte[] random(int length) {
+        byte[] data = new byte[length];
+        new Random(1).nextBytes(data);
+        return data;
+    }
+
+    // reference CRC, bit by bit with the reflected polynomial
+    private static int bitwise(byte[] data, int off, int len) {
+        int crc = 0xFFFF;
+        for (int i = off; i < off + len; i++) {
+            crc ^= data[i] & 0xFF;
+            for (int bit = 0; bit < 8; bit++)
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+        }
+        return crc;
+    }
+}
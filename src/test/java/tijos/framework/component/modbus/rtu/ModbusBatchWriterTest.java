@@ -0,0 +1,128 @@
+package tijos.framework.component.modbus.rtu;
+
+import static org.junit.Assert.*;
+import static tijos.framework.component.modbus.protocol.ModbusConstants.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import tijos.framework.component.modbus.sim.ModbusSimulatedBus;
+import tijos.framework.component.modbus.sim.ModbusSlaveSimulator;
+
+public class ModbusBatchWriterTest {
+
+    private ModbusSimulatedBus bus;
+    private ModbusSlaveSimulator slave1;
+    private ModbusSlaveSimulator slave2;
+    private ModbusClient client;
+
+    @Before
+    public void setUp() {
+        bus = new ModbusSimulatedBus(1);
+        bus.setRealTime(false);
+        slave1 = new ModbusSlaveSimulator(1, 16, 0, 100, 0);
+        slave2 = new ModbusSlaveSimulator(2, 16, 0, 100, 0);
+        bus.add(slave1);
+        bus.add(slave2);
+        client = new ModbusClient(bus, 500, 0);
+    }
+
+    @Test
+    public void mergesContiguousRegisters() throws Exception {
+        ModbusBatchWriter writer = new ModbusBatchWriter(client);
+        writer.writeRegister(1, 12, 112);
+        writer.writeRegister(1, 20, 120);
+        writer.writeRegister(1, 10, 110);
+        writer.writeRegister(1, 11, 111);
+
+        assertEquals(0, writer.execute());
+        assertEquals(0, writer.size());
+        assertEquals(2, writer.getRequestCount());
+        assertRequest(writer, 0, 1, FN_WRITE_MULTIPLE_REGISTERS, 10, 3);
+        assertRequest(writer, 1, 1, FN_WRITE_SINGLE_REGISTER, 20, 1);
+
+        assertEquals(110, slave1.getHoldingRegister(10));
+        assertEquals(111, slave1.getHoldingRegister(11));
+        assertEquals(112, slave1.getHoldingRegister(12));
+        assertEquals(120, slave1.getHoldingRegister(20));
+    }
+
+    @Test
+    public void laterWriteReplacesEarlier() throws Exception {
+        ModbusBatchWriter writer = new ModbusBatchWriter(client);
+        writer.writeRegister(1, 5, 1);
+        writer.writeRegisters(1, 4, new int[] {40, 50});
+
+        assertEquals(0, writer.execute());
+        assertEquals(1, writer.getRequestCount());
+        assertRequest(writer, 0, 1, FN_WRITE_MULTIPLE_REGISTERS, 4, 2);
+        assertEquals(50, slave1.getHoldingRegister(5));
+    }
+
+    @Test
+    public void splitsAtMaxLength() throws Exception {
+        ModbusBatchWriter writer = new ModbusBatchWriter(client, 4, 4);
+        writer.writeRegisters(1, 0, new int[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9});
+
+        assertEquals(0, writer.execute());
+        assertEquals(3, writer.getRequestCount());
+        assertRequest(writer, 0, 1, FN_WRITE_MULTIPLE_REGISTERS, 0, 4);
+        assertRequest(writer, 1, 1, FN_WRITE_MULTIPLE_REGISTERS, 4, 4);
+        assertRequest(writer, 2, 1, FN_WRITE_MULTIPLE_REGISTERS, 8, 2);
+        for (int i = 0; i < 10; i++)
+            assertEquals(i, slave1.getHoldingRegister(i));
+    }
+
+    @Test
+    public void separatesServersAndKinds() throws Exception {
+        ModbusBatchWriter writer = new ModbusBatchWriter(client);
+        writer.writeCoils(1, 0, new boolean[] {true, false, true});
+        writer.writeRegister(2, 0, 20);
+        writer.writeRegister(1, 3, 13);
+
+        assertEquals(0, writer.execute());
+        assertEquals(3, writer.getRequestCount());
+        assertRequest(writer, 0, 1, FN_WRITE_SINGLE_REGISTER, 3, 1);
+        assertRequest(writer, 1, 1, FN_WRITE_MULTIPLE_COILS, 0, 3);
+        assertRequest(writer, 2, 2, FN_WRITE_SINGLE_REGISTER, 0, 1);
+
+        assertTrue(slave1.getCoil(0));
+        assertFalse(slave1.getCoil(1));
+        assertTrue(slave1.getCoil(2));
+        assertEquals(13, slave1.getHoldingRegister(3));
+        assertEquals(20, slave2.getHoldingRegister(0));
+    }
+
+    @Test
+    public void serverWriteOverridesBroadcast() throws Exception {
+        ModbusBatchWriter writer = new ModbusBatchWriter(client);
+        writer.writeRegister(1, 0, 7);
+        writer.writeRegister(BROADCAST_ID, 0, 3);
+
+        assertEquals(0, writer.execute());
+        assertEquals(2, writer.getRequestCount());
+        assertRequest(writer, 0, BROADCAST_ID, FN_WRITE_SINGLE_REGISTER, 0, 1);
+        assertEquals(7, slave1.getHoldingRegister(0));
+        assertEquals(3, slave2.getHoldingRegister(0));
+    }
+
+    @Test
+    public void reportsFailedRequests() throws Exception {
+        slave2.setErrorRates(1, 0);
+        ModbusBatchWriter writer = new ModbusBatchWriter(client);
+        writer.writeRegister(1, 0, 1);
+        writer.writeRegister(2, 0, 2);
+
+        assertEquals(1, writer.execute());
+        assertEquals(ModbusClient.RESULT_OK, writer.getRequestResult(0));
+        assertEquals(ModbusClient.RESULT_TIMEOUT, writer.getRequestResult(1));
+    }
+
+    private static void assertRequest(ModbusBatchWriter writer, int request, int serverId, int function,
+                                      int address, int length) {
+        assertEquals(serverId, writer.getRequestServerId(request));
+        assertEquals(function, writer.getRequestFunction(request));
+        assertEquals(address, writer.getRequestAddress(request));
+        assertEquals(length, writer.getRequestLength(request));
+    }
+}
@@ -0,0 +1,55 @@
+package tijos.framework.component.modbus.rtu;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import tijos.framework.component.modbus.sim.ModbusSimulatedBus;
+import tijos.framework.component.modbus.sim.ModbusSlaveSimulator;
+
+public class ModbusBusHealthTest {
+
+    private ModbusSimulatedBus bus;
+    private ModbusClient client;
+    private ModbusBusHealth health;
+
+    @Before
+    public void setUp() {
+        bus = new ModbusSimulatedBus(1);
+        bus.setRealTime(false);
+        client = new ModbusClient(bus, 500, 0);
+        health = new ModbusBusHealth(500);
+        client.setHealth(health);
+    }
+
+    @Test
+    public void tracksServerIdsAbove127() throws Exception {
+        ModbusSlaveSimulator slave = new ModbusSlaveSimulator(200, 0, 0, 10, 0);
+        slave.setHoldingRegister(0, 7);
+        bus.add(slave);
+
+        short[] values = new short[1];
+        assertEquals(ModbusClient.RESULT_OK, client.readHoldingRegisters(200, 0, 1, values, 0));
+        assertEquals(7, values[0]);
+        assertEquals(1, health.getRequests(200));
+        assertEquals(100, health.getSuccessRate(200));
+    }
+
+    @Test
+    public void skipsDownServer() throws Exception {
+        ModbusSlaveSimulator slave = new ModbusSlaveSimulator(247, 0, 0, 10, 0);
+        slave.setErrorRates(1, 0);
+        bus.add(slave);
+        health.setFailThreshold(2);
+
+        short[] values = new short[1];
+        assertEquals(ModbusClient.RESULT_TIMEOUT, client.readHoldingRegisters(247, 0, 1, values, 0));
+        assertEquals(ModbusClient.RESULT_TIMEOUT, client.readHoldingRegisters(247, 0, 1, values, 0));
+        assertTrue(health.isDown(247));
+
+        assertEquals(ModbusClient.RESULT_SKIPPED, client.readHoldingRegisters(247, 0, 1, values, 0));
+        assertEquals(1, health.getSkips(247));
+        assertEquals(2, slave.getRequests());
+    }
+}
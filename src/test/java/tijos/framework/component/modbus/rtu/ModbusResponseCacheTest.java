@@ -0,0 +1,159 @@
+package tijos.framework.component.modbus.rtu;
+
+import static org.junit.Assert.*;
+import static tijos.framework.component.modbus.protocol.ModbusConstants.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import tijos.framework.component.modbus.sim.ModbusSimulatedBus;
+import tijos.framework.component.modbus.sim.ModbusSlaveSimulator;
+
+public class ModbusResponseCacheTest {
+
+    // 4 entries and 256 bytes of data
+    static final int MIN_BUDGET = ModbusResponseCache.ENTRY_OVERHEAD * 4 + 256;
+
+    private ModbusSlaveSimulator slave;
+    private ModbusClient client;
+
+    @Before
+    public void setUp() {
+        ModbusSimulatedBus bus = new ModbusSimulatedBus(1);
+        bus.setRealTime(false);
+        slave = new ModbusSlaveSimulator(1, 0, 0, 300, 0);
+        for (int i = 0; i < 300; i++)
+            slave.setHoldingRegister(i, i * 3);
+        bus.add(slave);
+        client = new ModbusClient(bus, 500, 0);
+    }
+
+    @Test
+    public void servesCoveredRangeFromCache() throws Exception {
+        ModbusResponseCache cache = new ModbusResponseCache(client, 4096, 10000);
+        short[] values = new short[10];
+
+        assertEquals(ModbusClient.RESULT_OK, cache.readHoldingRegisters(1, 0, 10, values, 0));
+        assertEquals(ModbusClient.RESULT_OK, cache.readHoldingRegisters(1, 2, 5, values, 0));
+
+        assertEquals(1, slave.getRequests());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(6, values[0]);
+        assertEquals(18, values[4]);
+    }
+
+    @Test
+    public void readsAgainAfterTtl() throws Exception {
+        ModbusResponseCache cache = new ModbusResponseCache(client, 4096, 10000);
+        cache.setServerTtl(1, 20);
+        short[] values = new short[10];
+
+        cache.readHoldingRegisters(1, 0, 10, values, 0);
+        cache.readHoldingRegisters(1, 0, 10, values, 0);
+        assertEquals(1, slave.getRequests());
+
+        Thread.sleep(40);
+        cache.readHoldingRegisters(1, 0, 10, values, 0);
+        assertEquals(2, slave.getRequests());
+    }
+
+    @Test
+    public void writeInvalidatesOverlappedRange() throws Exception {
+        ModbusResponseCache cache = new ModbusResponseCache(client, 4096, 10000);
+        short[] values = new short[10];
+        cache.readHoldingRegisters(1, 0, 10, values, 0);
+        cache.readHoldingRegisters(1, 20, 10, values, 0);
+
+        client.InitWriteRegisterRequest(1, 5, 500);
+        assertEquals(ModbusClient.RESULT_OK, client.execRequest());
+        assertEquals(1, cache.getInvalidations());
+
+        assertFalse(cache.getRegisters(1, FN_READ_HOLDING_REGISTERS, 0, 10, values, 0));
+        assertTrue(cache.getRegisters(1, FN_READ_HOLDING_REGISTERS, 20, 10, values, 0));
+
+        cache.readHoldingRegisters(1, 0, 10, values, 0);
+        assertEquals(500, values[5]);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        ModbusResponseCache cache = new ModbusResponseCache(client, MIN_BUDGET, 10000);
+        short[] values = new short[20];
+        for (int i = 0; i < 4; i++)
+            cache.readHoldingRegisters(1, i * 20, 20, values, 0);
+
+        // the first range is used again, the second is the least recently used
+        assertTrue(cache.getRegisters(1, FN_READ_HOLDING_REGISTERS, 0, 20, values, 0));
+        cache.readHoldingRegisters(1, 80, 20, values, 0);
+
+        assertEquals(1, cache.getEvictions());
+        assertTrue(cache.getRegisters(1, FN_READ_HOLDING_REGISTERS, 0, 20, values, 0));
+        assertFalse(cache.getRegisters(1, FN_READ_HOLDING_REGISTERS, 20, 20, values, 0));
+        assertTrue(cache.getRegisters(1, FN_READ_HOLDING_REGISTERS, 80, 20, values, 0));
+    }
+
+    @Test
+    public void compactsDataOfLiveEntries() throws Exception {
+        ModbusResponseCache cache = new ModbusResponseCache(client, MIN_BUDGET, 10000);
+        short[] values = new short[60];
+        cache.readHoldingRegisters(1, 0, 60, values, 0);
+        cache.readHoldingRegisters(1, 60, 60, values, 0);
+
+        // the free space is in front of the second range
+        cache.invalidate(1, FN_READ_HOLDING_REGISTERS, 0, 60);
+        cache.readHoldingRegisters(1, 120, 60, values, 0);
+        assertEquals(0, cache.getEvictions());
+
+        assertTrue(cache.getRegisters(1, FN_READ_HOLDING_REGISTERS, 60, 60, values, 0));
+        for (int i = 0; i < 60; i++)
+            assertEquals((60 + i) * 3, values[i]);
+        assertTrue(cache.getRegisters(1, FN_READ_HOLDING_REGISTERS, 120, 60, values, 0));
+        for (int i = 0; i < 60; i++)
+            assertEquals((120 + i) * 3, values[i]);
+    }
+
+    @Test
+    public void cachesServerIdsAbove127() throws Exception {
+        ModbusSimulatedBus bus = new ModbusSimulatedBus(1);
+        bus.setRealTime(false);
+        ModbusSlaveSimulator high = new ModbusSlaveSimulator(200, 0, 0, 10, 0);
+        high.setHoldingRegister(1, 99);
+        bus.add(high);
+        ModbusClient client = new ModbusClient(bus, 500, 0);
+        ModbusResponseCache cache = new ModbusResponseCache(client, 4096, 10000);
+        short[] values = new short[4];
+
+        assertEquals(ModbusClient.RESULT_OK, cache.readHoldingRegisters(200, 0, 4, values, 0));
+        assertTrue(cache.getRegisters(200, FN_READ_HOLDING_REGISTERS, 0, 4, values, 0));
+        assertEquals(99, values[1]);
+        assertEquals(1, high.getRequests());
+
+        client.InitWriteRegisterRequest(200, 1, 5);
+        assertEquals(ModbusClient.RESULT_OK, client.execRequest());
+        assertFalse(cache.getRegisters(200, FN_READ_HOLDING_REGISTERS, 0, 4, values, 0));
+    }
+
+    @Test
+    public void dropsReadCompletedAfterWrite() throws Exception {
+        ModbusResponseCache cache = new ModbusResponseCache(client, 4096, 10000);
+        ModbusTransaction tx = new ModbusTransaction();
+        tx.InitReadHoldingsRequest(1, 0, 10);
+        assertEquals(ModbusClient.RESULT_OK, client.execute(tx));
+        short[] values = new short[10];
+
+        // a write to another range before the response
+        cache.clear();
+        tx.cacheGeneration = cache.getGeneration();
+        cache.invalidate(1, FN_READ_HOLDING_REGISTERS, 50, 1);
+        cache.update(tx, ModbusClient.RESULT_OK);
+        assertTrue(cache.getRegisters(1, FN_READ_HOLDING_REGISTERS, 0, 10, values, 0));
+
+        // a write to the range before the response
+        cache.clear();
+        tx.cacheGeneration = cache.getGeneration();
+        cache.invalidate(1, FN_READ_HOLDING_REGISTERS, 5, 1);
+        cache.update(tx, ModbusClient.RESULT_OK);
+        assertFalse(cache.getRegisters(1, FN_READ_HOLDING_REGISTERS, 0, 10, values, 0));
+    }
+}
@@ -0,0 +1,61 @@
+package tijos.framework.component.modbus.rtu;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import tijos.framework.component.modbus.protocol.ModbusConstants;
+import tijos.framework.component.modbus.sim.ModbusSimulatedBus;
+import tijos.framework.component.modbus.sim.ModbusSlaveSimulator;
+
+public class RtuTransportUARTTest {
+
+    private ModbusSimulatedBus bus;
+    private ModbusClient client;
+    private ModbusSlaveSimulator slave;
+
+    @Before
+    public void setUp() {
+        bus = new ModbusSimulatedBus(1);
+        bus.setRealTime(false);
+        client = new ModbusClient(bus, 500, 0);
+        slave = new ModbusSlaveSimulator(1, 0, 0, 10, 0);
+        slave.setHoldingRegister(4, 1234);
+        bus.add(slave);
+    }
+
+    @Test
+    public void keepsRequestOnBadResponse() throws Exception {
+        ModbusTransaction tx = new ModbusTransaction();
+        tx.InitReadHoldingsRequest(1, 4, 1);
+
+        // corrupted id, function, data or CRC
+        slave.setErrorRates(0, 1);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(ModbusTransaction.RESULT_BAD_RESPONSE, client.execute(tx));
+            assertEquals(ModbusConstants.FN_READ_HOLDING_REGISTERS, tx.getFunction());
+            assertEquals(5, tx.getPduSize());
+            assertEquals(4, tx.readInt16FromPDU(1, true));
+            assertEquals(1, tx.readInt16FromPDU(3, true));
+        }
+        assertEquals(20, slave.getCorrupted());
+        assertEquals(0, bus.getBadRequests());
+
+        // the request is sent again as it was
+        slave.setErrorRates(0, 0);
+        assertEquals(ModbusTransaction.RESULT_OK, client.execute(tx));
+        assertEquals(1234, tx.readInt16FromPDU(2, true));
+    }
+
+    @Test
+    public void keepsRequestOnTimeout() throws Exception {
+        ModbusTransaction tx = new ModbusTransaction();
+        tx.InitReadHoldingsRequest(1, 4, 1);
+
+        slave.setErrorRates(1, 0);
+        assertEquals(ModbusTransaction.RESULT_TIMEOUT, client.execute(tx));
+        assertEquals(ModbusConstants.FN_READ_HOLDING_REGISTERS, tx.getFunction());
+        assertEquals(4, tx.readInt16FromPDU(1, true));
+    }
+}
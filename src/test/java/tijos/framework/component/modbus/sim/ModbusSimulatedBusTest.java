@@ -0,0 +1,103 @@
+package tijos.framework.component.modbus.sim;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import tijos.framework.component.modbus.rtu.ModbusBusHealth;
+import tijos.framework.component.modbus.rtu.ModbusClient;
+import tijos.framework.component.modbus.rtu.ModbusTransaction;
+
+/**
+ * ModbusClient against the simulated bus on the virtual clock
+ */
+public class ModbusSimulatedBusTest {
+
+    static final int SERVERS = 8;
+    static final int SCANS = 10;
+    static final int TIMEOUT = 500;
+
+    @Test
+    public void readsAndWritesRegisters() throws Exception {
+        ModbusSimulatedBus bus = bus(1, 0, 0);
+        ModbusSlaveSimulator slave = bus.find(1);
+        slave.setHoldingRegister(3, 1234);
+        ModbusClient client = new ModbusClient(bus, TIMEOUT, 0);
+
+        short[] values = new short[4];
+        assertEquals(ModbusTransaction.RESULT_OK, client.readHoldingRegisters(1, 0, 4, values, 0));
+        assertEquals(1234, values[3]);
+
+        client.InitWriteRegisterRequest(1, 2, 42);
+        assertEquals(ModbusTransaction.RESULT_OK, client.execRequest());
+        assertEquals(42, slave.getHoldingRegister(2));
+        assertEquals(2, slave.getResponses());
+    }
+
+    @Test
+    public void timesOutOnDropout() throws Exception {
+        ModbusSimulatedBus bus = bus(1, 1, 0);
+        ModbusClient client = new ModbusClient(bus, TIMEOUT, 0);
+
+        long start = bus.getTime();
+        assertEquals(ModbusTransaction.RESULT_TIMEOUT, client.readHoldingRegisters(1, 0, 4, new short[4], 0));
+        assertEquals(1, bus.getTimeouts());
+        assertEquals(1, bus.find(1).getDropped());
+        // virtual time in microseconds
+        assertTrue(bus.getTime() - start >= TIMEOUT * 1000L);
+    }
+
+    @Test
+    public void rejectsCorruptedResponse() throws Exception {
+        ModbusSimulatedBus bus = bus(1, 0, 1);
+        ModbusClient client = new ModbusClient(bus, TIMEOUT, 0);
+
+        assertEquals(ModbusTransaction.RESULT_BAD_RESPONSE, client.readHoldingRegisters(1, 0, 4, new short[4], 0));
+        assertEquals(1, bus.find(1).getCorrupted());
+    }
+
+    @Test
+    public void virtualTimeIsReproducible() throws Exception {
+        long time = scan(bus(SERVERS, 0.05, 0), false).getTime();
+
+        assertEquals(time, scan(bus(SERVERS, 0.05, 0), false).getTime());
+    }
+
+    @Test
+    public void adaptiveTimeoutScansFasterOnDropout() throws Exception {
+        ModbusSimulatedBus fixed = scan(bus(SERVERS, 0.2, 0), false);
+        ModbusSimulatedBus adaptive = scan(bus(SERVERS, 0.2, 0), true);
+
+        assertTrue(fixed.getTimeouts() > 0);
+        assertEquals(fixed.getTimeouts(), adaptive.getTimeouts());
+        assertTrue(adaptive.getTime() < fixed.getTime());
+    }
+
+    static ModbusSimulatedBus bus(int servers, double dropout, double corruption) {
+        ModbusSimulatedBus bus = new ModbusSimulatedBus(1);
+        bus.setRealTime(false);
+        for (int id = 1; id <= servers; id++) {
+            ModbusSlaveSimulator slave = new ModbusSlaveSimulator(id, 0, 0, 100, 0);
+            slave.setLatency(10, 10);
+            slave.setErrorRates(dropout, corruption);
+            bus.add(slave);
+        }
+        return bus;
+    }
+
+    static ModbusSimulatedBus scan(ModbusSimulatedBus bus, boolean adaptive) throws Exception {
+        ModbusClient client = new ModbusClient(bus, TIMEOUT, 0);
+        if (adaptive) {
+            ModbusBusHealth health = new ModbusBusHealth(TIMEOUT);
+            health.setFailThreshold(1000); // measure the timeout only
+            client.setHealth(health);
+        }
+
+        short[] values = new short[20];
+        for (int scan = 0; scan < SCANS; scan++) {
+            for (int id = 1; id <= SERVERS; id++)
+                client.readHoldingRegisters(id, 0, values.length, values, 0);
+        }
+        return bus;
+    }
+}
@@ -0,0 +1,143 @@
+package tijos.framework.component.modbus.tcp;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import tijos.framework.component.modbus.protocol.ModbusMbap;
+import tijos.framework.component.modbus.rtu.ModbusTransaction;
+
+/**
+ * Transaction id matching on a connection, the server side is played by the
+ * test over pipes
+ */
+public class ModbusTcpTransportTest {
+
+    private InputStream serverIn;
+    private OutputStream serverOut;
+    private ModbusTcpTransport transport;
+
+    private final byte[] frame = new byte[ModbusMbap.MAX_FRAME_SIZE];
+
+    @Before
+    public void setUp() throws IOException {
+        PipedInputStream clientIn = new PipedInputStream(4096);
+        PipedInputStream serverPipe = new PipedInputStream(4096);
+        serverOut = new PipedOutputStream(clientIn);
+        serverIn = serverPipe;
+        transport = new ModbusTcpTransport(clientIn, new PipedOutputStream(serverPipe), 200, 4);
+    }
+
+    @After
+    public void tearDown() {
+        transport.close();
+    }
+
+    @Test
+    public void matchesResponsesOutOfOrder() throws Exception {
+        ModbusTransaction tx1 = read(1, 10);
+        ModbusTransaction tx2 = read(1, 20);
+        int tid1 = receiveRequest();
+        int tid2 = receiveRequest();
+        assertTrue(tid1 != tid2);
+
+        respond(tid2, 1, 200);
+        respond(tid1, 1, 100);
+
+        assertEquals(ModbusTransaction.RESULT_OK, transport.waitResponse(tx1));
+        assertEquals(100, value(tx1));
+        assertEquals(ModbusTransaction.RESULT_OK, transport.waitResponse(tx2));
+        assertEquals(200, value(tx2));
+        assertEquals(0, transport.getDiscarded());
+    }
+
+    @Test
+    public void discardsUnknownTransactionId() throws Exception {
+        ModbusTransaction tx = read(1, 0);
+        int tid = receiveRequest();
+
+        respond((tid + 100) & 0xFFFF, 1, 1);
+        respond(tid, 1, 2);
+
+        assertEquals(ModbusTransaction.RESULT_OK, transport.waitResponse(tx));
+        assertEquals(2, value(tx));
+        assertEquals(1, transport.getDiscarded());
+    }
+
+    @Test
+    public void discardsResponseOfAnotherUnit() throws Exception {
+        ModbusTransaction tx = read(1, 0);
+        int tid = receiveRequest();
+
+        respond(tid, 2, 1);
+
+        assertEquals(ModbusTransaction.RESULT_TIMEOUT, transport.waitResponse(tx));
+        assertEquals(1, transport.getDiscarded());
+    }
+
+    @Test
+    public void discardsLateResponse() throws Exception {
+        ModbusTransaction late = read(1, 0);
+        int lateTid = receiveRequest();
+        assertEquals(ModbusTransaction.RESULT_TIMEOUT, transport.waitResponse(late));
+
+        ModbusTransaction tx = read(1, 0);
+        int tid = receiveRequest();
+        respond(lateTid, 1, 1);
+        respond(tid, 1, 2);
+
+        assertEquals(ModbusTransaction.RESULT_OK, transport.waitResponse(tx));
+        assertEquals(2, value(tx));
+        assertEquals(1, transport.getDiscarded());
+    }
+
+    private ModbusTransaction read(int unit, int address) throws Exception {
+        ModbusTransaction tx = new ModbusTransaction();
+        tx.InitReadHoldingsRequest(unit, address, 1);
+        transport.sendRequest(tx);
+        return tx;
+    }
+
+    // register of the response, the result is set by the client
+    private static int value(ModbusTransaction tx) {
+        return tx.readInt16FromPDU(2, true);
+    }
+
+    // transaction id of the next request
+    private int receiveRequest() throws IOException {
+        readFully(frame, 0, ModbusMbap.HEADER_SIZE);
+        readFully(frame, ModbusMbap.HEADER_SIZE, ModbusMbap.getFrameSize(frame, 0) - ModbusMbap.HEADER_SIZE);
+        assertEquals(ModbusMbap.PROTOCOL_ID, ModbusMbap.getProtocolId(frame, 0));
+        return ModbusMbap.getTransactionId(frame, 0);
+    }
+
+    // READ HOLDING REGISTERS response of one register
+    private void respond(int tid, int unit, int value) throws IOException {
+        byte[] response = new byte[ModbusMbap.HEADER_SIZE + 4];
+        ModbusMbap.writeHeader(response, 0, tid, unit, 4);
+        response[7] = 3;
+        response[8] = 2;
+        response[9] = (byte) (value >> 8);
+        response[10] = (byte) value;
+        serverOut.write(response);
+        serverOut.flush();
+    }
+
+    private void readFully(byte[] buf, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = serverIn.read(buf, off, len);
+            if (n < 0)
+                throw new IOException("Closed");
+            off += n;
+            len -= n;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package tijos.framework.component.modbus.tcp;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import tijos.framework.component.modbus.protocol.ModbusMbap;
+import tijos.framework.component.modbus.rtu.ModbusTransaction;
+
+/**
+ * Transaction id matching over datagrams, the server side is played by the
+ * test over an in-memory link
+ */
+public class ModbusUdpTransportTest {
+
+    // datagrams from the server, the last sent request
+    static class Link implements IModbusDatagramLink {
+        private final byte[][] inbox = new byte[8][];
+        private int count;
+        private byte[] sent;
+        private boolean closed;
+
+        @Override
+        public synchronized void send(byte[] buf, int off, int len) {
+            sent = new byte[len];
+            System.arraycopy(buf, off, sent, 0, len);
+        }
+
+        @Override
+        public synchronized int receive(byte[] buf, int off, int len) throws IOException {
+            while (count == 0) {
+                if (closed)
+                    throw new IOException("Closed");
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+            }
+            byte[] datagram = inbox[0];
+            System.arraycopy(inbox, 1, inbox, 0, --count);
+            int n = Math.min(len, datagram.length);
+            System.arraycopy(datagram, 0, buf, off, n);
+            return n;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            this.notifyAll();
+        }
+
+        synchronized void deliver(byte[] datagram) {
+            inbox[count++] = datagram;
+            this.notifyAll();
+        }
+
+        synchronized int lastTid() {
+            return ModbusMbap.getTransactionId(sent, 0);
+        }
+    }
+
+    private Link link;
+    private ModbusUdpTransport transport;
+
+    @Before
+    public void setUp() {
+        link = new Link();
+        transport = new ModbusUdpTransport(link, 200, 4);
+    }
+
+    @After
+    public void tearDown() {
+        transport.close();
+    }
+
+    @Test
+    public void matchesResponsesOutOfOrder() throws Exception {
+        ModbusTransaction tx1 = read(1);
+        int tid1 = link.lastTid();
+        ModbusTransaction tx2 = read(1);
+        int tid2 = link.lastTid();
+
+        link.deliver(response(tid2, 1, 200));
+        link.deliver(response(tid1, 1, 100));
+
+        assertEquals(ModbusTransaction.RESULT_OK, transport.waitResponse(tx1));
+        assertEquals(100, tx1.readInt16FromPDU(2, true));
+        assertEquals(ModbusTransaction.RESULT_OK, transport.waitResponse(tx2));
+        assertEquals(200, tx2.readInt16FromPDU(2, true));
+    }
+
+    @Test
+    public void discardsInvalidDatagrams() throws Exception {
+        ModbusTransaction tx = read(1);
+        int tid = link.lastTid();
+
+        byte[] valid = response(tid, 1, 1);
+        byte[] shortened = new byte[valid.length - 1];
+        System.arraycopy(valid, 0, shortened, 0, shortened.length);
+        byte[] foreign = response(tid, 1, 1);
+        foreign[3] = 1; // protocol id
+        link.deliver(shortened);
+        link.deliver(foreign);
+        link.deliver(new byte[] {1, 2, 3});
+        link.deliver(response(tid, 1, 2));
+
+        assertEquals(ModbusTransaction.RESULT_OK, transport.waitResponse(tx));
+        assertEquals(2, tx.readInt16FromPDU(2, true));
+        assertEquals(3, transport.getDiscarded());
+    }
+
+    @Test
+    public void lostDatagramTimesOutItsRequestOnly() throws Exception {
+        ModbusTransaction lost = read(1);
+        ModbusTransaction tx = read(1);
+        link.deliver(response(link.lastTid(), 1, 2));
+
+        assertEquals(ModbusTransaction.RESULT_TIMEOUT, transport.waitResponse(lost));
+        assertEquals(ModbusTransaction.RESULT_OK, transport.waitResponse(tx));
+        assertEquals(0, transport.getDiscarded());
+    }
+
+    private ModbusTransaction read(int unit) throws Exception {
+        ModbusTransaction tx = new ModbusTransaction();
+        tx.InitReadHoldingsRequest(unit, 0, 1);
+        transport.sendRequest(tx);
+        return tx;
+    }
+
+    // READ HOLDING REGISTERS response of one register
+    private static byte[] response(int tid, int unit, int value) {
+        byte[] response = new byte[ModbusMbap.HEADER_SIZE + 4];
+        ModbusMbap.writeHeader(response, 0, tid, unit, 4);
+        response[7] = 3;
+        response[8] = 2;
+        response[9] = (byte) (value >> 8);
+        response[10] = (byte) value;
+        return response;
+    }
+}
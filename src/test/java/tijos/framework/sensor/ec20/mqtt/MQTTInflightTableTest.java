@@ -0,0 +1,134 @@
+package tijos.framework.sensor.ec20.mqtt;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class MQTTInflightTableTest {
+
+	// records the events as "id:ok", "id:failed" or "id+count"
+	static class Recorder implements IMQTTPublishListener {
+		final StringBuffer events = new StringBuffer();
+
+		@Override
+		public synchronized void onPublishCompleted(int msgId, boolean success) {
+			events.append(msgId).append(success ? ":ok " : ":failed ");
+		}
+
+		@Override
+		public synchronized void onPublishRetransmitted(int msgId, int count) {
+			events.append(msgId).append('+').append(count).append(' ');
+		}
+
+		synchronized String get() {
+			return events.toString().trim();
+		}
+	}
+
+	@Test
+	public void completesByMessageId() throws IOException {
+		MQTTInflightTable table = new MQTTInflightTable(4);
+		Recorder recorder = new Recorder();
+		table.add(1, recorder, 0);
+		table.add(2, recorder, 0);
+
+		assertTrue(table.onResult(2, 0, 0));
+		assertFalse(table.onResult(3, 0, 0));
+
+		assertEquals("2:ok", recorder.get());
+		assertEquals(1, table.size());
+		assertEquals(1, table.getCompleted());
+	}
+
+	@Test
+	public void retransmissionKeepsMessageInFlight() throws IOException {
+		MQTTInflightTable table = new MQTTInflightTable(4);
+		Recorder recorder = new Recorder();
+		table.add(1, recorder, 0);
+
+		table.onResult(1, 1, 1);
+		table.onResult(1, 1, 2);
+		assertEquals(1, table.size());
+
+		table.onResult(1, 2, 0);
+		assertEquals("1+1 1+2 1:failed", recorder.get());
+		assertEquals(0, table.size());
+		assertEquals(2, table.getRetransmissions());
+		assertEquals(1, table.getFailed());
+	}
+
+	@Test
+	public void sameMessageIdCompletesOldestFirst() throws IOException {
+		MQTTInflightTable table = new MQTTInflightTable(4);
+		Recorder first = new Recorder();
+		Recorder second = new Recorder();
+		table.add(0, first, 0);
+		table.add(0, second, 0);
+
+		table.onResult(0, 0, 0);
+		assertEquals("0:ok", first.get());
+		assertEquals("", second.get());
+	}
+
+	@Test(expected = IOException.class)
+	public void fullWindowTimesOut() throws IOException {
+		MQTTInflightTable table = new MQTTInflightTable(1);
+		table.add(1, null, 0);
+		table.add(2, null, 50);
+	}
+
+	@Test
+	public void fullWindowWaitsForResult() throws Exception {
+		final MQTTInflightTable table = new MQTTInflightTable(1);
+		table.add(1, null, 0);
+
+		Thread result = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+				}
+				table.onResult(1, 0, 0);
+			}
+		};
+		result.start();
+
+		table.add(2, null, 2000);
+		result.join();
+		assertEquals(1, table.size());
+		assertEquals(1, table.getCompleted());
+	}
+
+	@Test
+	public void expiresMessagesWithoutResult() throws Exception {
+		MQTTInflightTable table = new MQTTInflightTable(4);
+		Recorder recorder = new Recorder();
+		table.setExpireTime(20);
+		table.add(1, recorder, 0);
+
+		table.expire();
+		assertEquals(1, table.size());
+
+		Thread.sleep(40);
+		table.add(2, recorder, 0);
+		table.expire();
+		assertEquals("1:failed", recorder.get());
+		assertEquals(1, table.size());
+	}
+
+	@Test
+	public void failAllInOrder() throws IOException {
+		MQTTInflightTable table = new MQTTInflightTable(4);
+		Recorder recorder = new Recorder();
+		table.add(3, recorder, 0);
+		table.add(1, recorder, 0);
+		table.add(2, recorder, 0);
+
+		table.failAll();
+		assertEquals("3:failed 1:failed 2:failed", recorder.get());
+		assertEquals(0, table.size());
+	}
+}
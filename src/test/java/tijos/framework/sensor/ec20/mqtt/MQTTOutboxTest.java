@@ -0,0 +1,145 @@
+package tijos.framework.sensor.ec20.mqtt;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MQTTOutboxTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void memoryOutboxDropsOldest() throws IOException {
+		MQTTOutbox outbox = new MQTTOutbox(3);
+		put(outbox, 0, 5);
+
+		assertEquals(3, outbox.size());
+		assertEquals(2, outbox.getDropped());
+		assertEquals(2, drain(outbox, 3));
+		assertTrue(outbox.isEmpty());
+	}
+
+	@Test
+	public void drainsLogBeyondRingInOrder() throws IOException {
+		MQTTOutbox outbox = new MQTTOutbox(2, dir(), 64, 100);
+		put(outbox, 0, 10);
+
+		assertEquals(10, outbox.size());
+		assertTrue(segments() > 1);
+		assertEquals(0, drain(outbox, 2));
+		assertTrue(outbox.isEmpty());
+		// drained log and position are deleted
+		assertEquals(0, folder.getRoot().list().length);
+	}
+
+	@Test
+	public void recoversAfterRestart() throws IOException {
+		MQTTOutbox outbox = new MQTTOutbox(4, dir(), 64, 100);
+		put(outbox, 0, 6);
+
+		MQTTMessage[] batch = batch(2);
+		assertEquals(2, outbox.peek(batch));
+		outbox.remove(2);
+
+		// reboot
+		outbox = new MQTTOutbox(4, dir(), 64, 100);
+		assertEquals(4, outbox.size());
+		assertEquals(2, drain(outbox, 4));
+	}
+
+	@Test
+	public void keepsPeekedMessagesUntilRemoved() throws IOException {
+		MQTTOutbox outbox = new MQTTOutbox(4, dir(), 64, 100);
+		put(outbox, 0, 3);
+
+		assertEquals(3, outbox.peek(batch(4)));
+
+		// reboot before the messages were sent
+		outbox = new MQTTOutbox(4, dir(), 64, 100);
+		assertEquals(3, outbox.size());
+		assertEquals(0, drain(outbox, 4));
+	}
+
+	@Test
+	public void dropsOldestSegmentWhenFull() throws IOException {
+		MQTTOutbox outbox = new MQTTOutbox(2, dir(), 64, 2);
+		put(outbox, 0, 20);
+
+		assertTrue(outbox.getDropped() > 0);
+		assertEquals(20, outbox.getDropped() + outbox.size());
+		assertEquals(outbox.getDropped(), drain(outbox, 2));
+	}
+
+	@Test
+	public void ignoresRemoveAfterSegmentDrop() throws IOException {
+		MQTTOutbox outbox = new MQTTOutbox(2, dir(), 64, 2);
+		put(outbox, 0, 2);
+
+		MQTTMessage[] batch = batch(2);
+		assertEquals(2, outbox.peek(batch));
+		put(outbox, 2, 18);
+		assertTrue(outbox.getDropped() >= 2);
+		int size = outbox.size();
+		outbox.remove(2);
+
+		// the peeked messages are gone with their segment
+		assertEquals(size, outbox.size());
+		assertEquals(20 - size, drain(outbox, 2));
+	}
+
+	private String dir() {
+		return folder.getRoot().getPath();
+	}
+
+	private int segments() {
+		int n = 0;
+		String[] names = folder.getRoot().list();
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].endsWith(".log"))
+				n++;
+		}
+		return n;
+	}
+
+	private static void put(MQTTOutbox outbox, int first, int count) throws IOException {
+		for (int i = first; i < first + count; i++) {
+			byte[] payload = ("m" + i).getBytes();
+			outbox.put("t/" + i, payload, 0, payload.length, 1, false);
+		}
+	}
+
+	private static MQTTMessage[] batch(int size) {
+		MQTTMessage[] batch = new MQTTMessage[size];
+		for (int i = 0; i < size; i++)
+			batch[i] = new MQTTMessage();
+		return batch;
+	}
+
+	// remove all messages checking they are in order, first message number
+	private static int drain(MQTTOutbox outbox, int batchSize) throws IOException {
+		MQTTMessage[] batch = batch(batchSize);
+		int first = -1;
+		int next = -1;
+		int n;
+		while ((n = outbox.peek(batch)) > 0) {
+			for (int i = 0; i < n; i++) {
+				int number = Integer.parseInt(new String(batch[i].getPayload()).substring(1));
+				assertEquals("t/" + number, batch[i].getTopic());
+				if (first < 0)
+					first = number;
+				else
+					assertEquals(next, number);
+				next = number + 1;
+			}
+			outbox.remove(n);
+		}
+		assertEquals(0, outbox.size());
+		return first;
+	}
+}